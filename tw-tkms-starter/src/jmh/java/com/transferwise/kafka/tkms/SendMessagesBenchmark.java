@@ -0,0 +1,159 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.common.baseutils.transactionsmanagement.ITransactionsHelper;
+import com.transferwise.kafka.tkms.api.ITkmsPartitioner;
+import com.transferwise.kafka.tkms.api.ITransactionalKafkaMessageSender.SendMessagesRequest;
+import com.transferwise.kafka.tkms.api.ITransactionalKafkaMessageSender.SendMessagesResult;
+import com.transferwise.kafka.tkms.api.TkmsMessage;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.dao.ITkmsDao;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.InsertMessageResult;
+import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Measures the registration path of `sendMessages`, with a database which does nothing.
+ *
+ * <p>Run with `./gradlew :tw-tkms-starter:jmh`. The `gc` profiler shows the allocations per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SendMessagesBenchmark {
+
+  @Param({"1", "100", "10000"})
+  private int messagesCount;
+
+  private TransactionalKafkaMessageSender sender;
+  private SendMessagesRequest request;
+
+  @Setup
+  public void setup() throws Exception {
+    var properties = new TkmsProperties();
+    properties.setShardsCount(2);
+    properties.setPartitionsCount(4);
+    properties.getTopics().add("TestTopic");
+    TkmsShardPartition.init(properties);
+
+    ITkmsDao tkmsDao = stub(ITkmsDao.class, (proxy, method, args) -> {
+      if (method.getName().equals("insertMessages")) {
+        @SuppressWarnings("unchecked")
+        var messages = (List<TkmsMessageWithSequence>) args[1];
+        var results = new ArrayList<InsertMessageResult>(messages.size());
+        for (var message : messages) {
+          results.add(new InsertMessageResult().setStorageId((long) message.getSequence()).setSequence(message.getSequence())
+              .setShardPartition((TkmsShardPartition) args[0]));
+        }
+        return results;
+      }
+      return defaultValue(method.getReturnType());
+    });
+
+    sender = new TransactionalKafkaMessageSender();
+    sender.setTkmsDaoProvider(shard -> tkmsDao);
+    setField(sender, "properties", properties);
+    setField(sender, "metricsTemplate", stub(ITkmsMetricsTemplate.class, (proxy, method, args) -> defaultValue(method.getReturnType())));
+    setField(sender, "problemNotifier", stub(IProblemNotifier.class, (proxy, method, args) -> null));
+    setField(sender, "spool", stub(ITkmsSpool.class, (proxy, method, args) -> defaultValue(method.getReturnType())));
+    setField(sender, "topicValidator", stub(ITkmsTopicValidator.class, (proxy, method, args) -> null));
+    setField(sender, "partitioner", (ITkmsPartitioner) (shard, message, partitionsCount) ->
+        Math.abs(message.getKey().hashCode() % partitionsCount));
+    setField(sender, "transactionsHelper", transactionsHelperStub());
+    setField(sender, "eventsDispatcher", stub(ITkmsEventsDispatcher.class, (proxy, method, args) -> defaultValue(method.getReturnType())));
+    sender.initShardPartitionIndexes();
+
+    request = new SendMessagesRequest();
+    var value = "{\"message\" : \"Hello World!\"}".getBytes(StandardCharsets.UTF_8);
+    for (int i = 0; i < messagesCount; i++) {
+      request.addTkmsMessage(new TkmsMessage().setTopic("TestTopic").setKey(UUID.randomUUID().toString()).setValue(value)
+          .addHeader(new TkmsMessage.Header().setKey("x-trace-id").setValue(value)));
+    }
+  }
+
+  @Benchmark
+  public SendMessagesResult sendMessages() {
+    return sender.sendMessages(request);
+  }
+
+  /**
+   * Runs the callable with Spring's transaction synchronization, committing right after it.
+   */
+  private ITransactionsHelper transactionsHelperStub() {
+    InvocationHandler[] builderHandler = new InvocationHandler[1];
+    builderHandler[0] = (proxy, method, args) -> {
+      if (method.getName().equals("call") || method.getName().equals("run")) {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+          Object result = invokeLambda(args[0]);
+          for (var synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            synchronization.beforeCommit(false);
+          }
+          for (var synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+          }
+          return result;
+        } finally {
+          TransactionSynchronizationManager.clearSynchronization();
+        }
+      }
+      // Any builder method.
+      return method.getReturnType().isInterface() ? stub(method.getReturnType(), builderHandler[0]) : defaultValue(method.getReturnType());
+    };
+    return stub(ITransactionsHelper.class, (proxy, method, args) ->
+        method.getReturnType().isInterface() ? stub(method.getReturnType(), builderHandler[0]) : defaultValue(method.getReturnType()));
+  }
+
+  private static Object invokeLambda(Object lambda) throws Exception {
+    for (var lambdaInterface : lambda.getClass().getInterfaces()) {
+      for (var method : lambdaInterface.getMethods()) {
+        if (Modifier.isAbstract(method.getModifiers())) {
+          return method.invoke(lambda);
+        }
+      }
+    }
+    throw new IllegalStateException("Not a lambda: " + lambda);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T stub(Class<T> clazz, InvocationHandler handler) {
+    return (T) Proxy.newProxyInstance(SendMessagesBenchmark.class.getClassLoader(), new Class<?>[]{clazz}, handler);
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    } else if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 0L;
+    } else if (type == double.class) {
+      return 0d;
+    }
+    return null;
+  }
+
+  private static void setField(Object target, String name, Object value) throws ReflectiveOperationException {
+    Field field = TransactionalKafkaMessageSender.class.getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(target, value);
+  }
+}
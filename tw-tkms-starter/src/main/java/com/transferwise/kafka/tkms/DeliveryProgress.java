@@ -0,0 +1,180 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.kafka.tkms.IDeliveryTracker.Batch;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.MessageRecord;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import javax.annotation.concurrent.NotThreadSafe;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Proxying progress over one table, where the proxied messages are not deleted right away.
+ *
+ * <p>Keeps a cursor to poll from and a bitmap of proxied message ids. Messages committed out of the id order are found by rescans behind the
+ * cursor.
+ *
+ * <p>Ids proxied at least `lookBackPeriod` ago are forgotten, the lowest remembered id is the watermark. Everything below the watermark is proxied,
+ * except for the pending ids - messages which failed to be sent, but which the cursor has moved past.
+ */
+@NotThreadSafe
+@Slf4j
+public class DeliveryProgress {
+
+  private final MessagesSource source;
+  private final int maxPendingIds;
+  private final IdBitmap proxiedIds;
+  private final TreeSet<Long> pendingIds;
+  /**
+   * Clean rescans as `{timeMs, cursor}` pairs.
+   */
+  private final Deque<long[]> cleanRescans = new ArrayDeque<>();
+
+  private long cursor;
+  private boolean drained;
+
+  public DeliveryProgress(MessagesSource source, long watermark, Collection<Long> pendingIds, int maxPendingIds) {
+    this.source = source;
+    this.maxPendingIds = maxPendingIds;
+    this.proxiedIds = new IdBitmap(watermark);
+    this.pendingIds = new TreeSet<>(pendingIds);
+    this.cursor = watermark;
+  }
+
+  public long getWatermark() {
+    return proxiedIds.getBase();
+  }
+
+  public SortedSet<Long> getPendingIds() {
+    return Collections.unmodifiableSortedSet(pendingIds);
+  }
+
+  /**
+   * If the last poll from the cursor found nothing.
+   */
+  public boolean isDrained() {
+    return drained;
+  }
+
+  public boolean isProxied(long id) {
+    return proxiedIds.contains(id) && !pendingIds.contains(id);
+  }
+
+  /**
+   * Polls the pending messages and then the next messages from the cursor, skipping the already proxied ones.
+   */
+  public Batch poll(int maxCount) {
+    var records = new ArrayList<MessageRecord>();
+
+    var it = pendingIds.iterator();
+    while (it.hasNext() && records.size() < maxCount) {
+      long id = it.next();
+      var pendingRecords = source.getMessages(id, 1);
+      if (pendingRecords.isEmpty() || pendingRecords.get(0).getId() != id) {
+        log.warn("Pending message {} has disappeared.", id);
+        it.remove();
+      } else {
+        records.add(pendingRecords.get(0));
+      }
+    }
+
+    long lastPolledId = -1;
+    while (records.size() < maxCount) {
+      var polledRecords = source.getMessages(cursor, maxCount - records.size());
+      if (polledRecords.isEmpty()) {
+        drained = true;
+        break;
+      }
+      drained = false;
+      lastPolledId = polledRecords.get(polledRecords.size() - 1).getId();
+
+      int pendingRecordsCount = records.size();
+      for (var record : polledRecords) {
+        if (!proxiedIds.contains(record.getId()) && !pendingIds.contains(record.getId())) {
+          records.add(record);
+        }
+      }
+      if (records.size() > pendingRecordsCount) {
+        break;
+      }
+      // Only already proxied messages, a rescan has moved the cursor back.
+      cursor = lastPolledId + 1;
+    }
+
+    return new Batch().setRecords(records).setLastPolledId(lastPolledId);
+  }
+
+  /**
+   * Moves the cursor past the batch.
+   *
+   * <p>Messages failed to be sent are remembered as pending, as long as there is room for those. Otherwise, the cursor stays at the first of
+   * those, so it gets polled again.
+   */
+  public void proxied(Batch batch, Collection<Long> ids) {
+    var proxiedIdsSet = new HashSet<>(ids);
+    long newCursor = batch.getLastPolledId() == -1 ? cursor : batch.getLastPolledId() + 1;
+    for (var record : batch.getRecords()) {
+      long id = record.getId();
+      if (proxiedIdsSet.contains(id)) {
+        proxiedIds.add(id);
+        pendingIds.remove(id);
+      } else if (!pendingIds.contains(id)) {
+        if (pendingIds.size() < maxPendingIds) {
+          pendingIds.add(id);
+        } else if (id < newCursor) {
+          newCursor = id;
+        }
+      }
+    }
+    cursor = Math.max(cursor, newCursor);
+  }
+
+  /**
+   * Looks for skipped messages behind the cursor and moves the cursor back, when found.
+   *
+   * <p>After clean rescans, forgets the ids proxied at least `lookBackMs` ago, which moves the watermark forward.
+   *
+   * @return true, if nothing was skipped.
+   */
+  public boolean rescan(long nowMs, long lookBackMs) {
+    if (cursor > proxiedIds.getBase()) {
+      for (long id : source.getMessageIds(proxiedIds.getBase(), cursor - 1)) {
+        if (!proxiedIds.contains(id) && !pendingIds.contains(id)) {
+          log.debug("Found skipped message {}.", id);
+          cursor = id;
+          return false;
+        }
+      }
+    }
+
+    cleanRescans.addLast(new long[]{nowMs, cursor});
+
+    long[] forgettable = null;
+    while (!cleanRescans.isEmpty() && nowMs - cleanRescans.peekFirst()[0] >= lookBackMs) {
+      forgettable = cleanRescans.pollFirst();
+    }
+    if (forgettable != null) {
+      proxiedIds.pruneBelow(forgettable[1]);
+    }
+    return true;
+  }
+
+  public interface MessagesSource {
+
+    /**
+     * Messages with id at least `fromMessageId`, in the id order.
+     */
+    List<MessageRecord> getMessages(long fromMessageId, int maxCount);
+
+    /**
+     * Message ids from `fromMessageId` to `toMessageId`, inclusive, in the id order.
+     */
+    List<Long> getMessageIds(long fromMessageId, long toMessageId);
+  }
+}
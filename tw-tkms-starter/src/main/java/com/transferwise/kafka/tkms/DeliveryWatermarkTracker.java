@@ -0,0 +1,103 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.kafka.tkms.DeliveryProgress.MessagesSource;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.config.TkmsProperties.DeliveryWatermarks;
+import com.transferwise.kafka.tkms.dao.ITkmsDao;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.MessageRecord;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.concurrent.NotThreadSafe;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tracks the proxying progress over the main table of a shard-partition, when delivery watermarks are enabled.
+ *
+ * <p>The watermark and the pending ids are committed into the database, from where the janitor picks those up. The next leader starts from the
+ * committed watermark, so it can send some messages again.
+ */
+@NotThreadSafe
+@RequiredArgsConstructor
+@Slf4j
+public class DeliveryWatermarkTracker implements IDeliveryTracker {
+
+  private final ITkmsDao tkmsDao;
+  private final TkmsShardPartition shardPartition;
+  private final TkmsProperties properties;
+
+  private DeliveryWatermarks deliveryWatermarks;
+  private DeliveryProgress progress;
+  private long committedWatermark;
+  private List<Long> committedPendingIds;
+  private long lastMaintenanceMs = -1;
+
+  @Override
+  public void init() {
+    deliveryWatermarks = properties.getDeliveryWatermarks(shardPartition.getShard());
+
+    var deliveryWatermark = tkmsDao.getDeliveryWatermark(shardPartition);
+    committedWatermark = deliveryWatermark == null ? 0 : deliveryWatermark.getWatermark();
+    committedPendingIds = deliveryWatermark == null ? Collections.emptyList() : deliveryWatermark.getPendingIds();
+
+    var source = new MessagesSource() {
+      @Override
+      public List<MessageRecord> getMessages(long fromMessageId, int maxCount) {
+        return tkmsDao.getMessages(shardPartition, fromMessageId, maxCount);
+      }
+
+      @Override
+      public List<Long> getMessageIds(long fromMessageId, long toMessageId) {
+        return tkmsDao.getMessageIds(shardPartition, fromMessageId, toMessageId);
+      }
+    };
+    progress = new DeliveryProgress(source, committedWatermark, committedPendingIds, deliveryWatermarks.getMaxPendingIds());
+  }
+
+  @Override
+  public void shutdown() {
+    try {
+      commit();
+    } catch (Throwable t) {
+      log.error("Committing delivery watermark for " + shardPartition + " failed.", t);
+    }
+  }
+
+  @Override
+  public Batch poll(int maxCount) {
+    return progress.poll(maxCount);
+  }
+
+  @Override
+  public void proxied(Batch batch, Collection<Long> proxiedIds) {
+    progress.proxied(batch, proxiedIds);
+  }
+
+  /**
+   * Rescans for skipped messages and commits the watermark, at most once per `rescanInterval`.
+   */
+  @Override
+  public void maintain() {
+    long nowMs = TkmsClockHolder.getClock().millis();
+    if (lastMaintenanceMs != -1 && nowMs - lastMaintenanceMs < deliveryWatermarks.getRescanInterval().toMillis()) {
+      return;
+    }
+    lastMaintenanceMs = nowMs;
+
+    progress.rescan(nowMs, deliveryWatermarks.getLookBackPeriod().toMillis());
+    commit();
+  }
+
+  protected void commit() {
+    long watermark = progress.getWatermark();
+    var pendingIds = progress.getPendingIds();
+    if (watermark != committedWatermark || !committedPendingIds.equals(new ArrayList<>(pendingIds))) {
+      tkmsDao.saveDeliveryWatermark(shardPartition, watermark, pendingIds);
+      committedWatermark = watermark;
+      committedPendingIds = new ArrayList<>(pendingIds);
+    }
+  }
+}
@@ -1,22 +1,39 @@
 package com.transferwise.kafka.tkms;
 
 import java.time.Duration;
-import javax.annotation.concurrent.NotThreadSafe;
+import lombok.Data;
+import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
 
-@NotThreadSafe
+/**
+ * Minimum of registered message ids over the last `lookBackPeriod`, kept in a ring of time buckets.
+ *
+ * <p>Bucket indexes with increasing ids are kept in a monotonic deque, so the minimum is always at its head and no scan over the buckets is
+ * needed. Nothing is allocated after the construction.
+ *
+ * <p>Only one thread, the proxy, may register ids. Other threads can read the last calculated minimum by
+ * {@link #getPublishedEarliestMessageId()}.
+ */
 @Slf4j
 public class EarliestMessageSlidingWindow {
 
   public static final int BUCKETS_COUNT = 100;
 
   private long[] buckets;
+  /**
+   * Ring of bucket indexes, from the oldest to the newest, where the ids in the buckets are strictly increasing.
+   */
+  private final int[] minDeque = new int[BUCKETS_COUNT];
+  private int minDequeHead;
+  private int minDequeSize;
   private long stepMs;
   private int idx;
   private long idxMs;
   private long initializationMs = -1;
   private long periodMs;
 
+  private volatile long publishedEarliestMessageId = -1;
+
   public EarliestMessageSlidingWindow(Duration lookBackPeriod) {
     buckets = new long[BUCKETS_COUNT];
     periodMs = lookBackPeriod.toMillis();
@@ -37,6 +54,7 @@ public class EarliestMessageSlidingWindow {
 
     if (id < buckets[idx]) {
       setBucket(idx, id);
+      pushToMinDeque(idx);
     }
   }
 
@@ -64,6 +82,11 @@ public class EarliestMessageSlidingWindow {
         idx = 0;
       }
 
+      // The bucket being reused is the oldest one.
+      if (minDequeSize > 0 && minDeque[minDequeHead] == idx) {
+        minDequeHead = (minDequeHead + 1) % BUCKETS_COUNT;
+        minDequeSize--;
+      }
       setBucket(idx, Long.MAX_VALUE);
     }
   }
@@ -79,6 +102,20 @@ public class EarliestMessageSlidingWindow {
     for (int i = 0; i < BUCKETS_COUNT; i++) {
       setBucket(i, Long.MAX_VALUE);
     }
+    minDequeHead = 0;
+    minDequeSize = 0;
+  }
+
+  /**
+   * Drops the buckets with same or larger ids from the tail, as those can never be the minimum anymore.
+   */
+  private void pushToMinDeque(int bucketIdx) {
+    long id = buckets[bucketIdx];
+    while (minDequeSize > 0 && buckets[minDeque[(minDequeHead + minDequeSize - 1) % BUCKETS_COUNT]] >= id) {
+      minDequeSize--;
+    }
+    minDeque[(minDequeHead + minDequeSize) % BUCKETS_COUNT] = bucketIdx;
+    minDequeSize++;
   }
 
   private void setBucket(int idx, long id) {
@@ -98,12 +135,57 @@ public class EarliestMessageSlidingWindow {
 
     scroll();
 
-    long earliestMessageId = Long.MAX_VALUE;
-    for (int i = 0; i < BUCKETS_COUNT; i++) {
-      if (buckets[i] < earliestMessageId) {
-        earliestMessageId = buckets[i];
+    long earliestMessageId = minDequeSize == 0 ? -1 : buckets[minDeque[minDequeHead]];
+    publishedEarliestMessageId = earliestMessageId;
+    return earliestMessageId;
+  }
+
+  /**
+   * The result of the last {@link #getEarliestMessageId()} call, safe to be read from any thread.
+   */
+  public long getPublishedEarliestMessageId() {
+    return publishedEarliestMessageId;
+  }
+
+  public State exportState() {
+    return new State().setPeriodMs(periodMs).setInitializationMs(initializationMs).setIdx(idx).setIdxMs(idxMs).setBuckets(buckets.clone());
+  }
+
+  /**
+   * Continues from a state exported by another proxy, usually on another node.
+   *
+   * <p>Relies on the clocks of those nodes being reasonably in sync.
+   */
+  public boolean restoreState(State state) {
+    if (state.getPeriodMs() != periodMs || state.getBuckets() == null || state.getBuckets().length != BUCKETS_COUNT) {
+      return false;
+    }
+
+    initializationMs = state.getInitializationMs();
+    idx = state.getIdx();
+    idxMs = state.getIdxMs();
+    System.arraycopy(state.getBuckets(), 0, buckets, 0, BUCKETS_COUNT);
+
+    minDequeHead = 0;
+    minDequeSize = 0;
+    for (int i = 1; i <= BUCKETS_COUNT; i++) {
+      int bucketIdx = (idx + i) % BUCKETS_COUNT;
+      if (buckets[bucketIdx] != Long.MAX_VALUE) {
+        pushToMinDeque(bucketIdx);
       }
     }
-    return earliestMessageId == Long.MAX_VALUE ? -1 : earliestMessageId;
+
+    return true;
+  }
+
+  @Data
+  @Accessors(chain = true)
+  public static class State {
+
+    private long periodMs;
+    private long initializationMs;
+    private int idx;
+    private long idxMs;
+    private long[] buckets;
   }
 }
@@ -2,10 +2,13 @@ package com.transferwise.kafka.tkms;
 
 import com.transferwise.kafka.tkms.api.TkmsShardPartition;
 import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.config.TkmsProperties.EarliestMessagesTrackingMode;
 import com.transferwise.kafka.tkms.dao.ITkmsDao;
 import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
 import javax.annotation.concurrent.NotThreadSafe;
+import lombok.Data;
 import lombok.RequiredArgsConstructor;
+import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
 
 @NotThreadSafe
@@ -17,19 +20,29 @@ public class EarliestMessageTracker {
   private final TkmsShardPartition shardPartition;
   private final TkmsProperties properties;
   private final ITkmsMetricsTemplate metricsTemplate;
+  private final ITkmsEarliestMessageIdsCommitter earliestMessageIdsCommitter;
 
   private boolean enabled;
   private Object earliestMessageIdGauge;
 
   private volatile long earliestMessageId = -1;
 
-  private long lastCommitMs = -1;
-
   private EarliestMessageSlidingWindow earliestMessageSlidingWindow;
 
   public void init() {
+    init(null, null);
+  }
+
+  /**
+   * Initializes the tracker, resuming from the state handed over by the previous leader, or from the state of the previous leadership term on this
+   * node, when possible.
+   *
+   * <p>A state is only used, when it matches the earliest message id committed into the database. Otherwise, we could be looking at an outdated
+   * state, missing some registrations.
+   */
+  public void init(State handedOverState, State localState) {
     var earliestVisibleMessages = properties.getEarliestVisibleMessages(shardPartition.getShard());
-    enabled = earliestVisibleMessages.isEnabled();
+    enabled = earliestVisibleMessages.isEnabled() && earliestVisibleMessages.getTrackingMode() == EarliestMessagesTrackingMode.LOOK_BACK;
 
     if (!enabled) {
       return;
@@ -40,6 +53,25 @@ public class EarliestMessageTracker {
     earliestMessageSlidingWindow = new EarliestMessageSlidingWindow(earliestVisibleMessages.getLookBackPeriod());
     var earliestMessageIdFromDb = tkmsDao.getEarliestMessageId(shardPartition);
     earliestMessageId = earliestMessageIdFromDb == null ? -1 : earliestMessageIdFromDb;
+
+    if (handedOverState != null) {
+      boolean restored = handedOverState.getEarliestMessageId() == earliestMessageId && handedOverState.getSlidingWindow() != null
+          && earliestMessageSlidingWindow.restoreState(handedOverState.getSlidingWindow());
+      if (restored) {
+        log.info("Resuming earliest messages tracking for {} from the handed over state.", shardPartition);
+      } else {
+        log.info("Handed over earliest messages tracking state for {} does not match the database, starting from scratch.", shardPartition);
+      }
+      metricsTemplate.recordProxyStateHandover(shardPartition, restored);
+      if (restored) {
+        return;
+      }
+    }
+
+    if (localState != null && localState.getEarliestMessageId() == earliestMessageId && localState.getSlidingWindow() != null
+        && earliestMessageSlidingWindow.restoreState(localState.getSlidingWindow())) {
+      log.info("Resuming earliest messages tracking for {} from the previous leadership term on this node.", shardPartition);
+    }
   }
 
   public void shutdown() {
@@ -49,7 +81,17 @@ public class EarliestMessageTracker {
 
     metricsTemplate.unregisterMetric(earliestMessageIdGauge);
 
-    commit();
+    earliestMessageIdsCommitter.commitNow(shardPartition, earliestMessageId);
+  }
+
+  /**
+   * Meant to be called after `shutdown`, so the exported earliest message id matches the one committed into the database.
+   */
+  public State exportState() {
+    if (!enabled) {
+      return null;
+    }
+    return new State().setEarliestMessageId(earliestMessageId).setSlidingWindow(earliestMessageSlidingWindow.exportState());
   }
 
   public Long getEarliestMessageId() {
@@ -70,20 +112,16 @@ public class EarliestMessageTracker {
           log.info("Setting earliestMessageId=" + earliestMessageIdInWindow);
         }
         this.earliestMessageId = earliestMessageIdInWindow;
-        commitIfFeasible();
+        earliestMessageIdsCommitter.submit(shardPartition, earliestMessageIdInWindow);
       }
     }
   }
 
-  private void commitIfFeasible() {
-    if (lastCommitMs == -1 || TkmsClockHolder.getClock().millis() - lastCommitMs > 5_000) {
-      commit();
-    }
-  }
+  @Data
+  @Accessors(chain = true)
+  public static class State {
 
-  private void commit() {
-    metricsTemplate.registerEarliestMessageIdCommit(shardPartition);
-    lastCommitMs = TkmsClockHolder.getClock().millis();
-    tkmsDao.saveEarliestMessageId(shardPartition, earliestMessageId);
+    private long earliestMessageId;
+    private EarliestMessageSlidingWindow.State slidingWindow;
   }
 }
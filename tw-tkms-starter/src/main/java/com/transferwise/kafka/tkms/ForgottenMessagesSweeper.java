@@ -0,0 +1,66 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.TkmsProperties.RecoverySweep;
+import com.transferwise.kafka.tkms.dao.ITkmsDao;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.MessageRecord;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.concurrent.NotThreadSafe;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Pages through the table from its beginning, looking for messages below the earliest visible message id.
+ *
+ * <p>Those messages are invisible for the normal polling, so they are handed over to the proxy by the sweep. One chunk is polled per
+ * `interval`, starting over from the beginning, once the earliest visible message id is reached.
+ *
+ * <p>The ids are looked up from the primary key only, and the messages are fetched just for the ids found.
+ */
+@NotThreadSafe
+@RequiredArgsConstructor
+public class ForgottenMessagesSweeper {
+
+  private final ITkmsDao tkmsDao;
+  private final TkmsShardPartition shardPartition;
+  private final RecoverySweep recoverySweep;
+
+  private long cursor = -1;
+  private long lastPollMs = -1;
+
+  /**
+   * Polls the next chunk of forgotten messages, if it is time for it.
+   */
+  public List<MessageRecord> poll(long earliestMessageId) {
+    if (earliestMessageId == -1L) {
+      return Collections.emptyList();
+    }
+
+    long nowMs = TkmsClockHolder.getClock().millis();
+    if (lastPollMs != -1 && nowMs - lastPollMs < recoverySweep.getInterval().toMillis()) {
+      return Collections.emptyList();
+    }
+    lastPollMs = nowMs;
+
+    // Index-only, and never reaches the live part of the table.
+    var ids = tkmsDao.getMessageIds(shardPartition, cursor, earliestMessageId - 1);
+    if (ids.isEmpty()) {
+      cursor = -1;
+      return Collections.emptyList();
+    }
+
+    var chunkIds = ids.size() > recoverySweep.getBatchSize() ? ids.subList(0, recoverySweep.getBatchSize()) : ids;
+    long lastChunkId = chunkIds.get(chunkIds.size() - 1);
+    var forgottenRecords = new ArrayList<MessageRecord>();
+    for (var record : tkmsDao.getMessages(shardPartition, chunkIds.get(0), chunkIds.size())) {
+      if (record.getId() > lastChunkId) {
+        break;
+      }
+      forgottenRecords.add(record);
+    }
+
+    cursor = ids.size() > chunkIds.size() ? lastChunkId + 1 : -1;
+    return forgottenRecords;
+  }
+}
@@ -0,0 +1,48 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.kafka.tkms.dao.ITkmsDao.MessageRecord;
+import java.util.Collection;
+import java.util.List;
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * Tracks the proxying progress for storage modes where proxied messages are not deleted one by one.
+ */
+public interface IDeliveryTracker {
+
+  void init();
+
+  /**
+   * Commits the progress, so the next leader can resume from it.
+   */
+  void shutdown();
+
+  Batch poll(int maxCount);
+
+  void proxied(Batch batch, Collection<Long> proxiedIds);
+
+  /**
+   * Periodic work, like looking for skipped messages and committing the progress.
+   */
+  void maintain();
+
+  @Data
+  @Accessors(chain = true)
+  class Batch {
+
+    /**
+     * Generation the records are polled from, when table rotation is used.
+     */
+    private int generation = -1;
+    private List<MessageRecord> records;
+    /**
+     * The highest id polled from the cursor, or -1 when only pending messages were polled.
+     */
+    private long lastPolledId = -1;
+
+    public TkmsMessageSource getSource() {
+      return generation == -1 ? TkmsMessageSource.MAIN : TkmsMessageSource.generation(generation);
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import java.util.concurrent.CompletableFuture;
+import org.apache.kafka.clients.producer.RecordMetadata;
+
+public interface ITkmsAcknowledgementTracker {
+
+  /**
+   * Completes the future, when a message with that storage id is acknowledged by Kafka.
+   *
+   * <p>Fails the future right away, when the shard-partition is not proxied by this node.
+   */
+  void track(TkmsShardPartition shardPartition, TkmsMessageSource source, long storageId, CompletableFuture<RecordMetadata> future);
+
+  void acknowledged(TkmsShardPartition shardPartition, TkmsMessageSource source, long storageId, RecordMetadata recordMetadata);
+
+  /**
+   * The message will not be acknowledged by this proxy, e.g. it was moved to the dead letter table.
+   */
+  void failed(TkmsShardPartition shardPartition, TkmsMessageSource source, long storageId, Throwable error);
+
+  /**
+   * A random partition of the shard, which is led by this node at the moment, or -1.
+   */
+  int getLocallyProxiedPartition(int shard);
+
+  void leadershipAcquired(TkmsShardPartition shardPartition);
+
+  /**
+   * The pending futures of the shard-partition fail, unless the leadership is acquired again within a grace period, as their acknowledgements
+   * would be seen by the next leader only.
+   */
+  void leadershipReleased(TkmsShardPartition shardPartition);
+}
@@ -0,0 +1,24 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+
+/**
+ * Cheap, locally cached estimate of how many messages are waiting in a shard-partition.
+ */
+public interface ITkmsBacklogEstimator {
+
+  /**
+   * Called by the proxy after every poll of a shard-partition, led by this node.
+   */
+  void registerPoll(TkmsShardPartition shardPartition, int polledRecordsCount, int pollerBatchSize);
+
+  /**
+   * Refreshes the estimates from the database. Can be slow.
+   */
+  void refresh(int shard);
+
+  /**
+   * Returns the cached estimate, without any IO.
+   */
+  long getBacklog(TkmsShardPartition shardPartition);
+}
@@ -0,0 +1,38 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.DeadLetterRecord;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.MessageRecord;
+import java.util.List;
+
+/**
+ * Counts the failed send attempts of the messages and moves the ones out of attempts, into the dead letter table.
+ *
+ * <p>Called from the thread proxying the shard-partition.
+ */
+public interface ITkmsDeadLetterTracker {
+
+  boolean isEnabled(int shard);
+
+  void registerSentMessages(TkmsShardPartition shardPartition, TkmsMessageSource source, List<Long> messageIds);
+
+  /**
+   * Records and errors are matched by their index.
+   *
+   * @return ids of the messages moved into the dead letter table, which should be handled as proxied.
+   */
+  List<Long> registerFailedSends(TkmsShardPartition shardPartition, TkmsMessageSource source, List<MessageRecord> records,
+      List<Throwable> errors);
+
+  /**
+   * Returns an empty list, when `retryInterval` has not passed since the previous poll.
+   */
+  List<DeadLetterRecord> pollRetries(TkmsShardPartition shardPartition);
+
+  /**
+   * Deletes the sent dead letters and schedules the next retry for the failed ones. The error of a failed one is expected to be set.
+   */
+  void retried(TkmsShardPartition shardPartition, List<DeadLetterRecord> sent, List<DeadLetterRecord> failed);
+
+  void leadershipReleased(TkmsShardPartition shardPartition);
+}
@@ -0,0 +1,21 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+
+/**
+ * Commits earliest message ids of all the shard-partitions led by this node.
+ */
+public interface ITkmsEarliestMessageIdsCommitter {
+
+  /**
+   * Remembers the id, to be committed with the next batch.
+   */
+  void submit(TkmsShardPartition shardPartition, long earliestMessageId);
+
+  /**
+   * Commits the id right away, dropping any not yet committed one for the shard-partition.
+   *
+   * <p>Meant to be called when the leadership is given away, so no older id can be written after the next leader has started.
+   */
+  void commitNow(TkmsShardPartition shardPartition, long earliestMessageId);
+}
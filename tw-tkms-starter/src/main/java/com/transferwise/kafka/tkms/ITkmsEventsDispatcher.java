@@ -0,0 +1,17 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.kafka.tkms.api.ITkmsEventsListener.MessageAcknowledgedEvent;
+import com.transferwise.kafka.tkms.api.ITkmsEventsListener.MessageRegisteredEvent;
+import java.util.List;
+
+public interface ITkmsEventsDispatcher {
+
+  /**
+   * Allows to skip creating the events.
+   */
+  boolean hasListeners();
+
+  void messagesRegistered(List<MessageRegisteredEvent> events);
+
+  void messagesAcknowledged(List<MessageAcknowledgedEvent> events);
+}
@@ -0,0 +1,19 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+
+public interface ITkmsLeadershipBalancer {
+
+  void leadershipAcquired(TkmsShardPartition shardPartition);
+
+  void leadershipReleased(TkmsShardPartition shardPartition);
+
+  void registerProxiedMessages(TkmsShardPartition shardPartition, int messagesCount);
+
+  /**
+   * Tells if the current node is leading more shard-partitions than its fair share and this specific shard-partition should be given away.
+   *
+   * <p>Returns true only once per decision, the caller is expected to yield the leadership right after.
+   */
+  boolean shouldYield(TkmsShardPartition shardPartition);
+}
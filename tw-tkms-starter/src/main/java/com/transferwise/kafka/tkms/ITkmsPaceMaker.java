@@ -12,4 +12,6 @@ public interface ITkmsPaceMaker {
   Duration getPollingPause(TkmsShardPartition tkmsShardPartition, int pollingBatchSize, int polledMessagesCount);
 
   Duration getPollingPauseOnError(TkmsShardPartition tkmsShardPartition);
+
+  Duration getIdlePollingPause(TkmsShardPartition tkmsShardPartition, int emptyProbesCount);
 }
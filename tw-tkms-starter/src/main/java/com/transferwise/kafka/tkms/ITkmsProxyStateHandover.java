@@ -0,0 +1,31 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * Allows an incoming shard-partition proxy to resume from the state of the outgoing one.
+ */
+public interface ITkmsProxyStateHandover {
+
+  /**
+   * Called by the outgoing proxy, while it is still holding the leader lock.
+   */
+  void publish(TkmsShardPartition shardPartition, ProxyState state);
+
+  /**
+   * Called by the incoming proxy. Returns null, when there is no fresh state available.
+   *
+   * <p>The state is consumed, i.e. it will not be returned for a second time.
+   */
+  ProxyState take(TkmsShardPartition shardPartition);
+
+  @Data
+  @Accessors(chain = true)
+  class ProxyState {
+
+    private long publishedTimeMs;
+    private EarliestMessageTracker.State earliestMessageTracker;
+  }
+}
@@ -0,0 +1,15 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+
+public interface ITkmsProxyWarmUp {
+
+  void leadershipAcquired(TkmsShardPartition shardPartition);
+
+  void leadershipReleased(TkmsShardPartition shardPartition);
+
+  /**
+   * Called by the leader on every proxy cycle. Implementations decide themselves how often to actually publish the heartbeat.
+   */
+  void heartbeat(TkmsShardPartition shardPartition);
+}
@@ -0,0 +1,22 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.kafka.tkms.api.TkmsMessage;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+
+/**
+ * Local write-ahead spool for messages which could not be inserted into the database.
+ */
+public interface ITkmsSpool {
+
+  /**
+   * Tells if the spool is enabled for the shard and the insert failure is caused by a slow or unavailable database.
+   */
+  boolean isSpoolable(int shard, Throwable t);
+
+  /**
+   * Fails, if the message can not be appended after the commit.
+   */
+  void checkAppendable(TkmsShardPartition shardPartition, TkmsMessage message);
+
+  void append(TkmsShardPartition shardPartition, TkmsMessage message);
+}
@@ -0,0 +1,16 @@
+package com.transferwise.kafka.tkms;
+
+public interface ITkmsTopicValidator {
+
+  /**
+   * Throws, when the topic does not exist or is not available for writing.
+   *
+   * <p>Answers from the cache, when the topic has been seen before.
+   */
+  void validate(int shard, String topic);
+
+  /**
+   * Looks the topic up from Kafka, waiting as long as the Kafka producer does.
+   */
+  void preValidate(int shard, String topic);
+}
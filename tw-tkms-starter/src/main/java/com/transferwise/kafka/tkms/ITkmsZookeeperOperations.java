@@ -5,4 +5,15 @@ import com.transferwise.kafka.tkms.api.TkmsShardPartition;
 public interface ITkmsZookeeperOperations {
 
   String getLockNodePath(TkmsShardPartition shardPartition);
+
+  /**
+   * Parent path for ephemeral nodes, where every service node publishes its proxying state.
+   */
+  String getPollerNodesPath();
+
+  String getHandoverNodePath(TkmsShardPartition shardPartition);
+
+  String getHeartbeatNodePath(TkmsShardPartition shardPartition);
+
+  String getJanitorLockNodePath();
 }
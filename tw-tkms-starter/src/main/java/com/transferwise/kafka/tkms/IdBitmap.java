@@ -0,0 +1,122 @@
+package com.transferwise.kafka.tkms;
+
+import java.util.BitSet;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Set of message ids at or above a sliding base.
+ *
+ * <p>Ids below the base are considered to be in the set. It allows to forget old ids, as the base is moved forward.
+ *
+ * <p>Bits are kept relative to the lowest id added since the last pruning, so a large distance between the base and the actual ids, e.g. after a
+ * table truncation, does not cost memory.
+ */
+@NotThreadSafe
+public class IdBitmap {
+
+  private BitSet bits = new BitSet();
+  private long base;
+  private long offset;
+
+  public IdBitmap(long base) {
+    this.base = base;
+    this.offset = base;
+  }
+
+  public long getBase() {
+    return base;
+  }
+
+  public void add(long id) {
+    if (id < base) {
+      return;
+    }
+    if (bits.isEmpty()) {
+      offset = id;
+    } else if (id < offset) {
+      // Rare, an id committed out of order.
+      var shifted = new BitSet();
+      int shift = toIndex(offset - id);
+      toIndex((long) shift + bits.length());
+      for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+        shifted.set(i + shift);
+      }
+      bits = shifted;
+      offset = id;
+    }
+    bits.set(toIndex(id - offset));
+  }
+
+  public boolean contains(long id) {
+    if (id < base) {
+      return true;
+    }
+    if (id < offset) {
+      return false;
+    }
+    long index = id - offset;
+    return index < bits.length() && bits.get((int) index);
+  }
+
+  /**
+   * Ids below the base can not be removed.
+   */
+  public void remove(long id) {
+    if (id < offset) {
+      return;
+    }
+    long index = id - offset;
+    if (index < bits.length()) {
+      bits.clear((int) index);
+    }
+  }
+
+  /**
+   * Removes the ids from `fromId`, inclusive, to `toId`, exclusive. Ids below the base can not be removed.
+   *
+   * <p>The bits are kept relative to the lowest id left, so ids which are never removed one by one, do not keep the span growing.
+   */
+  public void removeRange(long fromId, long toId) {
+    long fromIndex = Math.max(fromId, offset) - offset;
+    long toIndex = Math.min(toId, offset + bits.length()) - offset;
+    if (fromIndex >= toIndex) {
+      return;
+    }
+    bits.clear((int) fromIndex, (int) toIndex);
+
+    int lowestIndex = bits.nextSetBit(0);
+    if (lowestIndex > 0) {
+      bits = bits.get(lowestIndex, bits.length());
+      offset += lowestIndex;
+    }
+  }
+
+  /**
+   * Tells if there are no ids added above the base.
+   */
+  public boolean isEmpty() {
+    return bits.isEmpty();
+  }
+
+  /**
+   * Forgets ids below the given one, i.e. those will be considered as present from now on.
+   */
+  public void pruneBelow(long id) {
+    if (id <= base) {
+      return;
+    }
+    base = id;
+    if (id > offset) {
+      long index = id - offset;
+      bits = index >= bits.length() ? new BitSet() : bits.get((int) index, bits.length());
+      offset = id;
+    }
+  }
+
+  private int toIndex(long index) {
+    if (index > Integer.MAX_VALUE - 1) {
+      throw new IllegalStateException("Ids are too far apart, the offset is " + offset + " and the distance is " + index + ".");
+    }
+    return (int) index;
+  }
+}
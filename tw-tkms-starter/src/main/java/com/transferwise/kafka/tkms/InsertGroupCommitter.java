@@ -0,0 +1,142 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.kafka.tkms.api.ITransactionalKafkaMessageSender.SendMessageResult;
+import com.transferwise.kafka.tkms.api.TkmsMessage;
+import com.transferwise.kafka.tkms.config.TkmsProperties.GroupCommit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.concurrent.ThreadSafe;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Group commit of messages for one shard-partition.
+ *
+ * <p>The first caller becomes the leader. It waits up to `maxWait` for other callers to join, and sends the whole group in one transaction,
+ * while the others are parked. Callers arriving during that transaction form the next group, which is led by the first of them, once the
+ * transaction has completed.
+ *
+ * <p>Only one group is in flight at a time, so the groups are committed in the order of the calls, and the order of messages with the same key
+ * is preserved.
+ */
+@ThreadSafe
+@RequiredArgsConstructor
+public class InsertGroupCommitter {
+
+  private final GroupCommit groupCommit;
+  private final GroupSender groupSender;
+
+  private final Lock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private final ArrayDeque<Request> pendingRequests = new ArrayDeque<>();
+  private boolean leaderActive;
+
+  public SendMessageResult send(TkmsMessage message) {
+    var request = new Request(message);
+    List<Request> group;
+
+    lock.lock();
+    try {
+      pendingRequests.add(request);
+      if (!leaderActive) {
+        leaderActive = true;
+        request.leader = true;
+      } else if (pendingRequests.size() >= groupCommit.getMaxBatchSize()) {
+        changed.signalAll();
+      }
+
+      while (!request.done && !request.leader) {
+        changed.awaitUninterruptibly();
+      }
+      if (request.done) {
+        return request.getResult();
+      }
+
+      long remainingNanos = groupCommit.getMaxWait().toNanos();
+      while (pendingRequests.size() < groupCommit.getMaxBatchSize() && remainingNanos > 0) {
+        remainingNanos = awaitNanos(remainingNanos);
+      }
+
+      group = new ArrayList<>();
+      while (!pendingRequests.isEmpty() && group.size() < groupCommit.getMaxBatchSize()) {
+        group.add(pendingRequests.poll());
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    List<SendMessageResult> results = null;
+    RuntimeException error = null;
+    try {
+      var messages = new ArrayList<TkmsMessage>(group.size());
+      for (var groupRequest : group) {
+        messages.add(groupRequest.message);
+      }
+      results = groupSender.send(messages);
+    } catch (Throwable t) {
+      // Has to complete the whole group, otherwise the others would be parked forever.
+      error = t instanceof RuntimeException ? (RuntimeException) t : new IllegalStateException(t);
+    }
+
+    lock.lock();
+    try {
+      for (int i = 0; i < group.size(); i++) {
+        var groupRequest = group.get(i);
+        groupRequest.result = results == null ? null : results.get(i);
+        groupRequest.error = error;
+        groupRequest.done = true;
+      }
+      var nextLeader = pendingRequests.peek();
+      if (nextLeader == null) {
+        leaderActive = false;
+      } else {
+        nextLeader.leader = true;
+      }
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+
+    return request.getResult();
+  }
+
+  private long awaitNanos(long nanos) {
+    try {
+      return changed.awaitNanos(nanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return 0;
+    }
+  }
+
+  public interface GroupSender {
+
+    /**
+     * Sends the messages in one transaction, returning the results in the same order.
+     */
+    List<SendMessageResult> send(List<TkmsMessage> messages);
+  }
+
+  private static class Request {
+
+    private final TkmsMessage message;
+    private boolean leader;
+    private boolean done;
+    private SendMessageResult result;
+    private RuntimeException error;
+
+    Request(TkmsMessage message) {
+      this.message = message;
+    }
+
+    SendMessageResult getResult() {
+      if (error != null) {
+        throw error;
+      }
+      return result;
+    }
+  }
+}
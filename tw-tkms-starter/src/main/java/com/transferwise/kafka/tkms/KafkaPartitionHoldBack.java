@@ -0,0 +1,98 @@
+package com.transferwise.kafka.tkms;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.utils.Utils;
+
+/**
+ * Kafka topic-partitions, which failed to receive a message, and are not sent to until their hold-back expires.
+ *
+ * <p>Messages held back stay in the table and are polled again, so their order is kept for every Kafka partition. Holds are checked against
+ * the time the cycle started, so a hold expiring during a cycle, which polls several batches, does not let the later messages of the partition
+ * overtake the ones skipped in the earlier batches.
+ *
+ * <p>Holds are added from the Kafka producer's callbacks, while the proxy thread is checking those. Partitions are resolved on the proxy thread
+ * only.
+ */
+public class KafkaPartitionHoldBack {
+
+  private final Map<TopicPartition, Long> heldUntilMs = new ConcurrentHashMap<>();
+  /**
+   * Partitions counts of the topics, for the current batch only.
+   */
+  private final Map<String, Integer> partitionsCounts = new HashMap<>();
+  private final ToIntFunction<String> partitionsCountProvider;
+  private long cycleStartMs;
+  /**
+   * Records held back in the current batch.
+   */
+  private int heldBackRecordsCount;
+
+  public KafkaPartitionHoldBack(ToIntFunction<String> partitionsCountProvider) {
+    this.partitionsCountProvider = partitionsCountProvider;
+  }
+
+  /**
+   * Resolves the Kafka partition, in the same way as the Kafka producer's default partitioner.
+   *
+   * @return null, for records without a key nor an explicit partition. Those can go to any partition, so do not have an order to keep.
+   */
+  public TopicPartition getTopicPartition(ProducerRecord<String, byte[]> producerRecord) {
+    if (producerRecord.partition() != null) {
+      return new TopicPartition(producerRecord.topic(), producerRecord.partition());
+    }
+    if (producerRecord.key() == null) {
+      return null;
+    }
+    int partitionsCount = partitionsCounts.computeIfAbsent(producerRecord.topic(), partitionsCountProvider::applyAsInt);
+    if (partitionsCount <= 0) {
+      return null;
+    }
+    var keyBytes = producerRecord.key().getBytes(StandardCharsets.UTF_8);
+    return new TopicPartition(producerRecord.topic(), Utils.toPositive(Utils.murmur2(keyBytes)) % partitionsCount);
+  }
+
+  public boolean isHeldBack(TopicPartition topicPartition) {
+    if (topicPartition == null || heldUntilMs.isEmpty()) {
+      return false;
+    }
+    var untilMs = heldUntilMs.get(topicPartition);
+    if (untilMs == null) {
+      return false;
+    }
+    if (untilMs <= cycleStartMs) {
+      heldUntilMs.remove(topicPartition, untilMs);
+      return false;
+    }
+    return true;
+  }
+
+  public void registerHeldBackRecord() {
+    heldBackRecordsCount++;
+  }
+
+  public int getHeldBackRecordsCount() {
+    return heldBackRecordsCount;
+  }
+
+  public void holdBack(TopicPartition topicPartition, long untilMs) {
+    heldUntilMs.merge(topicPartition, untilMs, Math::max);
+  }
+
+  public void startCycle(long nowMs) {
+    cycleStartMs = nowMs;
+  }
+
+  /**
+   * Partitions counts can change, so are looked up again for every batch.
+   */
+  public void startBatch() {
+    partitionsCounts.clear();
+    heldBackRecordsCount = 0;
+  }
+}
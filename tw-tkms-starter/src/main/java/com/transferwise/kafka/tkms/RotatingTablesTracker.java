@@ -0,0 +1,174 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.kafka.tkms.DeliveryProgress.MessagesSource;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.config.TkmsProperties.TableRotation;
+import com.transferwise.kafka.tkms.dao.ITkmsDao;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.MessageRecord;
+import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.concurrent.NotThreadSafe;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tracks the proxying progress over the generation tables of a shard-partition, when table rotation is enabled.
+ *
+ * <p>Every generation has its own {@link DeliveryProgress}, which lowest remembered id is committed as the generation's watermark. The next leader
+ * starts from the watermarks, so it can send some messages again.
+ */
+@NotThreadSafe
+@RequiredArgsConstructor
+@Slf4j
+public class RotatingTablesTracker implements IDeliveryTracker {
+
+  private final ITkmsDao tkmsDao;
+  private final TkmsShardPartition shardPartition;
+  private final TkmsProperties properties;
+  private final ITkmsMetricsTemplate metricsTemplate;
+
+  private TableRotation tableRotation;
+  private Generation[] generations;
+  private long lastMaintenanceMs = -1;
+
+  @Override
+  public void init() {
+    tableRotation = properties.getTableRotation(shardPartition.getShard());
+    generations = new Generation[tableRotation.getGenerationsCount()];
+    for (int i = 0; i < generations.length; i++) {
+      var watermark = tkmsDao.getRotationWatermark(shardPartition, i);
+      generations[i] = createGeneration(i, watermark == null ? 0 : watermark);
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    try {
+      for (var generation : generations) {
+        commitWatermark(generation);
+      }
+    } catch (Throwable t) {
+      log.error("Committing rotation watermarks for " + shardPartition + " failed.", t);
+    }
+  }
+
+  /**
+   * Polls the generations, starting from the one written into the longest time ago.
+   */
+  @Override
+  public Batch poll(int maxCount) {
+    long period = tableRotation.getPeriod(TkmsClockHolder.getClock().millis());
+
+    for (int i = generations.length - 1; i >= 0; i--) {
+      long generationPeriod = period - i;
+      var generation = generations[tableRotation.getGeneration(generationPeriod)];
+      if (generation.getTruncatedPeriod() >= generationPeriod) {
+        continue;
+      }
+
+      var batch = generation.getProgress().poll(maxCount);
+      if (!batch.getRecords().isEmpty()) {
+        return batch.setGeneration(generation.getIndex());
+      }
+    }
+    return new Batch().setRecords(Collections.emptyList());
+  }
+
+  @Override
+  public void proxied(Batch batch, Collection<Long> proxiedIds) {
+    generations[batch.getGeneration()].getProgress().proxied(batch, proxiedIds);
+  }
+
+  /**
+   * Rescans for skipped messages, commits watermarks and truncates the drained generations.
+   *
+   * <p>Does the work at most once per `rescanInterval`.
+   */
+  @Override
+  public void maintain() {
+    long nowMs = TkmsClockHolder.getClock().millis();
+    if (lastMaintenanceMs != -1 && nowMs - lastMaintenanceMs < tableRotation.getRescanInterval().toMillis()) {
+      return;
+    }
+    lastMaintenanceMs = nowMs;
+
+    long period = tableRotation.getPeriod(nowMs);
+    for (int i = generations.length - 1; i >= 0; i--) {
+      long generationPeriod = period - i;
+      var generation = generations[tableRotation.getGeneration(generationPeriod)];
+      if (generation.getTruncatedPeriod() >= generationPeriod) {
+        continue;
+      }
+
+      var progress = generation.getProgress();
+      boolean clean = progress.rescan(nowMs, tableRotation.getLookBackPeriod().toMillis());
+      commitWatermark(generation);
+
+      // The generation has not been written into during the last full period, so only long-running transactions can still use it.
+      // Those are waited for by the table lock.
+      if (i >= 2 && clean && progress.isDrained()) {
+        truncate(generation, generationPeriod);
+      }
+    }
+  }
+
+  protected void commitWatermark(Generation generation) {
+    long watermark = generation.getProgress().getWatermark();
+    if (watermark != generation.getCommittedWatermark()) {
+      tkmsDao.saveRotationWatermark(shardPartition, generation.getIndex(), watermark);
+      generation.setCommittedWatermark(watermark);
+    }
+  }
+
+  protected void truncate(Generation generation, long generationPeriod) {
+    // MariaDb starts the ids from the beginning after truncation, so the watermark has to be reset before.
+    // If we crash in between, the next leader sends the generation again, instead of skipping new messages.
+    tkmsDao.saveRotationWatermark(shardPartition, generation.getIndex(), 0);
+
+    var progress = generation.getProgress();
+    boolean truncated = tkmsDao.truncateGeneration(shardPartition, generation.getIndex(), progress.getWatermark(), progress::isProxied);
+    metricsTemplate.recordProxyGenerationTruncate(shardPartition, truncated);
+
+    if (truncated) {
+      log.info("Truncated generation {} of {}.", generation.getIndex(), shardPartition);
+      var truncatedGeneration = createGeneration(generation.getIndex(), 0);
+      truncatedGeneration.setTruncatedPeriod(generationPeriod);
+      generations[generation.getIndex()] = truncatedGeneration;
+    } else {
+      tkmsDao.saveRotationWatermark(shardPartition, generation.getIndex(), generation.getCommittedWatermark());
+    }
+  }
+
+  /**
+   * Failed messages are not kept pending, as the next leader would not know about those and could truncate them away.
+   */
+  protected Generation createGeneration(int index, long watermark) {
+    var source = new MessagesSource() {
+      @Override
+      public List<MessageRecord> getMessages(long fromMessageId, int maxCount) {
+        return tkmsDao.getGenerationMessages(shardPartition, index, fromMessageId, maxCount);
+      }
+
+      @Override
+      public List<Long> getMessageIds(long fromMessageId, long toMessageId) {
+        return tkmsDao.getGenerationMessageIds(shardPartition, index, fromMessageId, toMessageId);
+      }
+    };
+    return new Generation(index, new DeliveryProgress(source, watermark, Collections.emptyList(), 0)).setCommittedWatermark(watermark);
+  }
+
+  @Data
+  @Accessors(chain = true)
+  protected static class Generation {
+
+    private final int index;
+    private final DeliveryProgress progress;
+    private long committedWatermark;
+    private long truncatedPeriod = -1;
+  }
+}
@@ -0,0 +1,131 @@
+package com.transferwise.kafka.tkms;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import javax.annotation.concurrent.NotThreadSafe;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append-only, memory-mapped file of records.
+ *
+ * <p>Every record is written as `{length, crc32, bytes}`. The file is zero-filled by the mapping, so a zero length marks the end of the records.
+ * A record with a wrong checksum is considered a torn write at the end of the file, e.g. after a crash of the host.
+ */
+@NotThreadSafe
+@Slf4j
+public class SpoolFile implements AutoCloseable {
+
+  private static final int HEADER_SIZE = 8;
+
+  private final Path path;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+
+  private SpoolFile(Path path, FileChannel channel, MappedByteBuffer buffer) {
+    this.path = path;
+    this.channel = channel;
+    this.buffer = buffer;
+  }
+
+  public static SpoolFile create(Path path, int sizeBytes) throws IOException {
+    var channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      return new SpoolFile(path, channel, channel.map(MapMode.READ_WRITE, 0, sizeBytes));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  public boolean isEmpty() {
+    return buffer.position() == 0;
+  }
+
+  /**
+   * Tells if the record fits into an empty file of the given size.
+   */
+  public static boolean fits(int recordLength, int sizeBytes) {
+    return getRequiredBytes(recordLength) <= sizeBytes;
+  }
+
+  /**
+   * Returns false, when the record does not fit into the file anymore.
+   */
+  public boolean append(byte[] record) {
+    if (buffer.remaining() < getRequiredBytes(record.length)) {
+      return false;
+    }
+    buffer.putInt(record.length);
+    buffer.putInt(crc(record));
+    buffer.put(record);
+    return true;
+  }
+
+  /**
+   * Room for the end marker is always kept.
+   */
+  private static int getRequiredBytes(int recordLength) {
+    return HEADER_SIZE + recordLength + 4;
+  }
+
+  public void force() {
+    buffer.force();
+  }
+
+  @Override
+  public void close() throws IOException {
+    force();
+    channel.close();
+  }
+
+  /**
+   * Reads the records, starting from the given offset.
+   */
+  public static void read(Path path, long fromOffset, RecordConsumer consumer) throws IOException {
+    try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      var buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      buffer.position((int) fromOffset);
+      while (buffer.remaining() >= HEADER_SIZE) {
+        int length = buffer.getInt();
+        if (length <= 0) {
+          return;
+        }
+        int crc = buffer.getInt();
+        if (length > buffer.remaining()) {
+          log.warn("Spool file '{}' has a truncated record at {}.", path, buffer.position() - HEADER_SIZE);
+          return;
+        }
+        var record = new byte[length];
+        buffer.get(record);
+        if (crc(record) != crc) {
+          log.warn("Spool file '{}' has a torn record at {}.", path, buffer.position() - HEADER_SIZE - length);
+          return;
+        }
+        consumer.accept(record, buffer.position());
+      }
+    }
+  }
+
+  private static int crc(byte[] record) {
+    var crc32 = new CRC32();
+    crc32.update(record, 0, record.length);
+    return (int) crc32.getValue();
+  }
+
+  public interface RecordConsumer {
+
+    /**
+     * Receives the record and the offset right after it.
+     */
+    void accept(byte[] record, long nextOffset) throws IOException;
+  }
+}
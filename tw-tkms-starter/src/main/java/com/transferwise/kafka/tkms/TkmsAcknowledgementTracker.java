@@ -0,0 +1,208 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.common.baseutils.concurrency.IExecutorServicesProvider;
+import com.transferwise.common.baseutils.concurrency.ScheduledTaskExecutor.TaskHandle;
+import com.transferwise.common.gracefulshutdown.GracefulShutdownStrategy;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Pending acknowledgements, indexed by shard-partition, source table and storage id.
+ *
+ * <p>Only acknowledgements of the proxies running on this node are seen. So a message of a shard-partition not led by this node fails right
+ * away, and the pending messages fail, when the leadership has been released for longer than the grace period. To avoid the former, the
+ * sender routes messages without a key or a partition into the shard-partitions led by this node.
+ */
+@Slf4j
+public class TkmsAcknowledgementTracker implements ITkmsAcknowledgementTracker, GracefulShutdownStrategy, InitializingBean {
+
+  @Autowired
+  protected TkmsProperties properties;
+  @Autowired
+  private IExecutorServicesProvider executorServicesProvider;
+
+  private final Map<TkmsShardPartition, Map<TkmsMessageSource, Map<Long, Pending>>> pendings = new ConcurrentHashMap<>();
+  private final Set<TkmsShardPartition> ledShardPartitions = ConcurrentHashMap.newKeySet();
+  private final Map<TkmsShardPartition, Long> leadershipReleaseTimesMs = new ConcurrentHashMap<>();
+  /**
+   * Allows the proxies to skip the lookup, when nothing is pending.
+   */
+  private final AtomicInteger pendingCount = new AtomicInteger();
+  private TaskHandle taskHandle;
+
+  @Override
+  public void afterPropertiesSet() {
+    for (int s = 0; s < properties.getShardsCount(); s++) {
+      for (int p = 0; p < properties.getPartitionsCount(s); p++) {
+        pendings.put(TkmsShardPartition.of(s, p), new ConcurrentHashMap<>());
+      }
+    }
+  }
+
+  @Override
+  public void track(TkmsShardPartition shardPartition, TkmsMessageSource source, long storageId, CompletableFuture<RecordMetadata> future) {
+    if (!isProxiedLocally(shardPartition, TkmsClockHolder.getClock().millis())) {
+      future.completeExceptionally(new IllegalStateException(
+          "Acknowledgement can not be tracked, as " + shardPartition + " is not proxied by this node at the moment."));
+      return;
+    }
+
+    int maxPending = properties.getAcknowledgementTracking().getMaxPending();
+    if (pendingCount.incrementAndGet() > maxPending) {
+      pendingCount.decrementAndGet();
+      future.completeExceptionally(new IllegalStateException("More than " + maxPending + " acknowledgements are pending."));
+      return;
+    }
+
+    var deadlineMs = TkmsClockHolder.getClock().millis() + properties.getAcknowledgementTracking().getTimeout().toMillis();
+    var pending = new Pending(future, deadlineMs);
+    var previous = pendings.get(shardPartition).computeIfAbsent(source, k -> new ConcurrentHashMap<>()).put(storageId, pending);
+    if (previous != null) {
+      // E.g. the ids of the table were reset.
+      pendingCount.decrementAndGet();
+      previous.future.completeExceptionally(new IllegalStateException(
+          "Message " + storageId + " in " + source + " table of " + shardPartition + " was replaced by a newer one with the same id."));
+    }
+    // Removed, when the future is completed from outside, e.g. the transaction was rolled back.
+    future.whenComplete((result, t) -> remove(shardPartition, source, storageId, pending));
+  }
+
+  @Override
+  public void acknowledged(TkmsShardPartition shardPartition, TkmsMessageSource source, long storageId, RecordMetadata recordMetadata) {
+    var pending = get(shardPartition, source, storageId);
+    if (pending != null && remove(shardPartition, source, storageId, pending)) {
+      pending.future.complete(recordMetadata);
+    }
+  }
+
+  @Override
+  public void failed(TkmsShardPartition shardPartition, TkmsMessageSource source, long storageId, Throwable error) {
+    var pending = get(shardPartition, source, storageId);
+    if (pending != null && remove(shardPartition, source, storageId, pending)) {
+      pending.future.completeExceptionally(error);
+    }
+  }
+
+  @Override
+  public int getLocallyProxiedPartition(int shard) {
+    int count = 0;
+    for (var shardPartition : ledShardPartitions) {
+      if (shardPartition.getShard() == shard) {
+        count++;
+      }
+    }
+    if (count == 0) {
+      return -1;
+    }
+
+    int index = ThreadLocalRandom.current().nextInt(count);
+    for (var shardPartition : ledShardPartitions) {
+      if (shardPartition.getShard() == shard && index-- == 0) {
+        return shardPartition.getPartition();
+      }
+    }
+    // The leadership was released meanwhile.
+    return -1;
+  }
+
+  @Override
+  public void leadershipAcquired(TkmsShardPartition shardPartition) {
+    ledShardPartitions.add(shardPartition);
+    leadershipReleaseTimesMs.remove(shardPartition);
+  }
+
+  @Override
+  public void leadershipReleased(TkmsShardPartition shardPartition) {
+    leadershipReleaseTimesMs.put(shardPartition, TkmsClockHolder.getClock().millis());
+    ledShardPartitions.remove(shardPartition);
+  }
+
+  protected boolean isProxiedLocally(TkmsShardPartition shardPartition, long nowMs) {
+    if (ledShardPartitions.contains(shardPartition)) {
+      return true;
+    }
+    var releaseTimeMs = leadershipReleaseTimesMs.get(shardPartition);
+    return releaseTimeMs != null && nowMs - releaseTimeMs < properties.getAcknowledgementTracking().getLeadershipGracePeriod().toMillis();
+  }
+
+  protected Pending get(TkmsShardPartition shardPartition, TkmsMessageSource source, long storageId) {
+    if (pendingCount.get() == 0) {
+      return null;
+    }
+    var sourcePendings = pendings.get(shardPartition).get(source);
+    return sourcePendings == null ? null : sourcePendings.get(storageId);
+  }
+
+  /**
+   * Removes only the given pending, so a newer one tracked with the same id is kept.
+   */
+  protected boolean remove(TkmsShardPartition shardPartition, TkmsMessageSource source, long storageId, Pending pending) {
+    var sourcePendings = pendings.get(shardPartition).get(source);
+    if (sourcePendings != null && sourcePendings.remove(storageId, pending)) {
+      pendingCount.decrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  protected void evictExpired() {
+    if (pendingCount.get() == 0) {
+      return;
+    }
+    long nowMs = TkmsClockHolder.getClock().millis();
+    pendings.forEach((shardPartition, shardPartitionPendings) -> {
+      boolean proxiedLocally = isProxiedLocally(shardPartition, nowMs);
+      shardPartitionPendings.forEach((source, sourcePendings) -> sourcePendings.forEach((storageId, pending) -> {
+        if (!proxiedLocally && remove(shardPartition, source, storageId, pending)) {
+          pending.future.completeExceptionally(new IllegalStateException("Message " + storageId + " in " + source + " table of " + shardPartition
+              + " was not acknowledged before this node stopped proxying it."));
+        } else if (pending.deadlineMs <= nowMs && remove(shardPartition, source, storageId, pending)) {
+          pending.future.completeExceptionally(new TimeoutException("Message " + storageId + " in " + source + " table of " + shardPartition
+              + " was not acknowledged in " + properties.getAcknowledgementTracking().getTimeout() + "."));
+        }
+      }));
+    });
+  }
+
+  @Override
+  public void applicationStarted() {
+    var interval = Duration.ofSeconds(1);
+    taskHandle = executorServicesProvider.getGlobalScheduledTaskExecutor().scheduleAtFixedInterval(this::evictExpired, interval, interval);
+  }
+
+  @Override
+  public void prepareForShutdown() {
+    if (taskHandle != null) {
+      taskHandle.stop();
+      taskHandle.waitUntilStopped(Duration.ofMinutes(1));
+    }
+  }
+
+  @Override
+  public boolean canShutdown() {
+    return true;
+  }
+
+  protected static class Pending {
+
+    private final CompletableFuture<RecordMetadata> future;
+    private final long deadlineMs;
+
+    Pending(CompletableFuture<RecordMetadata> future, long deadlineMs) {
+      this.future = future;
+      this.deadlineMs = deadlineMs;
+    }
+  }
+}
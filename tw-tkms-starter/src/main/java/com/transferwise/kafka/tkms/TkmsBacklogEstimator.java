@@ -0,0 +1,76 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.ITkmsDaoProvider;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Combines the approximate row counts from the table statistics with what the local proxies have seen.
+ *
+ * <p>Statistics can lag behind by minutes, but are available on every node. A recent poll is fresher, but is only known on the node leading the
+ * shard-partition. A poll which did not fill the batch has seen the whole backlog, a full batch tells that there is at least that much.
+ *
+ * <p>Polls older than two `tw-tkms.partitioning.refresh-interval`-s are ignored, e.g. when the leadership has moved away, or the proxy got stuck.
+ */
+@Slf4j
+public class TkmsBacklogEstimator implements ITkmsBacklogEstimator {
+
+  @Autowired
+  protected TkmsProperties properties;
+  @Autowired
+  protected ITkmsDaoProvider tkmsDaoProvider;
+
+  private final Map<TkmsShardPartition, Estimate> estimates = new ConcurrentHashMap<>();
+
+  @Override
+  public void registerPoll(TkmsShardPartition shardPartition, int polledRecordsCount, int pollerBatchSize) {
+    var estimate = getEstimate(shardPartition);
+    estimate.polledRecordsCount = polledRecordsCount;
+    estimate.saturated = polledRecordsCount >= pollerBatchSize;
+    estimate.lastPollMs = TkmsClockHolder.getClock().millis();
+  }
+
+  @Override
+  public void refresh(int shard) {
+    var tkmsDao = tkmsDaoProvider.getTkmsDao(shard);
+    for (int p = 0; p < properties.getPartitionsCount(shard); p++) {
+      var shardPartition = TkmsShardPartition.of(shard, p);
+      try {
+        getEstimate(shardPartition).approximateCount = tkmsDao.getApproximateMessagesCount(shardPartition);
+      } catch (Throwable t) {
+        log.error("Getting approximate messages count for " + shardPartition + " failed.", t);
+      }
+    }
+  }
+
+  @Override
+  public long getBacklog(TkmsShardPartition shardPartition) {
+    var estimate = getEstimate(shardPartition);
+    long approximateCount = Math.max(0, estimate.approximateCount);
+
+    long pollTtlMs = properties.getPartitioning(shardPartition.getShard()).getRefreshInterval().toMillis() * 2;
+    if (TkmsClockHolder.getClock().millis() - estimate.lastPollMs > pollTtlMs) {
+      return approximateCount;
+    }
+    if (estimate.saturated) {
+      return Math.max(approximateCount, estimate.polledRecordsCount);
+    }
+    return estimate.polledRecordsCount;
+  }
+
+  protected Estimate getEstimate(TkmsShardPartition shardPartition) {
+    return estimates.computeIfAbsent(shardPartition, k -> new Estimate());
+  }
+
+  protected static class Estimate {
+
+    private volatile long approximateCount;
+    private volatile int polledRecordsCount;
+    private volatile boolean saturated;
+    private volatile long lastPollMs = -1;
+  }
+}
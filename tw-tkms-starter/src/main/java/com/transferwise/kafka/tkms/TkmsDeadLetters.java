@@ -0,0 +1,253 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.common.baseutils.ExceptionUtils;
+import com.transferwise.common.baseutils.transactionsmanagement.ITransactionsHelper;
+import com.transferwise.kafka.tkms.api.ITkmsDeadLetters;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.ITkmsDaoProvider;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.config.TkmsProperties.DeadLetters;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.DeadLetterRecord;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.MessageRecord;
+import com.transferwise.kafka.tkms.dao.ITkmsMessageSerializer;
+import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.kafka.common.errors.RetriableException;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Failed send attempts are counted per source table and message id, in memory of the node leading the shard-partition.
+ *
+ * <p>Retriable errors, like timeouts during an outage of Kafka, move a message only when its failed attempts have spanned
+ * `retriableErrorsMinDuration`.
+ *
+ * <p>A message out of attempts is moved into the dead letter table, so it would not hold up the shard-partition with the pauses on errors.
+ * Dead letters are retried on a schedule with exponential backoff, sent directly from the dead letter table, so the retries count is kept.
+ */
+@Slf4j
+public class TkmsDeadLetters implements ITkmsDeadLetters, ITkmsDeadLetterTracker {
+
+  private static final int MAX_ERROR_LENGTH = 1024;
+
+  @Autowired
+  protected TkmsProperties properties;
+  @Autowired
+  protected ITkmsDaoProvider tkmsDaoProvider;
+  @Autowired
+  private ITkmsMessageSerializer messageSerializer;
+  @Autowired
+  private ITransactionsHelper transactionsHelper;
+  @Autowired
+  protected ITkmsMetricsTemplate metricsTemplate;
+
+  private final Map<TkmsShardPartition, ShardPartitionState> states = new ConcurrentHashMap<>();
+
+  @Override
+  public boolean isEnabled(int shard) {
+    return properties.getDeadLetters(shard).isEnabled();
+  }
+
+  @Override
+  public void registerSentMessages(TkmsShardPartition shardPartition, TkmsMessageSource source, List<Long> messageIds) {
+    var attempts = getState(shardPartition).attempts.get(source);
+    if (attempts == null || attempts.isEmpty()) {
+      return;
+    }
+    for (var messageId : messageIds) {
+      attempts.remove(messageId);
+    }
+  }
+
+  @Override
+  public List<Long> registerFailedSends(TkmsShardPartition shardPartition, TkmsMessageSource source, List<MessageRecord> records,
+      List<Throwable> errors) {
+    var deadLetters = properties.getDeadLetters(shardPartition.getShard());
+    var attempts = getState(shardPartition).attempts.computeIfAbsent(source, k -> new ConcurrentHashMap<>());
+    long nowMs = TkmsClockHolder.getClock().millis();
+
+    List<DeadLetterRecord> deadLetterRecords = null;
+    for (int i = 0; i < records.size(); i++) {
+      var record = records.get(i);
+      var recordAttempts = attempts.computeIfAbsent(record.getId(), k -> new Attempts(nowMs));
+      recordAttempts.count++;
+      if (recordAttempts.count >= deadLetters.getMaxAttempts() && (!isRetriable(errors.get(i))
+          || nowMs - recordAttempts.firstFailureMs >= deadLetters.getRetriableErrorsMinDuration().toMillis())) {
+        if (deadLetterRecords == null) {
+          deadLetterRecords = new ArrayList<>();
+        }
+        deadLetterRecords.add(new DeadLetterRecord().setMessageId(record.getId()).setMessage(record.getMessage())
+            .setError(toErrorString(errors.get(i))).setDeadLetteredAtMs(nowMs).setNextRetryAtMs(getNextRetryAtMs(deadLetters, 0, nowMs)));
+      }
+    }
+    if (deadLetterRecords == null) {
+      return Collections.emptyList();
+    }
+
+    try {
+      tkmsDaoProvider.getTkmsDao(shardPartition.getShard()).insertDeadLetters(shardPartition, deadLetterRecords);
+    } catch (Throwable t) {
+      log.error("Moving " + deadLetterRecords.size() + " messages of " + shardPartition + " to the dead letter table failed.", t);
+      return Collections.emptyList();
+    }
+
+    var messageIds = new ArrayList<Long>(deadLetterRecords.size());
+    for (var deadLetterRecord : deadLetterRecords) {
+      var topic = deadLetterRecord.getMessage().getTopic();
+      var recordAttempts = attempts.remove(deadLetterRecord.getMessageId());
+      log.warn("Moved message {}:{} of {} table for topic '{}' to the dead letter table, after {} failed attempts.", shardPartition,
+          deadLetterRecord.getMessageId(), source, topic, recordAttempts == null ? deadLetters.getMaxAttempts() : recordAttempts.count);
+      metricsTemplate.recordProxyMessageDeadLettered(shardPartition, topic);
+      messageIds.add(deadLetterRecord.getMessageId());
+    }
+    return messageIds;
+  }
+
+  @Override
+  public List<DeadLetterRecord> pollRetries(TkmsShardPartition shardPartition) {
+    var deadLetters = properties.getDeadLetters(shardPartition.getShard());
+    if (deadLetters.getMaxRetries() == 0) {
+      return Collections.emptyList();
+    }
+
+    var state = getState(shardPartition);
+    long nowMs = TkmsClockHolder.getClock().millis();
+    if (nowMs - state.lastRetryPollMs < deadLetters.getRetryInterval().toMillis()) {
+      return Collections.emptyList();
+    }
+    state.lastRetryPollMs = nowMs;
+
+    return tkmsDaoProvider.getTkmsDao(shardPartition.getShard()).getDeadLettersDueForRetry(shardPartition, nowMs, deadLetters.getRetryBatchSize());
+  }
+
+  @Override
+  public void retried(TkmsShardPartition shardPartition, List<DeadLetterRecord> sent, List<DeadLetterRecord> failed) {
+    var tkmsDao = tkmsDaoProvider.getTkmsDao(shardPartition.getShard());
+    for (var deadLetterRecord : sent) {
+      tkmsDao.deleteDeadLetter(shardPartition, deadLetterRecord.getId());
+      log.info("Dead letter {} of {} was sent on retry {}.", deadLetterRecord.getId(), shardPartition, deadLetterRecord.getRetries() + 1);
+    }
+
+    var deadLetters = properties.getDeadLetters(shardPartition.getShard());
+    long nowMs = TkmsClockHolder.getClock().millis();
+    for (var deadLetterRecord : failed) {
+      int retries = deadLetterRecord.getRetries() + 1;
+      deadLetterRecord.setRetries(retries).setNextRetryAtMs(getNextRetryAtMs(deadLetters, retries, nowMs));
+      tkmsDao.updateDeadLetter(shardPartition, deadLetterRecord);
+      if (deadLetterRecord.getNextRetryAtMs() == null) {
+        log.error("Dead letter {} of {} failed to be sent {} times. It will stay in the dead letter table, until replayed.",
+            deadLetterRecord.getId(), shardPartition, retries);
+      }
+    }
+  }
+
+  @Override
+  public void leadershipReleased(TkmsShardPartition shardPartition) {
+    states.remove(shardPartition);
+  }
+
+  @Override
+  public List<DeadLetter> getDeadLetters(TkmsShardPartition shardPartition, int maxCount) {
+    var deadLetterRecords = tkmsDaoProvider.getTkmsDao(shardPartition.getShard()).getDeadLetters(shardPartition, maxCount);
+    var result = new ArrayList<DeadLetter>(deadLetterRecords.size());
+    for (var deadLetterRecord : deadLetterRecords) {
+      result.add(new DeadLetter().setId(deadLetterRecord.getId()).setShardPartition(shardPartition)
+          .setMessageId(deadLetterRecord.getMessageId()).setTopic(deadLetterRecord.getMessage().getTopic())
+          .setKey(StringUtils.isEmpty(deadLetterRecord.getMessage().getKey()) ? null : deadLetterRecord.getMessage().getKey())
+          .setError(deadLetterRecord.getError()).setRetries(deadLetterRecord.getRetries())
+          .setDeadLetteredAt(Instant.ofEpochMilli(deadLetterRecord.getDeadLetteredAtMs()))
+          .setNextRetryAt(deadLetterRecord.getNextRetryAtMs() == null ? null : Instant.ofEpochMilli(deadLetterRecord.getNextRetryAtMs())));
+    }
+    return result;
+  }
+
+  @Override
+  public int replay(TkmsShardPartition shardPartition, Collection<Long> deadLetterIds) {
+    var tkmsDao = tkmsDaoProvider.getTkmsDao(shardPartition.getShard());
+    int replayedCount = 0;
+    for (var deadLetterId : deadLetterIds) {
+      var deadLetterRecord = tkmsDao.getDeadLetter(shardPartition, deadLetterId);
+      if (deadLetterRecord == null) {
+        continue;
+      }
+      var serializedMessage = ExceptionUtils.doUnchecked(() -> messageSerializer.serialize(shardPartition, deadLetterRecord.getMessage()));
+
+      // Delete first, so a dead letter replayed concurrently by another node, would not be inserted twice.
+      boolean replayed = transactionsHelper.withTransaction().call(() -> {
+        if (!tkmsDao.deleteDeadLetter(shardPartition, deadLetterId)) {
+          return false;
+        }
+        tkmsDao.insertSerializedMessage(shardPartition, deadLetterRecord.getMessage().getTopic(), serializedMessage);
+        return true;
+      });
+      if (replayed) {
+        log.info("Replayed dead letter {} of {}.", deadLetterId, shardPartition);
+        replayedCount++;
+      }
+    }
+    return replayedCount;
+  }
+
+  /**
+   * Returns null, when there are no retries left.
+   */
+  protected static Long getNextRetryAtMs(DeadLetters deadLetters, int retries, long nowMs) {
+    if (retries >= deadLetters.getMaxRetries()) {
+      return null;
+    }
+    long delayMs = deadLetters.getRetryDelay().toMillis() << Math.min(retries, 30);
+    if (delayMs < 0 || delayMs > deadLetters.getMaxRetryDelay().toMillis()) {
+      delayMs = deadLetters.getMaxRetryDelay().toMillis();
+    }
+    return nowMs + delayMs;
+  }
+
+  /**
+   * Errors from the send future are wrapped, so the causes are looked at as well.
+   */
+  protected static boolean isRetriable(Throwable t) {
+    for (var cause = t; cause != null; cause = cause.getCause()) {
+      if (cause instanceof RetriableException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  protected static String toErrorString(Throwable t) {
+    if (t == null) {
+      return "";
+    }
+    return StringUtils.abbreviate(t.getClass().getName() + ": " + t.getMessage(), MAX_ERROR_LENGTH);
+  }
+
+  protected ShardPartitionState getState(TkmsShardPartition shardPartition) {
+    return states.computeIfAbsent(shardPartition, k -> new ShardPartitionState());
+  }
+
+  protected static class ShardPartitionState {
+
+    /**
+     * Every source table has its own ids.
+     */
+    private final Map<TkmsMessageSource, Map<Long, Attempts>> attempts = new ConcurrentHashMap<>();
+    private volatile long lastRetryPollMs;
+  }
+
+  protected static class Attempts {
+
+    private final long firstFailureMs;
+    private int count;
+
+    Attempts(long firstFailureMs) {
+      this.firstFailureMs = firstFailureMs;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.common.baseutils.concurrency.IExecutorServicesProvider;
+import com.transferwise.common.baseutils.concurrency.ScheduledTaskExecutor.TaskHandle;
+import com.transferwise.common.baseutils.concurrency.ThreadNamingExecutorServiceWrapper;
+import com.transferwise.common.context.UnitOfWorkManager;
+import com.transferwise.common.gracefulshutdown.GracefulShutdownStrategy;
+import com.transferwise.common.leaderselector.ILock;
+import com.transferwise.common.leaderselector.LeaderSelectorV2;
+import com.transferwise.common.leaderselector.SharedReentrantLockBuilderFactory;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.ITkmsDaoProvider;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
+import java.time.Duration;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Removes the proxied messages below the delivery watermarks, with range deletes.
+ *
+ * <p>Runs on one node in the cluster at a time.
+ */
+@Slf4j
+public class TkmsDeliveryJanitor implements GracefulShutdownStrategy, InitializingBean {
+
+  @Autowired
+  private ITkmsDaoProvider tkmsDaoProvider;
+  @Autowired
+  private SharedReentrantLockBuilderFactory lockBuilderFactory;
+  @Autowired
+  private ITkmsZookeeperOperations zkOperations;
+  @Autowired
+  private ITkmsMetricsTemplate metricsTemplate;
+  @Autowired
+  private TkmsProperties properties;
+  @Autowired
+  private IExecutorServicesProvider executorServicesProvider;
+  @Autowired
+  private UnitOfWorkManager unitOfWorkManager;
+
+  private LeaderSelectorV2 leaderSelector;
+
+  @Override
+  public void afterPropertiesSet() {
+    List<TkmsShardPartition> shardPartitions = new ArrayList<>();
+    for (int s = 0; s < properties.getShardsCount(); s++) {
+      if (properties.getDeliveryWatermarks(s).isEnabled()) {
+        for (int p = 0; p < properties.getPartitionsCount(s); p++) {
+          shardPartitions.add(TkmsShardPartition.of(s, p));
+        }
+      }
+    }
+    if (shardPartitions.isEmpty()) {
+      return;
+    }
+
+    ExecutorService executorService =
+        new ThreadNamingExecutorServiceWrapper("tw-tkms-janitor", executorServicesProvider.getGlobalExecutorService());
+    ILock lock = lockBuilderFactory.createBuilder(zkOperations.getJanitorLockNodePath()).build();
+    leaderSelector = new LeaderSelectorV2.Builder().setLock(lock).setExecutorService(executorService).setLeader(control -> {
+      List<TaskHandle> taskHandles = new ArrayList<>();
+
+      control.workAsyncUntilShouldStop(
+          () -> {
+            for (var sp : shardPartitions) {
+              Duration interval = properties.getDeliveryWatermarks(sp.getShard()).getJanitor().getInterval();
+              taskHandles.add(executorServicesProvider.getGlobalScheduledTaskExecutor()
+                  .scheduleAtFixedInterval(() -> cleanUp(sp), interval, interval));
+            }
+            log.info("Started to clean up delivered messages for {} shard-partitions.", shardPartitions.size());
+          },
+          () -> {
+            for (TaskHandle taskHandle : taskHandles) {
+              taskHandle.stop();
+            }
+            for (TaskHandle taskHandle : taskHandles) {
+              taskHandle.waitUntilStopped(Duration.ofMinutes(1));
+            }
+            taskHandles.clear();
+            log.info("Stopped to clean up delivered messages.");
+          });
+    }).build();
+  }
+
+  /**
+   * Deletes everything below the watermark, in ranges between the pending ids.
+   */
+  protected void cleanUp(TkmsShardPartition sp) {
+    unitOfWorkManager.createEntryPoint("TKMS", "janitor_" + sp.getShard() + "_" + sp.getPartition()).toContext().execute(() -> {
+      try {
+        var janitor = properties.getDeliveryWatermarks(sp.getShard()).getJanitor();
+        if (!janitor.isInWindow(LocalTime.now(TkmsClockHolder.getClock()))) {
+          return;
+        }
+
+        var tkmsDao = tkmsDaoProvider.getTkmsDao(sp.getShard());
+        var deliveryWatermark = tkmsDao.getDeliveryWatermark(sp);
+        if (deliveryWatermark == null) {
+          return;
+        }
+
+        List<Long> rangeEnds = new ArrayList<>();
+        deliveryWatermark.getPendingIds().stream().filter(id -> id < deliveryWatermark.getWatermark()).sorted().forEach(rangeEnds::add);
+        rangeEnds.add(deliveryWatermark.getWatermark());
+
+        long fromId = 0;
+        int deletedCount = 0;
+        for (long toId : rangeEnds) {
+          while (true) {
+            int deleted = tkmsDao.deleteMessagesRange(sp, fromId, toId, janitor.getDeleteBatchSize());
+            deletedCount += deleted;
+            if (deleted < janitor.getDeleteBatchSize()) {
+              break;
+            }
+          }
+          fromId = toId + 1;
+        }
+
+        if (deletedCount > 0) {
+          metricsTemplate.recordJanitorMessagesDeletion(sp, deletedCount);
+        }
+      } catch (Throwable t) {
+        log.error("Cleaning up delivered messages of " + sp + " failed.", t);
+      }
+    });
+  }
+
+  @Override
+  public void applicationStarted() {
+    if (leaderSelector != null) {
+      leaderSelector.start();
+    }
+  }
+
+  @Override
+  public void prepareForShutdown() {
+    if (leaderSelector != null) {
+      leaderSelector.stop();
+    }
+  }
+
+  @Override
+  public boolean canShutdown() {
+    return leaderSelector == null || leaderSelector.hasStopped();
+  }
+}
@@ -0,0 +1,143 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.common.baseutils.concurrency.IExecutorServicesProvider;
+import com.transferwise.common.baseutils.concurrency.ScheduledTaskExecutor.TaskHandle;
+import com.transferwise.common.context.UnitOfWorkManager;
+import com.transferwise.common.gracefulshutdown.GracefulShutdownStrategy;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.ITkmsDaoProvider;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.config.TkmsProperties.EarliestMessagesTrackingMode;
+import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Coalesces the earliest message ids of all the shard-partitions into one multi-row upsert per shard, every `commitInterval`.
+ *
+ * <p>Ids which have not moved since the last commit are not written again.
+ *
+ * <p>For shards tracked by transaction ids, the ids are transaction ids cursors, written into their own column.
+ */
+@Slf4j
+public class TkmsEarliestMessageIdsCommitter implements ITkmsEarliestMessageIdsCommitter, GracefulShutdownStrategy {
+
+  @Autowired
+  private ITkmsDaoProvider tkmsDaoProvider;
+  @Autowired
+  private TkmsProperties properties;
+  @Autowired
+  private IExecutorServicesProvider executorServicesProvider;
+  @Autowired
+  private ITkmsMetricsTemplate metricsTemplate;
+  @Autowired
+  private UnitOfWorkManager unitOfWorkManager;
+
+  private final Map<TkmsShardPartition, Long> submittedIds = new ConcurrentHashMap<>();
+  private final Map<TkmsShardPartition, Long> committedIds = new ConcurrentHashMap<>();
+  /**
+   * Makes sure a batch in flight is not written after `commitNow`.
+   */
+  private final Lock commitLock = new ReentrantLock();
+
+  private TaskHandle taskHandle;
+
+  @Override
+  public void submit(TkmsShardPartition shardPartition, long earliestMessageId) {
+    submittedIds.put(shardPartition, earliestMessageId);
+  }
+
+  @Override
+  public void commitNow(TkmsShardPartition shardPartition, long earliestMessageId) {
+    commitLock.lock();
+    try {
+      submittedIds.remove(shardPartition);
+      if (!Long.valueOf(earliestMessageId).equals(committedIds.get(shardPartition))) {
+        Map<Integer, Long> ids = new HashMap<>();
+        ids.put(shardPartition.getPartition(), earliestMessageId);
+        commit(shardPartition.getShard(), ids);
+      }
+      // Other nodes can write the id, until we get the leadership back.
+      committedIds.remove(shardPartition);
+    } finally {
+      commitLock.unlock();
+    }
+  }
+
+  protected void commitSubmitted() {
+    unitOfWorkManager.createEntryPoint("TKMS", "EarliestMessageIdsCommit").toContext().execute(() -> {
+      commitLock.lock();
+      try {
+        Map<Integer, Map<Integer, Long>> shardsIds = new TreeMap<>();
+        for (var sp : submittedIds.keySet()) {
+          var id = submittedIds.remove(sp);
+          if (id != null && !id.equals(committedIds.get(sp))) {
+            shardsIds.computeIfAbsent(sp.getShard(), k -> new TreeMap<>()).put(sp.getPartition(), id);
+          }
+        }
+
+        for (var entry : shardsIds.entrySet()) {
+          try {
+            commit(entry.getKey(), entry.getValue());
+          } catch (Throwable t) {
+            log.error("Committing earliest message ids for shard " + entry.getKey() + " failed.", t);
+            // Retry with the next batch, unless newer ids have been submitted meanwhile.
+            entry.getValue().forEach((p, id) -> submittedIds.putIfAbsent(TkmsShardPartition.of(entry.getKey(), p), id));
+          }
+        }
+      } finally {
+        commitLock.unlock();
+      }
+    });
+  }
+
+  protected void commit(int shard, Map<Integer, Long> partitionsIds) {
+    long startNanoTime = System.nanoTime();
+    boolean success = false;
+    try {
+      var tkmsDao = tkmsDaoProvider.getTkmsDao(shard);
+      if (properties.getEarliestVisibleMessages(shard).getTrackingMode() == EarliestMessagesTrackingMode.TRANSACTION_IDS) {
+        TransactionIdsTracker.asTransactionIdsDao(tkmsDao, shard).saveTransactionIdsCursors(shard, partitionsIds);
+      } else {
+        tkmsDao.saveEarliestMessageIds(shard, partitionsIds);
+      }
+      success = true;
+    } finally {
+      metricsTemplate.recordDaoEarliestMessageIdsCommit(shard, success, startNanoTime);
+    }
+
+    partitionsIds.forEach((p, id) -> {
+      var sp = TkmsShardPartition.of(shard, p);
+      committedIds.put(sp, id);
+      metricsTemplate.registerEarliestMessageIdCommit(sp);
+    });
+  }
+
+  @Override
+  public void applicationStarted() {
+    Duration interval = properties.getEarliestVisibleMessages().getCommitInterval();
+    taskHandle = executorServicesProvider.getGlobalScheduledTaskExecutor().scheduleAtFixedInterval(this::commitSubmitted, interval, interval);
+  }
+
+  @Override
+  public void prepareForShutdown() {
+    if (taskHandle == null) {
+      return;
+    }
+    taskHandle.stop();
+    taskHandle.waitUntilStopped(Duration.ofMinutes(1));
+    commitSubmitted();
+  }
+
+  @Override
+  public boolean canShutdown() {
+    return true;
+  }
+}
@@ -0,0 +1,169 @@
+package com.transferwise.kafka.tkms;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.transferwise.common.baseutils.ExceptionUtils;
+import com.transferwise.common.baseutils.concurrency.IExecutorServicesProvider;
+import com.transferwise.common.baseutils.concurrency.ThreadNamingExecutorServiceWrapper;
+import com.transferwise.common.gracefulshutdown.GracefulShutdownStrategy;
+import com.transferwise.kafka.tkms.api.ITkmsEventsListener;
+import com.transferwise.kafka.tkms.api.ITkmsEventsListener.EventsDispatch;
+import com.transferwise.kafka.tkms.api.ITkmsEventsListener.MessageAcknowledgedEvent;
+import com.transferwise.kafka.tkms.api.ITkmsEventsListener.MessageRegisteredEvent;
+import com.transferwise.kafka.tkms.api.ITkmsEventsListener.OverflowPolicy;
+import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+
+/**
+ * Hands the events over to the `ITkmsEventsListener` beans, in batches.
+ *
+ * <p>Listeners with an `EventsDispatch` get their own queue, drained by one task at a time on the global executor. So the events still arrive in
+ * order, and a slow listener does not hold back the others.
+ */
+@Slf4j
+public class TkmsEventsDispatcher implements ITkmsEventsDispatcher, GracefulShutdownStrategy {
+
+  @Autowired
+  private ApplicationContext applicationContext;
+  @Autowired
+  private IExecutorServicesProvider executorServicesProvider;
+  @Autowired
+  protected ITkmsMetricsTemplate metricsTemplate;
+
+  protected volatile List<ListenerDispatcher> listenerDispatchers;
+  private final RateLimiter errorLogRateLimiter = RateLimiter.create(2);
+
+  @Override
+  public boolean hasListeners() {
+    return !getListenerDispatchers().isEmpty();
+  }
+
+  @Override
+  public void messagesRegistered(List<MessageRegisteredEvent> events) {
+    if (log.isDebugEnabled()) {
+      log.debug("{} messages were registered.", events.size());
+    }
+    for (var listenerDispatcher : getListenerDispatchers()) {
+      listenerDispatcher.dispatch(listener -> listener.messagesRegistered(events), events.size());
+    }
+  }
+
+  @Override
+  public void messagesAcknowledged(List<MessageAcknowledgedEvent> events) {
+    if (log.isDebugEnabled()) {
+      log.debug("{} messages were acknowledged.", events.size());
+    }
+    for (var listenerDispatcher : getListenerDispatchers()) {
+      listenerDispatcher.dispatch(listener -> listener.messagesAcknowledged(events), events.size());
+    }
+  }
+
+  // Lazy to avoid any circular dependencies from low-quality apps.
+  protected List<ListenerDispatcher> getListenerDispatchers() {
+    if (listenerDispatchers == null) {
+      synchronized (this) {
+        if (listenerDispatchers == null) {
+          var executorService = new ThreadNamingExecutorServiceWrapper("tw-tkms-events", executorServicesProvider.getGlobalExecutorService());
+          var dispatchers = new ArrayList<ListenerDispatcher>();
+          for (var listener : applicationContext.getBeansOfType(ITkmsEventsListener.class).values()) {
+            dispatchers.add(new ListenerDispatcher(listener, listener.getEventsDispatch(), executorService));
+          }
+          listenerDispatchers = dispatchers;
+        }
+      }
+    }
+    return listenerDispatchers;
+  }
+
+  @Override
+  public void prepareForShutdown() {
+  }
+
+  /**
+   * Lets the queued events to be delivered.
+   */
+  @Override
+  public boolean canShutdown() {
+    var dispatchers = listenerDispatchers;
+    if (dispatchers != null) {
+      for (var dispatcher : dispatchers) {
+        if (dispatcher.queue != null && (!dispatcher.queue.isEmpty() || dispatcher.draining.get())) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  protected class ListenerDispatcher {
+
+    private final ITkmsEventsListener listener;
+    private final EventsDispatch eventsDispatch;
+    private final ExecutorService executorService;
+    private final BlockingQueue<Runnable> queue;
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    ListenerDispatcher(ITkmsEventsListener listener, EventsDispatch eventsDispatch, ExecutorService executorService) {
+      this.listener = listener;
+      this.eventsDispatch = eventsDispatch;
+      this.executorService = executorService;
+      this.queue = eventsDispatch == null ? null : new ArrayBlockingQueue<>(eventsDispatch.getQueueCapacity());
+    }
+
+    void dispatch(Consumer<ITkmsEventsListener> call, int eventsCount) {
+      Runnable task = () -> {
+        try {
+          call.accept(listener);
+        } catch (Throwable t) {
+          if (errorLogRateLimiter.tryAcquire()) {
+            log.error("Firing events failed for listener '{}'.", listener, t);
+          }
+        }
+      };
+
+      if (queue == null) {
+        task.run();
+        return;
+      }
+
+      if (eventsDispatch.getOverflowPolicy() == OverflowPolicy.DROP) {
+        if (!queue.offer(task)) {
+          metricsTemplate.recordEventsDropped(listener.getClass().getSimpleName(), eventsCount);
+          return;
+        }
+      } else {
+        ExceptionUtils.doUnchecked(() -> queue.put(task));
+      }
+      scheduleDrain();
+    }
+
+    void scheduleDrain() {
+      if (draining.compareAndSet(false, true)) {
+        executorService.submit(this::drain);
+      }
+    }
+
+    void drain() {
+      try {
+        Runnable task;
+        while ((task = queue.poll()) != null) {
+          task.run();
+        }
+      } finally {
+        draining.set(false);
+      }
+      // A task could have been added, after the queue was seen empty.
+      if (!queue.isEmpty()) {
+        scheduleDrain();
+      }
+    }
+  }
+}
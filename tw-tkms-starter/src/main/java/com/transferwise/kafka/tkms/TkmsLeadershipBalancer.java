@@ -0,0 +1,239 @@
+package com.transferwise.kafka.tkms;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.transferwise.common.baseutils.concurrency.IExecutorServicesProvider;
+import com.transferwise.common.baseutils.concurrency.ScheduledTaskExecutor.TaskHandle;
+import com.transferwise.common.gracefulshutdown.GracefulShutdownStrategy;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import lombok.Data;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.CreateMode;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Cooperative balancing of shard-partition leaderships between service nodes.
+ *
+ * <p>Every node publishes its state into an ephemeral ZooKeeper node: the amount of shard-partitions it leads and how many messages it proxied
+ * since the previous round. The amount of those nodes gives us the cluster size, and from it the fair share of shard-partitions per node. When a
+ * node leads more than its fair share, the excess shard-partitions are marked to be yielded by their proxies, starting from the ones which proxied
+ * the most messages since the previous round.
+ *
+ * <p>When the counts are fair, but the node proxies considerably more messages than the cluster's average, it gives away one shard-partition per
+ * round. The busiest one, which still leaves the node at least at the average load.
+ *
+ * <p>The lock recipe queues waiting nodes in order, so a yielded leadership is picked up by some other node waiting for it.
+ */
+@Slf4j
+public class TkmsLeadershipBalancer implements ITkmsLeadershipBalancer, GracefulShutdownStrategy, InitializingBean {
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  @Autowired
+  protected TkmsProperties properties;
+  @Autowired
+  private ITkmsZookeeperOperations zkOperations;
+  @Autowired
+  private CuratorFramework curatorFramework;
+  @Autowired
+  private IExecutorServicesProvider executorServicesProvider;
+  @Autowired
+  protected ITkmsMetricsTemplate metricsTemplate;
+
+  private final Map<TkmsShardPartition, Leadership> leaderships = new ConcurrentHashMap<>();
+  private final Set<TkmsShardPartition> yieldRequests = ConcurrentHashMap.newKeySet();
+  private final String nodeId = UUID.randomUUID().toString();
+
+  protected int shardPartitionsCount;
+  private String nodePath;
+  private TaskHandle taskHandle;
+
+  @Override
+  public void afterPropertiesSet() {
+    for (int s = 0; s < properties.getShardsCount(); s++) {
+      shardPartitionsCount += properties.getPartitionsCount(s);
+    }
+    nodePath = zkOperations.getPollerNodesPath() + "/" + nodeId;
+  }
+
+  @Override
+  public void leadershipAcquired(TkmsShardPartition shardPartition) {
+    leaderships.put(shardPartition, new Leadership().setAcquiredTimeMs(TkmsClockHolder.getClock().millis()));
+  }
+
+  @Override
+  public void leadershipReleased(TkmsShardPartition shardPartition) {
+    leaderships.remove(shardPartition);
+    yieldRequests.remove(shardPartition);
+  }
+
+  @Override
+  public void registerProxiedMessages(TkmsShardPartition shardPartition, int messagesCount) {
+    var leadership = leaderships.get(shardPartition);
+    if (leadership != null) {
+      leadership.getProxiedMessagesCount().addAndGet(messagesCount);
+    }
+  }
+
+  @Override
+  public boolean shouldYield(TkmsShardPartition shardPartition) {
+    if (yieldRequests.remove(shardPartition)) {
+      metricsTemplate.recordLeadershipBalancingYield(shardPartition);
+      return true;
+    }
+    return false;
+  }
+
+  protected void balance() {
+    try {
+      var nodeState = collectNodeState();
+      curatorFramework.create().orSetData().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL)
+          .forPath(nodePath, OBJECT_MAPPER.writeValueAsBytes(nodeState));
+
+      var nodesPath = zkOperations.getPollerNodesPath();
+      var nodeStates = new ArrayList<NodeState>();
+      for (var child : curatorFramework.getChildren().forPath(nodesPath)) {
+        nodeStates.add(readNodeState(nodesPath + "/" + child));
+      }
+      rebalance(nodeState, nodeStates);
+    } catch (Throwable t) {
+      log.error("Leadership balancing failed.", t);
+    }
+  }
+
+  protected NodeState collectNodeState() {
+    long proxiedMessagesCount = 0;
+    for (var leadership : leaderships.values()) {
+      leadership.setRecentProxiedMessagesCount(leadership.getProxiedMessagesCount().getAndSet(0));
+      proxiedMessagesCount += leadership.getRecentProxiedMessagesCount();
+    }
+    return new NodeState().setLedShardPartitionsCount(leaderships.size()).setProxiedMessagesCount(proxiedMessagesCount);
+  }
+
+  /**
+   * A node which has just registered, or is gone by now, counts as a node without any load.
+   */
+  protected NodeState readNodeState(String path) {
+    try {
+      byte[] data = curatorFramework.getData().forPath(path);
+      if (data != null && data.length > 0) {
+        return OBJECT_MAPPER.readValue(data, NodeState.class);
+      }
+    } catch (Throwable t) {
+      log.debug("Reading node state from '{}' failed.", path, t);
+    }
+    return new NodeState();
+  }
+
+  protected void rebalance(NodeState nodeState, List<NodeState> nodeStates) {
+    int nodesCount = nodeStates.size();
+    if (nodesCount < 2) {
+      return;
+    }
+
+    int fairShare = (shardPartitionsCount + nodesCount - 1) / nodesCount;
+    int excess = leaderships.size() - yieldRequests.size() - fairShare;
+    if (excess > 0) {
+      yieldableLeaderships()
+          .limit(excess)
+          .forEach(e -> {
+            log.info("Leading {} shard-partitions out of {} with {} nodes. Giving away {}.", leaderships.size(), shardPartitionsCount, nodesCount,
+                e.getKey());
+            yieldRequests.add(e.getKey());
+          });
+      return;
+    }
+
+    if (!yieldRequests.isEmpty() || leaderships.size() < 2) {
+      return;
+    }
+
+    long totalProxiedMessagesCount = nodeStates.stream().mapToLong(NodeState::getProxiedMessagesCount).sum();
+    long averageProxiedMessagesCount = totalProxiedMessagesCount / nodesCount;
+    double maxLoadRatio = 1 + properties.getLeadershipBalancing().getLoadImbalanceTolerance();
+    long loadOverAverage = nodeState.getProxiedMessagesCount() - averageProxiedMessagesCount;
+    if (loadOverAverage <= 0 || nodeState.getProxiedMessagesCount() <= averageProxiedMessagesCount * maxLoadRatio) {
+      return;
+    }
+
+    // Giving away a shard-partition busier than our load over the average, would just move the imbalance to the other node.
+    yieldableLeaderships()
+        .filter(e -> e.getValue().getRecentProxiedMessagesCount() > 0 && e.getValue().getRecentProxiedMessagesCount() <= loadOverAverage)
+        .findFirst()
+        .ifPresent(e -> {
+          log.info("Proxied {} messages, while the average of {} nodes is {}. Giving away {}.", nodeState.getProxiedMessagesCount(), nodesCount,
+              averageProxiedMessagesCount, e.getKey());
+          yieldRequests.add(e.getKey());
+        });
+  }
+
+  private Stream<Map.Entry<TkmsShardPartition, Leadership>> yieldableLeaderships() {
+    long nowMs = TkmsClockHolder.getClock().millis();
+    long minLeadershipDurationMs = properties.getLeadershipBalancing().getMinLeadershipDuration().toMillis();
+
+    return leaderships.entrySet().stream()
+        .filter(e -> nowMs - e.getValue().getAcquiredTimeMs() >= minLeadershipDurationMs)
+        .filter(e -> !yieldRequests.contains(e.getKey()))
+        .sorted(Comparator.comparingLong(e -> -e.getValue().getRecentProxiedMessagesCount()));
+  }
+
+  @Override
+  public void applicationStarted() {
+    if (!properties.getLeadershipBalancing().isEnabled()) {
+      return;
+    }
+    Duration interval = properties.getLeadershipBalancing().getInterval();
+    taskHandle = executorServicesProvider.getGlobalScheduledTaskExecutor().scheduleAtFixedInterval(this::balance, interval, interval);
+    log.info("Started leadership balancing as node '{}'.", nodeId);
+  }
+
+  @Override
+  public void prepareForShutdown() {
+    if (taskHandle == null) {
+      return;
+    }
+    taskHandle.stop();
+    taskHandle.waitUntilStopped(Duration.ofMinutes(1));
+    try {
+      curatorFramework.delete().quietly().forPath(nodePath);
+    } catch (Throwable t) {
+      log.error("Removing node '" + nodePath + "' failed.", t);
+    }
+  }
+
+  @Override
+  public boolean canShutdown() {
+    return true;
+  }
+
+  @Data
+  @Accessors(chain = true)
+  protected static class Leadership {
+
+    private long acquiredTimeMs;
+    private final AtomicLong proxiedMessagesCount = new AtomicLong();
+    private long recentProxiedMessagesCount;
+  }
+
+  @Data
+  @Accessors(chain = true)
+  protected static class NodeState {
+
+    private int ledShardPartitionsCount;
+    private long proxiedMessagesCount;
+  }
+}
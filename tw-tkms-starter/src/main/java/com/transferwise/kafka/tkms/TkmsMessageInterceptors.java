@@ -1,11 +1,14 @@
 package com.transferwise.kafka.tkms;
 
 import com.google.common.util.concurrent.RateLimiter;
+import com.transferwise.kafka.tkms.api.ITkmsMessageBatchInterceptor;
+import com.transferwise.kafka.tkms.api.ITkmsMessageBatchInterceptor.ProducerRecords;
 import com.transferwise.kafka.tkms.api.ITkmsMessageInterceptor;
 import com.transferwise.kafka.tkms.api.ITkmsMessageInterceptor.MessageInterceptionDecision;
 import com.transferwise.kafka.tkms.api.ITkmsMessageInterceptors;
 import com.transferwise.kafka.tkms.api.TkmsShardPartition;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -22,11 +25,61 @@ public class TkmsMessageInterceptors implements ITkmsMessageInterceptors {
   private ApplicationContext applicationContext;
 
   private List<ITkmsMessageInterceptor> messageInterceptors;
+  /**
+   * Batch interceptors, and the other ones behind an adapter.
+   */
+  private List<ITkmsMessageBatchInterceptor> batchInterceptors;
   private RateLimiter errorRateLimiter = RateLimiter.create(2);
 
   @Override
   public boolean hasInterceptors() {
-    return !getMessageInterceptors().isEmpty();
+    return !getBatchInterceptors().isEmpty();
+  }
+
+  @Override
+  public byte[] beforeSendingToKafka(@Nonnull TkmsShardPartition shardPartition, @Nonnull ProducerRecords producerRecords) {
+    byte[] result = null;
+    byte[] decisions = null;
+    for (var interceptor : getBatchInterceptors()) {
+      if (!isInterested(interceptor, producerRecords)) {
+        continue;
+      }
+      if (result == null) {
+        result = new byte[producerRecords.size()];
+        decisions = new byte[producerRecords.size()];
+      } else {
+        Arrays.fill(decisions, ITkmsMessageBatchInterceptor.NEUTRAL);
+      }
+
+      interceptor.beforeSendingToKafka(shardPartition, producerRecords, decisions);
+
+      // The first interceptor with an opinion wins.
+      for (int i = 0; i < result.length; i++) {
+        if (result[i] == ITkmsMessageBatchInterceptor.NEUTRAL) {
+          result[i] = decisions[i];
+        }
+      }
+    }
+    return result;
+  }
+
+  protected boolean isInterested(ITkmsMessageBatchInterceptor interceptor, ProducerRecords producerRecords) {
+    var topics = interceptor.getTopics();
+    if (topics == null) {
+      return true;
+    }
+    String previousTopic = null;
+    for (int i = 0; i < producerRecords.size(); i++) {
+      var topic = producerRecords.getTopic(i);
+      // Batches are usually for a few topics only.
+      if (!topic.equals(previousTopic)) {
+        if (topics.contains(topic)) {
+          return true;
+        }
+        previousTopic = topic;
+      }
+    }
+    return false;
   }
 
   @Override
@@ -57,9 +110,9 @@ public class TkmsMessageInterceptors implements ITkmsMessageInterceptors {
 
   @Override
   public MessageInterceptionDecision onError(TkmsShardPartition tkmsShardPartition, Throwable t, ProducerRecord<String, byte[]> producerRecord) {
-    List<ITkmsMessageInterceptor> interceptors = getMessageInterceptors();
+    List<ITkmsMessageBatchInterceptor> interceptors = getBatchInterceptors();
     if (interceptors != null) {
-      for (ITkmsMessageInterceptor interceptor : interceptors) {
+      for (ITkmsMessageBatchInterceptor interceptor : interceptors) {
         try {
           MessageInterceptionDecision proxyDecision = interceptor.onError(tkmsShardPartition, t, producerRecord);
           if (proxyDecision != null && proxyDecision != MessageInterceptionDecision.NEUTRAL) {
@@ -81,4 +134,55 @@ public class TkmsMessageInterceptors implements ITkmsMessageInterceptors {
     }
     return messageInterceptors;
   }
+
+  protected List<ITkmsMessageBatchInterceptor> getBatchInterceptors() {
+    if (batchInterceptors == null) {
+      var interceptors = new ArrayList<ITkmsMessageBatchInterceptor>();
+      for (var interceptor : getMessageInterceptors()) {
+        interceptors.add(new MessageInterceptorAdapter(interceptor));
+      }
+      interceptors.addAll(applicationContext.getBeansOfType(ITkmsMessageBatchInterceptor.class).values());
+      batchInterceptors = interceptors;
+    }
+    return batchInterceptors;
+  }
+
+  /**
+   * Creates all the producer records and the maps `ITkmsMessageInterceptor` expects.
+   */
+  protected static class MessageInterceptorAdapter implements ITkmsMessageBatchInterceptor {
+
+    private final ITkmsMessageInterceptor interceptor;
+
+    MessageInterceptorAdapter(ITkmsMessageInterceptor interceptor) {
+      this.interceptor = interceptor;
+    }
+
+    @Override
+    public void beforeSendingToKafka(@Nonnull TkmsShardPartition shardPartition, @Nonnull ProducerRecords producerRecords,
+        @Nonnull byte[] decisions) {
+      Map<Integer, ProducerRecord<String, byte[]>> producerRecordsMap = new HashMap<>();
+      for (int i = 0; i < producerRecords.size(); i++) {
+        producerRecordsMap.put(i, producerRecords.getProducerRecord(i));
+      }
+
+      var interceptorDecisions = interceptor.beforeSendingToKafka(shardPartition, producerRecordsMap);
+      if (interceptorDecisions != null) {
+        for (int i = 0; i < decisions.length; i++) {
+          var decision = interceptorDecisions.get(i);
+          if (decision == MessageInterceptionDecision.RETRY) {
+            decisions[i] = RETRY;
+          } else if (decision == MessageInterceptionDecision.DISCARD) {
+            decisions[i] = DISCARD;
+          }
+        }
+      }
+    }
+
+    @Override
+    public MessageInterceptionDecision onError(@Nonnull TkmsShardPartition shardPartition, Throwable t,
+        ProducerRecord<String, byte[]> producerRecord) {
+      return interceptor.onError(shardPartition, t, producerRecord);
+    }
+  }
 }
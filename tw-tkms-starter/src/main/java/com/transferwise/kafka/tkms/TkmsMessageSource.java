@@ -0,0 +1,40 @@
+package com.transferwise.kafka.tkms;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.EqualsAndHashCode;
+import lombok.Value;
+
+/**
+ * Table of a shard-partition a message is stored in.
+ *
+ * <p>The main, the priority and every generation table have their own ids, so a storage id is unique only together with its source.
+ */
+@Value
+@EqualsAndHashCode(of = "id")
+public class TkmsMessageSource {
+
+  public static final TkmsMessageSource MAIN = new TkmsMessageSource(-1, "main");
+  public static final TkmsMessageSource PRIORITY = new TkmsMessageSource(-2, "priority");
+
+  private static final Map<Integer, TkmsMessageSource> generations = new ConcurrentHashMap<>();
+
+  /**
+   * Generation number for generation tables, negative for the others.
+   */
+  private int id;
+  private String name;
+
+  private TkmsMessageSource(int id, String name) {
+    this.id = id;
+    this.name = name;
+  }
+
+  public String toString() {
+    return name;
+  }
+
+  public static TkmsMessageSource generation(int generation) {
+    return generations.computeIfAbsent(generation, k -> new TkmsMessageSource(k, "g" + k));
+  }
+}
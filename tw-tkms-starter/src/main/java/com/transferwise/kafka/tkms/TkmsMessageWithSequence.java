@@ -10,4 +10,8 @@ public class TkmsMessageWithSequence {
 
   private int sequence;
   private TkmsMessage tkmsMessage;
+  /**
+   * When set, inserted as is, instead of serializing the message again.
+   */
+  private byte[] serializedMessage;
 }
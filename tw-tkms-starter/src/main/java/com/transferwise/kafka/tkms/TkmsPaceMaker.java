@@ -46,4 +46,25 @@ public class TkmsPaceMaker implements ITkmsPaceMaker {
   public Duration getPollingPauseOnError(TkmsShardPartition shardPartition) {
     return properties.getPauseTimeOnErrors(shardPartition.getShard());
   }
+
+  /**
+   * Exponential backoff from the polling interval, up to the idle polling ceiling.
+   */
+  @Override
+  public Duration getIdlePollingPause(TkmsShardPartition shardPartition, int emptyProbesCount) {
+    var pollInterval = properties.getPollingInterval(shardPartition.getShard());
+
+    var minPollingInterval = properties.getMinPollingInterval();
+    if (minPollingInterval != null && minPollingInterval.compareTo(pollInterval) > 0) {
+      pollInterval = minPollingInterval;
+    }
+
+    var maxPollInterval = properties.getIdlePolling(shardPartition.getShard()).getMaxPollingInterval();
+    if (maxPollInterval.compareTo(pollInterval) <= 0) {
+      return pollInterval;
+    }
+
+    var pauseMs = pollInterval.toMillis() << Math.min(Math.max(emptyProbesCount, 0), 20);
+    return pauseMs >= maxPollInterval.toMillis() ? maxPollInterval : Duration.ofMillis(pauseMs);
+  }
 }
@@ -0,0 +1,180 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.common.baseutils.concurrency.IExecutorServicesProvider;
+import com.transferwise.common.baseutils.concurrency.ScheduledTaskExecutor.TaskHandle;
+import com.transferwise.common.context.UnitOfWorkManager;
+import com.transferwise.common.gracefulshutdown.GracefulShutdownStrategy;
+import com.transferwise.kafka.tkms.api.ITkmsPartitioner;
+import com.transferwise.kafka.tkms.api.TkmsMessage;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.config.TkmsProperties.PartitioningStrategy;
+import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nonnull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.common.utils.Utils;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Default partitioner, using the `tw-tkms.partitioning.strategy` of a shard.
+ *
+ * <p>Also keeps the `tw_tkms_partitioner_skew` gauge - the busiest partition's share of messages, compared to an even spread, during the last
+ * `refreshInterval`. 1 means that messages are spread evenly.
+ */
+@Slf4j
+public class TkmsPartitioner implements ITkmsPartitioner, GracefulShutdownStrategy, InitializingBean {
+
+  @Autowired
+  protected TkmsProperties properties;
+  @Autowired
+  protected ITkmsBacklogEstimator backlogEstimator;
+  @Autowired
+  private IExecutorServicesProvider executorServicesProvider;
+  @Autowired
+  protected ITkmsMetricsTemplate metricsTemplate;
+  @Autowired
+  private UnitOfWorkManager unitOfWorkManager;
+
+  protected final Map<Integer, ShardState> shardStates = new HashMap<>();
+  private final List<TaskHandle> taskHandles = new ArrayList<>();
+
+  @Override
+  public void afterPropertiesSet() {
+    for (int s = 0; s < properties.getShardsCount(); s++) {
+      int partitionsCount = properties.getPartitionsCount(s);
+      if (partitionsCount > 1) {
+        var shardState = new ShardState(s, partitionsCount);
+        metricsTemplate.registerPartitionerSkew(s, () -> shardState.skew);
+        shardStates.put(s, shardState);
+      }
+    }
+  }
+
+  @Override
+  public int getPartition(int shard, @Nonnull TkmsMessage message, int partitionsCount) {
+    int partition = getPartition0(shard, message, partitionsCount);
+
+    var shardState = shardStates.get(shard);
+    if (shardState != null && partition < shardState.partitionsCount) {
+      shardState.routedCounts.incrementAndGet(partition);
+    }
+    return partition;
+  }
+
+  protected int getPartition0(int shard, TkmsMessage message, int partitionsCount) {
+    var strategy = properties.getPartitioning(shard).getStrategy();
+    if (strategy == PartitioningStrategy.HASH_CODE) {
+      if (message.getKey() != null) {
+        return Math.abs(message.getKey().hashCode() % partitionsCount);
+      }
+      return ThreadLocalRandom.current().nextInt(partitionsCount);
+    }
+
+    if (message.getKey() != null) {
+      return Utils.toPositive(Utils.murmur2(message.getKey().getBytes(StandardCharsets.UTF_8))) % partitionsCount;
+    }
+
+    var shardState = shardStates.get(shard);
+    if (strategy == PartitioningStrategy.LEAST_BACKLOG && shardState != null && shardState.partitionsCount == partitionsCount) {
+      return getLeastBacklogPartition(shardState);
+    }
+    return ThreadLocalRandom.current().nextInt(partitionsCount);
+  }
+
+  /**
+   * Picking the best of two random partitions, instead of the best overall, avoids all nodes piling into the same partition between the refreshes.
+   */
+  protected int getLeastBacklogPartition(ShardState shardState) {
+    var random = ThreadLocalRandom.current();
+    int first = random.nextInt(shardState.partitionsCount);
+    int second = random.nextInt(shardState.partitionsCount - 1);
+    if (second >= first) {
+      second++;
+    }
+    int partition = shardState.backlogs.get(first) <= shardState.backlogs.get(second) ? first : second;
+    // Until the next refresh, our own messages are the only known change in the backlog.
+    shardState.backlogs.incrementAndGet(partition);
+    return partition;
+  }
+
+  protected void refresh(ShardState shardState) {
+    refreshSkew(shardState);
+
+    if (properties.getPartitioning(shardState.shard).getStrategy() != PartitioningStrategy.LEAST_BACKLOG) {
+      return;
+    }
+
+    unitOfWorkManager.createEntryPoint("TKMS", "PartitionerRefresh_" + shardState.shard).toContext().execute(() -> refreshBacklogs(shardState));
+  }
+
+  protected void refreshSkew(ShardState shardState) {
+    long max = 0;
+    long sum = 0;
+    for (int p = 0; p < shardState.partitionsCount; p++) {
+      long count = shardState.routedCounts.get(p);
+      long delta = count - shardState.lastRoutedCounts[p];
+      shardState.lastRoutedCounts[p] = count;
+      max = Math.max(max, delta);
+      sum += delta;
+    }
+    shardState.skew = sum == 0 ? 1d : (double) max * shardState.partitionsCount / sum;
+  }
+
+  protected void refreshBacklogs(ShardState shardState) {
+    backlogEstimator.refresh(shardState.shard);
+    for (int p = 0; p < shardState.partitionsCount; p++) {
+      shardState.backlogs.set(p, backlogEstimator.getBacklog(TkmsShardPartition.of(shardState.shard, p)));
+    }
+  }
+
+  @Override
+  public void applicationStarted() {
+    var scheduledTaskExecutor = executorServicesProvider.getGlobalScheduledTaskExecutor();
+    for (var shardState : shardStates.values()) {
+      var refreshInterval = properties.getPartitioning(shardState.shard).getRefreshInterval();
+      taskHandles.add(scheduledTaskExecutor.scheduleAtFixedInterval(() -> refresh(shardState), refreshInterval, refreshInterval));
+    }
+  }
+
+  @Override
+  public void prepareForShutdown() {
+    for (var taskHandle : taskHandles) {
+      taskHandle.stop();
+    }
+    for (var taskHandle : taskHandles) {
+      taskHandle.waitUntilStopped(Duration.ofMinutes(1));
+    }
+  }
+
+  @Override
+  public boolean canShutdown() {
+    return true;
+  }
+
+  protected static class ShardState {
+
+    private final int shard;
+    private final int partitionsCount;
+    private final AtomicLongArray routedCounts;
+    private final long[] lastRoutedCounts;
+    private final AtomicLongArray backlogs;
+    private volatile double skew = 1d;
+
+    ShardState(int shard, int partitionsCount) {
+      this.shard = shard;
+      this.partitionsCount = partitionsCount;
+      this.routedCounts = new AtomicLongArray(partitionsCount);
+      this.lastRoutedCounts = new long[partitionsCount];
+      this.backlogs = new AtomicLongArray(partitionsCount);
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.kafka.tkms.api.ITkmsMessageBatchInterceptor.ProducerRecords;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.MessageRecord;
+import java.util.List;
+import java.util.function.Function;
+import org.apache.kafka.clients.producer.ProducerRecord;
+
+/**
+ * Creates the producer records only when those are asked for.
+ */
+public class TkmsProducerRecords implements ProducerRecords {
+
+  private final List<MessageRecord> records;
+  private final Function<MessageRecord, ProducerRecord<String, byte[]>> converter;
+  private final ProducerRecord<String, byte[]>[] producerRecords;
+
+  @SuppressWarnings("unchecked")
+  public TkmsProducerRecords(List<MessageRecord> records, Function<MessageRecord, ProducerRecord<String, byte[]>> converter) {
+    this.records = records;
+    this.converter = converter;
+    this.producerRecords = new ProducerRecord[records.size()];
+  }
+
+  @Override
+  public int size() {
+    return records.size();
+  }
+
+  @Override
+  public String getTopic(int idx) {
+    return records.get(idx).getMessage().getTopic();
+  }
+
+  @Override
+  public ProducerRecord<String, byte[]> getProducerRecord(int idx) {
+    var producerRecord = producerRecords[idx];
+    if (producerRecord == null) {
+      producerRecord = producerRecords[idx] = converter.apply(records.get(idx));
+    }
+    return producerRecord;
+  }
+}
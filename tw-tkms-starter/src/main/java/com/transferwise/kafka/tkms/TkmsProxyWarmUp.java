@@ -0,0 +1,174 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.common.baseutils.concurrency.IExecutorServicesProvider;
+import com.transferwise.common.baseutils.concurrency.ScheduledTaskExecutor.TaskHandle;
+import com.transferwise.common.gracefulshutdown.GracefulShutdownStrategy;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.ITkmsKafkaProducerProvider;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.KeeperException;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Keeps the Kafka producer and the topics metadata of designated shards warm on the nodes not leading those, and measures the failover time.
+ *
+ * <p>Only the producer is prepared in advance. Database connections come from the shard's pool, already shared with the senders, and the trackers
+ * are initialized from the database by the incoming leader, as those depend on the progress of the outgoing one. The earliest messages tracking
+ * state can be resumed from the proxy state handover, when enabled.
+ *
+ * <p>The failover time is recorded by the incoming leader only, as the outgoing one is usually frozen or gone.
+ */
+@Slf4j
+public class TkmsProxyWarmUp implements ITkmsProxyWarmUp, GracefulShutdownStrategy {
+
+  /**
+   * Longer gaps between leaders are not failovers, but for example full cluster restarts.
+   */
+  private static final long MAX_FAILOVER_MS = Duration.ofMinutes(1).toMillis();
+
+  @Autowired
+  protected TkmsProperties properties;
+  @Autowired
+  private ITkmsZookeeperOperations zkOperations;
+  @Autowired
+  private CuratorFramework curatorFramework;
+  @Autowired
+  protected ITkmsKafkaProducerProvider tkmsKafkaProducerProvider;
+  @Autowired
+  private IExecutorServicesProvider executorServicesProvider;
+  @Autowired
+  protected ITkmsMetricsTemplate metricsTemplate;
+
+  private final Set<TkmsShardPartition> ledShardPartitions = ConcurrentHashMap.newKeySet();
+  private final Map<TkmsShardPartition, Long> lastHeartbeatTimes = new ConcurrentHashMap<>();
+  private final Map<TkmsShardPartition, Object> warmProducerGauges = new ConcurrentHashMap<>();
+  private final Map<Integer, Boolean> warmShards = new ConcurrentHashMap<>();
+  private final List<TaskHandle> taskHandles = new ArrayList<>();
+
+  @Override
+  public void leadershipAcquired(TkmsShardPartition shardPartition) {
+    if (!properties.getProducerWarmUp(shardPartition.getShard()).isEnabled()) {
+      return;
+    }
+
+    ledShardPartitions.add(shardPartition);
+    var gauge = warmProducerGauges.remove(shardPartition);
+    if (gauge != null) {
+      metricsTemplate.unregisterMetric(gauge);
+    }
+
+    try {
+      byte[] data;
+      try {
+        data = curatorFramework.getData().forPath(zkOperations.getHeartbeatNodePath(shardPartition));
+      } catch (KeeperException.NoNodeException e) {
+        return;
+      }
+      var failoverMs = getFailoverMs(data, TkmsClockHolder.getClock().millis());
+      if (failoverMs != null) {
+        metricsTemplate.recordProxyFailover(shardPartition, failoverMs, isWarm(shardPartition.getShard()));
+      }
+    } catch (Throwable t) {
+      log.error("Measuring failover time for " + shardPartition + " failed.", t);
+    }
+  }
+
+  @Override
+  public void leadershipReleased(TkmsShardPartition shardPartition) {
+    ledShardPartitions.remove(shardPartition);
+    lastHeartbeatTimes.remove(shardPartition);
+  }
+
+  @Override
+  public void heartbeat(TkmsShardPartition shardPartition) {
+    var producerWarmUp = properties.getProducerWarmUp(shardPartition.getShard());
+    if (!producerWarmUp.isEnabled()) {
+      return;
+    }
+
+    long nowMs = TkmsClockHolder.getClock().millis();
+    Long lastHeartbeatMs = lastHeartbeatTimes.get(shardPartition);
+    if (lastHeartbeatMs != null && nowMs - lastHeartbeatMs < producerWarmUp.getHeartbeatInterval().toMillis()) {
+      return;
+    }
+    lastHeartbeatTimes.put(shardPartition, nowMs);
+
+    try {
+      curatorFramework.create().orSetData().creatingParentsIfNeeded().inBackground()
+          .forPath(zkOperations.getHeartbeatNodePath(shardPartition), String.valueOf(nowMs).getBytes(StandardCharsets.UTF_8));
+    } catch (Throwable t) {
+      log.error("Publishing heartbeat for " + shardPartition + " failed.", t);
+    }
+  }
+
+  /**
+   * Returns null, when the gap since the last heartbeat is not a failover.
+   */
+  protected static Long getFailoverMs(byte[] heartbeat, long nowMs) {
+    long failoverMs = nowMs - Long.parseLong(new String(heartbeat, StandardCharsets.UTF_8));
+    return failoverMs >= 0 && failoverMs <= MAX_FAILOVER_MS ? failoverMs : null;
+  }
+
+  protected boolean isWarm(int shard) {
+    return warmShards.containsKey(shard);
+  }
+
+  protected void warmUp(int shard) {
+    try {
+      var kafkaProducer = tkmsKafkaProducerProvider.getKafkaProducer(shard);
+      for (String topic : properties.getTopics()) {
+        kafkaProducer.partitionsFor(topic);
+      }
+      warmShards.put(shard, Boolean.TRUE);
+
+      for (int p = 0; p < properties.getPartitionsCount(shard); p++) {
+        var shardPartition = TkmsShardPartition.of(shard, p);
+        if (!ledShardPartitions.contains(shardPartition)) {
+          warmProducerGauges.computeIfAbsent(shardPartition, sp -> metricsTemplate.registerWarmProducerGauge(sp));
+        }
+      }
+    } catch (Throwable t) {
+      warmShards.remove(shard);
+      log.error("Warming up the Kafka producer of shard " + shard + " failed.", t);
+    }
+  }
+
+  @Override
+  public void applicationStarted() {
+    for (int s = 0; s < properties.getShardsCount(); s++) {
+      var producerWarmUp = properties.getProducerWarmUp(s);
+      if (!producerWarmUp.isEnabled()) {
+        continue;
+      }
+      final int shard = s;
+      taskHandles.add(executorServicesProvider.getGlobalScheduledTaskExecutor()
+          .scheduleAtFixedInterval(() -> warmUp(shard), Duration.ZERO, producerWarmUp.getInterval()));
+      log.info("Started keeping the Kafka producer of shard {} warm.", shard);
+    }
+  }
+
+  @Override
+  public void prepareForShutdown() {
+    for (TaskHandle taskHandle : taskHandles) {
+      taskHandle.stop();
+    }
+    for (TaskHandle taskHandle : taskHandles) {
+      taskHandle.waitUntilStopped(Duration.ofMinutes(1));
+    }
+  }
+
+  @Override
+  public boolean canShutdown() {
+    return true;
+  }
+}
@@ -0,0 +1,359 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.common.baseutils.ExceptionUtils;
+import com.transferwise.common.baseutils.concurrency.IExecutorServicesProvider;
+import com.transferwise.common.baseutils.concurrency.ScheduledTaskExecutor.TaskHandle;
+import com.transferwise.common.context.UnitOfWorkManager;
+import com.transferwise.common.gracefulshutdown.GracefulShutdownStrategy;
+import com.transferwise.kafka.tkms.api.TkmsMessage;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.ITkmsDaoProvider;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.dao.ITkmsMessageSerializer;
+import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.dao.TransientDataAccessResourceException;
+
+/**
+ * Spools messages into memory-mapped files, one set of files per shard, and replays those into the database in the background.
+ *
+ * <p>The file being appended to has an `.active` suffix. It is sealed, under the lock, on every replay, by renaming it to `.spool`, and the replay
+ * only ever lists `.spool` files, so it can never touch the file being appended to. Active files left behind by a crash are sealed on startup.
+ *
+ * <p>The replay progress of a file is kept in a `.offset` file next to it, so after a crash only the last chunk can be inserted twice.
+ */
+@Slf4j
+public class TkmsSpool implements ITkmsSpool, GracefulShutdownStrategy, InitializingBean {
+
+  private static final String FILE_SUFFIX = ".spool";
+  private static final String ACTIVE_FILE_SUFFIX = ".active";
+  private static final String OFFSET_FILE_SUFFIX = ".offset";
+  private static final int OFFSET_COMMIT_RECORDS_COUNT = 100;
+  /**
+   * Postgres `query_canceled`, used for statement timeouts.
+   */
+  private static final String SQL_STATE_QUERY_CANCELED = "57014";
+
+  @Autowired
+  protected TkmsProperties properties;
+  @Autowired
+  protected ITkmsDaoProvider tkmsDaoProvider;
+  @Autowired
+  protected ITkmsMessageSerializer messageSerializer;
+  @Autowired
+  private IExecutorServicesProvider executorServicesProvider;
+  @Autowired
+  protected ITkmsMetricsTemplate metricsTemplate;
+  @Autowired
+  private UnitOfWorkManager unitOfWorkManager;
+
+  protected final Map<Integer, ShardSpool> shardSpools = new HashMap<>();
+  private final List<TaskHandle> taskHandles = new ArrayList<>();
+  private long fileCounter;
+
+  @Override
+  public void afterPropertiesSet() {
+    for (int s = 0; s < properties.getShardsCount(); s++) {
+      var spool = properties.getSpool(s);
+      if (!spool.isEnabled()) {
+        continue;
+      }
+      var shardSpool = new ShardSpool(s, Paths.get(spool.getDirectory(), "shard_" + s));
+      ExceptionUtils.doUnchecked(() -> {
+        Files.createDirectories(shardSpool.directory);
+        for (var file : listFiles(shardSpool, ACTIVE_FILE_SUFFIX)) {
+          seal(file);
+        }
+      });
+      for (var file : listSealedFiles(shardSpool)) {
+        ExceptionUtils.doUnchecked(() -> SpoolFile.read(file, readOffset(file),
+            (record, nextOffset) -> shardSpool.pendingMessagesCount.incrementAndGet()));
+      }
+      metricsTemplate.registerSpoolPendingMessages(s, shardSpool.pendingMessagesCount::get);
+      shardSpools.put(s, shardSpool);
+    }
+  }
+
+  @Override
+  public boolean isSpoolable(int shard, Throwable t) {
+    if (!shardSpools.containsKey(shard)) {
+      return false;
+    }
+    for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+      if (cause instanceof QueryTimeoutException || cause instanceof DataAccessResourceFailureException
+          || cause instanceof TransientDataAccessResourceException || cause instanceof SQLTimeoutException
+          || cause instanceof SQLTransientConnectionException || cause instanceof SQLRecoverableException) {
+        return true;
+      }
+      if (cause instanceof SQLException && SQL_STATE_QUERY_CANCELED.equals(((SQLException) cause).getSQLState())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Called before the commit, so the transaction fails, instead of the message being lost after the commit.
+   *
+   * <p>Makes sure the message fits into a spool file, that an active file can be created and that there is room for a whole file on the disk.
+   */
+  @Override
+  public void checkAppendable(TkmsShardPartition shardPartition, TkmsMessage message) {
+    var shardSpool = getShardSpool(shardPartition.getShard());
+    int fileSizeBytes = properties.getSpool(shardSpool.shard).getFileSizeBytes();
+
+    var record = toRecord(shardPartition, message);
+    if (!SpoolFile.fits(record.length, fileSizeBytes)) {
+      throw new IllegalStateException("Message of " + record.length + " bytes does not fit into a spool file.");
+    }
+
+    shardSpool.lock.lock();
+    try {
+      if (shardSpool.activeFile == null) {
+        rollActiveFile(shardSpool);
+      }
+      // The file is mapped sparsely, so the disk space is only taken on writes.
+      long usableSpace = ExceptionUtils.doUnchecked(() -> Files.getFileStore(shardSpool.directory).getUsableSpace());
+      if (usableSpace < fileSizeBytes) {
+        throw new IllegalStateException("Spool directory of shard " + shardSpool.shard + " has only " + usableSpace
+            + " bytes free, less than a spool file.");
+      }
+    } finally {
+      shardSpool.lock.unlock();
+    }
+  }
+
+  @Override
+  public void append(TkmsShardPartition shardPartition, TkmsMessage message) {
+    var shardSpool = getShardSpool(shardPartition.getShard());
+    var record = toRecord(shardPartition, message);
+
+    shardSpool.lock.lock();
+    try {
+      if (shardSpool.activeFile == null || !shardSpool.activeFile.append(record)) {
+        rollActiveFile(shardSpool);
+        if (!shardSpool.activeFile.append(record)) {
+          throw new IllegalStateException("Message of " + record.length + " bytes does not fit into a spool file.");
+        }
+      }
+      shardSpool.dirty = true;
+    } finally {
+      shardSpool.lock.unlock();
+    }
+
+    shardSpool.pendingMessagesCount.incrementAndGet();
+    metricsTemplate.recordSpoolMessageAppend(shardPartition, message.getTopic());
+  }
+
+  protected ShardSpool getShardSpool(int shard) {
+    var shardSpool = shardSpools.get(shard);
+    if (shardSpool == null) {
+      throw new IllegalStateException("Spool is not enabled for shard " + shard + ".");
+    }
+    return shardSpool;
+  }
+
+  /**
+   * Record is `{partition, topic length, topic, serialized message}`.
+   */
+  protected byte[] toRecord(TkmsShardPartition shardPartition, TkmsMessage message) {
+    var serializedMessage = ExceptionUtils.doUnchecked(() -> {
+      try (var is = messageSerializer.serialize(shardPartition, message)) {
+        return is.readAllBytes();
+      }
+    });
+    var topic = message.getTopic().getBytes(StandardCharsets.UTF_8);
+    return ByteBuffer.allocate(4 + 4 + topic.length + serializedMessage.length)
+        .putInt(shardPartition.getPartition()).putInt(topic.length).put(topic).put(serializedMessage).array();
+  }
+
+  protected void rollActiveFile(ShardSpool shardSpool) {
+    ExceptionUtils.doUnchecked(() -> {
+      sealActiveFile(shardSpool);
+      // Names are ordered by creation.
+      var fileName = String.format("%020d_%010d%s", TkmsClockHolder.getClock().millis(), fileCounter++, ACTIVE_FILE_SUFFIX);
+      shardSpool.activeFile = SpoolFile.create(shardSpool.directory.resolve(fileName), properties.getSpool(shardSpool.shard).getFileSizeBytes());
+    });
+  }
+
+  protected void sealActiveFile(ShardSpool shardSpool) throws IOException {
+    if (shardSpool.activeFile != null) {
+      var activeFile = shardSpool.activeFile;
+      shardSpool.activeFile = null;
+      shardSpool.dirty = false;
+      activeFile.close();
+      seal(activeFile.getPath());
+    }
+  }
+
+  protected Path seal(Path activeFile) throws IOException {
+    var fileName = activeFile.getFileName().toString();
+    var sealedFile = activeFile.resolveSibling(fileName.substring(0, fileName.length() - ACTIVE_FILE_SUFFIX.length()) + FILE_SUFFIX);
+    return Files.move(activeFile, sealedFile, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  protected void fsync(ShardSpool shardSpool) {
+    shardSpool.lock.lock();
+    try {
+      if (shardSpool.dirty) {
+        long startNanoTime = System.nanoTime();
+        shardSpool.activeFile.force();
+        shardSpool.dirty = false;
+        metricsTemplate.recordSpoolFsync(shardSpool.shard, startNanoTime);
+      }
+    } catch (Throwable t) {
+      log.error("Forcing spool file of shard " + shardSpool.shard + " to the disk failed.", t);
+    } finally {
+      shardSpool.lock.unlock();
+    }
+  }
+
+  protected void replay(ShardSpool shardSpool) {
+    unitOfWorkManager.createEntryPoint("TKMS", "SpoolReplay_" + shardSpool.shard).toContext().execute(() -> {
+      try {
+        replaySealedFiles(shardSpool);
+      } catch (Throwable t) {
+        log.error("Replaying spooled messages of shard " + shardSpool.shard + " failed. Will try again later.", t);
+      }
+    });
+  }
+
+  protected void replaySealedFiles(ShardSpool shardSpool) throws IOException {
+    shardSpool.lock.lock();
+    try {
+      if (shardSpool.activeFile != null && !shardSpool.activeFile.isEmpty()) {
+        sealActiveFile(shardSpool);
+      }
+    } finally {
+      shardSpool.lock.unlock();
+    }
+
+    for (var file : listSealedFiles(shardSpool)) {
+      replay(shardSpool, file);
+    }
+  }
+
+  protected void replay(ShardSpool shardSpool, Path file) throws IOException {
+    var tkmsDao = tkmsDaoProvider.getTkmsDao(shardSpool.shard);
+    var offsetFile = getOffsetFile(file);
+    var replayedCount = new AtomicLong();
+
+    SpoolFile.read(file, readOffset(file), (record, nextOffset) -> {
+      var buffer = ByteBuffer.wrap(record);
+      var shardPartition = TkmsShardPartition.of(shardSpool.shard, buffer.getInt());
+      var topic = new byte[buffer.getInt()];
+      buffer.get(topic);
+      var serializedMessage = new byte[buffer.remaining()];
+      buffer.get(serializedMessage);
+
+      var topicString = new String(topic, StandardCharsets.UTF_8);
+      tkmsDao.insertSerializedMessage(shardPartition, topicString, serializedMessage);
+      shardSpool.pendingMessagesCount.decrementAndGet();
+      metricsTemplate.recordSpoolMessageReplay(shardPartition, topicString);
+
+      if (replayedCount.incrementAndGet() % OFFSET_COMMIT_RECORDS_COUNT == 0) {
+        Files.writeString(offsetFile, String.valueOf(nextOffset));
+      }
+    });
+
+    Files.delete(file);
+    Files.deleteIfExists(offsetFile);
+    log.info("Replayed {} spooled messages from '{}'.", replayedCount.get(), file);
+  }
+
+  protected List<Path> listSealedFiles(ShardSpool shardSpool) {
+    return listFiles(shardSpool, FILE_SUFFIX);
+  }
+
+  protected List<Path> listFiles(ShardSpool shardSpool, String suffix) {
+    return ExceptionUtils.doUnchecked(() -> {
+      try (Stream<Path> files = Files.list(shardSpool.directory)) {
+        return files.filter(f -> f.getFileName().toString().endsWith(suffix)).sorted().collect(Collectors.toList());
+      }
+    });
+  }
+
+  protected long readOffset(Path file) throws IOException {
+    var offsetFile = getOffsetFile(file);
+    return Files.exists(offsetFile) ? Long.parseLong(Files.readString(offsetFile).trim()) : 0;
+  }
+
+  protected Path getOffsetFile(Path file) {
+    return file.resolveSibling(file.getFileName() + OFFSET_FILE_SUFFIX);
+  }
+
+  @Override
+  public void applicationStarted() {
+    var scheduledTaskExecutor = executorServicesProvider.getGlobalScheduledTaskExecutor();
+    for (var shardSpool : shardSpools.values()) {
+      var spool = properties.getSpool(shardSpool.shard);
+      taskHandles.add(scheduledTaskExecutor.scheduleAtFixedInterval(() -> fsync(shardSpool), spool.getFsyncInterval(), spool.getFsyncInterval()));
+      taskHandles.add(scheduledTaskExecutor.scheduleAtFixedInterval(() -> replay(shardSpool), spool.getReplayInterval(), spool.getReplayInterval()));
+    }
+  }
+
+  @Override
+  public void prepareForShutdown() {
+    for (var taskHandle : taskHandles) {
+      taskHandle.stop();
+    }
+    for (var taskHandle : taskHandles) {
+      taskHandle.waitUntilStopped(Duration.ofMinutes(1));
+    }
+    for (var shardSpool : shardSpools.values()) {
+      shardSpool.lock.lock();
+      try {
+        sealActiveFile(shardSpool);
+      } catch (Throwable t) {
+        log.error("Closing spool file of shard " + shardSpool.shard + " failed.", t);
+      } finally {
+        shardSpool.lock.unlock();
+      }
+    }
+  }
+
+  @Override
+  public boolean canShutdown() {
+    return true;
+  }
+
+  protected static class ShardSpool {
+
+    private final int shard;
+    private final Path directory;
+    private final Lock lock = new ReentrantLock();
+    protected final AtomicLong pendingMessagesCount = new AtomicLong();
+    protected SpoolFile activeFile;
+    private boolean dirty;
+
+    ShardSpool(int shard, Path directory) {
+      this.shard = shard;
+      this.directory = directory;
+    }
+  }
+}
@@ -10,23 +10,31 @@ import com.transferwise.common.leaderselector.ILock;
 import com.transferwise.common.leaderselector.Leader.Control;
 import com.transferwise.common.leaderselector.LeaderSelectorV2;
 import com.transferwise.common.leaderselector.SharedReentrantLockBuilderFactory;
-import com.transferwise.kafka.tkms.api.ITkmsEventsListener;
+import com.transferwise.kafka.tkms.ITkmsProxyStateHandover.ProxyState;
 import com.transferwise.kafka.tkms.api.ITkmsEventsListener.MessageAcknowledgedEvent;
+import com.transferwise.kafka.tkms.api.ITkmsMessageBatchInterceptor;
 import com.transferwise.kafka.tkms.api.ITkmsMessageInterceptor.MessageInterceptionDecision;
 import com.transferwise.kafka.tkms.api.ITkmsMessageInterceptors;
 import com.transferwise.kafka.tkms.api.TkmsShardPartition;
 import com.transferwise.kafka.tkms.config.ITkmsDaoProvider;
 import com.transferwise.kafka.tkms.config.ITkmsKafkaProducerProvider;
 import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.config.TkmsProperties.EarliestMessagesTrackingMode;
+import com.transferwise.kafka.tkms.config.TkmsProperties.IdlePolling;
+import com.transferwise.kafka.tkms.dao.ITkmsDao;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.DeadLetterRecord;
 import com.transferwise.kafka.tkms.dao.ITkmsDao.MessageRecord;
+import com.transferwise.kafka.tkms.dao.ITkmsTransactionIdsDao.TransactionIdsPoll;
 import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
 import com.transferwise.kafka.tkms.stored_message.StoredMessage;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
@@ -39,58 +47,83 @@ import lombok.Setter;
 import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.mutable.MutableLong;
-import org.apache.commons.lang3.mutable.MutableObject;
+import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.RetriableException;
 import org.apache.kafka.common.header.Header;
 import org.apache.kafka.common.header.internals.RecordHeader;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.ApplicationContext;
 
 @Slf4j
 public class TkmsStorageToKafkaProxy implements GracefulShutdownStrategy, ITkmsStorageToKafkaProxy, InitializingBean {
 
+  /**
+   * Polls past the held back records in one cycle. Bounded, so a large backlog for an unavailable Kafka partition is not read through on every
+   * cycle.
+   */
+  private static final int MAX_HELD_BACK_SKIPPED_POLLS = 10;
+
   @Autowired
-  private ITkmsKafkaProducerProvider tkmsKafkaProducerProvider;
+  protected ITkmsKafkaProducerProvider tkmsKafkaProducerProvider;
   @Autowired
-  private IExecutorServicesProvider executorServicesProvider;
+  protected IExecutorServicesProvider executorServicesProvider;
   @Autowired
-  private TkmsProperties properties;
+  protected TkmsProperties properties;
   @Autowired
   @Setter
-  private ITkmsDaoProvider tkmsDaoProvider;
+  protected ITkmsDaoProvider tkmsDaoProvider;
+  @Autowired
+  protected ITkmsPaceMaker tkmsPaceMaker;
+  @Autowired
+  protected ITkmsZookeeperOperations zkOperations;
+  @Autowired
+  protected UnitOfWorkManager unitOfWorkManager;
+  @Autowired
+  protected ITkmsMetricsTemplate metricsTemplate;
+  @Autowired
+  protected ITkmsMessageInterceptors messageIntereceptors;
   @Autowired
-  private ITkmsPaceMaker tkmsPaceMaker;
+  protected SharedReentrantLockBuilderFactory lockBuilderFactory;
   @Autowired
-  private ITkmsZookeeperOperations zkOperations;
+  protected ITkmsLeadershipBalancer leadershipBalancer;
   @Autowired
-  private UnitOfWorkManager unitOfWorkManager;
+  protected ITkmsProxyStateHandover proxyStateHandover;
   @Autowired
-  private ITkmsMetricsTemplate metricsTemplate;
+  protected ITkmsProxyWarmUp proxyWarmUp;
   @Autowired
-  private ApplicationContext applicationContext;
+  protected ITkmsEarliestMessageIdsCommitter earliestMessageIdsCommitter;
   @Autowired
-  private ITkmsMessageInterceptors messageIntereceptors;
+  protected ITkmsBacklogEstimator backlogEstimator;
   @Autowired
-  private SharedReentrantLockBuilderFactory lockBuilderFactory;
+  protected ITkmsAcknowledgementTracker acknowledgementTracker;
+  @Autowired
+  protected ITkmsEventsDispatcher eventsDispatcher;
+  @Autowired
+  protected ITkmsDeadLetterTracker deadLetterTracker;
 
   @TestOnly
   private volatile boolean paused = false;
   @TestOnly
   private volatile boolean pauseRequested = false;
 
-  private volatile List<ITkmsEventsListener> tkmsEventsListeners;
   private final List<LeaderSelectorV2> leaderSelectors = new ArrayList<>();
+  /**
+   * Earliest messages tracking states of the previous leadership terms on this node.
+   */
+  private final Map<TkmsShardPartition, EarliestMessageTracker.State> localEarliestMessageTrackerStates = new ConcurrentHashMap<>();
   private RateLimiter exceptionRateLimiter = RateLimiter.create(2);
 
 
   @Override
   public void afterPropertiesSet() {
     for (int s = 0; s < properties.getShardsCount(); s++) {
+      validateKafkaPartitionErrorsIsolation(s);
+
       for (int p = 0; p < properties.getPartitionsCount(s); p++) {
         TkmsShardPartition shardPartition = TkmsShardPartition.of(s, p);
 
@@ -110,12 +143,19 @@ public class TkmsStorageToKafkaProxy implements GracefulShutdownStrategy, ITkmsS
 
                       log.info("Starting to proxy {}.", shardPartition);
                       pollingGauge.set(metricsTemplate.registerPollingInProgressGauge(shardPartition));
+                      leadershipBalancer.leadershipAcquired(shardPartition);
+                      proxyWarmUp.leadershipAcquired(shardPartition);
+                      acknowledgementTracker.leadershipAcquired(shardPartition);
                       poll(control, shardPartition);
                       return true;
                     } catch (Throwable t) {
                       log.error(t.getMessage(), t);
                       return false;
                     } finally {
+                      leadershipBalancer.leadershipReleased(shardPartition);
+                      proxyWarmUp.leadershipReleased(shardPartition);
+                      deadLetterTracker.leadershipReleased(shardPartition);
+                      acknowledgementTracker.leadershipReleased(shardPartition);
                       control.yield();
                       shardPartition.removeFromMdc();
                     }
@@ -153,29 +193,12 @@ public class TkmsStorageToKafkaProxy implements GracefulShutdownStrategy, ITkmsS
   }
 
   private void poll(Control control, TkmsShardPartition shardPartition) {
-
-    int pollerBatchSize = properties.getPollerBatchSize(shardPartition.getShard());
     long startTimeMs = System.currentTimeMillis();
 
     long timeToLiveMs = properties.getProxyTimeToLive().toMillis() + ThreadLocalRandom.current().nextLong(TimeUnit.SECONDS.toMillis(5));
-    final Map<Integer, ProducerRecord<String, byte[]>> producerRecordMap = new HashMap<>();
-
-    EarliestMessageTracker earliestMessageTracker =
-        new EarliestMessageTracker(tkmsDaoProvider.getTkmsDao(shardPartition.getShard()), shardPartition, properties, metricsTemplate);
-    earliestMessageTracker.init();
-
-    final var lastPollAllTimeMs = new MutableLong();
-
-    final Duration pollAllInterval;
-    if (properties.getEarliestVisibleMessages(shardPartition.getShard()).isEnabled()) {
-      pollAllInterval = properties.getEarliestVisibleMessages(shardPartition.getShard()).getPollAllInterval();
-    } else {
-      pollAllInterval = null;
-    }
 
+    var poller = new ShardPartitionPoller(shardPartition);
     try {
-      MutableObject<Duration> proxyCyclePauseRequest = new MutableObject<>();
-
       while (!control.shouldStop()) {
         if (pauseRequested) {
           paused = true;
@@ -192,196 +215,687 @@ public class TkmsStorageToKafkaProxy implements GracefulShutdownStrategy, ITkmsS
           return;
         }
 
-        if (proxyCyclePauseRequest.getValue() != null) {
-          var pauseTimeMs = proxyCyclePauseRequest.getValue().toMillis();
+        proxyWarmUp.heartbeat(shardPartition);
+
+        if (leadershipBalancer.shouldYield(shardPartition)) {
+          log.info("Yielding control for {}, as this node is leading more than its fair share of shard-partitions.", shardPartition);
+          return;
+        }
+
+        var pauseRequest = poller.takePauseRequest();
+        if (pauseRequest != null) {
+          var pauseTimeMs = pauseRequest.toMillis();
           if (pauseTimeMs > 0) {
             ExceptionUtils.doUnchecked(() -> Thread.sleep(pauseTimeMs));
             metricsTemplate.recordProxyCyclePause(shardPartition, pauseTimeMs);
           }
-          proxyCyclePauseRequest.setValue(null);
         }
 
-        var earliestMessageIdInitial = earliestMessageTracker.getEarliestMessageId();
-        if (earliestMessageIdInitial == -1L) {
-          // Delay for one interval.
-          lastPollAllTimeMs.setValue(System.currentTimeMillis());
+        unitOfWorkManager.createEntryPoint("TKMS", "poll_" + shardPartition.getShard() + "_" + shardPartition.getPartition()).toContext()
+            .execute(poller::pollCycle);
+      }
+    } finally {
+      poller.shutdown();
+    }
+  }
+
+  /**
+   * Polling state of a shard-partition, for one leadership term.
+   */
+  protected class ShardPartitionPoller {
+
+    private final TkmsShardPartition shardPartition;
+    private final int pollerBatchSize;
+    private final EarliestMessageTracker earliestMessageTracker;
+    private final IDeliveryTracker deliveryTracker;
+    private final TransactionIdsTracker transactionIdsTracker;
+    private final ForgottenMessagesSweeper forgottenMessagesSweeper;
+    private final KafkaPartitionHoldBack holdBack;
+    /**
+     * Messages acknowledged by Kafka, but not deleted yet. The priority table has its own ids.
+     */
+    private final IdBitmap ackedIds = new IdBitmap(0);
+    private final IdBitmap priorityAckedIds = new IdBitmap(0);
+    private final Duration pollAllInterval;
+    private final IdlePolling idlePolling;
+    private final boolean priorityLaneEnabled;
+    private Long lastPollAllTimeMs;
+    private int emptyPollsCount;
+    private int emptyProbesCount;
+    /**
+     * Pause to be done before the next cycle.
+     */
+    private Duration pauseRequest;
+
+    protected ShardPartitionPoller(TkmsShardPartition shardPartition) {
+      this.shardPartition = shardPartition;
+      pollerBatchSize = properties.getPollerBatchSize(shardPartition.getShard());
+
+      earliestMessageTracker = new EarliestMessageTracker(tkmsDaoProvider.getTkmsDao(shardPartition.getShard()), shardPartition, properties,
+          metricsTemplate, earliestMessageIdsCommitter);
+      var handedOverState = proxyStateHandover.take(shardPartition);
+      var localState = localEarliestMessageTrackerStates.remove(shardPartition);
+      earliestMessageTracker.init(handedOverState == null ? null : handedOverState.getEarliestMessageTracker(), localState);
+
+      if (properties.getTableRotation(shardPartition.getShard()).isEnabled()) {
+        deliveryTracker =
+            new RotatingTablesTracker(tkmsDaoProvider.getTkmsDao(shardPartition.getShard()), shardPartition, properties, metricsTemplate);
+      } else if (properties.getDeliveryWatermarks(shardPartition.getShard()).isEnabled()) {
+        deliveryTracker = new DeliveryWatermarkTracker(tkmsDaoProvider.getTkmsDao(shardPartition.getShard()), shardPartition, properties);
+      } else {
+        deliveryTracker = null;
+      }
+      if (deliveryTracker != null) {
+        deliveryTracker.init();
+      }
+
+      var earliestVisibleMessages = properties.getEarliestVisibleMessages(shardPartition.getShard());
+      if (earliestVisibleMessages.isEnabled() && earliestVisibleMessages.getTrackingMode() == EarliestMessagesTrackingMode.TRANSACTION_IDS) {
+        var transactionIdsDao =
+            TransactionIdsTracker.asTransactionIdsDao(tkmsDaoProvider.getTkmsDao(shardPartition.getShard()), shardPartition.getShard());
+        transactionIdsTracker = new TransactionIdsTracker(transactionIdsDao, shardPartition, earliestMessageIdsCommitter, metricsTemplate);
+        transactionIdsTracker.init();
+      } else {
+        transactionIdsTracker = null;
+      }
+
+      if (earliestVisibleMessages.isEnabled() && earliestVisibleMessages.getTrackingMode() == EarliestMessagesTrackingMode.LOOK_BACK
+          && earliestVisibleMessages.getRecoverySweep().isEnabled()) {
+        forgottenMessagesSweeper = new ForgottenMessagesSweeper(tkmsDaoProvider.getTkmsDao(shardPartition.getShard()), shardPartition,
+            earliestVisibleMessages.getRecoverySweep());
+      } else {
+        forgottenMessagesSweeper = null;
+      }
+
+      if (properties.isIsolateKafkaPartitionErrors(shardPartition.getShard())) {
+        holdBack = new KafkaPartitionHoldBack(topic -> getPartitionsCount(shardPartition, topic));
+      } else {
+        holdBack = null;
+      }
+
+      if (earliestVisibleMessages.isEnabled()) {
+        pollAllInterval = earliestVisibleMessages.getPollAllInterval();
+      } else {
+        pollAllInterval = null;
+      }
+
+      idlePolling = properties.getIdlePolling(shardPartition.getShard());
+      priorityLaneEnabled = !properties.getPriorityTopics(shardPartition.getShard()).isEmpty();
+    }
+
+    protected Duration takePauseRequest() {
+      var result = pauseRequest;
+      pauseRequest = null;
+      return result;
+    }
+
+    /**
+     * After `emptyPollsThreshold` consecutive empty polls, only the existence of messages is probed, with a growing pause.
+     */
+    private boolean isIdle() {
+      return idlePolling.isEnabled() && emptyPollsCount >= idlePolling.getEmptyPollsThreshold();
+    }
+
+    protected void pollCycle() {
+      if (earliestMessageTracker.getEarliestMessageId() == -1L) {
+        // Delay for one interval.
+        lastPollAllTimeMs = System.currentTimeMillis();
+      }
+
+      final var tkmsDao = tkmsDaoProvider.getTkmsDao(shardPartition.getShard());
+      if (holdBack != null) {
+        holdBack.startCycle(TkmsClockHolder.getClock().millis());
+      }
+
+      long cycleStartNanoTime = System.nanoTime();
+      int polledRecordsCount = 0;
+      boolean idleProbeOnly = false;
+      var failedSendsCount = new AtomicInteger();
+      boolean priorityHeldBackOnly = false;
+      try {
+        if (deadLetterTracker.isEnabled(shardPartition.getShard())) {
+          retryDeadLetters(shardPartition);
         }
 
-        unitOfWorkManager.createEntryPoint("TKMS", "poll_" + shardPartition.getShard() + "_" + shardPartition.getPartition()).toContext()
-            .execute(() -> {
-              final var tkmsDao = tkmsDaoProvider.getTkmsDao(shardPartition.getShard());
-
-              long cycleStartNanoTime = System.nanoTime();
-              int polledRecordsCount = 0;
-              var failedSendsCount = new AtomicInteger();
-              try {
-                var earliestMessageIdFromTracker = earliestMessageTracker.getEarliestMessageId();
-                var earliestMessageIdToUse = earliestMessageIdFromTracker;
-
-                if (earliestMessageIdToUse != -1L && pollAllInterval != null) {
-                  if (lastPollAllTimeMs.getValue() == null
-                      || System.currentTimeMillis() - lastPollAllTimeMs.getValue() > pollAllInterval.toMillis()) {
-                    // Essentially forces polling of all records
-                    earliestMessageIdToUse = -1L;
-
-                    log.info("Polling all messages for '{}', to make sure we are not missing some created by long running transactions.",
-                        shardPartition);
-
-                    lastPollAllTimeMs.setValue(System.currentTimeMillis());
-                  }
-                }
-                var records = tkmsDao.getMessages(shardPartition, earliestMessageIdToUse, pollerBatchSize);
-                polledRecordsCount = records.size();
+        if (priorityLaneEnabled) {
+          long priorityPollStartNanoTime = System.nanoTime();
+          var priorityRecords = tkmsDao.getPriorityMessages(shardPartition, pollerBatchSize);
+          metricsTemplate.recordProxyPriorityPoll(shardPartition, priorityRecords.size(), priorityPollStartNanoTime);
+          pruneAckedIds(priorityAckedIds, -1L, priorityRecords);
+
+          if (!priorityRecords.isEmpty()) {
+            polledRecordsCount = priorityRecords.size();
+            emptyPollsCount = 0;
+            emptyProbesCount = 0;
+            leadershipBalancer.registerProxiedMessages(shardPartition, polledRecordsCount);
+
+            var proxiedIds =
+                proxyRecords(shardPartition, TkmsMessageSource.PRIORITY, priorityRecords, holdBack, priorityAckedIds, failedSendsCount);
+            deleteRecords(shardPartition, tkmsDao, proxiedIds, true, priorityAckedIds);
+
+            if (failedSendsCount.get() > 0) {
+              pauseRequest = tkmsPaceMaker.getPollingPauseOnError(shardPartition);
+              return;
+            }
+            // Held back records stay in the priority table, and would fill every poll, so the main table is not waited for those.
+            priorityHeldBackOnly = isAllHeldBack(holdBack, priorityRecords);
+            if (priorityRecords.size() == pollerBatchSize && !hasHeldBack(holdBack)) {
+              // Keep draining the priority lane, before touching the main table.
+              pauseRequest = tkmsPaceMaker.getPollingPause(shardPartition, pollerBatchSize, polledRecordsCount);
+              return;
+            }
+          }
+        }
 
-                metricsTemplate.recordProxyPoll(shardPartition, polledRecordsCount, cycleStartNanoTime);
-                proxyCyclePauseRequest.setValue(tkmsPaceMaker.getPollingPause(shardPartition, pollerBatchSize, polledRecordsCount));
+        if (deliveryTracker != null) {
+          deliveryTracker.maintain();
+
+          var batch = deliveryTracker.poll(pollerBatchSize);
+          polledRecordsCount += batch.getRecords().size();
+
+          metricsTemplate.recordProxyPoll(shardPartition, batch.getRecords().size(), cycleStartNanoTime);
+          backlogEstimator.registerPoll(shardPartition, batch.getRecords().size(), pollerBatchSize);
+          pauseRequest = tkmsPaceMaker.getPollingPause(shardPartition, pollerBatchSize, polledRecordsCount);
+
+          if (batch.getRecords().isEmpty()) {
+            if (priorityHeldBackOnly) {
+              pauseRequest = tkmsPaceMaker.getPollingPauseOnError(shardPartition);
+              return;
+            }
+            // The tracker's poll spans several tables, so it serves as the existence probe itself.
+            if (isIdle()) {
+              metricsTemplate.recordProxyIdleProbe(shardPartition, false);
+              emptyProbesCount++;
+              pauseRequest = tkmsPaceMaker.getIdlePollingPause(shardPartition, emptyProbesCount);
+            }
+            if (polledRecordsCount == 0) {
+              emptyPollsCount++;
+            }
+            return;
+          }
 
-                if (polledRecordsCount == 0) {
-                  return;
-                }
+          if (idlePolling.isEnabled() && emptyProbesCount > 0) {
+            metricsTemplate.recordProxyIdleProbe(shardPartition, true);
+          }
+          emptyPollsCount = 0;
+          emptyProbesCount = 0;
 
-                if (Debug.isEarliestMessagesTrackerDebugEnabled()) {
-                  if (shardPartition.getShard() == 0) {
-                    log.info("Polled with earliest message id of: " + earliestMessageTracker.getEarliestMessageId()
-                        + ". Got " + records.size() + " records.");
-                  }
-                }
+          leadershipBalancer.registerProxiedMessages(shardPartition, batch.getRecords().size());
 
-                if (earliestMessageIdFromTracker > records.get(0).getId()) {
-                  log.warn("We got records invisible for the earliest messages tracking system. Messages order may be compromised. {} > {}.",
-                      earliestMessageIdFromTracker, records.get(0).getId());
-                }
+          var proxiedIds = proxyRecords(shardPartition, batch.getSource(), batch.getRecords(), holdBack, null, failedSendsCount);
+          deliveryTracker.proxied(batch, proxiedIds);
 
-                earliestMessageTracker.register(records.get(0).getId());
+          if (failedSendsCount.get() > 0 || isAllHeldBack(holdBack, batch.getRecords())) {
+            pauseRequest = tkmsPaceMaker.getPollingPauseOnError(shardPartition);
+          }
+          return;
+        }
 
-                var contexts = new MessageProcessingContext[records.size()];
+        var earliestMessageIdFromTracker = earliestMessageTracker.getEarliestMessageId();
+        var earliestMessageIdToUse = earliestMessageIdFromTracker;
 
-                final var kafkaSendStartNanoTime = System.nanoTime();
-                var kafkaProducer = tkmsKafkaProducerProvider.getKafkaProducer(shardPartition.getShard());
-                boolean atLeastOneSendDone = false;
+        if (forgottenMessagesSweeper != null) {
+          var forgottenRecords = forgottenMessagesSweeper.poll(earliestMessageIdFromTracker);
+          if (!forgottenRecords.isEmpty()) {
+            log.warn("Found {} forgotten messages in '{}', below the earliest visible message id of {}. Sending those out.",
+                forgottenRecords.size(), shardPartition, earliestMessageIdFromTracker);
+            polledRecordsCount += forgottenRecords.size();
 
-                producerRecordMap.clear();
-                Map<Integer, MessageInterceptionDecision> interceptionDecisions = null;
-                if (messageIntereceptors.hasInterceptors()) {
-                  for (int i = 0; i < records.size(); i++) {
-                    MessageRecord messageRecord = records.get(i);
-                    producerRecordMap.put(i, toProducerRecord(messageRecord));
-                  }
-                  interceptionDecisions = messageIntereceptors.beforeSendingToKafka(shardPartition, producerRecordMap);
-                }
+            var proxiedIds = proxyRecords(shardPartition, TkmsMessageSource.MAIN, forgottenRecords, holdBack, ackedIds, failedSendsCount);
+            deleteRecords(shardPartition, tkmsDao, proxiedIds, false, ackedIds);
+            metricsTemplate.recordProxyForgottenMessagesRecovery(shardPartition, proxiedIds.size());
 
-                for (int i = 0; i < records.size(); i++) {
-                  MessageRecord messageRecord = records.get(i);
-
-                  MDC.put(properties.getMdc().getMessageIdKey(), String.valueOf(messageRecord.getId()));
-                  try {
-                    ProducerRecord<String, byte[]> preCreatedProducerRecord = producerRecordMap.get(i);
-                    ProducerRecord<String, byte[]> producerRecord =
-                        preCreatedProducerRecord == null ? toProducerRecord(messageRecord) : preCreatedProducerRecord;
-                    contexts[i] = new MessageProcessingContext().setProducerRecord(producerRecord).setMessageRecord(messageRecord)
-                        .setShardPartition(shardPartition);
-                    MessageProcessingContext context = contexts[i];
-
-                    MessageInterceptionDecision interceptionDecision = interceptionDecisions == null ? null : interceptionDecisions.get(i);
-                    if (interceptionDecision != null) {
-                      if (interceptionDecision == MessageInterceptionDecision.DISCARD) {
-                        log.warn("Discarding message {}:{}.", shardPartition, messageRecord.getId());
-                        context.setAcked(true);
-                        continue;
-                      } else if (interceptionDecision == MessageInterceptionDecision.RETRY) {
-                        // In this context retry means - allowing interceptors to try to execute their logic again.
-                        continue;
-                      }
-                    }
+            if (failedSendsCount.get() > 0) {
+              pauseRequest = tkmsPaceMaker.getPollingPauseOnError(shardPartition);
+              return;
+            }
+          }
+        }
 
-                    try {
-                      // Theoretically, to be absolutely sure, about the ordering, we would need to wait for the future result immediately.
-                      // But it would not be practical. I mean we could send one message from each partitions concurrently, but
-                      // there is a high chance that all the messages in this thread would reside in the same transaction, so it would not work.
-                      // TODO: Consider transactions. They would need heavy performance testing though.
-                      Future<RecordMetadata> future = kafkaProducer.send(producerRecord, (metadata, exception) -> {
-                        MDC.put(properties.getMdc().getMessageIdKey(), String.valueOf(messageRecord.getId()));
-                        try {
-                          shardPartition.putIntoMdc();
-
-                          if (exception == null) {
-                            context.setAcked(true);
-                            fireMessageAcknowledgedEvent(shardPartition, messageRecord.getId(), producerRecord);
-                            Instant insertTime = messageRecord.getMessage().hasInsertTimestamp()
-                                ? Instant.ofEpochMilli(messageRecord.getMessage().getInsertTimestamp().getValue()) : null;
-                            metricsTemplate.recordProxyMessageSendSuccess(shardPartition, producerRecord.topic(), insertTime);
-                          } else {
-                            failedSendsCount.incrementAndGet();
-                            handleKafkaError(shardPartition, "Sending message " + messageRecord.getId() + " in " + shardPartition + " failed.",
-                                exception,
-                                context);
-                            metricsTemplate.recordProxyMessageSendFailure(shardPartition, producerRecord.topic());
-                          }
-                        } finally {
-                          shardPartition.removeFromMdc();
-                          MDC.remove(properties.getMdc().getMessageIdKey());
-                        }
-                      });
-                      atLeastOneSendDone = true;
-
-                      contexts[i].setKafkaSenderFuture(future);
-                    } catch (Throwable t) {
-                      failedSendsCount.incrementAndGet();
-                      handleKafkaError(shardPartition, "Sending message " + messageRecord.getId() + " in " + shardPartition + " failed.", t, context);
-                    }
-                  } finally {
-                    MDC.remove(properties.getMdc().getMessageIdKey());
-                  }
-                }
+        if (earliestMessageIdToUse != -1L && pollAllInterval != null) {
+          if (lastPollAllTimeMs == null
+              || System.currentTimeMillis() - lastPollAllTimeMs > pollAllInterval.toMillis()) {
+            // Essentially forces polling of all records
+            earliestMessageIdToUse = -1L;
 
-                if (atLeastOneSendDone) {
-                  kafkaProducer.flush();
-                }
+            log.info("Polling all messages for '{}', to make sure we are not missing some created by long running transactions.",
+                shardPartition);
 
-                for (int i = 0; i < records.size(); i++) {
-                  MessageProcessingContext context = contexts[i];
-                  if (context.getKafkaSenderFuture() != null) {
-                    try {
-                      context.getKafkaSenderFuture().get();
-                    } catch (Throwable t) {
-                      handleKafkaError(shardPartition, "Sending message " + context.getMessageRecord().getId() + " in " + shardPartition + " failed.",
-                          t, context);
-                    }
-                  }
-                }
+            lastPollAllTimeMs = System.currentTimeMillis();
+          }
+        }
 
-                metricsTemplate.recordProxyKafkaMessagesSend(shardPartition, kafkaSendStartNanoTime);
+        if (isIdle()) {
+          var messagesFound = tkmsDao.hasMessages(shardPartition, earliestMessageIdToUse);
+          metricsTemplate.recordProxyIdleProbe(shardPartition, messagesFound);
 
-                List<Long> successIds = new ArrayList<>();
+          if (!messagesFound) {
+            idleProbeOnly = true;
+            emptyProbesCount++;
+            pauseRequest = tkmsPaceMaker.getIdlePollingPause(shardPartition, emptyProbesCount);
+            return;
+          }
+        }
 
-                for (int i = 0; i < records.size(); i++) {
-                  MessageProcessingContext context = contexts[i];
-                  if (context.isAcked()) {
-                    successIds.add(records.get(i).getId());
-                  }
-                }
-                //TODO: In current implementation this can create latency (but not reduce total throughput).
-                // In the future we may provide more algorithms here.
-                //   For example we want to probably offload deleting into a separate thread(s)
-                //   Select would need id>X, which probably would not be too bad.
-                long deleteStartNanoTime = System.nanoTime();
-                tkmsDao.deleteMessages(shardPartition, successIds);
+        final List<MessageRecord> records;
+        final TransactionIdsPoll transactionIdsPoll;
+        if (transactionIdsTracker != null) {
+          transactionIdsPoll = transactionIdsTracker.poll(pollerBatchSize);
+          records = transactionIdsPoll.getRecords();
+        } else {
+          transactionIdsPoll = null;
+          records = tkmsDao.getMessages(shardPartition, earliestMessageIdToUse, pollerBatchSize);
+          pruneAckedIds(ackedIds, earliestMessageIdToUse, records);
+        }
+        polledRecordsCount += records.size();
 
-                metricsTemplate.recordProxyMessagesDeletion(shardPartition, deleteStartNanoTime);
+        metricsTemplate.recordProxyPoll(shardPartition, records.size(), cycleStartNanoTime);
+        backlogEstimator.registerPoll(shardPartition, records.size(), pollerBatchSize);
+        pauseRequest = tkmsPaceMaker.getPollingPause(shardPartition, pollerBatchSize, polledRecordsCount);
 
-                if (failedSendsCount.get() > 0) {
-                  proxyCyclePauseRequest.setValue(tkmsPaceMaker.getPollingPauseOnError(shardPartition));
+        if (records.isEmpty()) {
+          if (transactionIdsTracker != null) {
+            transactionIdsTracker.proxied(transactionIdsPoll, pollerBatchSize, Collections.emptyList());
+          }
+          if (priorityHeldBackOnly) {
+            pauseRequest = tkmsPaceMaker.getPollingPauseOnError(shardPartition);
+            return;
+          }
+          if (polledRecordsCount == 0) {
+            emptyPollsCount++;
+          }
+          return;
+        }
+
+        // Back to full speed.
+        emptyPollsCount = 0;
+        emptyProbesCount = 0;
+
+        leadershipBalancer.registerProxiedMessages(shardPartition, records.size());
+
+        if (Debug.isEarliestMessagesTrackerDebugEnabled()) {
+          if (shardPartition.getShard() == 0) {
+            log.info("Polled with earliest message id of: " + earliestMessageTracker.getEarliestMessageId()
+                + ". Got " + records.size() + " records.");
+          }
+        }
+
+        if (earliestMessageIdFromTracker > records.get(0).getId()) {
+          log.warn("We got records invisible for the earliest messages tracking system. Messages order may be compromised. {} > {}.",
+              earliestMessageIdFromTracker, records.get(0).getId());
+        }
+
+        earliestMessageTracker.register(records.get(0).getId());
+
+        var proxiedIds = proxyRecords(shardPartition, TkmsMessageSource.MAIN, records, holdBack, ackedIds, failedSendsCount);
+        deleteRecords(shardPartition, tkmsDao, proxiedIds, false, ackedIds);
+        if (transactionIdsTracker != null) {
+          transactionIdsTracker.proxied(transactionIdsPoll, pollerBatchSize, proxiedIds);
+        }
+
+        var heldBackOnly = isAllHeldBack(holdBack, records);
+        // Held back records stay in the table, and would fill every poll. The records behind those are polled right away, so the
+        // other Kafka partitions are not starved. Transaction ids polls are ordered by transaction, not by id, so can not be paged that way,
+        // and a full batch of held back records holds the others back until the hold expires.
+        if (transactionIdsTracker == null) {
+          var pageRecords = records;
+          int skippedPollsCount = 0;
+          while (failedSendsCount.get() == 0 && hasHeldBack(holdBack) && pageRecords.size() == pollerBatchSize
+              && skippedPollsCount++ < MAX_HELD_BACK_SKIPPED_POLLS) {
+            pageRecords = tkmsDao.getMessages(shardPartition, pageRecords.get(pageRecords.size() - 1).getId() + 1, pollerBatchSize);
+            if (pageRecords.isEmpty()) {
+              break;
+            }
+            polledRecordsCount += pageRecords.size();
+            leadershipBalancer.registerProxiedMessages(shardPartition, pageRecords.size());
+
+            var pageProxiedIds = proxyRecords(shardPartition, TkmsMessageSource.MAIN, pageRecords, holdBack, ackedIds, failedSendsCount);
+            deleteRecords(shardPartition, tkmsDao, pageProxiedIds, false, ackedIds);
+            heldBackOnly &= isAllHeldBack(holdBack, pageRecords);
+          }
+        }
+
+        if (failedSendsCount.get() > 0 || heldBackOnly) {
+          pauseRequest = tkmsPaceMaker.getPollingPauseOnError(shardPartition);
+        }
+      } catch (Throwable t) {
+        log.error(t.getMessage(), t);
+        pauseRequest = tkmsPaceMaker.getPollingPauseOnError(shardPartition);
+      } finally {
+        if (!idleProbeOnly) {
+          metricsTemplate.recordProxyCycle(shardPartition, polledRecordsCount, cycleStartNanoTime);
+        }
+      }
+
+    }
+
+    protected void shutdown() {
+      if (deliveryTracker != null) {
+        deliveryTracker.shutdown();
+      }
+      if (transactionIdsTracker != null) {
+        transactionIdsTracker.shutdown();
+      }
+      earliestMessageTracker.shutdown();
+      var earliestMessageTrackerState = earliestMessageTracker.exportState();
+      if (earliestMessageTrackerState != null) {
+        localEarliestMessageTrackerStates.put(shardPartition, earliestMessageTrackerState);
+        proxyStateHandover.publish(shardPartition, new ProxyState().setEarliestMessageTracker(earliestMessageTrackerState));
+      }
+    }
+  }
+
+  /**
+   * Sends the records to Kafka and returns the ids of the successfully proxied ones.
+   *
+   * <p>Messages moved to the dead letter table count as proxied.
+   *
+   * <p>Messages found in `ackedIds` have been acknowledged by Kafka already, but their deletion failed. Those are not sent again, but returned as
+   * proxied right away.
+   */
+  private List<Long> proxyRecords(TkmsShardPartition shardPartition, TkmsMessageSource source, List<MessageRecord> records,
+      KafkaPartitionHoldBack holdBack, IdBitmap ackedIds, AtomicInteger failedSendsCount) {
+    List<Long> alreadyAckedIds = null;
+    if (ackedIds != null && !ackedIds.isEmpty()) {
+      var notAckedRecords = new ArrayList<MessageRecord>(records.size());
+      for (var record : records) {
+        if (ackedIds.contains(record.getId())) {
+          if (alreadyAckedIds == null) {
+            alreadyAckedIds = new ArrayList<>();
+          }
+          alreadyAckedIds.add(record.getId());
+        } else {
+          notAckedRecords.add(record);
+        }
+      }
+      if (alreadyAckedIds != null) {
+        log.warn("Not sending {} messages of {} again, as those were acknowledged by Kafka already.", alreadyAckedIds.size(), shardPartition);
+        metricsTemplate.recordProxyDuplicatesSuppressed(shardPartition, alreadyAckedIds.size());
+        records = notAckedRecords;
+      }
+    }
+
+    var contexts = sendRecords(shardPartition, source, records, holdBack, failedSendsCount);
+
+    List<Long> successIds = new ArrayList<>();
+    List<MessageRecord> failedRecords = null;
+    List<Throwable> errors = null;
+    boolean deadLettersEnabled = deadLetterTracker.isEnabled(shardPartition.getShard());
+
+    for (int i = 0; i < records.size(); i++) {
+      MessageProcessingContext context = contexts[i];
+      if (context.isAcked()) {
+        successIds.add(records.get(i).getId());
+      } else if (deadLettersEnabled && context.getError() != null) {
+        if (failedRecords == null) {
+          failedRecords = new ArrayList<>();
+          errors = new ArrayList<>();
+        }
+        failedRecords.add(records.get(i));
+        errors.add(context.getError());
+      }
+    }
+
+    if (deadLettersEnabled) {
+      deadLetterTracker.registerSentMessages(shardPartition, source, successIds);
+      if (failedRecords != null) {
+        var deadLetteredIds = deadLetterTracker.registerFailedSends(shardPartition, source, failedRecords, errors);
+        for (var deadLetteredId : deadLetteredIds) {
+          acknowledgementTracker.failed(shardPartition, source, deadLetteredId,
+              new IllegalStateException("Message " + deadLetteredId + " in " + source + " table of " + shardPartition
+                  + " was moved to the dead letter table."));
+        }
+        successIds.addAll(deadLetteredIds);
+      }
+    }
+
+    if (ackedIds != null) {
+      for (var successId : successIds) {
+        ackedIds.add(successId);
+      }
+    }
+    if (alreadyAckedIds != null) {
+      successIds.addAll(alreadyAckedIds);
+    }
+    return successIds;
+  }
+
+  /**
+   * Sends the dead letters due, directly from the dead letter table.
+   *
+   * <p>The messages are sent with their original ids, as those are known to the events. The acknowledgement tracking has failed their futures
+   * already, when the messages were moved.
+   */
+  protected void retryDeadLetters(TkmsShardPartition shardPartition) {
+    try {
+      var deadLetterRecords = deadLetterTracker.pollRetries(shardPartition);
+      if (deadLetterRecords.isEmpty()) {
+        return;
+      }
+
+      var records = new ArrayList<MessageRecord>(deadLetterRecords.size());
+      for (var deadLetterRecord : deadLetterRecords) {
+        records.add(new MessageRecord().setId(deadLetterRecord.getMessageId()).setMessage(deadLetterRecord.getMessage()));
+      }
+
+      var contexts = sendRecords(shardPartition, null, records, null, new AtomicInteger());
+
+      var sent = new ArrayList<DeadLetterRecord>();
+      var failed = new ArrayList<DeadLetterRecord>();
+      for (int i = 0; i < contexts.length; i++) {
+        var deadLetterRecord = deadLetterRecords.get(i);
+        if (contexts[i].isAcked()) {
+          sent.add(deadLetterRecord);
+        } else {
+          // Without an error, an interceptor asked to retry, which also counts as a failed retry.
+          deadLetterRecord.setError(contexts[i].getError() == null ? "Retry requested by an interceptor."
+              : TkmsDeadLetters.toErrorString(contexts[i].getError()));
+          failed.add(deadLetterRecord);
+        }
+      }
+      deadLetterTracker.retried(shardPartition, sent, failed);
+    } catch (Throwable t) {
+      log.error("Retrying dead letters of " + shardPartition + " failed.", t);
+    }
+  }
+
+  /**
+   * Failures isolated to a Kafka topic-partition by the `holdBack`, are not counted in `failedSendsCount`, so the cycle would not be paused for
+   * those. Records skipped, as their topic-partition is held back, are counted by the `holdBack` instead.
+   */
+  private MessageProcessingContext[] sendRecords(TkmsShardPartition shardPartition, TkmsMessageSource source, List<MessageRecord> records,
+      KafkaPartitionHoldBack holdBack, AtomicInteger failedSendsCount) {
+    var contexts = new MessageProcessingContext[records.size()];
+    if (holdBack != null) {
+      holdBack.startBatch();
+    }
+
+    final var kafkaSendStartNanoTime = System.nanoTime();
+    var kafkaProducer = tkmsKafkaProducerProvider.getKafkaProducer(shardPartition.getShard());
+    boolean atLeastOneSendDone = false;
+
+    TkmsProducerRecords producerRecords = null;
+    byte[] interceptionDecisions = null;
+    if (messageIntereceptors.hasInterceptors()) {
+      producerRecords = new TkmsProducerRecords(records, record -> toProducerRecord(shardPartition, source, record));
+      interceptionDecisions = messageIntereceptors.beforeSendingToKafka(shardPartition, producerRecords);
+    }
+
+    for (int i = 0; i < records.size(); i++) {
+      MessageRecord messageRecord = records.get(i);
+
+      MDC.put(properties.getMdc().getMessageIdKey(), String.valueOf(messageRecord.getId()));
+      try {
+        // Interceptors may have modified the records already.
+        ProducerRecord<String, byte[]> producerRecord =
+            producerRecords == null ? toProducerRecord(shardPartition, source, messageRecord) : producerRecords.getProducerRecord(i);
+        contexts[i] = new MessageProcessingContext().setProducerRecord(producerRecord).setMessageRecord(messageRecord)
+            .setShardPartition(shardPartition);
+        MessageProcessingContext context = contexts[i];
+
+        byte interceptionDecision = interceptionDecisions == null ? ITkmsMessageBatchInterceptor.NEUTRAL : interceptionDecisions[i];
+        if (interceptionDecision == ITkmsMessageBatchInterceptor.DISCARD) {
+          log.warn("Discarding message {}:{}.", shardPartition, messageRecord.getId());
+          context.setAcked(true);
+          continue;
+        } else if (interceptionDecision == ITkmsMessageBatchInterceptor.RETRY) {
+          // In this context retry means - allowing interceptors to try to execute their logic again.
+          continue;
+        }
+
+        if (holdBack != null) {
+          var topicPartition = holdBack.getTopicPartition(producerRecord);
+          if (holdBack.isHeldBack(topicPartition)) {
+            holdBack.registerHeldBackRecord();
+            continue;
+          }
+          context.setTopicPartition(topicPartition);
+        }
+
+        try {
+          // Theoretically, to be absolutely sure, about the ordering, we would need to wait for the future result immediately.
+          // But it would not be practical. I mean we could send one message from each partitions concurrently, but
+          // there is a high chance that all the messages in this thread would reside in the same transaction, so it would not work.
+          // TODO: Consider transactions. They would need heavy performance testing though.
+          Future<RecordMetadata> future = kafkaProducer.send(producerRecord, (metadata, exception) -> {
+            MDC.put(properties.getMdc().getMessageIdKey(), String.valueOf(messageRecord.getId()));
+            try {
+              shardPartition.putIntoMdc();
+
+              if (exception == null) {
+                context.setAcked(true);
+                // Listeners are called after the whole batch, so those would not hold up the producer's network thread.
+                context.setRecordMetadata(metadata);
+                if (source != null) {
+                  acknowledgementTracker.acknowledged(shardPartition, source, messageRecord.getId(), metadata);
                 }
-              } catch (Throwable t) {
-                log.error(t.getMessage(), t);
-                proxyCyclePauseRequest.setValue(tkmsPaceMaker.getPollingPauseOnError(shardPartition));
-              } finally {
-                metricsTemplate.recordProxyCycle(shardPartition, polledRecordsCount, cycleStartNanoTime);
+                Instant insertTime = messageRecord.getMessage().hasInsertTimestamp()
+                    ? Instant.ofEpochMilli(messageRecord.getMessage().getInsertTimestamp().getValue()) : null;
+                metricsTemplate.recordProxyMessageSendSuccess(shardPartition, producerRecord.topic(), insertTime);
+              } else {
+                registerFailedSend(context, holdBack, failedSendsCount);
+                handleKafkaError(shardPartition, "Sending message " + messageRecord.getId() + " in " + shardPartition + " failed.",
+                    exception,
+                    context);
+                metricsTemplate.recordProxyMessageSendFailure(shardPartition, producerRecord.topic());
               }
-            });
+            } finally {
+              shardPartition.removeFromMdc();
+              MDC.remove(properties.getMdc().getMessageIdKey());
+            }
+          });
+          atLeastOneSendDone = true;
+
+          contexts[i].setKafkaSenderFuture(future);
+        } catch (Throwable t) {
+          registerFailedSend(context, holdBack, failedSendsCount);
+          handleKafkaError(shardPartition, "Sending message " + messageRecord.getId() + " in " + shardPartition + " failed.", t, context);
+        }
+      } finally {
+        MDC.remove(properties.getMdc().getMessageIdKey());
       }
-    } finally {
-      earliestMessageTracker.shutdown();
+    }
+
+    if (atLeastOneSendDone) {
+      kafkaProducer.flush();
+    }
+
+    for (int i = 0; i < records.size(); i++) {
+      MessageProcessingContext context = contexts[i];
+      if (context.getKafkaSenderFuture() != null) {
+        try {
+          context.getKafkaSenderFuture().get();
+        } catch (Throwable t) {
+          handleKafkaError(shardPartition, "Sending message " + context.getMessageRecord().getId() + " in " + shardPartition + " failed.",
+              t, context);
+        }
+      }
+    }
+
+    metricsTemplate.recordProxyKafkaMessagesSend(shardPartition, kafkaSendStartNanoTime);
+
+    fireMessagesAcknowledgedEvent(contexts);
+
+    return contexts;
+  }
+
+  /**
+   * Acknowledged messages, which were not polled again from the start of the polled range, have been deleted already. Those are forgotten, so
+   * the ids left behind would not keep growing the bitmap.
+   */
+  private static void pruneAckedIds(IdBitmap ackedIds, long fromMessageId, List<MessageRecord> records) {
+    if (!ackedIds.isEmpty()) {
+      ackedIds.removeRange(fromMessageId, records.isEmpty() ? Long.MAX_VALUE : records.get(0).getId());
+    }
+  }
+
+  /**
+   * Nothing could be sent, so there is no point in polling the same records again right away.
+   */
+  private static boolean isAllHeldBack(KafkaPartitionHoldBack holdBack, List<MessageRecord> records) {
+    return holdBack != null && !records.isEmpty() && holdBack.getHeldBackRecordsCount() == records.size();
+  }
+
+  private static boolean hasHeldBack(KafkaPartitionHoldBack holdBack) {
+    return holdBack != null && holdBack.getHeldBackRecordsCount() > 0;
+  }
+
+  private void deleteRecords(TkmsShardPartition shardPartition, ITkmsDao tkmsDao, List<Long> successIds, boolean priorityLane,
+      IdBitmap ackedIds) {
+    //TODO: In current implementation this can create latency (but not reduce total throughput).
+    // In the future we may provide more algorithms here.
+    //   For example we want to probably offload deleting into a separate thread(s)
+    //   Select would need id>X, which probably would not be too bad.
+    long deleteStartNanoTime = System.nanoTime();
+    if (priorityLane) {
+      tkmsDao.deletePriorityMessages(shardPartition, successIds);
+    } else {
+      tkmsDao.deleteMessages(shardPartition, successIds);
+    }
+
+    for (var successId : successIds) {
+      ackedIds.remove(successId);
+    }
+
+    metricsTemplate.recordProxyMessagesDeletion(shardPartition, deleteStartNanoTime);
+  }
+
+  protected void registerFailedSend(MessageProcessingContext context, KafkaPartitionHoldBack holdBack, AtomicInteger failedSendsCount) {
+    var topicPartition = context.getTopicPartition();
+    if (holdBack == null || topicPartition == null) {
+      failedSendsCount.incrementAndGet();
+      return;
+    }
+    var shardPartition = context.getShardPartition();
+    holdBack.holdBack(topicPartition, TkmsClockHolder.getClock().millis() + tkmsPaceMaker.getPollingPauseOnError(shardPartition).toMillis());
+    metricsTemplate.recordProxyKafkaPartitionHoldBack(shardPartition, topicPartition.topic());
+  }
+
+  /**
+   * Held back partitions are resolved the same way as the Kafka producer's default partitioner does. With a custom one, wrong partitions would
+   * be held back, and the order of messages would not be kept.
+   */
+  protected void validateKafkaPartitionErrorsIsolation(int shard) {
+    if (!properties.isIsolateKafkaPartitionErrors(shard)) {
+      return;
+    }
+    var partitionerClass = properties.getKafka().get(ProducerConfig.PARTITIONER_CLASS_CONFIG);
+    var shardProperties = properties.getShards().get(shard);
+    if (shardProperties != null && shardProperties.getKafka().containsKey(ProducerConfig.PARTITIONER_CLASS_CONFIG)) {
+      partitionerClass = shardProperties.getKafka().get(ProducerConfig.PARTITIONER_CLASS_CONFIG);
+    }
+    if (StringUtils.isNotEmpty(partitionerClass) && !DefaultPartitioner.class.getName().equals(partitionerClass)) {
+      throw new IllegalStateException("Isolating Kafka partition errors is enabled for shard " + shard + ", but a custom partitioner '"
+          + partitionerClass + "' is configured. Those can not be used together.");
+    }
+  }
+
+  protected int getPartitionsCount(TkmsShardPartition shardPartition, String topic) {
+    try {
+      return tkmsKafkaProducerProvider.getKafkaProducer(shardPartition.getShard()).partitionsFor(topic).size();
+    } catch (Throwable t) {
+      // The failure is not isolated then, but the whole cycle is paused.
+      return -1;
     }
   }
 
@@ -403,32 +917,31 @@ public class TkmsStorageToKafkaProxy implements GracefulShutdownStrategy, ITkmsS
     if (decision == MessageInterceptionDecision.DISCARD) {
       log.warn("Discarding message {}:{}.", context.getShardPartition(), context.getMessageRecord().getId());
       context.setAcked(true);
+    } else {
+      context.setError(t);
     }
   }
 
-  protected void fireMessageAcknowledgedEvent(TkmsShardPartition shardPartition, Long id, ProducerRecord<String, byte[]> producerRecord) {
-    List<ITkmsEventsListener> listeners = getTkmsEventsListeners();
-    if (log.isDebugEnabled()) {
-      log.debug("Message was acknowledged for " + shardPartition + " with storage id " + id + ". Listeners count: " + listeners.size());
-    }
-
-    if (listeners.isEmpty()) {
+  protected void fireMessagesAcknowledgedEvent(MessageProcessingContext[] contexts) {
+    if (!eventsDispatcher.hasListeners()) {
       return;
     }
 
-    listeners.forEach(tkmsEventsListener -> {
-      try {
-        tkmsEventsListener.messageAcknowledged(new MessageAcknowledgedEvent()
-            .setShardPartition(shardPartition).setStorageId(id).setProducerRecord(producerRecord));
-      } catch (Throwable t) {
-        if (exceptionRateLimiter.tryAcquire()) {
-          log.error(t.getMessage(), t);
-        }
+    var events = new ArrayList<MessageAcknowledgedEvent>(contexts.length);
+    for (var context : contexts) {
+      // Discarded messages are acked, but were not sent.
+      if (context != null && context.isAcked() && context.getRecordMetadata() != null) {
+        events.add(new MessageAcknowledgedEvent().setShardPartition(context.getShardPartition()).setStorageId(context.getMessageRecord().getId())
+            .setProducerRecord(context.getProducerRecord()).setRecordMetadata(context.getRecordMetadata()));
       }
-    });
+    }
+    if (!events.isEmpty()) {
+      eventsDispatcher.messagesAcknowledged(events);
+    }
   }
 
-  private ProducerRecord<String, byte[]> toProducerRecord(MessageRecord messageRecord) {
+  private ProducerRecord<String, byte[]> toProducerRecord(TkmsShardPartition shardPartition, TkmsMessageSource source,
+      MessageRecord messageRecord) {
     StoredMessage.Message storedMessage = messageRecord.getMessage();
 
     List<Header> headers = null;
@@ -440,6 +953,15 @@ public class TkmsStorageToKafkaProxy implements GracefulShutdownStrategy, ITkmsS
       }
     }
 
+    var idempotencyHeader = properties.getIdempotencyHeader();
+    if (idempotencyHeader != null) {
+      if (headers == null) {
+        headers = new ArrayList<>(1);
+      }
+      headers.add(new RecordHeader(idempotencyHeader,
+          getIdempotencyKey(shardPartition, source, messageRecord).getBytes(StandardCharsets.US_ASCII)));
+    }
+
     //TODO: Should we support empty string keys?
 
     return new ProducerRecord<>(
@@ -448,6 +970,22 @@ public class TkmsStorageToKafkaProxy implements GracefulShutdownStrategy, ITkmsS
         StringUtils.isEmpty(storedMessage.getKey()) ? null : storedMessage.getKey(), storedMessage.getValue().toByteArray(), headers);
   }
 
+  /**
+   * The priority and generation tables have their own ids, so their name is part of the key. The main table's key has no table name, as
+   * dead letters are retried without knowing the table they came from.
+   *
+   * <p>The insert time keeps the key unique after the ids have been reset.
+   */
+  protected static String getIdempotencyKey(TkmsShardPartition shardPartition, TkmsMessageSource source, MessageRecord messageRecord) {
+    var key = shardPartition.getShard() + "_" + shardPartition.getPartition() + "_";
+    if (source != null && !TkmsMessageSource.MAIN.equals(source)) {
+      key += source.getName() + "_";
+    }
+    key += messageRecord.getId();
+    var storedMessage = messageRecord.getMessage();
+    return storedMessage.hasInsertTimestamp() ? key + "_" + storedMessage.getInsertTimestamp().getValue() : key;
+  }
+
   @Override
   public void applicationStarted() {
     for (LeaderSelectorV2 leaderSelector : leaderSelectors) {
@@ -483,18 +1021,6 @@ public class TkmsStorageToKafkaProxy implements GracefulShutdownStrategy, ITkmsS
     }
   }
 
-  // Lazy to avoid any circular dependencies from low-quality apps.
-  protected List<ITkmsEventsListener> getTkmsEventsListeners() {
-    if (tkmsEventsListeners == null) {
-      synchronized (this) {
-        if (tkmsEventsListeners == null) {
-          tkmsEventsListeners = new ArrayList<>(applicationContext.getBeansOfType(ITkmsEventsListener.class).values());
-        }
-      }
-    }
-    return tkmsEventsListeners;
-  }
-
   @TestOnly
   public void pause() {
     this.pauseRequested = true;
@@ -523,6 +1049,12 @@ public class TkmsStorageToKafkaProxy implements GracefulShutdownStrategy, ITkmsS
 
     private boolean acked;
     private Future<RecordMetadata> kafkaSenderFuture;
+    private RecordMetadata recordMetadata;
+    private Throwable error;
+    /**
+     * Only resolved, when Kafka partition errors are isolated.
+     */
+    private TopicPartition topicPartition;
     private ProducerRecord<String, byte[]> producerRecord;
     private MessageRecord messageRecord;
     private TkmsShardPartition shardPartition;
@@ -0,0 +1,198 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.common.baseutils.concurrency.IExecutorServicesProvider;
+import com.transferwise.common.baseutils.concurrency.ScheduledTaskExecutor.TaskHandle;
+import com.transferwise.common.baseutils.concurrency.ThreadNamingExecutorServiceWrapper;
+import com.transferwise.common.gracefulshutdown.GracefulShutdownStrategy;
+import com.transferwise.kafka.tkms.config.ITkmsKafkaProducerProvider;
+import com.transferwise.kafka.tkms.config.TkmsKafkaProducerProvider;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Caches the outcome of `KafkaProducer.partitionsFor()` per shard and topic.
+ *
+ * <p>Known topics are answered from the cache and refreshed in the background, every `refreshInterval`. A failed refresh is only logged, and the
+ * last good outcome is kept, so a short metadata hiccup does not reject messages for a topic which was fine a moment ago. A topic which really
+ * disappears is still caught by the Kafka producer, when the messages are proxied.
+ *
+ * <p>Topics not found are rejected from the cache for `negativeCacheTtl`, after which they are looked up again. The first registration into a
+ * topic not seen before still waits up to `lookupTimeout` for its lookup.
+ */
+@Slf4j
+public class TkmsTopicValidator implements ITkmsTopicValidator, GracefulShutdownStrategy, InitializingBean {
+
+  @Autowired
+  protected TkmsProperties properties;
+  @Autowired
+  protected ITkmsKafkaProducerProvider kafkaProducerProvider;
+  @Autowired
+  private IExecutorServicesProvider executorServicesProvider;
+
+  /**
+   * Topics per shard, so no key objects are created on the registration path.
+   */
+  private Map<String, TopicEntry>[] topicEntries;
+  private long[] lookupTimeoutsMs;
+  private ExecutorService executorService;
+  private TaskHandle taskHandle;
+
+  @Override
+  public void afterPropertiesSet() {
+    init(new ThreadNamingExecutorServiceWrapper("tw-tkms-topics", executorServicesProvider.getGlobalExecutorService()));
+  }
+
+  @SuppressWarnings("unchecked")
+  protected void init(ExecutorService executorService) {
+    topicEntries = new Map[properties.getShardsCount()];
+    lookupTimeoutsMs = new long[properties.getShardsCount()];
+    for (int s = 0; s < topicEntries.length; s++) {
+      topicEntries[s] = new ConcurrentHashMap<>();
+      lookupTimeoutsMs[s] = getLookupTimeoutMs(s);
+    }
+    this.executorService = executorService;
+  }
+
+  @Override
+  public void validate(int shard, String topic) {
+    var topicEntry = getTopicEntry(shard, topic);
+    var lookup = topicEntry.lookup;
+
+    if (lookup == null || (lookup.isCompletedExceptionally()
+        && TkmsClockHolder.getClock().millis() - topicEntry.completedAtMs > properties.getTopicValidation().getNegativeCacheTtl().toMillis())) {
+      lookup = startLookup(shard, topic, topicEntry, lookup);
+    }
+
+    try {
+      lookup.get(lookupTimeoutsMs[shard], TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw new IllegalStateException("Metadata for topic '" + topic + "' was not received in " + lookupTimeoutsMs[shard] + " ms.", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Topic '" + topic + "' is not available: " + e.getCause().getMessage(), e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Resolves `max.block.ms` the same way as the Kafka producer of the shard is configured.
+   *
+   * <p>A second is added, so the producer's own, more specific, error is reported when the topic does not exist.
+   */
+  protected long getLookupTimeoutMs(int shard) {
+    var lookupTimeout = properties.getTopicValidation().getLookupTimeout();
+    if (lookupTimeout != null) {
+      return lookupTimeout.toMillis();
+    }
+
+    String maxBlockMs = null;
+    var shardProperties = properties.getShards().get(shard);
+    if (shardProperties != null) {
+      maxBlockMs = shardProperties.getKafka().get(ProducerConfig.MAX_BLOCK_MS_CONFIG);
+    }
+    if (maxBlockMs == null) {
+      maxBlockMs = properties.getKafka().get(ProducerConfig.MAX_BLOCK_MS_CONFIG);
+    }
+    return (maxBlockMs == null ? TkmsKafkaProducerProvider.DEFAULT_MAX_BLOCK_MS : Long.parseLong(maxBlockMs)) + 1000;
+  }
+
+  @Override
+  public void preValidate(int shard, String topic) {
+    var topicEntry = getTopicEntry(shard, topic);
+    kafkaProducerProvider.getKafkaProducer(shard).partitionsFor(topic);
+    complete(topicEntry, CompletableFuture.completedFuture(null));
+  }
+
+  protected TopicEntry getTopicEntry(int shard, String topic) {
+    var shardTopicEntries = topicEntries[shard];
+    // `get` first, as `computeIfAbsent` of `ConcurrentHashMap` can lock even when the entry exists.
+    var topicEntry = shardTopicEntries.get(topic);
+    return topicEntry == null ? shardTopicEntries.computeIfAbsent(topic, k -> new TopicEntry()) : topicEntry;
+  }
+
+  /**
+   * Only one lookup per topic is started, when many threads are registering messages into it.
+   */
+  protected CompletableFuture<Void> startLookup(int shard, String topic, TopicEntry topicEntry, CompletableFuture<Void> expectedLookup) {
+    synchronized (topicEntry) {
+      if (topicEntry.lookup == expectedLookup) {
+        var lookup = new CompletableFuture<Void>();
+        topicEntry.lookup = lookup;
+        executorService.submit(() -> {
+          try {
+            kafkaProducerProvider.getKafkaProducer(shard).partitionsFor(topic);
+            topicEntry.completedAtMs = TkmsClockHolder.getClock().millis();
+            lookup.complete(null);
+          } catch (Throwable t) {
+            topicEntry.completedAtMs = TkmsClockHolder.getClock().millis();
+            lookup.completeExceptionally(t);
+          }
+        });
+      }
+      return topicEntry.lookup;
+    }
+  }
+
+  protected void refresh() {
+    for (int s = 0; s < topicEntries.length; s++) {
+      int shard = s;
+      topicEntries[s].forEach((topic, topicEntry) -> {
+        var lookup = topicEntry.lookup;
+        if (lookup == null || !lookup.isDone() || lookup.isCompletedExceptionally()) {
+          // Unknown topics are looked up again on demand.
+          return;
+        }
+        try {
+          kafkaProducerProvider.getKafkaProducer(shard).partitionsFor(topic);
+          complete(topicEntry, CompletableFuture.completedFuture(null));
+        } catch (Throwable t) {
+          log.warn("Refreshing metadata of topic '" + topic + "' of shard " + shard + " failed. Keeping the last known state.", t);
+        }
+      });
+    }
+  }
+
+  protected void complete(TopicEntry topicEntry, CompletableFuture<Void> lookup) {
+    synchronized (topicEntry) {
+      topicEntry.completedAtMs = TkmsClockHolder.getClock().millis();
+      topicEntry.lookup = lookup;
+    }
+  }
+
+  @Override
+  public void applicationStarted() {
+    var refreshInterval = properties.getTopicValidation().getRefreshInterval();
+    taskHandle = executorServicesProvider.getGlobalScheduledTaskExecutor().scheduleAtFixedInterval(this::refresh, refreshInterval, refreshInterval);
+  }
+
+  @Override
+  public void prepareForShutdown() {
+    if (taskHandle != null) {
+      taskHandle.stop();
+      taskHandle.waitUntilStopped(Duration.ofMinutes(1));
+    }
+  }
+
+  @Override
+  public boolean canShutdown() {
+    return true;
+  }
+
+  protected static class TopicEntry {
+
+    private volatile CompletableFuture<Void> lookup;
+    private volatile long completedAtMs;
+  }
+}
@@ -14,6 +14,10 @@ import org.springframework.beans.factory.annotation.Value;
 public class TkmsZookeeperOperations implements ITkmsZookeeperOperations, InitializingBean {
 
   private final Map<TkmsShardPartition, String> lockNodePathMap = new HashMap<>();
+  private final Map<TkmsShardPartition, String> handoverNodePathMap = new HashMap<>();
+  private final Map<TkmsShardPartition, String> heartbeatNodePathMap = new HashMap<>();
+  private String pollerNodesPath;
+  private String janitorLockNodePath;
 
   @Autowired
   private TkmsProperties properties;
@@ -32,12 +36,19 @@ public class TkmsZookeeperOperations implements ITkmsZookeeperOperations, Initia
     }
     String prefix = "/tw/tkms/" + groupId + "/";
     String pollerLockPrefix = prefix + "poller/lock/";
+    String pollerHandoverPrefix = prefix + "poller/handover/";
+    String pollerHeartbeatPrefix = prefix + "poller/heartbeat/";
+
+    pollerNodesPath = prefix + "poller/nodes";
+    janitorLockNodePath = prefix + "janitor/lock";
 
     log.info("Using lock pattern of '{}'.", pollerLockPrefix + "{shard}/{partition}");
 
     for (int s = 0; s < properties.getShardsCount(); s++) {
       for (int p = 0; p < properties.getPartitionsCount(s); p++) {
         lockNodePathMap.put(TkmsShardPartition.of(s, p), pollerLockPrefix + s + "/" + p);
+        handoverNodePathMap.put(TkmsShardPartition.of(s, p), pollerHandoverPrefix + s + "/" + p);
+        heartbeatNodePathMap.put(TkmsShardPartition.of(s, p), pollerHeartbeatPrefix + s + "/" + p);
       }
     }
   }
@@ -46,4 +57,24 @@ public class TkmsZookeeperOperations implements ITkmsZookeeperOperations, Initia
   public String getLockNodePath(TkmsShardPartition shardPartition) {
     return lockNodePathMap.get(shardPartition);
   }
+
+  @Override
+  public String getHandoverNodePath(TkmsShardPartition shardPartition) {
+    return handoverNodePathMap.get(shardPartition);
+  }
+
+  @Override
+  public String getHeartbeatNodePath(TkmsShardPartition shardPartition) {
+    return heartbeatNodePathMap.get(shardPartition);
+  }
+
+  @Override
+  public String getPollerNodesPath() {
+    return pollerNodesPath;
+  }
+
+  @Override
+  public String getJanitorLockNodePath() {
+    return janitorLockNodePath;
+  }
 }
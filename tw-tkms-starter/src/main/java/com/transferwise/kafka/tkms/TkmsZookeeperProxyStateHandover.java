@@ -0,0 +1,71 @@
+package com.transferwise.kafka.tkms;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.KeeperException;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Keeps the handed over state in a persistent ZooKeeper node next to the shard-partition's leader lock.
+ *
+ * <p>The state is small, a bit over 100 longs, so ZooKeeper is a better fit than the database.
+ */
+@Slf4j
+public class TkmsZookeeperProxyStateHandover implements ITkmsProxyStateHandover {
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  @Autowired
+  private TkmsProperties properties;
+  @Autowired
+  private ITkmsZookeeperOperations zkOperations;
+  @Autowired
+  private CuratorFramework curatorFramework;
+
+  @Override
+  public void publish(TkmsShardPartition shardPartition, ProxyState state) {
+    if (!properties.getProxyStateHandover().isEnabled()) {
+      return;
+    }
+
+    try {
+      state.setPublishedTimeMs(TkmsClockHolder.getClock().millis());
+      curatorFramework.create().orSetData().creatingParentsIfNeeded()
+          .forPath(zkOperations.getHandoverNodePath(shardPartition), OBJECT_MAPPER.writeValueAsBytes(state));
+    } catch (Throwable t) {
+      log.error("Publishing proxy state for " + shardPartition + " failed.", t);
+    }
+  }
+
+  @Override
+  public ProxyState take(TkmsShardPartition shardPartition) {
+    if (!properties.getProxyStateHandover().isEnabled()) {
+      return null;
+    }
+
+    var path = zkOperations.getHandoverNodePath(shardPartition);
+    try {
+      byte[] data;
+      try {
+        data = curatorFramework.getData().forPath(path);
+      } catch (KeeperException.NoNodeException e) {
+        return null;
+      }
+      curatorFramework.delete().quietly().forPath(path);
+
+      var state = OBJECT_MAPPER.readValue(data, ProxyState.class);
+      long ageMs = TkmsClockHolder.getClock().millis() - state.getPublishedTimeMs();
+      if (ageMs > properties.getProxyStateHandover().getMaxAge().toMillis()) {
+        log.info("Proxy state for {} was handed over {} ms ago and is too old to be used.", shardPartition, ageMs);
+        return null;
+      }
+      return state;
+    } catch (Throwable t) {
+      log.error("Taking over proxy state for " + shardPartition + " failed.", t);
+      return null;
+    }
+  }
+}
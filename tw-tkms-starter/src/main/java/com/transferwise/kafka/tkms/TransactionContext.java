@@ -4,12 +4,15 @@ import com.transferwise.kafka.tkms.api.TkmsMessage;
 import com.transferwise.kafka.tkms.api.TkmsShardPartition;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import javax.annotation.concurrent.NotThreadSafe;
 import lombok.Data;
 import lombok.experimental.Accessors;
 import org.apache.commons.lang3.mutable.MutableObject;
+import org.apache.kafka.clients.producer.RecordMetadata;
 
 @Data
 @Accessors(chain = true)
@@ -20,8 +23,30 @@ public class TransactionContext {
 
   private final Map<TkmsShardPartition, ShardPartitionMessages> shardPartitionMessagesMap = new HashMap<>();
 
+  /**
+   * Messages which failed to be inserted, to be appended into the spool after the commit.
+   */
+  private final Map<TkmsShardPartition, List<TkmsMessage>> spooledMessagesMap = new HashMap<>();
+
+  /**
+   * `sendMessageAsync` futures of inserted messages, to be failed when the transaction is rolled back.
+   */
+  private final List<CompletableFuture<RecordMetadata>> acknowledgementFutures = new ArrayList<>();
+
+  /**
+   * `sendMessageAsync` futures of deferred messages, until those are inserted and the storage ids are known.
+   */
+  private final Map<TkmsMessage, CompletableFuture<RecordMetadata>> deferredAcknowledgementFutures = new IdentityHashMap<>();
+
   private long registeredMessagesCount;
 
+  /**
+   * Deferred messages, which have not been inserted into the database yet.
+   */
+  private int deferredMessagesCount;
+  private long deferredBytes;
+  private long peakDeferredBytes;
+
   public static TransactionContext get() {
     return getOrCreateHolder().getValue();
   }
@@ -48,6 +73,26 @@ public class TransactionContext {
     registeredMessagesCount++;
   }
 
+  public void deferMessage(ShardPartitionMessages shardPartitionMessages, TkmsMessage message, CompletableFuture<byte[]> serializedMessage,
+      int estimatedBytes) {
+    shardPartitionMessages.getMessages().add(message);
+    if (serializedMessage != null) {
+      shardPartitionMessages.getSerializedMessages().add(serializedMessage);
+    }
+    deferredMessagesCount++;
+    deferredBytes += estimatedBytes;
+    peakDeferredBytes = Math.max(peakDeferredBytes, deferredBytes);
+  }
+
+  public void deferredMessagesFlushed() {
+    deferredMessagesCount = 0;
+    deferredBytes = 0;
+  }
+
+  public void spoolMessage(TkmsShardPartition tkmsShardPartition, TkmsMessage message) {
+    spooledMessagesMap.computeIfAbsent(tkmsShardPartition, k -> new ArrayList<>()).add(message);
+  }
+
   public ShardPartitionMessages getShardPartitionMessages(TkmsShardPartition tkmsShardPartition) {
     return shardPartitionMessagesMap.computeIfAbsent(tkmsShardPartition, k -> new ShardPartitionMessages());
   }
@@ -59,6 +104,11 @@ public class TransactionContext {
     private Mode mode = null;
 
     List<TkmsMessage> messages = new ArrayList<>();
+
+    /**
+     * Same size as `messages`, when eager serialization is enabled, otherwise empty.
+     */
+    List<CompletableFuture<byte[]>> serializedMessages = new ArrayList<>();
   }
 
   public enum Mode {
@@ -0,0 +1,113 @@
+package com.transferwise.kafka.tkms;
+
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.dao.ITkmsDao;
+import com.transferwise.kafka.tkms.dao.ITkmsTransactionIdsDao;
+import com.transferwise.kafka.tkms.dao.ITkmsTransactionIdsDao.TransactionIdsPoll;
+import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
+import java.util.Collection;
+import java.util.HashSet;
+import javax.annotation.concurrent.NotThreadSafe;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Exact earliest visible messages tracking for Postgres, based on transaction ids.
+ *
+ * <p>Messages are polled in the order of transaction ids, only from transactions which had finished before the poll. So when everything from
+ * a transaction id is proxied, no message from a lower transaction id can show up anymore, and the cursor can be moved past it.
+ *
+ * <p>The cursor is committed into the `transaction_id` column of the earliest visible messages table.
+ *
+ * <p>The horizon is cluster-wide, so any long-running transaction in the database holds all the messages behind it back. How long the horizon
+ * has been stuck is exposed as a metric.
+ */
+@NotThreadSafe
+@RequiredArgsConstructor
+@Slf4j
+public class TransactionIdsTracker {
+
+  private final ITkmsTransactionIdsDao tkmsDao;
+  private final TkmsShardPartition shardPartition;
+  private final ITkmsEarliestMessageIdsCommitter earliestMessageIdsCommitter;
+  private final ITkmsMetricsTemplate metricsTemplate;
+
+  private long cursor;
+  private long horizonTransactionId = -1;
+  private long horizonStuckSinceMs;
+  private volatile long horizonLagMs;
+  private Object horizonLagGauge;
+
+  public static ITkmsTransactionIdsDao asTransactionIdsDao(ITkmsDao tkmsDao, int shard) {
+    if (!(tkmsDao instanceof ITkmsTransactionIdsDao)) {
+      throw new IllegalStateException("Transaction ids tracking is enabled for shard " + shard + ", but it is only supported for Postgres.");
+    }
+    return (ITkmsTransactionIdsDao) tkmsDao;
+  }
+
+  public void init() {
+    var committed = tkmsDao.getTransactionIdsCursor(shardPartition);
+    cursor = committed == null || committed < 0 ? 0 : committed;
+    horizonLagGauge = metricsTemplate.registerTransactionIdsHorizonLag(shardPartition, () -> horizonLagMs);
+  }
+
+  public void shutdown() {
+    metricsTemplate.unregisterMetric(horizonLagGauge);
+    try {
+      earliestMessageIdsCommitter.commitNow(shardPartition, cursor);
+    } catch (Throwable t) {
+      log.error("Committing transaction ids cursor for " + shardPartition + " failed.", t);
+    }
+  }
+
+  public TransactionIdsPoll poll(int maxCount) {
+    return tkmsDao.getMessagesByTransactionIds(shardPartition, cursor, maxCount);
+  }
+
+  /**
+   * Lowest transaction id, which can still have messages not proxied.
+   */
+  public long getCursor() {
+    return cursor;
+  }
+
+  /**
+   * Moves the cursor to the horizon of the poll, or to the last transaction id seen, when the poll was limited by `maxCount`.
+   *
+   * <p>Transactions with messages failed to be sent, hold the cursor back.
+   */
+  public void proxied(TransactionIdsPoll poll, int maxCount, Collection<Long> proxiedIds) {
+    trackHorizon(poll);
+
+    var records = poll.getRecords();
+    long newCursor = records.size() < maxCount ? poll.getHorizonTransactionId() : records.get(records.size() - 1).getTransactionId();
+
+    var proxiedIdsSet = new HashSet<>(proxiedIds);
+    for (var record : records) {
+      if (!proxiedIdsSet.contains(record.getId())) {
+        newCursor = Math.min(newCursor, record.getTransactionId());
+      }
+    }
+
+    if (newCursor > cursor) {
+      cursor = newCursor;
+      earliestMessageIdsCommitter.submit(shardPartition, cursor);
+    }
+  }
+
+  /**
+   * The horizon is stuck, while it stays the same and some transaction is still running.
+   */
+  protected void trackHorizon(TransactionIdsPoll poll) {
+    long nowMs = TkmsClockHolder.getClock().millis();
+    if (poll.getHorizonTransactionId() >= poll.getNextTransactionId() || poll.getHorizonTransactionId() != horizonTransactionId) {
+      horizonStuckSinceMs = nowMs;
+    }
+    horizonTransactionId = poll.getHorizonTransactionId();
+    horizonLagMs = nowMs - horizonStuckSinceMs;
+  }
+
+  public long getHorizonLagMs() {
+    return horizonLagMs;
+  }
+}
@@ -1,35 +1,43 @@
 package com.transferwise.kafka.tkms;
 
-import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.util.concurrent.RateLimiter;
+import com.transferwise.common.baseutils.ExceptionUtils;
+import com.transferwise.common.baseutils.concurrency.IExecutorServicesProvider;
+import com.transferwise.common.baseutils.concurrency.ThreadNamingExecutorServiceWrapper;
 import com.transferwise.common.baseutils.transactionsmanagement.ITransactionsHelper;
 import com.transferwise.kafka.tkms.TransactionContext.Mode;
 import com.transferwise.kafka.tkms.TransactionContext.ShardPartitionMessages;
-import com.transferwise.kafka.tkms.api.ITkmsEventsListener;
 import com.transferwise.kafka.tkms.api.ITkmsEventsListener.MessageRegisteredEvent;
+import com.transferwise.kafka.tkms.api.ITkmsPartitioner;
 import com.transferwise.kafka.tkms.api.ITransactionalKafkaMessageSender;
 import com.transferwise.kafka.tkms.api.TkmsMessage;
 import com.transferwise.kafka.tkms.api.TkmsMessage.Header;
 import com.transferwise.kafka.tkms.api.TkmsShardPartition;
 import com.transferwise.kafka.tkms.config.ITkmsDaoProvider;
-import com.transferwise.kafka.tkms.config.ITkmsKafkaProducerProvider;
 import com.transferwise.kafka.tkms.config.TkmsProperties;
 import com.transferwise.kafka.tkms.config.TkmsProperties.DatabaseDialect;
+import com.transferwise.kafka.tkms.config.TkmsProperties.EarliestMessagesTrackingMode;
 import com.transferwise.kafka.tkms.config.TkmsProperties.NotificationLevel;
 import com.transferwise.kafka.tkms.config.TkmsProperties.NotificationType;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.InsertMessageResult;
+import com.transferwise.kafka.tkms.dao.ITkmsMessageSerializer;
 import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.ApplicationContext;
 import org.springframework.transaction.support.TransactionSynchronization;
 import org.springframework.transaction.support.TransactionSynchronizationAdapter;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
@@ -47,31 +55,58 @@ public class TransactionalKafkaMessageSender implements ITransactionalKafkaMessa
   }
 
   @Autowired
-  private ITkmsMetricsTemplate metricsTemplate;
+  protected ITkmsMetricsTemplate metricsTemplate;
   @Autowired
-  private TkmsProperties properties;
-  @Autowired
-  private ApplicationContext applicationContext;
-  @Autowired
-  private ITkmsKafkaProducerProvider kafkaProducerProvider;
+  protected TkmsProperties properties;
   @Autowired
   private IEnvironmentValidator environmentValidator;
   @Autowired
   private ITransactionsHelper transactionsHelper;
   @Autowired
   private IProblemNotifier problemNotifier;
+  @Autowired
+  protected ITkmsSpool spool;
+  @Autowired
+  protected ITkmsPartitioner partitioner;
+  @Autowired
+  private ITkmsTopicValidator topicValidator;
+  @Autowired
+  protected ITkmsMessageSerializer messageSerializer;
+  @Autowired
+  private IExecutorServicesProvider executorServicesProvider;
+  @Autowired
+  protected ITkmsAcknowledgementTracker acknowledgementTracker;
+  @Autowired
+  protected ITkmsEventsDispatcher eventsDispatcher;
 
-  private volatile List<ITkmsEventsListener> tkmsEventsListeners;
+  private final Map<TkmsShardPartition, InsertGroupCommitter> insertGroupCommitters = new ConcurrentHashMap<>();
+  private int[] shardPartitionIndexOffsets;
+  private TkmsShardPartition[] shardPartitionsByIndex;
   private RateLimiter errorLogRateLimiter = RateLimiter.create(2);
+  protected ExecutorService serializationExecutorService;
+  protected Semaphore serializationPermits;
+  /**
+   * The future of the ongoing `sendMessageAsync`, until the message is inserted or deferred.
+   */
+  protected final ThreadLocal<CompletableFuture<RecordMetadata>> acknowledgementFuture = new ThreadLocal<>();
 
   @Override
   public void afterPropertiesSet() {
     Assertions.setLevel(properties.getInternals().getAssertionLevel());
 
+    initShardPartitionIndexes();
+
+    var eagerSerialization = properties.getEagerSerialization();
+    if (eagerSerialization.isEnabled() && eagerSerialization.getConcurrency() > 0) {
+      serializationExecutorService =
+          new ThreadNamingExecutorServiceWrapper("tw-tkms-serializer", executorServicesProvider.getGlobalExecutorService());
+      serializationPermits = new Semaphore(eagerSerialization.getConcurrency());
+    }
+
     environmentValidator.validate();
 
     for (String topic : properties.getTopics()) {
-      validateTopic(properties.getDefaultShard(), topic);
+      topicValidator.preValidate(properties.getDefaultShard(), topic);
     }
 
     validateDeleteBatchSizes();
@@ -81,6 +116,13 @@ public class TransactionalKafkaMessageSender implements ITransactionalKafkaMessa
 
   protected void validateEarliestVisibleMessages() {
     for (var s = 0; s < properties.getShardsCount(); s++) {
+      var earliestVisibleMessages = properties.getEarliestVisibleMessages(s);
+      if (earliestVisibleMessages.isEnabled() && earliestVisibleMessages.getTrackingMode() == EarliestMessagesTrackingMode.TRANSACTION_IDS
+          && properties.getDatabaseDialect(s) != DatabaseDialect.POSTGRES) {
+        throw new IllegalStateException("Earliest messages tracking by transaction ids is only supported for Postgres, but shard " + s
+            + " uses " + properties.getDatabaseDialect(s) + ".");
+      }
+
       if (properties.getDatabaseDialect(s) == DatabaseDialect.POSTGRES) {
         if (!properties.getEarliestVisibleMessages(s).isEnabled()) {
           var shard = s;
@@ -150,35 +192,48 @@ public class TransactionalKafkaMessageSender implements ITransactionalKafkaMessa
 
     validateMessages(request);
 
-    var validatedTopics = new HashSet<String>();
-
     int seq = 0;
 
     var tkmsMessages = request.getTkmsMessages();
     var tmksMessagesCount = tkmsMessages.size();
     var responses = new SendMessageResult[tmksMessagesCount];
 
-    var shardPartitionsMap = new HashMap<TkmsShardPartition, List<TkmsMessageWithSequence>>();
+    // Indexed by `getShardPartitionIndex`, hashing of shard-partitions is not needed.
+    @SuppressWarnings("unchecked")
+    var shardPartitionsMessages = (List<TkmsMessageWithSequence>[]) new List[shardPartitionsByIndex.length];
 
+    int lastValidatedShard = -1;
+    String lastValidatedTopic = null;
     for (int messageIdx = 0; messageIdx < tmksMessagesCount; messageIdx++) {
       var tkmsMessage = tkmsMessages.get(messageIdx);
       validateMessageSize(tkmsMessage, messageIdx);
 
       var shardPartition = getShardPartition(tkmsMessage);
 
+      // Messages in a batch are usually for the same topic.
       var topic = tkmsMessage.getTopic();
-      if (!validatedTopics.contains(topic)) {
+      if (shardPartition.getShard() != lastValidatedShard || !topic.equals(lastValidatedTopic)) {
         validateTopic(shardPartition.getShard(), topic);
-        validatedTopics.add(topic);
+        lastValidatedShard = shardPartition.getShard();
+        lastValidatedTopic = topic;
       }
 
-      var tkmsMessageWithSequence = new TkmsMessageWithSequence().setSequence(seq++).setTkmsMessage(tkmsMessage);
-      shardPartitionsMap.computeIfAbsent(shardPartition, k -> new ArrayList<>()).add(tkmsMessageWithSequence);
+      int shardPartitionIndex = getShardPartitionIndex(shardPartition);
+      var shardPartitionMessages = shardPartitionsMessages[shardPartitionIndex];
+      if (shardPartitionMessages == null) {
+        shardPartitionMessages = shardPartitionsMessages[shardPartitionIndex] = new ArrayList<>();
+      }
+      shardPartitionMessages.add(new TkmsMessageWithSequence().setSequence(seq++).setTkmsMessage(tkmsMessage));
     }
 
     return transactionsHelper.withTransaction().call(() -> {
       var transactionContext = getAndBindTransactionContext();
-      shardPartitionsMap.forEach((shardPartition, tkmsMessageWithSequences) -> {
+      for (int shardPartitionIndex = 0; shardPartitionIndex < shardPartitionsMessages.length; shardPartitionIndex++) {
+        var tkmsMessageWithSequences = shardPartitionsMessages[shardPartitionIndex];
+        if (tkmsMessageWithSequences == null) {
+          continue;
+        }
+        var shardPartition = shardPartitionsByIndex[shardPartitionIndex];
         try {
           shardPartition.putIntoMdc();
 
@@ -194,7 +249,7 @@ public class TransactionalKafkaMessageSender implements ITransactionalKafkaMessa
 
             for (var i = 0; i < tkmsMessageWithSequences.size(); i++) {
               var message = tkmsMessageWithSequences.get(i);
-              shardPartitionMessages.getMessages().add(message.getTkmsMessage());
+              deferMessage(transactionContext, shardPartition, shardPartitionMessages, message.getTkmsMessage());
 
               // Storage id remains null.
               // It can be retrieved by events, if needed.
@@ -202,6 +257,7 @@ public class TransactionalKafkaMessageSender implements ITransactionalKafkaMessa
 
               transactionContext.countMessage();
             }
+            flushDeferredMessagesIfNeeded(transactionContext);
           } else {
             if (transactionActive) {
               var shardPartitionMessages = transactionContext.getShardPartitionMessages(shardPartition);
@@ -210,14 +266,26 @@ public class TransactionalKafkaMessageSender implements ITransactionalKafkaMessa
 
             var tkmsDao = tkmsDaoProvider.getTkmsDao(shardPartition.getShard());
 
-            var insertMessageResults = tkmsDao.insertMessages(shardPartition, tkmsMessageWithSequences);
+            List<InsertMessageResult> insertMessageResults;
+            try {
+              insertMessageResults = tkmsDao.insertMessages(shardPartition, tkmsMessageWithSequences);
+            } catch (RuntimeException e) {
+              spoolOrRethrow(transactionContext, shardPartition, toMessages(tkmsMessageWithSequences), e);
+              for (var message : tkmsMessageWithSequences) {
+                // Storage id is not known for spooled messages.
+                responses[message.getSequence()] = new SendMessageResult().setShardPartition(shardPartition);
+                transactionContext.countMessage();
+              }
+              continue;
+            }
+            var events = createMessageRegisteredEvents(tkmsMessageWithSequences.size());
             for (var i = 0; i < tkmsMessageWithSequences.size(); i++) {
               var tkmsMessageWithSequence = tkmsMessageWithSequences.get(i);
               var insertMessageResult = insertMessageResults.get(i);
 
               MDC.put(properties.getMdc().getMessageIdKey(), String.valueOf(insertMessageResult.getStorageId()));
               try {
-                fireMessageRegisteredEvent(shardPartition, insertMessageResult.getStorageId(), tkmsMessageWithSequence.getTkmsMessage());
+                addMessageRegisteredEvent(events, shardPartition, insertMessageResult.getStorageId(), tkmsMessageWithSequence.getTkmsMessage());
 
                 metricsTemplate.recordMessageRegistering(tkmsMessageWithSequence.getTkmsMessage().getTopic(), shardPartition, false);
 
@@ -229,11 +297,12 @@ public class TransactionalKafkaMessageSender implements ITransactionalKafkaMessa
                 MDC.remove(properties.getMdc().getMessageIdKey());
               }
             }
+            fireMessagesRegisteredEvent(events);
           }
         } finally {
           shardPartition.removeFromMdc();
         }
-      });
+      }
 
       return new SendMessagesResult().setResults(Arrays.asList(responses));
     });
@@ -273,11 +342,22 @@ public class TransactionalKafkaMessageSender implements ITransactionalKafkaMessa
         var shardPartitionMessages = transactionContext.getShardPartitionMessages(shardPartition);
         requireConsistentMode(shardPartitionMessages, Mode.DEFERRED);
 
-        shardPartitionMessages.getMessages().add(message);
+        deferMessage(transactionContext, shardPartition, shardPartitionMessages, message);
+        var future = claimAcknowledgementFuture();
+        if (future != null) {
+          var previousFuture = transactionContext.getDeferredAcknowledgementFutures().put(message, future);
+          if (previousFuture != null) {
+            previousFuture.completeExceptionally(new IllegalStateException("The same message instance was sent again in the transaction."));
+          }
+        }
 
         transactionContext.countMessage();
+        flushDeferredMessagesIfNeeded(transactionContext);
         // Storage id is not known yet.
         return new SendMessageResult().setShardPartition(shardPartition);
+      } else if (!transactionActive && properties.getGroupCommit(shardPartition.getShard()).isEnabled() && acknowledgementFuture.get() == null) {
+        return insertGroupCommitters.computeIfAbsent(shardPartition, sp -> new InsertGroupCommitter(properties.getGroupCommit(sp.getShard()),
+            messages -> sendGroup(sp, messages))).send(message);
       } else {
         return transactionsHelper.withTransaction().call(() -> {
           var transactionContext = getAndBindTransactionContext();
@@ -288,11 +368,23 @@ public class TransactionalKafkaMessageSender implements ITransactionalKafkaMessa
           }
 
           var tkmsDao = tkmsDaoProvider.getTkmsDao(shardPartition.getShard());
-          var insertMessageResult = tkmsDao.insertMessage(shardPartition, message);
+          InsertMessageResult insertMessageResult;
+          try {
+            insertMessageResult = tkmsDao.insertMessage(shardPartition, message);
+          } catch (RuntimeException e) {
+            spoolOrRethrow(transactionContext, shardPartition, List.of(message), e);
+            transactionContext.countMessage();
+            // Storage id is not known for spooled messages.
+            return new SendMessageResult().setShardPartition(shardPartition);
+          }
+
+          trackAcknowledgement(transactionContext, shardPartition, insertMessageResult, claimAcknowledgementFuture());
 
           MDC.put(properties.getMdc().getMessageIdKey(), String.valueOf(insertMessageResult.getStorageId()));
           try {
-            fireMessageRegisteredEvent(shardPartition, insertMessageResult.getStorageId(), message);
+            var events = createMessageRegisteredEvents(1);
+            addMessageRegisteredEvent(events, shardPartition, insertMessageResult.getStorageId(), message);
+            fireMessagesRegisteredEvent(events);
             metricsTemplate.recordMessageRegistering(topic, insertMessageResult.getShardPartition(), false);
             transactionContext.countMessage();
             return new SendMessageResult().setStorageId(insertMessageResult.getStorageId()).setShardPartition(shardPartition);
@@ -306,6 +398,95 @@ public class TransactionalKafkaMessageSender implements ITransactionalKafkaMessa
     }
   }
 
+  @Override
+  public CompletionStage<RecordMetadata> sendMessageAsync(TkmsMessage message) {
+    return sendMessageAsync(new SendMessageRequest().setTkmsMessage(message));
+  }
+
+  /**
+   * The future is registered in the same transaction the message is inserted in, so an acknowledgement can not arrive before it.
+   */
+  @Override
+  public CompletionStage<RecordMetadata> sendMessageAsync(SendMessageRequest request) {
+    var future = new CompletableFuture<RecordMetadata>();
+    acknowledgementFuture.set(future);
+    try {
+      sendMessage(request);
+      if (claimAcknowledgementFuture() != null) {
+        future.completeExceptionally(new IllegalStateException("Acknowledgement of a spooled message can not be tracked."));
+      }
+    } finally {
+      acknowledgementFuture.remove();
+    }
+    return future;
+  }
+
+  protected CompletableFuture<RecordMetadata> claimAcknowledgementFuture() {
+    var future = acknowledgementFuture.get();
+    if (future != null) {
+      acknowledgementFuture.remove();
+    }
+    return future;
+  }
+
+  protected void trackAcknowledgement(TransactionContext transactionContext, TkmsShardPartition shardPartition,
+      InsertMessageResult insertMessageResult, CompletableFuture<RecordMetadata> future) {
+    if (future != null) {
+      transactionContext.getAcknowledgementFutures().add(future);
+      acknowledgementTracker.track(shardPartition, insertMessageResult.getSource(), insertMessageResult.getStorageId(), future);
+    }
+  }
+
+  protected List<SendMessageResult> sendGroup(TkmsShardPartition shardPartition, List<TkmsMessage> messages) {
+    boolean success = false;
+    try {
+      var results = transactionsHelper.withTransaction().call(() -> {
+        var transactionContext = getAndBindTransactionContext();
+        var responses = new SendMessageResult[messages.size()];
+
+        var tkmsMessageWithSequences = new ArrayList<TkmsMessageWithSequence>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+          tkmsMessageWithSequences.add(new TkmsMessageWithSequence().setSequence(i).setTkmsMessage(messages.get(i)));
+        }
+
+        var tkmsDao = tkmsDaoProvider.getTkmsDao(shardPartition.getShard());
+        List<InsertMessageResult> insertMessageResults;
+        try {
+          insertMessageResults = tkmsDao.insertMessages(shardPartition, tkmsMessageWithSequences);
+        } catch (RuntimeException e) {
+          spoolOrRethrow(transactionContext, shardPartition, messages, e);
+          for (int i = 0; i < messages.size(); i++) {
+            // Storage id is not known for spooled messages.
+            responses[i] = new SendMessageResult().setShardPartition(shardPartition);
+            transactionContext.countMessage();
+          }
+          return Arrays.asList(responses);
+        }
+
+        var events = createMessageRegisteredEvents(insertMessageResults.size());
+        for (var insertMessageResult : insertMessageResults) {
+          var message = messages.get(insertMessageResult.getSequence());
+          MDC.put(properties.getMdc().getMessageIdKey(), String.valueOf(insertMessageResult.getStorageId()));
+          try {
+            addMessageRegisteredEvent(events, shardPartition, insertMessageResult.getStorageId(), message);
+            metricsTemplate.recordMessageRegistering(message.getTopic(), shardPartition, false);
+            transactionContext.countMessage();
+            responses[insertMessageResult.getSequence()] =
+                new SendMessageResult().setStorageId(insertMessageResult.getStorageId()).setShardPartition(shardPartition);
+          } finally {
+            MDC.remove(properties.getMdc().getMessageIdKey());
+          }
+        }
+        fireMessagesRegisteredEvent(events);
+        return Arrays.asList(responses);
+      });
+      success = true;
+      return results;
+    } finally {
+      metricsTemplate.recordGroupCommit(shardPartition, messages.size(), success);
+    }
+  }
+
   protected void requireConsistentMode(ShardPartitionMessages shardPartitionMessages, Mode mode) {
     if (shardPartitionMessages.getMode() == null) {
       shardPartitionMessages.setMode(mode);
@@ -326,38 +507,131 @@ public class TransactionalKafkaMessageSender implements ITransactionalKafkaMessa
     return transactionContext;
   }
 
-  // Extending deprecated class, so it would also work on Spring 4.
-  private class BeforeCommitSender extends TransactionSynchronizationAdapter {
+  protected void deferMessage(TransactionContext transactionContext, TkmsShardPartition shardPartition,
+      ShardPartitionMessages shardPartitionMessages, TkmsMessage message) {
+    var serializedMessage = properties.getEagerSerialization().isEnabled() ? serializeEagerly(shardPartition, message) : null;
+    // The upper bound is good enough here, and does not need to walk over the strings.
+    transactionContext.deferMessage(shardPartitionMessages, message, serializedMessage, estimateMessageSize(message, false));
+  }
 
-    @Override
-    public void beforeCommit(boolean readOnly) {
-      var transactionContext = TransactionContext.get();
+  protected CompletableFuture<byte[]> serializeEagerly(TkmsShardPartition shardPartition, TkmsMessage message) {
+    if (serializationExecutorService == null) {
+      return CompletableFuture.completedFuture(serialize(shardPartition, message));
+    }
 
-      for (var entries : transactionContext.getShardPartitionMessagesMap().entrySet()) {
-        var shardPartition = entries.getKey();
-        var messages = entries.getValue().getMessages();
+    ExceptionUtils.doUnchecked(() -> serializationPermits.acquire());
+    try {
+      return CompletableFuture.supplyAsync(() -> {
+        try {
+          return serialize(shardPartition, message);
+        } finally {
+          serializationPermits.release();
+        }
+      }, serializationExecutorService);
+    } catch (RuntimeException e) {
+      serializationPermits.release();
+      throw e;
+    }
+  }
 
-        var tkmsDao = tkmsDaoProvider.getTkmsDao(shardPartition.getShard());
+  protected byte[] serialize(TkmsShardPartition shardPartition, TkmsMessage message) {
+    return ExceptionUtils.doUnchecked(() -> {
+      try (var is = messageSerializer.serialize(shardPartition, message)) {
+        return is.readAllBytes();
+      }
+    });
+  }
 
-        var messagesWithSequences = new ArrayList<TkmsMessageWithSequence>();
-        for (int i = 0; i < messages.size(); i++) {
-          messagesWithSequences.add(new TkmsMessageWithSequence().setSequence(i).setTkmsMessage(messages.get(i)));
+  protected byte[] getSerializedMessage(CompletableFuture<byte[]> serializedMessage) {
+    try {
+      return serializedMessage.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Bounds the memory held by very large transactions.
+   *
+   * <p>Messages of a shard-partition are still inserted in the order of registration, as all the collected messages are inserted before any
+   * later ones.
+   */
+  protected void flushDeferredMessagesIfNeeded(TransactionContext transactionContext) {
+    if (transactionContext.getDeferredMessagesCount() >= properties.getDeferredMessagesFlushCount()
+        || transactionContext.getDeferredBytes() >= properties.getDeferredMessagesFlushBytes()) {
+      flushDeferredMessages(transactionContext);
+    }
+  }
+
+  protected void flushDeferredMessages(TransactionContext transactionContext) {
+    for (var entries : transactionContext.getShardPartitionMessagesMap().entrySet()) {
+      var shardPartition = entries.getKey();
+      var messages = entries.getValue().getMessages();
+      if (messages.isEmpty()) {
+        continue;
+      }
+      var serializedMessages = entries.getValue().getSerializedMessages();
+      // Lets the inserted messages to be garbage collected, while the transaction goes on.
+      entries.getValue().setMessages(new ArrayList<>()).setSerializedMessages(new ArrayList<>());
+
+      var tkmsDao = tkmsDaoProvider.getTkmsDao(shardPartition.getShard());
+
+      var messagesWithSequences = new ArrayList<TkmsMessageWithSequence>(messages.size());
+      for (int i = 0; i < messages.size(); i++) {
+        var messageWithSequence = new TkmsMessageWithSequence().setSequence(i).setTkmsMessage(messages.get(i));
+        if (!serializedMessages.isEmpty()) {
+          messageWithSequence.setSerializedMessage(getSerializedMessage(serializedMessages.get(i)));
         }
+        messagesWithSequences.add(messageWithSequence);
+      }
 
-        var insertMessageResults = tkmsDao.insertMessages(shardPartition, messagesWithSequences);
-        for (int i = 0; i < messagesWithSequences.size(); i++) {
-          var tkmsMessageWithSequence = messagesWithSequences.get(i);
-          var insertMessageResult = insertMessageResults.get(i);
-          MDC.put(properties.getMdc().getMessageIdKey(), String.valueOf(insertMessageResult.getStorageId()));
-          try {
-            fireMessageRegisteredEvent(shardPartition, insertMessageResult.getStorageId(), tkmsMessageWithSequence.getTkmsMessage());
+      List<InsertMessageResult> insertMessageResults;
+      try {
+        insertMessageResults = tkmsDao.insertMessages(shardPartition, messagesWithSequences);
+      } catch (RuntimeException e) {
+        spoolOrRethrow(transactionContext, shardPartition, messages, e);
+        continue;
+      }
+      var events = createMessageRegisteredEvents(messagesWithSequences.size());
+      for (int i = 0; i < messagesWithSequences.size(); i++) {
+        var tkmsMessageWithSequence = messagesWithSequences.get(i);
+        var insertMessageResult = insertMessageResults.get(i);
+        if (!transactionContext.getDeferredAcknowledgementFutures().isEmpty()) {
+          trackAcknowledgement(transactionContext, shardPartition, insertMessageResult,
+              transactionContext.getDeferredAcknowledgementFutures().remove(tkmsMessageWithSequence.getTkmsMessage()));
+        }
+        MDC.put(properties.getMdc().getMessageIdKey(), String.valueOf(insertMessageResult.getStorageId()));
+        try {
+          addMessageRegisteredEvent(events, shardPartition, insertMessageResult.getStorageId(), tkmsMessageWithSequence.getTkmsMessage());
 
-            metricsTemplate.recordMessageRegistering(tkmsMessageWithSequence.getTkmsMessage().getTopic(), shardPartition, true);
-          } finally {
-            MDC.remove(properties.getMdc().getMessageIdKey());
-          }
+          metricsTemplate.recordMessageRegistering(tkmsMessageWithSequence.getTkmsMessage().getTopic(), shardPartition, true);
+        } finally {
+          MDC.remove(properties.getMdc().getMessageIdKey());
         }
       }
+      fireMessagesRegisteredEvent(events);
+    }
+    transactionContext.deferredMessagesFlushed();
+  }
+
+  // Extending deprecated class, so it would also work on Spring 4.
+  protected class BeforeCommitSender extends TransactionSynchronizationAdapter {
+
+    /**
+     * Spooled messages are checked last, as the flush can spool messages as well.
+     */
+    @Override
+    public void beforeCommit(boolean readOnly) {
+      var transactionContext = TransactionContext.get();
+      flushDeferredMessages(transactionContext);
+      transactionContext.getSpooledMessagesMap().forEach((shardPartition, messages) -> {
+        for (var message : messages) {
+          spool.checkAppendable(shardPartition, message);
+        }
+      });
     }
 
     @Override
@@ -366,16 +640,84 @@ public class TransactionalKafkaMessageSender implements ITransactionalKafkaMessa
       var transactionContext = getAndBindTransactionContext();
 
       metricsTemplate.registerMessagesInTransactionCount(transactionContext.getRegisteredMessagesCount(), success);
+      if (!success) {
+        for (var future : transactionContext.getAcknowledgementFutures()) {
+          future.completeExceptionally(new IllegalStateException("Transaction was rolled back."));
+        }
+      }
+      for (var future : transactionContext.getDeferredAcknowledgementFutures().values()) {
+        future.completeExceptionally(new IllegalStateException("Transaction was rolled back."));
+      }
+      if (transactionContext.getPeakDeferredBytes() > 0) {
+        metricsTemplate.recordDeferredMessagesPeakBytes(transactionContext.getPeakDeferredBytes(), success);
+      }
+
+      try {
+        if (success) {
+          transactionContext.getSpooledMessagesMap().forEach((shardPartition, messages) -> {
+            for (var message : messages) {
+              appendToSpool(shardPartition, message);
+            }
+          });
+        }
+      } finally {
+        TransactionContext.unbind();
+      }
+    }
+  }
 
-      TransactionContext.unbind();
+  /**
+   * The transaction has already committed, so a failure only loses this message, the rest of the transaction's messages are still appended.
+   */
+  protected void appendToSpool(TkmsShardPartition shardPartition, TkmsMessage message) {
+    try {
+      spool.append(shardPartition, message);
+    } catch (Throwable t) {
+      metricsTemplate.recordSpoolMessageAppendFailure(shardPartition, message.getTopic());
+      if (errorLogRateLimiter.tryAcquire()) {
+        log.error("Appending a message of topic '" + message.getTopic() + "' into the spool of " + shardPartition + " failed. The message is lost.",
+            t);
+      }
     }
   }
 
   /**
-   * Every call to normal `KafkaProducer.send()` uses metadata for a topic as well, so should be very fast.
+   * Messages are only kept in the transaction context here, and appended to the spool after the commit.
+   *
+   * <p>The failed insert was rolled back to its savepoint, so the business transaction can still commit.
+   */
+  protected void spoolOrRethrow(TransactionContext transactionContext, TkmsShardPartition shardPartition, List<TkmsMessage> messages,
+      RuntimeException e) {
+    if (!spool.isSpoolable(shardPartition.getShard(), e)) {
+      throw e;
+    }
+    if (errorLogRateLimiter.tryAcquire()) {
+      log.warn("Inserting messages into " + shardPartition + " failed, spooling those locally.", e);
+    }
+    for (var message : messages) {
+      transactionContext.spoolMessage(shardPartition, message);
+      if (!transactionContext.getDeferredAcknowledgementFutures().isEmpty()) {
+        var future = transactionContext.getDeferredAcknowledgementFutures().remove(message);
+        if (future != null) {
+          future.completeExceptionally(new IllegalStateException("Acknowledgement of a spooled message can not be tracked."));
+        }
+      }
+    }
+  }
+
+  protected List<TkmsMessage> toMessages(List<TkmsMessageWithSequence> tkmsMessageWithSequences) {
+    var messages = new ArrayList<TkmsMessage>(tkmsMessageWithSequences.size());
+    for (var tkmsMessageWithSequence : tkmsMessageWithSequences) {
+      messages.add(tkmsMessageWithSequence.getTkmsMessage());
+    }
+    return messages;
+  }
+
+  /**
+   * Answered from the topics metadata cache, so it does not wait for Kafka, unless the topic has not been seen before.
    */
   protected void validateTopic(int shard, String topic) {
-    kafkaProducerProvider.getKafkaProducer(shard).partitionsFor(topic);
+    topicValidator.validate(shard, topic);
   }
 
   protected void validateMessages(SendMessagesRequest request) {
@@ -385,26 +727,45 @@ public class TransactionalKafkaMessageSender implements ITransactionalKafkaMessa
     }
   }
 
+  /**
+   * Called for every message, so the error messages are only built when a check fails. `Preconditions` would box the arguments even for valid
+   * messages.
+   */
   protected void validateMessage(TkmsMessage message, int messageIdx) {
-    Preconditions.checkNotNull(message, "%s: No message provided.", messageIdx);
-    Preconditions.checkArgument(!Strings.isNullOrEmpty(message.getTopic()), "%s: No topic provided.", messageIdx);
-    if (message.getPartition() != null) {
-      Preconditions.checkArgument(message.getPartition() >= 0, "%s: Partition number can not be negative: %s", messageIdx, message.getPartition());
+    if (message == null) {
+      throw new NullPointerException(messageIdx + ": No message provided.");
     }
-    if (message.getKey() != null) {
-      Preconditions.checkArgument(message.getKey().length() > 0, "%s: Key can not be an empty string.", messageIdx);
+    if (Strings.isNullOrEmpty(message.getTopic())) {
+      throw new IllegalArgumentException(messageIdx + ": No topic provided.");
+    }
+    if (message.getPartition() != null && message.getPartition() < 0) {
+      throw new IllegalArgumentException(messageIdx + ": Partition number can not be negative: " + message.getPartition());
+    }
+    if (message.getKey() != null && message.getKey().isEmpty()) {
+      throw new IllegalArgumentException(messageIdx + ": Key can not be an empty string.");
     }
     if (message.getShard() != null) {
-      Preconditions.checkArgument(message.getShard() >= 0, "%s: Shard number can not be negative :%s", messageIdx, message.getShard());
-      Preconditions.checkArgument(message.getShard() < properties.getShardsCount(), "%s: Shard %s is out of bounds. Shards count is %s.", messageIdx,
-          message.getShard(), properties.getShardsCount());
-    }
-    Preconditions.checkNotNull(message.getValue(), "%s: Value can not be null.", messageIdx);
-    if (message.getHeaders() != null) {
-      for (int headerIdx = 0; headerIdx < message.getHeaders().size(); headerIdx++) {
-        Header header = message.getHeaders().get(headerIdx);
-        Preconditions.checkNotNull(header.getValue(), "%s: Header value @{%s} can not be null.", messageIdx, headerIdx);
-        Preconditions.checkArgument(!Strings.isNullOrEmpty(header.getKey()), "%s: Header key @{%s} can not be null.", messageIdx, headerIdx);
+      if (message.getShard() < 0) {
+        throw new IllegalArgumentException(messageIdx + ": Shard number can not be negative :" + message.getShard());
+      }
+      if (message.getShard() >= properties.getShardsCount()) {
+        throw new IllegalArgumentException(messageIdx + ": Shard " + message.getShard() + " is out of bounds. Shards count is "
+            + properties.getShardsCount() + ".");
+      }
+    }
+    if (message.getValue() == null) {
+      throw new NullPointerException(messageIdx + ": Value can not be null.");
+    }
+    var headers = message.getHeaders();
+    if (headers != null) {
+      for (int headerIdx = 0; headerIdx < headers.size(); headerIdx++) {
+        Header header = headers.get(headerIdx);
+        if (header.getValue() == null) {
+          throw new NullPointerException(messageIdx + ": Header value @{" + headerIdx + "} can not be null.");
+        }
+        if (Strings.isNullOrEmpty(header.getKey())) {
+          throw new IllegalArgumentException(messageIdx + ": Header key @{" + headerIdx + "} can not be null.");
+        }
       }
     }
   }
@@ -415,27 +776,45 @@ public class TransactionalKafkaMessageSender implements ITransactionalKafkaMessa
    * <p>This would allow to calculate the size safely while not tying our code to some internal kafka client methods.
    */
   protected void validateMessageSize(TkmsMessage message, int messageIdx) {
+    // A char takes at most 3 bytes in UTF-8, so the exact size is only calculated, when the upper bound is too large.
+    if (estimateMessageSize(message, false) < properties.getMaximumMessageBytes()) {
+      return;
+    }
+
+    int size = estimateMessageSize(message, true);
+    if (size >= properties.getMaximumMessageBytes()) {
+      throw new IllegalArgumentException(
+          "" + messageIdx + ": Estimated message size is " + size + ", which is larger than maximum of " + properties.getMaximumMessageBytes() + ".");
+    }
+  }
+
+  protected int estimateMessageSize(TkmsMessage message, boolean exact) {
     int size = 100;
 
     size += FIELD_SIZE_BYTES;
-    size += utf8Length(message.getKey());
+    size += stringSize(message.getKey(), exact);
     size += FIELD_SIZE_BYTES;
     size += message.getValue().length;
     size += FIELD_SIZE_BYTES;
 
-    if (message.getHeaders() != null) {
-      for (Header header : message.getHeaders()) {
+    var headers = message.getHeaders();
+    if (headers != null) {
+      for (int i = 0; i < headers.size(); i++) {
+        var header = headers.get(i);
         size += FIELD_SIZE_BYTES;
-        size += utf8Length(header.getKey());
+        size += stringSize(header.getKey(), exact);
         size += FIELD_SIZE_BYTES;
         size += header.getValue() == null ? 0 : header.getValue().length;
       }
     }
+    return size;
+  }
 
-    if (size >= properties.getMaximumMessageBytes()) {
-      throw new IllegalArgumentException(
-          "" + messageIdx + ": Estimated message size is " + size + ", which is larger than maximum of " + properties.getMaximumMessageBytes() + ".");
+  private int stringSize(String s, boolean exact) {
+    if (s == null) {
+      return 0;
     }
+    return exact ? utf8Length(s) : s.length() * 3;
   }
 
   private int utf8Length(CharSequence s) {
@@ -459,39 +838,39 @@ public class TransactionalKafkaMessageSender implements ITransactionalKafkaMessa
     return count;
   }
 
-  protected void fireMessageRegisteredEvent(TkmsShardPartition shardPartition, Long id, TkmsMessage message) {
-    var listeners = getTkmsEventsListeners();
-    if (log.isDebugEnabled()) {
-      log.debug("Message was registered for {} with storage id {}. Listeners count: ", shardPartition, id, listeners.size());
-    }
+  /**
+   * Returns null, when there are no listeners, so no events are created.
+   */
+  protected List<MessageRegisteredEvent> createMessageRegisteredEvents(int size) {
+    return eventsDispatcher.hasListeners() ? new ArrayList<>(size) : null;
+  }
 
-    if (tkmsEventsListeners.isEmpty()) {
-      return;
+  protected void addMessageRegisteredEvent(List<MessageRegisteredEvent> events, TkmsShardPartition shardPartition, Long id, TkmsMessage message) {
+    if (events != null) {
+      events.add(new MessageRegisteredEvent().setStorageId(id).setMessage(message).setShardPartition(shardPartition));
     }
+  }
 
-    var event = new MessageRegisteredEvent().setStorageId(id).setMessage(message).setShardPartition(shardPartition);
-
-    listeners.forEach(listener -> {
-      try {
-        listener.messageRegistered(event);
-      } catch (Throwable t) {
-        if (errorLogRateLimiter.tryAcquire()) {
-          log.error("Firing message registered event failed for listener '{}'.", listener, t);
-        }
-      }
-    });
+  protected void fireMessagesRegisteredEvent(List<MessageRegisteredEvent> events) {
+    if (events != null && !events.isEmpty()) {
+      eventsDispatcher.messagesRegistered(events);
+    }
   }
 
-  // Lazy to avoid any circular dependencies from low-quality apps.
-  protected List<ITkmsEventsListener> getTkmsEventsListeners() {
-    if (tkmsEventsListeners == null) {
-      synchronized (this) {
-        if (tkmsEventsListeners == null) {
-          tkmsEventsListeners = new ArrayList<>(applicationContext.getBeansOfType(ITkmsEventsListener.class).values());
-        }
+  protected void initShardPartitionIndexes() {
+    shardPartitionIndexOffsets = new int[properties.getShardsCount()];
+    var shardPartitions = new ArrayList<TkmsShardPartition>();
+    for (int s = 0; s < properties.getShardsCount(); s++) {
+      shardPartitionIndexOffsets[s] = shardPartitions.size();
+      for (int p = 0; p < properties.getPartitionsCount(s); p++) {
+        shardPartitions.add(TkmsShardPartition.of(s, p));
       }
     }
-    return tkmsEventsListeners;
+    shardPartitionsByIndex = shardPartitions.toArray(new TkmsShardPartition[0]);
+  }
+
+  protected int getShardPartitionIndex(TkmsShardPartition shardPartition) {
+    return shardPartitionIndexOffsets[shardPartition.getShard()] + shardPartition.getPartition();
   }
 
   protected TkmsShardPartition getShardPartition(TkmsMessage message) {
@@ -516,10 +895,14 @@ public class TransactionalKafkaMessageSender implements ITransactionalKafkaMessa
     if (message.getPartition() != null) {
       return Math.abs(message.getPartition()) % tablesCount;
     }
-    if (message.getKey() != null) {
-      return Math.abs(message.getKey().hashCode() % tablesCount);
+    if (message.getKey() == null && acknowledgementFuture.get() != null) {
+      // Only the acknowledgements of the shard-partitions proxied by this node can be tracked. Keyed messages keep their partition, for ordering.
+      int partition = acknowledgementTracker.getLocallyProxiedPartition(shard);
+      if (partition != -1) {
+        return partition;
+      }
     }
-    return ThreadLocalRandom.current().nextInt(tablesCount);
+    return partitioner.getPartition(shard, message, tablesCount);
   }
 
 }
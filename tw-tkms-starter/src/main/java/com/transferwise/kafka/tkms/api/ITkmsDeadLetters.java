@@ -0,0 +1,51 @@
+package com.transferwise.kafka.tkms.api;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * Messages which failed to be sent `tw-tkms.dead-letters.max-attempts` times, moved into the dead letter table of their shard.
+ */
+public interface ITkmsDeadLetters {
+
+  /**
+   * Dead letters of the shard-partition, oldest first.
+   */
+  List<DeadLetter> getDeadLetters(TkmsShardPartition shardPartition, int maxCount);
+
+  /**
+   * Moves the dead letters back into the outgoing messages table, to be sent as new messages.
+   *
+   * <p>Notice, that the messages will be sent after the ones registered in the meantime.
+   *
+   * @return the number of dead letters replayed. Ids not found are ignored.
+   */
+  int replay(TkmsShardPartition shardPartition, Collection<Long> deadLetterIds);
+
+  @Data
+  @Accessors(chain = true)
+  class DeadLetter {
+
+    private long id;
+    private TkmsShardPartition shardPartition;
+    /**
+     * Id the message had in the outgoing messages table.
+     */
+    private long messageId;
+    private String topic;
+    private String key;
+    /**
+     * Of the last failed attempt.
+     */
+    private String error;
+    private int retries;
+    private Instant deadLetteredAt;
+    /**
+     * Null, when automatic retries have run out.
+     */
+    private Instant nextRetryAt;
+  }
+}
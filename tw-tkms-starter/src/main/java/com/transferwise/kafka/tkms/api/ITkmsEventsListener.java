@@ -1,17 +1,61 @@
 package com.transferwise.kafka.tkms.api;
 
+import java.util.List;
 import lombok.Data;
 import lombok.experimental.Accessors;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 
 public interface ITkmsEventsListener {
 
+  /**
+   * Listeners are called synchronously, when null.
+   *
+   * <p>Otherwise the events are handed over to a queue, and the listener is called from a background thread. Registration events can then arrive
+   * after the transaction has completed.
+   */
+  default EventsDispatch getEventsDispatch() {
+    return null;
+  }
+
+  @Data
+  @Accessors(chain = true)
+  class EventsDispatch {
+
+    /**
+     * How many batches of events can wait for the listener.
+     */
+    private int queueCapacity = 1000;
+
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+  }
+
+  enum OverflowPolicy {
+    /**
+     * The registering thread or the proxy waits, until there is room in the queue.
+     */
+    BLOCK,
+    /**
+     * Events are dropped and counted in `tw_tkms_events_dropped`.
+     */
+    DROP
+  }
+
   /**
    * Kafka has acknowledged the message.
    */
   default void messageAcknowledged(MessageAcknowledgedEvent event) {
   }
 
+  /**
+   * Messages of one proxy cycle, acknowledged by Kafka.
+   */
+  default void messagesAcknowledged(List<MessageAcknowledgedEvent> events) {
+    for (int i = 0; i < events.size(); i++) {
+      messageAcknowledged(events.get(i));
+    }
+  }
+
   @Data
   @Accessors(chain = true)
   class MessageAcknowledgedEvent {
@@ -32,6 +76,11 @@ public interface ITkmsEventsListener {
      * Kafa client's ProducerRecord object.
      */
     private ProducerRecord<String, byte[]> producerRecord;
+
+    /**
+     * Where Kafka has stored the message.
+     */
+    private RecordMetadata recordMetadata;
   }
 
   /**
@@ -40,6 +89,15 @@ public interface ITkmsEventsListener {
   default void messageRegistered(MessageRegisteredEvent event) {
   }
 
+  /**
+   * Messages of one insert into a shard-partition.
+   */
+  default void messagesRegistered(List<MessageRegisteredEvent> events) {
+    for (int i = 0; i < events.size(); i++) {
+      messageRegistered(events.get(i));
+    }
+  }
+
   @Data
   @Accessors(chain = true)
   class MessageRegisteredEvent {
@@ -0,0 +1,58 @@
+package com.transferwise.kafka.tkms.api;
+
+import com.transferwise.kafka.tkms.api.ITkmsMessageInterceptor.MessageInterceptionDecision;
+import java.util.Set;
+import javax.annotation.Nonnull;
+import org.apache.kafka.clients.producer.ProducerRecord;
+
+/**
+ * Same as {@link ITkmsMessageInterceptor}, but works on an indexed view of the batch, so no maps are created for every proxy cycle.
+ */
+public interface ITkmsMessageBatchInterceptor {
+
+  byte NEUTRAL = 0;
+  byte RETRY = 1;
+  byte DISCARD = 2;
+
+  /**
+   * Topics the interceptor is interested in. Batches without any messages for those topics are not given to the interceptor.
+   *
+   * <p>Null means all topics.
+   */
+  default Set<String> getTopics() {
+    return null;
+  }
+
+  /**
+   * The method is called, before we batch-send out those records.
+   *
+   * <p>`decisions` has the same size as the batch, and is filled with {@link #NEUTRAL}. The interceptor sets {@link #RETRY} or {@link #DISCARD}
+   * for the records it wants to hold back.
+   *
+   * <p>Same as with {@link ITkmsMessageInterceptor}, all messages will be tried to be intercepted again shortly after, when the method throws.
+   */
+  void beforeSendingToKafka(@Nonnull TkmsShardPartition shardPartition, @Nonnull ProducerRecords producerRecords, @Nonnull byte[] decisions);
+
+  /**
+   * When an error happens, the interceptor can decide what to do with the message.
+   */
+  default MessageInterceptionDecision onError(@Nonnull TkmsShardPartition shardPartition, Throwable t,
+      ProducerRecord<String, byte[]> producerRecord) {
+    return MessageInterceptionDecision.NEUTRAL;
+  }
+
+  interface ProducerRecords {
+
+    int size();
+
+    /**
+     * Does not create the `ProducerRecord`.
+     */
+    String getTopic(int idx);
+
+    /**
+     * Created on the first access, and then the same instance is sent to Kafka. So headers can be added to it.
+     */
+    ProducerRecord<String, byte[]> getProducerRecord(int idx);
+  }
+}
@@ -1,5 +1,6 @@
 package com.transferwise.kafka.tkms.api;
 
+import com.transferwise.kafka.tkms.api.ITkmsMessageBatchInterceptor.ProducerRecords;
 import com.transferwise.kafka.tkms.api.ITkmsMessageInterceptor.MessageInterceptionDecision;
 import java.util.Map;
 import javax.annotation.Nonnull;
@@ -9,9 +10,19 @@ public interface ITkmsMessageInterceptors {
 
   boolean hasInterceptors();
 
+  /**
+   * Aggregator for `ITkmsMessageInterceptor` and `ITkmsMessageBatchInterceptor`.
+   *
+   * <p>Returns decisions, as in `ITkmsMessageBatchInterceptor`, or null, when no interceptor is interested in any of the records.
+   */
+  byte[] beforeSendingToKafka(@Nonnull TkmsShardPartition shardPartition, @Nonnull ProducerRecords producerRecords);
+
   /**
    * Aggregator for `ITkmsMessageInterceptor`.
+   *
+   * @deprecated in favor of the `ProducerRecords` variant, which also includes `ITkmsMessageBatchInterceptor`s.
    */
+  @Deprecated
   Map<Integer, MessageInterceptionDecision> beforeSendingToKafka(@Nonnull TkmsShardPartition shardPartition,
       @Nonnull Map<Integer, ProducerRecord<String, byte[]>> producerRecords);
 
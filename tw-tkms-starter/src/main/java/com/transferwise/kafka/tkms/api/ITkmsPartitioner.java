@@ -0,0 +1,18 @@
+package com.transferwise.kafka.tkms.api;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Assigns messages without an explicit partition into the partitions (tables) of a shard.
+ *
+ * <p>Messages with the same key have to be assigned into the same partition, otherwise their order is not guaranteed.
+ *
+ * <p>Called on every message registration, so it has to be fast and must not do any IO.
+ */
+public interface ITkmsPartitioner {
+
+  /**
+   * Returns a partition from `[0, partitionsCount)`.
+   */
+  int getPartition(int shard, @Nonnull TkmsMessage message, int partitionsCount);
+}
@@ -2,10 +2,12 @@ package com.transferwise.kafka.tkms.api;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletionStage;
 import javax.validation.constraints.NotEmpty;
 import javax.validation.constraints.NotNull;
 import lombok.Data;
 import lombok.experimental.Accessors;
+import org.apache.kafka.clients.producer.RecordMetadata;
 
 public interface ITransactionalKafkaMessageSender {
 
@@ -51,6 +53,19 @@ public interface ITransactionalKafkaMessageSender {
   }
 
 
+  /**
+   * Same as {@link #sendMessage(SendMessageRequest)}, but the returned stage completes, when Kafka has acknowledged the message.
+   *
+   * <p>Only acknowledgements seen by the proxies of this node complete the stage. When the shard-partition is led by another node, or the message
+   * was spooled, the stage completes exceptionally. It also completes exceptionally when the transaction is rolled back, or when
+   * `tw-tkms.acknowledgement-tracking.timeout` passes.
+   *
+   * <p>Group commit is not used for those sends.
+   */
+  CompletionStage<RecordMetadata> sendMessageAsync(SendMessageRequest request);
+
+  CompletionStage<RecordMetadata> sendMessageAsync(TkmsMessage message);
+
   /**
    * Batch variant for {@link ITransactionalKafkaMessageSender#sendMessage(com.transferwise.kafka.tkms.api.TkmsMessage)}
    *
@@ -4,17 +4,40 @@ import com.transferwise.common.baseutils.meters.cache.IMeterCache;
 import com.transferwise.kafka.tkms.EnvironmentValidator;
 import com.transferwise.kafka.tkms.IEnvironmentValidator;
 import com.transferwise.kafka.tkms.IProblemNotifier;
+import com.transferwise.kafka.tkms.ITkmsAcknowledgementTracker;
+import com.transferwise.kafka.tkms.ITkmsBacklogEstimator;
+import com.transferwise.kafka.tkms.ITkmsDeadLetterTracker;
+import com.transferwise.kafka.tkms.ITkmsEarliestMessageIdsCommitter;
+import com.transferwise.kafka.tkms.ITkmsEventsDispatcher;
+import com.transferwise.kafka.tkms.ITkmsLeadershipBalancer;
 import com.transferwise.kafka.tkms.ITkmsPaceMaker;
+import com.transferwise.kafka.tkms.ITkmsProxyWarmUp;
+import com.transferwise.kafka.tkms.ITkmsProxyStateHandover;
+import com.transferwise.kafka.tkms.ITkmsSpool;
 import com.transferwise.kafka.tkms.ITkmsStorageToKafkaProxy;
+import com.transferwise.kafka.tkms.ITkmsTopicValidator;
 import com.transferwise.kafka.tkms.ITkmsZookeeperOperations;
 import com.transferwise.kafka.tkms.JavaxValidationEnvironmentValidator;
 import com.transferwise.kafka.tkms.ProblemNotifier;
+import com.transferwise.kafka.tkms.TkmsAcknowledgementTracker;
+import com.transferwise.kafka.tkms.TkmsBacklogEstimator;
+import com.transferwise.kafka.tkms.TkmsDeadLetters;
+import com.transferwise.kafka.tkms.TkmsDeliveryJanitor;
+import com.transferwise.kafka.tkms.TkmsEarliestMessageIdsCommitter;
+import com.transferwise.kafka.tkms.TkmsEventsDispatcher;
+import com.transferwise.kafka.tkms.TkmsLeadershipBalancer;
 import com.transferwise.kafka.tkms.TkmsMessageInterceptors;
 import com.transferwise.kafka.tkms.TkmsPaceMaker;
+import com.transferwise.kafka.tkms.TkmsPartitioner;
+import com.transferwise.kafka.tkms.TkmsProxyWarmUp;
+import com.transferwise.kafka.tkms.TkmsSpool;
 import com.transferwise.kafka.tkms.TkmsStorageToKafkaProxy;
+import com.transferwise.kafka.tkms.TkmsTopicValidator;
 import com.transferwise.kafka.tkms.TkmsZookeeperOperations;
+import com.transferwise.kafka.tkms.TkmsZookeeperProxyStateHandover;
 import com.transferwise.kafka.tkms.TransactionalKafkaMessageSender;
 import com.transferwise.kafka.tkms.api.ITkmsMessageInterceptors;
+import com.transferwise.kafka.tkms.api.ITkmsPartitioner;
 import com.transferwise.kafka.tkms.api.ITransactionalKafkaMessageSender;
 import com.transferwise.kafka.tkms.api.Tkms;
 import com.transferwise.kafka.tkms.api.helpers.ITkmsMessageFactory;
@@ -94,6 +117,78 @@ public class TkmsConfiguration {
     return new TkmsZookeeperOperations();
   }
 
+  @Bean
+  @ConditionalOnMissingBean(ITkmsLeadershipBalancer.class)
+  public TkmsLeadershipBalancer tkmsLeadershipBalancer() {
+    return new TkmsLeadershipBalancer();
+  }
+
+  @Bean
+  @ConditionalOnMissingBean(ITkmsProxyStateHandover.class)
+  public TkmsZookeeperProxyStateHandover tkmsProxyStateHandover() {
+    return new TkmsZookeeperProxyStateHandover();
+  }
+
+  @Bean
+  @ConditionalOnMissingBean(ITkmsProxyWarmUp.class)
+  public TkmsProxyWarmUp tkmsProxyWarmUp() {
+    return new TkmsProxyWarmUp();
+  }
+
+  @Bean
+  @ConditionalOnMissingBean(ITkmsEarliestMessageIdsCommitter.class)
+  public TkmsEarliestMessageIdsCommitter tkmsEarliestMessageIdsCommitter() {
+    return new TkmsEarliestMessageIdsCommitter();
+  }
+
+  @Bean
+  @ConditionalOnMissingBean(ITkmsTopicValidator.class)
+  public TkmsTopicValidator tkmsTopicValidator() {
+    return new TkmsTopicValidator();
+  }
+
+  @Bean
+  @ConditionalOnMissingBean(ITkmsEventsDispatcher.class)
+  public TkmsEventsDispatcher tkmsEventsDispatcher() {
+    return new TkmsEventsDispatcher();
+  }
+
+  @Bean
+  @ConditionalOnMissingBean(ITkmsAcknowledgementTracker.class)
+  public TkmsAcknowledgementTracker tkmsAcknowledgementTracker() {
+    return new TkmsAcknowledgementTracker();
+  }
+
+  @Bean
+  @ConditionalOnMissingBean(ITkmsDeadLetterTracker.class)
+  public TkmsDeadLetters tkmsDeadLetters() {
+    return new TkmsDeadLetters();
+  }
+
+  @Bean
+  @ConditionalOnMissingBean(ITkmsBacklogEstimator.class)
+  public TkmsBacklogEstimator tkmsBacklogEstimator() {
+    return new TkmsBacklogEstimator();
+  }
+
+  @Bean
+  @ConditionalOnMissingBean(ITkmsPartitioner.class)
+  public TkmsPartitioner tkmsPartitioner() {
+    return new TkmsPartitioner();
+  }
+
+  @Bean
+  @ConditionalOnMissingBean(ITkmsSpool.class)
+  public TkmsSpool tkmsSpool() {
+    return new TkmsSpool();
+  }
+
+  @Bean
+  @ConditionalOnMissingBean(TkmsDeliveryJanitor.class)
+  public TkmsDeliveryJanitor tkmsDeliveryJanitor() {
+    return new TkmsDeliveryJanitor();
+  }
+
   /**
    * This would work for simple services, mostly when having one database.
    *
@@ -5,15 +5,18 @@ import com.transferwise.common.baseutils.validation.ResolvedValue;
 import com.transferwise.kafka.tkms.CompressionAlgorithm;
 import com.transferwise.kafka.tkms.api.TkmsShardPartition;
 import java.time.Duration;
+import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotEmpty;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Positive;
+import javax.validation.constraints.PositiveOrZero;
 import lombok.Data;
 import lombok.experimental.Accessors;
 import org.springframework.beans.factory.InitializingBean;
@@ -195,6 +198,27 @@ public class TkmsProperties implements InitializingBean {
    */
   private boolean validateSerialization = false;
 
+  /**
+   * When a send fails, only the Kafka topic-partition of that message is held back for `pauseTimeOnErrors`, instead of pausing the whole
+   * shard-partition.
+   *
+   * <p>The partition of a message with a key is resolved the same way as the Kafka producer's default partitioner does, so it can not be used
+   * with a custom `partitioner.class`. The startup fails, when both are set.
+   */
+  private boolean isolateKafkaPartitionErrors = false;
+
+  /**
+   * Name of a header carrying a stable key of the message, `{shard}_{partition}_{id}_{insertTimestampMs}`, for the consumers to de-duplicate on.
+   *
+   * <p>Messages from the priority and generation tables have the table in the key as well, e.g.
+   * `{shard}_{partition}_priority_{id}_{insertTimestampMs}`.
+   *
+   * <p>Messages are delivered at least once, e.g. when a node loses the leadership after sending, but before deleting the messages.
+   *
+   * <p>Disabled, when not set.
+   */
+  private String idempotencyHeader;
+
   /**
    * List topics used by the lib.
    *
@@ -206,10 +230,84 @@ public class TkmsProperties implements InitializingBean {
   @LegacyResolvedValue
   private List<String> topics = new ArrayList<>();
 
+  /**
+   * Messages for those topics are written into a separate, priority, table for each shard-partition - `{tableBaseName}_{shard}_{partition}_priority`.
+   *
+   * <p>The proxy polls the priority table first in every cycle, using the same leadership and Kafka producer. So urgent messages are not queued
+   * behind bulk ones.
+   *
+   * <p>Ordering is preserved, as all the messages for a topic go to the same table. But adding a topic here reorders its messages still waiting in
+   * the main table, those are sent out after the new ones. And when the last priority topic of a shard is removed, its priority tables are not
+   * polled anymore, so those have to be drained first.
+   */
+  @ResolvedValue
+  @LegacyResolvedValue
+  private List<String> priorityTopics = new ArrayList<>();
+
   @Valid
   @jakarta.validation.Valid
   private EarliestVisibleMessages earliestVisibleMessages = new EarliestVisibleMessages();
 
+  @Valid
+  @jakarta.validation.Valid
+  @NotNull
+  @jakarta.validation.constraints.NotNull
+  private IdlePolling idlePolling = new IdlePolling();
+
+  @Valid
+  @jakarta.validation.Valid
+  @NotNull
+  @jakarta.validation.constraints.NotNull
+  private LeadershipBalancing leadershipBalancing = new LeadershipBalancing();
+
+  @Valid
+  @jakarta.validation.Valid
+  @NotNull
+  @jakarta.validation.constraints.NotNull
+  private ProxyStateHandover proxyStateHandover = new ProxyStateHandover();
+
+  @Valid
+  @jakarta.validation.Valid
+  @NotNull
+  @jakarta.validation.constraints.NotNull
+  private ProducerWarmUp producerWarmUp = new ProducerWarmUp();
+
+  @Valid
+  @jakarta.validation.Valid
+  @NotNull
+  @jakarta.validation.constraints.NotNull
+  private TableRotation tableRotation = new TableRotation();
+
+  @Valid
+  @jakarta.validation.Valid
+  @NotNull
+  @jakarta.validation.constraints.NotNull
+  private DeliveryWatermarks deliveryWatermarks = new DeliveryWatermarks();
+
+  @Valid
+  @jakarta.validation.Valid
+  @NotNull
+  @jakarta.validation.constraints.NotNull
+  private DeadLetters deadLetters = new DeadLetters();
+
+  @Valid
+  @jakarta.validation.Valid
+  @NotNull
+  @jakarta.validation.constraints.NotNull
+  private Spool spool = new Spool();
+
+  @Valid
+  @jakarta.validation.Valid
+  @NotNull
+  @jakarta.validation.constraints.NotNull
+  private GroupCommit groupCommit = new GroupCommit();
+
+  @Valid
+  @jakarta.validation.Valid
+  @NotNull
+  @jakarta.validation.constraints.NotNull
+  private Partitioning partitioning = new Partitioning();
+
   /**
    * Additional or overridden properties for kafka consumers.
    *
@@ -237,6 +335,28 @@ public class TkmsProperties implements InitializingBean {
    */
   private boolean deferMessageRegistrationUntilCommit = false;
 
+  /**
+   * Deferred messages of a transaction are inserted into the database before the commit, when more than that many are collected in memory.
+   *
+   * <p>The order of messages in a shard-partition is kept, but the database work is not fully moved to the pre-commit hook anymore.
+   */
+  @Positive
+  @jakarta.validation.constraints.Positive
+  private int deferredMessagesFlushCount = 10_000;
+
+  /**
+   * Same as `deferredMessagesFlushCount`, but for the estimated size of the collected messages.
+   */
+  @Positive
+  @jakarta.validation.constraints.Positive
+  private long deferredMessagesFlushBytes = 64 * 1024 * 1024;
+
+  @Valid
+  @jakarta.validation.Valid
+  @NotNull
+  @jakarta.validation.constraints.NotNull
+  private EagerSerialization eagerSerialization = new EagerSerialization();
+
   @Valid
   @jakarta.validation.Valid
   private Compression compression = new Compression();
@@ -249,6 +369,18 @@ public class TkmsProperties implements InitializingBean {
   @jakarta.validation.Valid
   private Monitoring monitoring = new Monitoring();
 
+  @Valid
+  @jakarta.validation.Valid
+  @NotNull
+  @jakarta.validation.constraints.NotNull
+  private TopicValidation topicValidation = new TopicValidation();
+
+  @Valid
+  @jakarta.validation.Valid
+  @NotNull
+  @jakarta.validation.constraints.NotNull
+  private AcknowledgementTracking acknowledgementTracking = new AcknowledgementTracking();
+
   /**
    * Validation requires quite specific privileges in database. Some teams may need to turn it off.
    */
@@ -304,13 +436,41 @@ public class TkmsProperties implements InitializingBean {
     private boolean compressionOverridden;
     private Boolean deferRegisteredMessagesUntilCommit;
     private Boolean validateSerialization;
+    private Boolean isolateKafkaPartitionErrors;
     @Valid
     @jakarta.validation.Valid
     private Compression compression = new Compression();
     @Valid
     @jakarta.validation.Valid
     private EarliestVisibleMessages earliestVisibleMessages;
+    @Valid
+    @jakarta.validation.Valid
+    private IdlePolling idlePolling;
+    @Valid
+    @jakarta.validation.Valid
+    private ProducerWarmUp producerWarmUp;
+    @Valid
+    @jakarta.validation.Valid
+    private TableRotation tableRotation;
+    @Valid
+    @jakarta.validation.Valid
+    private DeliveryWatermarks deliveryWatermarks;
+    @Valid
+    @jakarta.validation.Valid
+    private DeadLetters deadLetters;
+    @Valid
+    @jakarta.validation.Valid
+    private Spool spool;
+    @Valid
+    @jakarta.validation.Valid
+    private GroupCommit groupCommit;
+    @Valid
+    @jakarta.validation.Valid
+    private Partitioning partitioning;
     private List<Integer> deleteBatchSizes;
+    @ResolvedValue
+    @LegacyResolvedValue
+    private List<String> priorityTopics;
     private Map<NotificationType, NotificationLevel> notificationLevels = new HashMap<>();
 
     @ResolvedValue
@@ -326,6 +486,14 @@ public class TkmsProperties implements InitializingBean {
     return validateSerialization;
   }
 
+  public boolean isIsolateKafkaPartitionErrors(int shard) {
+    var shardProperties = shards.get(shard);
+    if (shardProperties != null && shardProperties.getIsolateKafkaPartitionErrors() != null) {
+      return shardProperties.getIsolateKafkaPartitionErrors();
+    }
+    return isolateKafkaPartitionErrors;
+  }
+
   public Duration getProxyStopTimeout(int shard) {
     var shardProperties = shards.get(shard);
     if (shardProperties != null && shardProperties.getProxyStopTimeout() != null) {
@@ -414,6 +582,78 @@ public class TkmsProperties implements InitializingBean {
     return earliestVisibleMessages;
   }
 
+  public IdlePolling getIdlePolling(int shard) {
+    var shardProperties = shards.get(shard);
+    if (shardProperties != null && shardProperties.getIdlePolling() != null) {
+      return shardProperties.getIdlePolling();
+    }
+    return idlePolling;
+  }
+
+  public List<String> getPriorityTopics(int shard) {
+    var shardProperties = shards.get(shard);
+    if (shardProperties != null && shardProperties.getPriorityTopics() != null) {
+      return shardProperties.getPriorityTopics();
+    }
+    return priorityTopics;
+  }
+
+  public ProducerWarmUp getProducerWarmUp(int shard) {
+    var shardProperties = shards.get(shard);
+    if (shardProperties != null && shardProperties.getProducerWarmUp() != null) {
+      return shardProperties.getProducerWarmUp();
+    }
+    return producerWarmUp;
+  }
+
+  public TableRotation getTableRotation(int shard) {
+    var shardProperties = shards.get(shard);
+    if (shardProperties != null && shardProperties.getTableRotation() != null) {
+      return shardProperties.getTableRotation();
+    }
+    return tableRotation;
+  }
+
+  public Partitioning getPartitioning(int shard) {
+    var shardProperties = shards.get(shard);
+    if (shardProperties != null && shardProperties.getPartitioning() != null) {
+      return shardProperties.getPartitioning();
+    }
+    return partitioning;
+  }
+
+  public GroupCommit getGroupCommit(int shard) {
+    var shardProperties = shards.get(shard);
+    if (shardProperties != null && shardProperties.getGroupCommit() != null) {
+      return shardProperties.getGroupCommit();
+    }
+    return groupCommit;
+  }
+
+  public Spool getSpool(int shard) {
+    var shardProperties = shards.get(shard);
+    if (shardProperties != null && shardProperties.getSpool() != null) {
+      return shardProperties.getSpool();
+    }
+    return spool;
+  }
+
+  public DeliveryWatermarks getDeliveryWatermarks(int shard) {
+    var shardProperties = shards.get(shard);
+    if (shardProperties != null && shardProperties.getDeliveryWatermarks() != null) {
+      return shardProperties.getDeliveryWatermarks();
+    }
+    return deliveryWatermarks;
+  }
+
+  public DeadLetters getDeadLetters(int shard) {
+    var shardProperties = shards.get(shard);
+    if (shardProperties != null && shardProperties.getDeadLetters() != null) {
+      return shardProperties.getDeadLetters();
+    }
+    return deadLetters;
+  }
+
   public List<Integer> getDeleteBatchSizes(int shard) {
     var shardProperties = shards.get(shard);
     if (shardProperties != null && shardProperties.deleteBatchSizes != null && !shardProperties.deleteBatchSizes.isEmpty()) {
@@ -436,6 +676,38 @@ public class TkmsProperties implements InitializingBean {
     MARIADB
   }
 
+  public enum EarliestMessagesTrackingMode {
+    /**
+     * Ids seen during the `lookBackPeriod` are used to guess the lowest id, which could still be invisible.
+     */
+    LOOK_BACK,
+    /**
+     * Postgres only. Messages are polled in the order of their transaction ids, up to the oldest transaction still running.
+     *
+     * <p>Requires an `xid xid8 default pg_current_xact_id()` column and an `(xid, id)` index on the tables, i.e. Postgres 13+.
+     */
+    TRANSACTION_IDS
+  }
+
+  public enum PartitioningStrategy {
+    /**
+     * `String.hashCode()` of the key, random partition for keyless messages.
+     *
+     * <p>Keeps the partitions of older versions, but can spread similar keys, e.g. numeric ones, unevenly.
+     */
+    HASH_CODE,
+    /**
+     * Murmur2 hash of the key, same as Kafka's default partitioner uses. Random partition for keyless messages.
+     */
+    MURMUR2,
+    /**
+     * As `MURMUR2` for keyed messages. Keyless messages go into the less backlogged one of two random partitions.
+     *
+     * <p>Backlogs are estimated from the table statistics and the recent polls of the proxies on this node, see `TkmsBacklogEstimator`.
+     */
+    LEAST_BACKLOG
+  }
+
   @Data
   @Accessors(chain = true)
   public static class Compression {
@@ -500,6 +772,561 @@ public class TkmsProperties implements InitializingBean {
      * <p>In most cases you want to set this higher than `proxyTimeToLive`, so it will happen only once per proxy lifecycle (default up to 1 hour).
      */
     private Duration pollAllInterval = null;
+
+    /**
+     * With `TRANSACTION_IDS` mode, the earliest visible message is known exactly, so `lookBackPeriod` and `pollAllInterval` are not used.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private EarliestMessagesTrackingMode trackingMode = EarliestMessagesTrackingMode.LOOK_BACK;
+
+    /**
+     * How often the earliest message ids of all the shard-partitions led by a node are committed, in one statement per shard.
+     *
+     * <p>Node level setting, shard overrides are ignored.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration commitInterval = Duration.ofSeconds(5);
+
+    @Valid
+    @jakarta.validation.Valid
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private RecoverySweep recoverySweep = new RecoverySweep();
+  }
+
+  /**
+   * Delivers messages forgotten below the earliest visible message id, e.g. ones added by transactions longer than `lookBackPeriod`.
+   *
+   * <p>The proxy pages through the table from its beginning, in small chunks, and sends out anything it finds below the earliest visible message id.
+   * A chunk is polled at most once per `interval`, so the sweep puts a small and steady load on the database, unlike `pollAllInterval`.
+   *
+   * <p>Notice, that the order of the messages may change, when forgotten messages are sent out.
+   *
+   * <p>Only used with `LOOK_BACK` tracking mode.
+   */
+  @Data
+  @Accessors(chain = true)
+  public static class RecoverySweep {
+
+    private boolean enabled = false;
+
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration interval = Duration.ofSeconds(5);
+
+    @Positive
+    @jakarta.validation.constraints.Positive
+    private int batchSize = 100;
+  }
+
+  /**
+   * Most of the time, tkms tables are empty. The idle polling mode allows to reduce the load those shard-partitions put on the database.
+   *
+   * <p>After `emptyPollsThreshold` consecutive empty polls, the proxy will stop doing full polls and will only check if any message exists, using a
+   * cheap index-only query. The pause between those checks is doubled every time, until `maxPollingInterval` is reached.
+   *
+   * <p>As soon as a message is found, full polls with the normal polling interval are resumed.
+   *
+   * <p>With table rotation or delivery watermarks, the regular poll serves as the existence check, only the pause between empty polls is growing.
+   *
+   * <p>The tradeoff is that the first message after an idle period can have up to `maxPollingInterval` of additional latency.
+   */
+  @Data
+  @Accessors(chain = true)
+  public static class IdlePolling {
+
+    private boolean enabled = false;
+
+    /**
+     * How many consecutive empty polls are needed to switch to the idle mode.
+     */
+    @Positive
+    @jakarta.validation.constraints.Positive
+    private int emptyPollsThreshold = 40;
+
+    /**
+     * The ceiling for the exponentially growing pause between existence checks.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration maxPollingInterval = Duration.ofMillis(500);
+  }
+
+  /**
+   * Cooperative balancing of shard-partition proxies between service nodes.
+   *
+   * <p>Every node periodically publishes an ephemeral ZooKeeper node with the amount of shard-partitions it is leading and how many messages it has
+   * proxied. A node leading more than its fair share, `ceil(shard-partitions / nodes)`, gives up leadership of its excess shard-partitions, starting
+   * from the busiest ones. A node leading its fair share, but proxying considerably more messages than the average node, gives up one busy
+   * shard-partition per interval.
+   *
+   * <p>`proxyTimeToLive` still applies, but when balancing is enabled, it can be set considerably higher.
+   */
+  @Data
+  @Accessors(chain = true)
+  public static class LeadershipBalancing {
+
+    private boolean enabled = false;
+
+    /**
+     * How often the node publishes its state and re-evaluates its fair share.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration interval = Duration.ofSeconds(10);
+
+    /**
+     * Shard-partition leadership younger than this is never given away, which avoids the leadership flapping between nodes.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration minLeadershipDuration = Duration.ofSeconds(30);
+
+    /**
+     * How much more messages than the average node, relatively, a node can proxy before it starts to give away its shard-partitions.
+     *
+     * <p>With the default, a node proxying over 1.5 times the average is considered overloaded.
+     */
+    @PositiveOrZero
+    @jakarta.validation.constraints.PositiveOrZero
+    private double loadImbalanceTolerance = 0.5;
+  }
+
+  /**
+   * When a proxy gives away its leadership, it publishes the earliest messages tracking state into ZooKeeper, and the next leader resumes from it.
+   *
+   * <p>Without it, the next leader has to wait for a full `lookBackPeriod` before the earliest visible messages system becomes usable again, polling
+   * the whole table in the meanwhile.
+   *
+   * <p>Relies on service nodes' clocks being reasonably in sync.
+   */
+  @Data
+  @Accessors(chain = true)
+  public static class ProxyStateHandover {
+
+    private boolean enabled = false;
+
+    /**
+     * Handed over state older than this is ignored, e.g. when the previous leader crashed and the state is from some earlier handover.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration maxAge = Duration.ofSeconds(30);
+  }
+
+  /**
+   * Kafka producer warm-up for low-latency shards.
+   *
+   * <p>Nodes not leading a shard-partition keep the shard's Kafka producer and topics metadata warm, so they do not have to create and fetch those
+   * after acquiring the leader lock. The leader publishes heartbeats, which allow the incoming leader to measure the failover time.
+   *
+   * <p>This is not a hot standby. The incoming leader still initializes its trackers from the database, and can not take over before the lock is
+   * released. When the leader node freezes, the lock is held until its ZooKeeper session expires, so the session timeout still bounds the failover
+   * time.
+   */
+  @Data
+  @Accessors(chain = true)
+  public static class ProducerWarmUp {
+
+    private boolean enabled = false;
+
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration heartbeatInterval = Duration.ofSeconds(1);
+
+    /**
+     * How often the producer's topics metadata is fetched.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration interval = Duration.ofSeconds(30);
+  }
+
+  /**
+   * Rotating generation tables, replacing the `DELETE` of every proxied message with a periodic `TRUNCATE` of a whole table.
+   *
+   * <p>Every shard-partition gets `generationsCount` tables - `{tableBaseName}_{shard}_{partition}_g{generation}`. Messages are written into the
+   * generation active at the time of the insert, generations switch after every `generationDuration`.
+   *
+   * <p>The proxy does not delete the proxied messages, but remembers them and marks its progress in the `watermarksTableName` table. A generation
+   * is truncated, once it has not been active for a full `generationDuration`, and all its messages have been proxied.
+   *
+   * <p>The tradeoff is that on leader change, the messages proxied during the last `lookBackPeriod` can be sent again.
+   */
+  @Data
+  @Accessors(chain = true)
+  public static class TableRotation {
+
+    private boolean enabled = false;
+
+    /**
+     * At least three generations are needed - one for writing, one which can still have ongoing transactions and one to truncate.
+     */
+    @Min(3)
+    @jakarta.validation.constraints.Min(3)
+    private int generationsCount = 4;
+
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration generationDuration = Duration.ofMinutes(15);
+
+    /**
+     * Messages with ids lower than already proxied ones, are looked for during this period.
+     *
+     * <p>Has the same meaning as `earliestVisibleMessages.lookBackPeriod` and should be longer than any transaction registering messages.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration lookBackPeriod = Duration.ofMinutes(1);
+
+    /**
+     * How often the proxy looks for messages it has skipped over, i.e. those committed out of the id order.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration rescanInterval = Duration.ofSeconds(1);
+
+    @ResolvedValue
+    @LegacyResolvedValue
+    private String watermarksTableName = "tw_tkms_rotation_watermarks";
+
+    /**
+     * Period is a `generationDuration` long time slot, starting from epoch. Every period is served by one generation.
+     */
+    public long getPeriod(long timeMs) {
+      return timeMs / generationDuration.toMillis();
+    }
+
+    public int getGeneration(long period) {
+      return (int) (period % generationsCount);
+    }
+  }
+
+  /**
+   * How messages without an explicit partition are assigned into the partitions of a shard.
+   *
+   * <p>Changing the strategy moves keys into other partitions. Messages with the same key, sent around the switch, can be delivered out of
+   * order, so the switch should be done when a shard has no traffic for the keys where the order matters.
+   */
+  @Data
+  @Accessors(chain = true)
+  public static class Partitioning {
+
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private PartitioningStrategy strategy = PartitioningStrategy.HASH_CODE;
+
+    /**
+     * How often the skew metric and the backlog estimates for `LEAST_BACKLOG` are refreshed.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration refreshInterval = Duration.ofSeconds(5);
+
+    /**
+     * Not used anymore, backlogs are estimated instead of counted. Kept, so existing configurations keep binding.
+     *
+     * @deprecated has no effect since 0.26.0, will be removed in a future major version.
+     */
+    @Deprecated
+    private int backlogCountLimit = 10_000;
+  }
+
+  /**
+   * Combines messages sent without an active transaction into one multi-row insert and transaction per shard-partition.
+   *
+   * <p>Only has an effect, when sending without an active transaction is allowed by `notificationLevels`. Concurrent callers wait up to
+   * `maxWait` for others to join, while one transaction per shard-partition is in flight.
+   */
+  @Data
+  @Accessors(chain = true)
+  public static class GroupCommit {
+
+    private boolean enabled = false;
+
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration maxWait = Duration.ofMillis(2);
+
+    @Positive
+    @jakarta.validation.constraints.Positive
+    private int maxBatchSize = 100;
+  }
+
+  /**
+   * Serializes and compresses deferred messages when those are registered, instead of in the pre-commit hook.
+   *
+   * <p>The pre-commit hook then only inserts ready bytes, which shortens the time locks on the business data are held. Both the message and its
+   * serialized form are kept in memory, until the messages are inserted.
+   *
+   * <p>With `concurrency` 0, messages are serialized by the registering thread. Otherwise up to that many messages are serialized in parallel in
+   * the background, and the registering thread waits when all of those are busy.
+   *
+   * <p>Messages must not be modified after those have been sent.
+   */
+  @Data
+  @Accessors(chain = true)
+  public static class EagerSerialization {
+
+    private boolean enabled = false;
+
+    @PositiveOrZero
+    @jakarta.validation.constraints.PositiveOrZero
+    private int concurrency = 0;
+  }
+
+  /**
+   * Local write-ahead spool, for shards where availability matters more than the transactional guarantees.
+   *
+   * <p>When an insert times out or the database can not be reached, the message is appended into a memory-mapped file in `directory`, after the
+   * business transaction has committed. A background task replays the spooled messages into the table.
+   *
+   * <p>The files are forced to the disk every `fsyncInterval`. A crash of the host loses the messages appended during that interval, a crash of
+   * the service between the commit and the append loses the messages of that transaction. Messages can also be replayed twice, when the service
+   * crashes during the replay.
+   */
+  @Data
+  @Accessors(chain = true)
+  public static class Spool {
+
+    private boolean enabled = false;
+
+    /**
+     * Has to be node specific, i.e. not shared with other service instances.
+     */
+    @NotBlank
+    @jakarta.validation.constraints.NotBlank
+    private String directory = System.getProperty("java.io.tmpdir") + "/tw-tkms-spool";
+
+    /**
+     * Query timeout for the inserts. Rounded up to whole seconds, as the JDBC drivers do not support anything finer.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration insertTimeout = Duration.ofSeconds(1);
+
+    @Positive
+    @jakarta.validation.constraints.Positive
+    private int fileSizeBytes = 64 * 1024 * 1024;
+
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration fsyncInterval = Duration.ofMillis(100);
+
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration replayInterval = Duration.ofSeconds(5);
+  }
+
+  /**
+   * Replaces the `DELETE` of every proxied message with a "delivered up to id" watermark per shard-partition, committed into the `tableName` table.
+   *
+   * <p>A janitor removes the rows below the watermarks with range deletes, at its own cadence.
+   *
+   * <p>Messages failed to be sent are kept as a short list of pending ids next to the watermark, so they do not hold it back.
+   *
+   * <p>The tradeoff is that on leader change, the messages proxied during the last `lookBackPeriod` can be sent again.
+   */
+  @Data
+  @Accessors(chain = true)
+  public static class DeliveryWatermarks {
+
+    private boolean enabled = false;
+
+    @ResolvedValue
+    @LegacyResolvedValue
+    private String tableName = "tw_tkms_delivery_watermarks";
+
+    /**
+     * Messages with ids lower than already proxied ones, are looked for during this period.
+     *
+     * <p>Has the same meaning as `earliestVisibleMessages.lookBackPeriod` and should be longer than any transaction registering messages.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration lookBackPeriod = Duration.ofMinutes(1);
+
+    /**
+     * How often the proxy looks for messages it has skipped over, and commits the watermark.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration rescanInterval = Duration.ofSeconds(1);
+
+    /**
+     * How many failed messages can be remembered, before those start to hold back the watermark.
+     */
+    @PositiveOrZero
+    @jakarta.validation.constraints.PositiveOrZero
+    private int maxPendingIds = 64;
+
+    @Valid
+    @jakarta.validation.Valid
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Janitor janitor = new Janitor();
+  }
+
+  @Data
+  @Accessors(chain = true)
+  public static class Janitor {
+
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration interval = Duration.ofMinutes(1);
+
+    /**
+     * Maximum amount of rows removed by one delete statement.
+     */
+    @Positive
+    @jakarta.validation.constraints.Positive
+    private int deleteBatchSize = 10_000;
+
+    /**
+     * When both are set, the janitor runs only in that time window, e.g. from 01:00 to 05:00. The window can go over midnight.
+     *
+     * <p>Time is in the service's default time zone.
+     */
+    private LocalTime windowStart;
+    private LocalTime windowEnd;
+
+    public boolean isInWindow(LocalTime time) {
+      if (windowStart == null || windowEnd == null) {
+        return true;
+      }
+      if (windowStart.isBefore(windowEnd)) {
+        return !time.isBefore(windowStart) && time.isBefore(windowEnd);
+      }
+      return !time.isBefore(windowStart) || time.isBefore(windowEnd);
+    }
+  }
+
+  /**
+   * Moves messages, which keep failing to be sent, out of the way, into the `{tableBaseName}_{shard}_dead_letter` table.
+   *
+   * <p>Dead letters are sent again on a schedule, until `maxRetries` is reached. After that, those stay in the table until replayed.
+   */
+  @Data
+  @Accessors(chain = true)
+  public static class DeadLetters {
+
+    private boolean enabled = false;
+
+    /**
+     * Send attempts of a message, before it is moved to the dead letter table.
+     *
+     * <p>Attempts are counted in memory, on the node leading the shard-partition, so those start from zero on a leadership change.
+     */
+    @Positive
+    @jakarta.validation.constraints.Positive
+    private int maxAttempts = 10;
+
+    /**
+     * A message failing with a retriable error, e.g. a timeout while Kafka is unavailable, is moved only when its failed attempts have spanned
+     * at least that long. So an outage of Kafka does not move every message polled during it.
+     *
+     * <p>Messages failing with other errors are moved after `maxAttempts`.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration retriableErrorsMinDuration = Duration.ofMinutes(15);
+
+    /**
+     * Delay before the first retry of a dead letter. Doubled on every failed retry, up to `maxRetryDelay`.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration retryDelay = Duration.ofMinutes(1);
+
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration maxRetryDelay = Duration.ofHours(1);
+
+    /**
+     * 0 disables the automatic retries.
+     */
+    @PositiveOrZero
+    @jakarta.validation.constraints.PositiveOrZero
+    private int maxRetries = 10;
+
+    /**
+     * How often the proxy looks for dead letters due for a retry.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration retryInterval = Duration.ofSeconds(10);
+
+    @Positive
+    @jakarta.validation.constraints.Positive
+    private int retryBatchSize = 100;
+  }
+
+  /**
+   * Topics are validated against a local cache of Kafka metadata, so registering a message does not wait for Kafka.
+   */
+  @Data
+  @Accessors(chain = true)
+  public static class TopicValidation {
+
+    /**
+     * How often the metadata of known topics is refreshed in the background.
+     *
+     * <p>A failed refresh keeps the last known state of the topic.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration refreshInterval = Duration.ofMinutes(1);
+
+    /**
+     * How long a topic, which was not found, is rejected without asking Kafka again.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration negativeCacheTtl = Duration.ofSeconds(10);
+
+    /**
+     * How long the registration waits for the metadata of a topic, which has not been seen before.
+     *
+     * <p>By default, a second longer than the `max.block.ms` of the shard's Kafka producer, which is how long the producer itself waits.
+     *
+     * <p>Topics listed in `tw-tkms.topics` are looked up at startup, and never wait.
+     */
+    private Duration lookupTimeout;
+  }
+
+  /**
+   * Pending `sendMessageAsync` acknowledgements.
+   */
+  @Data
+  @Accessors(chain = true)
+  public static class AcknowledgementTracking {
+
+    /**
+     * The returned stage completes with a `TimeoutException`, when Kafka has not acknowledged the message by then.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration timeout = Duration.ofMinutes(1);
+
+    /**
+     * Protects the memory, when messages are not acknowledged, e.g. Kafka is down. Above that, new sends are completed exceptionally right
+     * away.
+     */
+    @Positive
+    @jakarta.validation.constraints.Positive
+    private int maxPending = 100_000;
+
+    /**
+     * Acknowledgements are seen only on the node leading the shard-partition. So a message of a shard-partition, this node has not been leading
+     * for longer than that, is completed exceptionally right away, and so are the pending ones.
+     *
+     * <p>Covers the proxy yielding and acquiring the leadership again, e.g. after `proxyTimeToLive`.
+     */
+    @NotNull
+    @jakarta.validation.constraints.NotNull
+    private Duration leadershipGracePeriod = Duration.ofSeconds(10);
   }
 
   @Data
@@ -511,6 +1338,10 @@ public class TkmsProperties implements InitializingBean {
 
     private Duration leftOverMessagesCheckInterval = Duration.ofHours(1);
     private Duration leftOverMessagesCheckStartDelay = Duration.ofHours(1);
+    /**
+     * Forgotten messages are counted up to this number, for the `tw_tkms_dao_forgotten_messages_count` gauge.
+     */
+    private int leftOverMessagesCountLimit = 10000;
   }
 
   /**
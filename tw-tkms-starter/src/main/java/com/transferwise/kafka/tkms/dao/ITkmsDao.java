@@ -1,11 +1,16 @@
 package com.transferwise.kafka.tkms.dao;
 
+import com.transferwise.kafka.tkms.TkmsMessageSource;
 import com.transferwise.kafka.tkms.TkmsMessageWithSequence;
 import com.transferwise.kafka.tkms.api.TkmsMessage;
 import com.transferwise.kafka.tkms.api.TkmsShardPartition;
 import com.transferwise.kafka.tkms.metrics.MonitoringQuery;
 import com.transferwise.kafka.tkms.stored_message.StoredMessage;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.function.LongPredicate;
 import lombok.Data;
 import lombok.experimental.Accessors;
 
@@ -15,12 +20,23 @@ public interface ITkmsDao {
 
   List<InsertMessageResult> insertMessages(TkmsShardPartition shardPartition, List<TkmsMessageWithSequence> tkmsMessages);
 
+  /**
+   * Inserts a message already serialized by {@link ITkmsMessageSerializer}, e.g. one replayed from the spool.
+   */
+  void insertSerializedMessage(TkmsShardPartition shardPartition, String topic, byte[] serializedMessage);
+
   @MonitoringQuery
   long getApproximateMessagesCount(TkmsShardPartition sp);
 
   @MonitoringQuery
   boolean hasMessagesBeforeId(TkmsShardPartition sp, Long messageId);
 
+  /**
+   * Counts messages with id lower than the given one, but not more than `maxCount`.
+   */
+  @MonitoringQuery
+  int getMessagesCountBeforeId(TkmsShardPartition sp, long messageId, int maxCount);
+
   @Data
   @Accessors(chain = true)
   class InsertMessageResult {
@@ -28,22 +44,145 @@ public interface ITkmsDao {
     private Long storageId;
     private int sequence;
     private TkmsShardPartition shardPartition;
+    /**
+     * Table the message was inserted into, as the storage id is unique only within it.
+     */
+    private TkmsMessageSource source;
   }
 
   List<MessageRecord> getMessages(TkmsShardPartition shardPartition, long earliestMessageId, int maxCount);
 
+  /**
+   * Cheap, index-only, check if there is any message available for polling.
+   */
+  boolean hasMessages(TkmsShardPartition shardPartition, long earliestMessageId);
+
   @Data
   @Accessors(chain = true)
   class MessageRecord {
 
     private long id;
     private StoredMessage.Message message;
+    /**
+     * Only available, when polled by transaction ids.
+     */
+    private long transactionId = -1;
   }
 
   void deleteMessages(TkmsShardPartition shardPartition, List<Long> records);
 
+  /**
+   * Polls the priority table of the shard-partition, holding messages for `priorityTopics`.
+   *
+   * <p>Priority tables are expected to be mostly empty, so the earliest visible messages system is not used for those.
+   */
+  List<MessageRecord> getPriorityMessages(TkmsShardPartition shardPartition, int maxCount);
+
+  void deletePriorityMessages(TkmsShardPartition shardPartition, List<Long> records);
+
+  /**
+   * Polls a generation table of the shard-partition, used when `tableRotation` is enabled.
+   */
+  List<MessageRecord> getGenerationMessages(TkmsShardPartition shardPartition, int generation, long fromMessageId, int maxCount);
+
+  /**
+   * Cheap, index-only, lookup of message ids in a generation table, from `fromMessageId` to `toMessageId`, inclusive.
+   */
+  List<Long> getGenerationMessageIds(TkmsShardPartition shardPartition, int generation, long fromMessageId, long toMessageId);
+
+  /**
+   * Truncates a generation table, if all its messages, starting from `fromMessageId`, have been proxied.
+   *
+   * <p>The table is locked for the check, so no transaction can sneak a message in between the check and the truncation.
+   *
+   * @return true, if the table was truncated.
+   */
+  boolean truncateGeneration(TkmsShardPartition shardPartition, int generation, long fromMessageId, LongPredicate proxied);
+
+  Long getRotationWatermark(TkmsShardPartition shardPartition, int generation);
+
+  void saveRotationWatermark(TkmsShardPartition shardPartition, int generation, long watermark);
+
+  /**
+   * Cheap, index-only, lookup of message ids, from `fromMessageId` to `toMessageId`, inclusive.
+   */
+  List<Long> getMessageIds(TkmsShardPartition shardPartition, long fromMessageId, long toMessageId);
+
+  /**
+   * Deletes up to `maxCount` messages with ids from `fromMessageId`, inclusive, to `toMessageId`, exclusive.
+   *
+   * @return the number of deleted messages.
+   */
+  int deleteMessagesRange(TkmsShardPartition shardPartition, long fromMessageId, long toMessageId, int maxCount);
+
+  DeliveryWatermark getDeliveryWatermark(TkmsShardPartition shardPartition);
+
+  void saveDeliveryWatermark(TkmsShardPartition shardPartition, long watermark, Collection<Long> pendingIds);
+
+  /**
+   * All messages with ids below the watermark have been proxied, except the pending ones.
+   */
+  @Data
+  @Accessors(chain = true)
+  class DeliveryWatermark {
+
+    private long watermark;
+    private List<Long> pendingIds = new ArrayList<>();
+  }
+
+  /**
+   * Inserts into the dead letter table of the shard, in one batch.
+   */
+  void insertDeadLetters(TkmsShardPartition shardPartition, List<DeadLetterRecord> deadLetterRecords);
+
+  /**
+   * Dead letters of the partition, oldest first.
+   */
+  List<DeadLetterRecord> getDeadLetters(TkmsShardPartition shardPartition, int maxCount);
+
+  DeadLetterRecord getDeadLetter(TkmsShardPartition shardPartition, long id);
+
+  /**
+   * Dead letters with `next_retry_at` up to the given time, earliest first.
+   */
+  List<DeadLetterRecord> getDeadLettersDueForRetry(TkmsShardPartition shardPartition, long timeMs, int maxCount);
+
+  /**
+   * Updates the error, retries and the next retry time.
+   */
+  void updateDeadLetter(TkmsShardPartition shardPartition, DeadLetterRecord deadLetterRecord);
+
+  /**
+   * @return false, if the dead letter was already deleted, e.g. replayed by another node.
+   */
+  boolean deleteDeadLetter(TkmsShardPartition shardPartition, long id);
+
+  @Data
+  @Accessors(chain = true)
+  class DeadLetterRecord {
+
+    private long id;
+    /**
+     * Id of the message in the outgoing messages table, it was moved from.
+     */
+    private long messageId;
+    private StoredMessage.Message message;
+    private String error;
+    private int retries;
+    private long deadLetteredAtMs;
+    /**
+     * Null, when no more automatic retries are done.
+     */
+    private Long nextRetryAtMs;
+  }
+
   Long getEarliestMessageId(TkmsShardPartition shardPartition);
 
+  /**
+   * Upserts the earliest message ids of many partitions of a shard, with one statement.
+   */
+  void saveEarliestMessageIds(int shard, Map<Integer, Long> partitionsMessageIds);
+
   void saveEarliestMessageId(TkmsShardPartition shardPartition, long messageId);
 
   boolean insertEarliestMessageId(TkmsShardPartition shardPartition);
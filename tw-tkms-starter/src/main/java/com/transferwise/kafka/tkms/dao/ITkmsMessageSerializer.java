@@ -10,5 +10,10 @@ public interface ITkmsMessageSerializer {
 
   InputStream serialize(TkmsShardPartition shardPartition, TkmsMessage tkmsMessage) throws IOException;
 
+  /**
+   * Serializes a message read back from the database, e.g. to move it into another table.
+   */
+  byte[] serialize(TkmsShardPartition shardPartition, Message storedMessage) throws IOException;
+
   Message deserialize(TkmsShardPartition shardPartition, InputStream is) throws IOException;
 }
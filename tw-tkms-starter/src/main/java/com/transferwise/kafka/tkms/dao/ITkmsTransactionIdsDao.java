@@ -0,0 +1,44 @@
+package com.transferwise.kafka.tkms.dao;
+
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.MessageRecord;
+import java.util.List;
+import java.util.Map;
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * Exact earliest visible messages tracking, based on transaction ids. Only supported for Postgres.
+ *
+ * <p>The cursor is kept in the `transaction_id` column of the earliest visible messages table, apart from the `message_id` used by the look-back
+ * tracking, so switching between the tracking modes does not mix those up.
+ */
+public interface ITkmsTransactionIdsDao {
+
+  /**
+   * Polls messages in the order of their transaction ids, starting from `fromTransactionId`, up to the oldest transaction still running.
+   */
+  TransactionIdsPoll getMessagesByTransactionIds(TkmsShardPartition shardPartition, long fromTransactionId, int maxCount);
+
+  /**
+   * Returns null, when no cursor has been committed yet.
+   */
+  Long getTransactionIdsCursor(TkmsShardPartition shardPartition);
+
+  void saveTransactionIdsCursors(int shard, Map<Integer, Long> partitionsCursors);
+
+  @Data
+  @Accessors(chain = true)
+  class TransactionIdsPoll {
+
+    private List<MessageRecord> records;
+    /**
+     * All transactions with lower ids had finished before the poll, so no more messages can show up from those.
+     */
+    private long horizonTransactionId;
+    /**
+     * The transaction id to be assigned next. Equals to the horizon, when no transaction was running.
+     */
+    private long nextTransactionId;
+  }
+}
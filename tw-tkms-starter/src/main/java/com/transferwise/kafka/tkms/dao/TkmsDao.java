@@ -4,23 +4,32 @@ import com.transferwise.common.baseutils.ExceptionUtils;
 import com.transferwise.common.baseutils.transactionsmanagement.ITransactionsHelper;
 import com.transferwise.kafka.tkms.Assertions;
 import com.transferwise.kafka.tkms.IProblemNotifier;
+import com.transferwise.kafka.tkms.TkmsClockHolder;
+import com.transferwise.kafka.tkms.TkmsMessageSource;
 import com.transferwise.kafka.tkms.TkmsMessageWithSequence;
 import com.transferwise.kafka.tkms.api.TkmsMessage;
 import com.transferwise.kafka.tkms.api.TkmsShardPartition;
 import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.config.TkmsProperties.EarliestMessagesTrackingMode;
 import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongPredicate;
 import javax.sql.DataSource;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -30,8 +39,11 @@ import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.datasource.DataSourceUtils;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
@@ -48,6 +60,9 @@ public abstract class TkmsDao implements ITkmsDao, InitializingBean {
   private Map<TkmsShardPartition, String> insertMessageSqls = new ConcurrentHashMap<>();
   private Map<TkmsShardPartition, String> getMessagesSqls = new ConcurrentHashMap<>();
   private Map<Pair<TkmsShardPartition, Integer>, String> deleteSqls = new ConcurrentHashMap<>();
+  private Map<Pair<TkmsShardPartition, Integer>, String> priorityDeleteSqls = new ConcurrentHashMap<>();
+  private Map<Integer, Set<String>> priorityTopics = new ConcurrentHashMap<>();
+  private Map<Pair<TkmsShardPartition, Integer>, String> generationInsertSqls = new ConcurrentHashMap<>();
 
   private Map<TkmsShardPartition, Set<Integer>> deleteBatchSizes = new ConcurrentHashMap<>();
 
@@ -73,6 +88,11 @@ public abstract class TkmsDao implements ITkmsDao, InitializingBean {
   public void validateDatabase(int shard) {
     var earliestVisibleMessages = properties.getEarliestVisibleMessages(shard);
 
+    if (earliestVisibleMessages.isEnabled() && earliestVisibleMessages.getTrackingMode() == EarliestMessagesTrackingMode.TRANSACTION_IDS
+        && !(this instanceof ITkmsTransactionIdsDao)) {
+      throw new IllegalStateException("Transaction ids tracking is enabled for shard " + shard + ", but it is only supported for Postgres.");
+    }
+
     if (earliestVisibleMessages.isEnabled()) {
       if (!doesEarliestVisibleMessagesTableExist()) {
         var tableName = properties.getEarliestVisibleMessages().getTableName();
@@ -88,6 +108,35 @@ public abstract class TkmsDao implements ITkmsDao, InitializingBean {
         }
       }
     }
+
+    if (properties.getTableRotation(shard).isEnabled()) {
+      try {
+        getRotationWatermark(TkmsShardPartition.of(shard, 0), 0);
+      } catch (DataAccessException e) {
+        var tableName = properties.getTableRotation(shard).getWatermarksTableName();
+        throw new IllegalStateException(
+            "Table rotation is enabled for shard " + shard + ", but the table '" + tableName + "' can not be queried.", e);
+      }
+    }
+
+    if (properties.getDeliveryWatermarks(shard).isEnabled()) {
+      try {
+        getDeliveryWatermark(TkmsShardPartition.of(shard, 0));
+      } catch (DataAccessException e) {
+        var tableName = properties.getDeliveryWatermarks(shard).getTableName();
+        throw new IllegalStateException(
+            "Delivery watermarks are enabled for shard " + shard + ", but the table '" + tableName + "' can not be queried.", e);
+      }
+    }
+
+    if (properties.getDeadLetters(shard).isEnabled()) {
+      try {
+        getDeadLetters(TkmsShardPartition.of(shard, 0), 1);
+      } catch (DataAccessException e) {
+        throw new IllegalStateException(
+            "Dead letters are enabled for shard " + shard + ", but the table '" + getDeadLetterTableName(shard) + "' can not be queried.", e);
+      }
+    }
   }
 
   @Override
@@ -98,6 +147,50 @@ public abstract class TkmsDao implements ITkmsDao, InitializingBean {
   @Transactional(rollbackFor = Exception.class)
   @Override
   public List<InsertMessageResult> insertMessages(TkmsShardPartition shardPartition, List<TkmsMessageWithSequence> tkmsMessages) {
+    return withSpoolSavepoint(shardPartition, () -> insertMessages1(shardPartition, tkmsMessages));
+  }
+
+  protected List<InsertMessageResult> insertMessages1(TkmsShardPartition shardPartition, List<TkmsMessageWithSequence> tkmsMessages) {
+    if (!hasPriorityTopics(shardPartition.getShard())) {
+      return insertMessages0(shardPartition, tkmsMessages, false);
+    }
+
+    var messages = new ArrayList<TkmsMessageWithSequence>();
+    var messageIndexes = new ArrayList<Integer>();
+    var priorityMessages = new ArrayList<TkmsMessageWithSequence>();
+    var priorityMessageIndexes = new ArrayList<Integer>();
+    for (int i = 0; i < tkmsMessages.size(); i++) {
+      var tkmsMessageWithSequence = tkmsMessages.get(i);
+      if (isPriorityTopic(shardPartition.getShard(), tkmsMessageWithSequence.getTkmsMessage().getTopic())) {
+        priorityMessages.add(tkmsMessageWithSequence);
+        priorityMessageIndexes.add(i);
+      } else {
+        messages.add(tkmsMessageWithSequence);
+        messageIndexes.add(i);
+      }
+    }
+
+    if (priorityMessages.isEmpty()) {
+      return insertMessages0(shardPartition, messages, false);
+    } else if (messages.isEmpty()) {
+      return insertMessages0(shardPartition, priorityMessages, true);
+    }
+
+    // Results have to be in the same order as the messages given.
+    var results = new InsertMessageResult[tkmsMessages.size()];
+    var insertResults = insertMessages0(shardPartition, messages, false);
+    for (int i = 0; i < insertResults.size(); i++) {
+      results[messageIndexes.get(i)] = insertResults.get(i);
+    }
+    var priorityInsertResults = insertMessages0(shardPartition, priorityMessages, true);
+    for (int i = 0; i < priorityInsertResults.size(); i++) {
+      results[priorityMessageIndexes.get(i)] = priorityInsertResults.get(i);
+    }
+    return Arrays.asList(results);
+  }
+
+  protected List<InsertMessageResult> insertMessages0(TkmsShardPartition shardPartition, List<TkmsMessageWithSequence> tkmsMessages,
+      boolean priorityLane) {
     return ExceptionUtils.doUnchecked(() -> {
 
       List<InsertMessageResult> results = new ArrayList<>();
@@ -105,22 +198,28 @@ public abstract class TkmsDao implements ITkmsDao, InitializingBean {
       while (idx.getValue() < tkmsMessages.size()) {
         var con = DataSourceUtils.getConnection(dataSource);
         try {
-          var sql = insertMessageSqls.computeIfAbsent(shardPartition, this::getInsertSql);
+          var source = getInsertSource(shardPartition, priorityLane);
+          var sql = getInsertSql(shardPartition, source);
           var ps = con.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+          applyInsertTimeout(shardPartition, ps);
           var closeableStreams = new ArrayList<InputStream>();
           try {
             var batchSize = Math.min(properties.getInsertBatchSize(shardPartition.getShard()), tkmsMessages.size() - idx.intValue());
 
             for (int i = 0; i < batchSize; i++) {
               TkmsMessageWithSequence tkmsMessageWithSequence = tkmsMessages.get(idx.intValue() + i);
-              var serializedMessageStream = serializeMessage(shardPartition, tkmsMessageWithSequence.getTkmsMessage());
+              if (tkmsMessageWithSequence.getSerializedMessage() != null) {
+                ps.setBytes(1, tkmsMessageWithSequence.getSerializedMessage());
+              } else {
+                var serializedMessageStream = serializeMessage(shardPartition, tkmsMessageWithSequence.getTkmsMessage());
 
-              closeableStreams.add(serializedMessageStream);
-              ps.setBinaryStream(1, serializedMessageStream);
+                closeableStreams.add(serializedMessageStream);
+                ps.setBinaryStream(1, serializedMessageStream);
+              }
 
               ps.addBatch();
 
-              results.add(new InsertMessageResult().setSequence(tkmsMessageWithSequence.getSequence()));
+              results.add(new InsertMessageResult().setSequence(tkmsMessageWithSequence.getSequence()).setSource(source));
             }
 
             ps.executeBatch();
@@ -165,16 +264,22 @@ public abstract class TkmsDao implements ITkmsDao, InitializingBean {
   @Transactional(rollbackFor = Exception.class)
   @Override
   public InsertMessageResult insertMessage(TkmsShardPartition shardPartition, TkmsMessage message) {
-    final InsertMessageResult result = new InsertMessageResult().setShardPartition(shardPartition);
+    return withSpoolSavepoint(shardPartition, () -> insertMessage0(shardPartition, message));
+  }
+
+  protected InsertMessageResult insertMessage0(TkmsShardPartition shardPartition, TkmsMessage message) {
+    var source = getInsertSource(shardPartition, isPriorityTopic(shardPartition.getShard(), message.getTopic()));
+    final InsertMessageResult result = new InsertMessageResult().setShardPartition(shardPartition).setSource(source);
 
     final KeyHolder keyHolder = new GeneratedKeyHolder();
-    var sql = insertMessageSqls.computeIfAbsent(shardPartition, k -> getInsertSql(shardPartition));
+    var sql = getInsertSql(shardPartition, source);
 
     ExceptionUtils.doUnchecked(() -> {
       try (var is = serializeMessage(shardPartition, message)) {
         jdbcTemplate.update(con -> ExceptionUtils.doUnchecked(() -> {
           PreparedStatement ps = con.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
           try {
+            applyInsertTimeout(shardPartition, ps);
             ps.setBinaryStream(1, is);
             return ps;
           } catch (Exception e) {
@@ -191,6 +296,86 @@ public abstract class TkmsDao implements ITkmsDao, InitializingBean {
     return result;
   }
 
+  @Override
+  public void insertSerializedMessage(TkmsShardPartition shardPartition, String topic, byte[] serializedMessage) {
+    var sql = getInsertSql(shardPartition, getInsertSource(shardPartition, isPriorityTopic(shardPartition.getShard(), topic)));
+    jdbcTemplate.update(sql, ps -> ps.setBytes(1, serializedMessage));
+    metricsTemplate.recordDaoMessageInsert(shardPartition, topic);
+  }
+
+  /**
+   * With the spool enabled, a failed insert must not break the caller's transaction, so it is rolled back to a savepoint.
+   *
+   * <p>Notice, that a savepoint is a subtransaction in Postgres, which has its own costs.
+   */
+  protected <T> T withSpoolSavepoint(TkmsShardPartition shardPartition, Callable<T> insert) {
+    if (!properties.getSpool(shardPartition.getShard()).isEnabled()) {
+      return ExceptionUtils.doUnchecked(insert);
+    }
+    return ExceptionUtils.doUnchecked(() -> {
+      var con = DataSourceUtils.getConnection(dataSource);
+      try {
+        if (con.getAutoCommit()) {
+          return insert.call();
+        }
+        var savepoint = con.setSavepoint();
+        try {
+          var result = insert.call();
+          con.releaseSavepoint(savepoint);
+          return result;
+        } catch (Exception e) {
+          try {
+            con.rollback(savepoint);
+          } catch (SQLException rollbackException) {
+            e.addSuppressed(rollbackException);
+          }
+          throw e;
+        }
+      } finally {
+        DataSourceUtils.releaseConnection(con, dataSource);
+      }
+    });
+  }
+
+  protected void applyInsertTimeout(TkmsShardPartition shardPartition, PreparedStatement ps) throws SQLException {
+    var spool = properties.getSpool(shardPartition.getShard());
+    if (spool.isEnabled()) {
+      ps.setQueryTimeout((int) Math.max(1, (spool.getInsertTimeout().toMillis() + 999) / 1000));
+    }
+  }
+
+  protected TkmsMessageSource getInsertSource(TkmsShardPartition shardPartition, boolean priorityLane) {
+    if (priorityLane) {
+      return TkmsMessageSource.PRIORITY;
+    }
+    var tableRotation = properties.getTableRotation(shardPartition.getShard());
+    if (tableRotation.isEnabled()) {
+      return TkmsMessageSource.generation(tableRotation.getGeneration(tableRotation.getPeriod(TkmsClockHolder.getClock().millis())));
+    }
+    return TkmsMessageSource.MAIN;
+  }
+
+  protected String getInsertSql(TkmsShardPartition shardPartition, TkmsMessageSource source) {
+    if (source == TkmsMessageSource.PRIORITY) {
+      return sqlCache.computeIfAbsent(Pair.of(shardPartition, "insertPriorityMessage"), k -> getInsertSql(getPriorityTableName(shardPartition)));
+    }
+    if (source != TkmsMessageSource.MAIN) {
+      int generation = source.getId();
+      return generationInsertSqls.computeIfAbsent(Pair.of(shardPartition, generation),
+          k -> getInsertSql(getGenerationTableName(shardPartition, generation)));
+    }
+    return insertMessageSqls.computeIfAbsent(shardPartition, k -> getInsertSql(getTableName(shardPartition)));
+  }
+
+  protected boolean hasPriorityTopics(int shard) {
+    return !priorityTopics.computeIfAbsent(shard, k -> new HashSet<>(properties.getPriorityTopics(k))).isEmpty();
+  }
+
+  protected boolean isPriorityTopic(int shard, String topic) {
+    var shardPriorityTopics = priorityTopics.computeIfAbsent(shard, k -> new HashSet<>(properties.getPriorityTopics(k)));
+    return !shardPriorityTopics.isEmpty() && shardPriorityTopics.contains(topic);
+  }
+
   protected InputStream serializeMessage(TkmsShardPartition shardPartition, TkmsMessage message) {
     return ExceptionUtils.doUnchecked(() -> messageSerializer.serialize(shardPartition, message));
   }
@@ -202,7 +387,193 @@ public abstract class TkmsDao implements ITkmsDao, InitializingBean {
 
   @Override
   public List<MessageRecord> getMessages(TkmsShardPartition shardPartition, long earliestMessageId, int maxCount) {
-    var sql = getMessagesSqls.computeIfAbsent(shardPartition, k -> getSelectSql(shardPartition));
+    var sql = getMessagesSqls.computeIfAbsent(shardPartition, k -> getSelectSql(getTableName(shardPartition)));
+    return getMessages0(shardPartition, sql, earliestMessageId, maxCount);
+  }
+
+  @Override
+  public List<MessageRecord> getPriorityMessages(TkmsShardPartition shardPartition, int maxCount) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "getPriorityMessages"), k -> getSelectSql(getPriorityTableName(shardPartition)));
+    return getMessages0(shardPartition, sql, -1L, maxCount);
+  }
+
+  @Override
+  public List<MessageRecord> getGenerationMessages(TkmsShardPartition shardPartition, int generation, long fromMessageId, int maxCount) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "getGenerationMessages_" + generation),
+        k -> getSelectSql(getGenerationTableName(shardPartition, generation)));
+    return getMessages0(shardPartition, sql, fromMessageId, maxCount);
+  }
+
+  @Override
+  public List<Long> getGenerationMessageIds(TkmsShardPartition shardPartition, int generation, long fromMessageId, long toMessageId) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "getGenerationMessageIds_" + generation),
+        k -> getSelectIdsSql(getGenerationTableName(shardPartition, generation)));
+    return jdbcTemplate.queryForList(sql, Long.class, fromMessageId, toMessageId);
+  }
+
+  /**
+   * Has to be called with the connection holding a lock on the generation table.
+   */
+  protected boolean isGenerationProxied(Connection con, String tableName, long fromMessageId, LongPredicate proxied) throws SQLException {
+    try (var ps = con.prepareStatement(getSelectIdsSql(tableName))) {
+      ps.setLong(1, fromMessageId);
+      ps.setLong(2, Long.MAX_VALUE);
+      try (var rs = ps.executeQuery()) {
+        while (rs.next()) {
+          if (!proxied.test(rs.getLong(1))) {
+            return false;
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public Long getRotationWatermark(TkmsShardPartition shardPartition, int generation) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "getRotationWatermark"), k -> "select watermark from "
+        + properties.getTableRotation(shardPartition.getShard()).getWatermarksTableName() + " where shard=? and part=? and generation=?");
+    var watermarks = jdbcTemplate.queryForList(sql, Long.class, shardPartition.getShard(), shardPartition.getPartition(), generation);
+    return watermarks.isEmpty() ? null : watermarks.get(0);
+  }
+
+  @Override
+  public void saveRotationWatermark(TkmsShardPartition shardPartition, int generation, long watermark) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "saveRotationWatermark"),
+        k -> getSaveRotationWatermarkSql(properties.getTableRotation(shardPartition.getShard()).getWatermarksTableName()));
+    jdbcTemplate.update(sql, shardPartition.getShard(), shardPartition.getPartition(), generation, watermark);
+  }
+
+  @Override
+  public List<Long> getMessageIds(TkmsShardPartition shardPartition, long fromMessageId, long toMessageId) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "getMessageIds"), k -> getSelectIdsSql(getTableName(shardPartition)));
+    return jdbcTemplate.queryForList(sql, Long.class, fromMessageId, toMessageId);
+  }
+
+  @Override
+  public int deleteMessagesRange(TkmsShardPartition shardPartition, long fromMessageId, long toMessageId, int maxCount) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "deleteMessagesRange"), k -> getDeleteRangeSql(getTableName(shardPartition)));
+    return jdbcTemplate.update(sql, fromMessageId, toMessageId, maxCount);
+  }
+
+  @Override
+  public DeliveryWatermark getDeliveryWatermark(TkmsShardPartition shardPartition) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "getDeliveryWatermark"), k -> "select watermark, pending_ids from "
+        + properties.getDeliveryWatermarks(shardPartition.getShard()).getTableName() + " where shard=? and part=?");
+    var watermarks = jdbcTemplate.query(sql, (rs, rowNum) -> {
+      var deliveryWatermark = new DeliveryWatermark().setWatermark(rs.getLong(1));
+      for (var pendingId : StringUtils.split(rs.getString(2), ',')) {
+        deliveryWatermark.getPendingIds().add(Long.parseLong(pendingId));
+      }
+      return deliveryWatermark;
+    }, shardPartition.getShard(), shardPartition.getPartition());
+    return watermarks.isEmpty() ? null : watermarks.get(0);
+  }
+
+  @Override
+  public void saveDeliveryWatermark(TkmsShardPartition shardPartition, long watermark, Collection<Long> pendingIds) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "saveDeliveryWatermark"),
+        k -> getSaveDeliveryWatermarkSql(properties.getDeliveryWatermarks(shardPartition.getShard()).getTableName()));
+    jdbcTemplate.update(sql, shardPartition.getShard(), shardPartition.getPartition(), watermark, StringUtils.join(pendingIds, ','));
+  }
+
+  @Override
+  public void insertDeadLetters(TkmsShardPartition shardPartition, List<DeadLetterRecord> deadLetterRecords) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "insertDeadLetters"), k -> "insert into "
+        + getDeadLetterTableName(shardPartition.getShard())
+        + " (part, message_id, message, error, retries, dead_lettered_at, next_retry_at) values (?,?,?,?,?,?,?)");
+
+    var serializedMessages = new ArrayList<byte[]>(deadLetterRecords.size());
+    for (var deadLetterRecord : deadLetterRecords) {
+      serializedMessages.add(ExceptionUtils.doUnchecked(() -> messageSerializer.serialize(shardPartition, deadLetterRecord.getMessage())));
+    }
+
+    jdbcTemplate.batchUpdate(sql, new BatchPreparedStatementSetter() {
+      @Override
+      public void setValues(PreparedStatement ps, int i) throws SQLException {
+        var deadLetterRecord = deadLetterRecords.get(i);
+        ps.setInt(1, shardPartition.getPartition());
+        ps.setLong(2, deadLetterRecord.getMessageId());
+        ps.setBytes(3, serializedMessages.get(i));
+        ps.setString(4, deadLetterRecord.getError());
+        ps.setInt(5, deadLetterRecord.getRetries());
+        ps.setLong(6, deadLetterRecord.getDeadLetteredAtMs());
+        ps.setObject(7, deadLetterRecord.getNextRetryAtMs(), Types.BIGINT);
+      }
+
+      @Override
+      public int getBatchSize() {
+        return deadLetterRecords.size();
+      }
+    });
+  }
+
+  @Override
+  public List<DeadLetterRecord> getDeadLetters(TkmsShardPartition shardPartition, int maxCount) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "getDeadLetters"),
+        k -> getSelectDeadLettersSql(shardPartition.getShard()) + " where part=? order by id limit ?");
+    return jdbcTemplate.query(sql, (rs, rowNum) -> toDeadLetterRecord(shardPartition, rs), shardPartition.getPartition(), maxCount);
+  }
+
+  @Override
+  public DeadLetterRecord getDeadLetter(TkmsShardPartition shardPartition, long id) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "getDeadLetter"),
+        k -> getSelectDeadLettersSql(shardPartition.getShard()) + " where id=? and part=?");
+    var deadLetterRecords = jdbcTemplate.query(sql, (rs, rowNum) -> toDeadLetterRecord(shardPartition, rs), id, shardPartition.getPartition());
+    return deadLetterRecords.isEmpty() ? null : deadLetterRecords.get(0);
+  }
+
+  @Override
+  public List<DeadLetterRecord> getDeadLettersDueForRetry(TkmsShardPartition shardPartition, long timeMs, int maxCount) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "getDeadLettersDueForRetry"),
+        k -> getSelectDeadLettersSql(shardPartition.getShard()) + " where part=? and next_retry_at<=? order by next_retry_at limit ?");
+    return jdbcTemplate.query(sql, (rs, rowNum) -> toDeadLetterRecord(shardPartition, rs), shardPartition.getPartition(), timeMs, maxCount);
+  }
+
+  @Override
+  public void updateDeadLetter(TkmsShardPartition shardPartition, DeadLetterRecord deadLetterRecord) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "updateDeadLetter"),
+        k -> "update " + getDeadLetterTableName(shardPartition.getShard()) + " set error=?, retries=?, next_retry_at=? where id=? and part=?");
+    jdbcTemplate.update(sql, ps -> {
+      ps.setString(1, deadLetterRecord.getError());
+      ps.setInt(2, deadLetterRecord.getRetries());
+      ps.setObject(3, deadLetterRecord.getNextRetryAtMs(), Types.BIGINT);
+      ps.setLong(4, deadLetterRecord.getId());
+      ps.setInt(5, shardPartition.getPartition());
+    });
+  }
+
+  @Override
+  public boolean deleteDeadLetter(TkmsShardPartition shardPartition, long id) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "deleteDeadLetter"),
+        k -> "delete from " + getDeadLetterTableName(shardPartition.getShard()) + " where id=? and part=?");
+    return jdbcTemplate.update(sql, id, shardPartition.getPartition()) == 1;
+  }
+
+  protected String getSelectDeadLettersSql(int shard) {
+    return "select id, message_id, message, error, retries, dead_lettered_at, next_retry_at from " + getDeadLetterTableName(shard);
+  }
+
+  protected DeadLetterRecord toDeadLetterRecord(TkmsShardPartition shardPartition, ResultSet rs) throws SQLException {
+    var nextRetryAtMs = rs.getLong(7);
+    return new DeadLetterRecord().setId(rs.getLong(1)).setMessageId(rs.getLong(2))
+        .setMessage(ExceptionUtils.doUnchecked(() -> messageSerializer.deserialize(shardPartition, rs.getBinaryStream(3))))
+        .setError(rs.getString(4)).setRetries(rs.getInt(5)).setDeadLetteredAtMs(rs.getLong(6))
+        .setNextRetryAtMs(rs.wasNull() ? null : nextRetryAtMs);
+  }
+
+  protected List<MessageRecord> getMessages0(TkmsShardPartition shardPartition, String sql, long earliestMessageId, int maxCount) {
+    return getMessages0(shardPartition, sql, ps -> {
+      ps.setLong(1, earliestMessageId);
+      ps.setLong(2, maxCount);
+    }, false);
+  }
+
+  /**
+   * Expects the id and message columns, followed by the transaction id column, when `withTransactionIds` is set.
+   */
+  protected List<MessageRecord> getMessages0(TkmsShardPartition shardPartition, String sql, PreparedStatementSetter parameters,
+      boolean withTransactionIds) {
     var result = ExceptionUtils.doUnchecked(() -> {
       long startNanoTime = System.nanoTime();
 
@@ -213,8 +584,7 @@ public abstract class TkmsDao implements ITkmsDao, InitializingBean {
         int i = 0;
 
         try (PreparedStatement ps = con.prepareStatement(sql)) {
-          ps.setLong(1, earliestMessageId);
-          ps.setLong(2, maxCount);
+          parameters.setValues(ps);
 
           List<MessageRecord> records = new ArrayList<>();
           try (ResultSet rs = ps.executeQuery()) {
@@ -229,11 +599,14 @@ public abstract class TkmsDao implements ITkmsDao, InitializingBean {
                 MessageRecord messageRecord = new MessageRecord();
                 messageRecord.setId(messageId);
                 messageRecord.setMessage(messageSerializer.deserialize(shardPartition, rs.getBinaryStream(2)));
+                if (withTransactionIds) {
+                  messageRecord.setTransactionId(rs.getLong(3));
+                }
 
                 records.add(messageRecord);
               } catch (Throwable t) {
                 throw new RuntimeException(
-                    "Failed to deserialize message " + messageId + ", retrieved from table '" + getTableName(shardPartition) + "'.", t);
+                    "Failed to deserialize message " + messageId + ", retrieved from '" + shardPartition + "' with '" + sql + "'.", t);
               } finally {
                 MDC.remove(properties.getMdc().getMessageIdKey());
               }
@@ -250,10 +623,7 @@ public abstract class TkmsDao implements ITkmsDao, InitializingBean {
     });
 
     if (Assertions.isLevel1()) {
-      var explainPlanRows = jdbcTemplate.query(getExplainClause() + " " + sql, ps -> {
-        ps.setLong(1, earliestMessageId);
-        ps.setLong(2, maxCount);
-      }, (rs, rowNum) -> rs.getString(1));
+      var explainPlanRows = jdbcTemplate.query(getExplainClause() + " " + sql, parameters, (rs, rowNum) -> rs.getString(1));
       var explainPlan = concatStringRows(explainPlanRows);
       Assertions.assertAlgorithm(isUsingIndexScan(explainPlan), "inefficient query plan is used: " + explainPlan);
     }
@@ -261,17 +631,40 @@ public abstract class TkmsDao implements ITkmsDao, InitializingBean {
     return result;
   }
 
+  @Override
+  public boolean hasMessages(TkmsShardPartition shardPartition, long earliestMessageId) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "hasMessages"), k -> getHasMessagesSql(shardPartition));
+    var result = !jdbcTemplate.queryForList(sql, Long.class, earliestMessageId).isEmpty();
+
+    if (Assertions.isLevel1()) {
+      var rows = jdbcTemplate.queryForList(getExplainClause() + " " + sql, String.class, earliestMessageId);
+      var explainPlan = concatStringRows(rows);
+      Assertions.assertAlgorithm(isUsingIndexScan(explainPlan), "inefficient query plan is used: " + explainPlan);
+    }
+
+    return result;
+  }
+
   @Override
   public void deleteMessages(TkmsShardPartition shardPartition, List<Long> ids) {
+    deleteMessages(shardPartition, ids, false);
+  }
+
+  @Override
+  public void deletePriorityMessages(TkmsShardPartition shardPartition, List<Long> ids) {
+    deleteMessages(shardPartition, ids, true);
+  }
+
+  protected void deleteMessages(TkmsShardPartition shardPartition, List<Long> ids, boolean priorityLane) {
     var batchSizeExists =
         deleteBatchSizes.computeIfAbsent(shardPartition, k -> new HashSet<>(properties.getDeleteBatchSizes(k.getShard()))).contains(ids.size());
 
     if (batchSizeExists) {
       // There will be one query only, no need for explicit transaction.
-      deleteMessages0(shardPartition, ids);
+      deleteMessages0(shardPartition, ids, priorityLane);
     } else {
       transactionsHelper.withTransaction().call(() -> {
-        deleteMessages0(shardPartition, ids);
+        deleteMessages0(shardPartition, ids, priorityLane);
         return null;
       });
     }
@@ -298,6 +691,26 @@ public abstract class TkmsDao implements ITkmsDao, InitializingBean {
     }
   }
 
+  @Override
+  public void saveEarliestMessageIds(int shard, Map<Integer, Long> partitionsMessageIds) {
+    if (partitionsMessageIds.isEmpty()) {
+      return;
+    }
+    var sql = sqlCache.computeIfAbsent(Pair.of(TkmsShardPartition.of(shard, 0), "saveEarliestMessageIds_" + partitionsMessageIds.size()),
+        k -> getSaveEarliestMessageIdsSql(properties.getEarliestVisibleMessages(shard).getTableName(), partitionsMessageIds.size()));
+
+    var args = new Object[partitionsMessageIds.size() * 3];
+    int i = 0;
+    for (var entry : partitionsMessageIds.entrySet()) {
+      args[i++] = shard;
+      args[i++] = entry.getKey();
+      args[i++] = entry.getValue();
+    }
+    jdbcTemplate.update(sql, args);
+  }
+
+  protected abstract String getSaveEarliestMessageIdsSql(String tableName, int count);
+
   @Override
   public boolean insertEarliestMessageId(TkmsShardPartition shardPartition) {
     var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "insertEarliestMessageId"), k -> {
@@ -328,17 +741,30 @@ public abstract class TkmsDao implements ITkmsDao, InitializingBean {
     return result;
   }
 
+  @Override
+  public int getMessagesCountBeforeId(TkmsShardPartition shardPartition, long messageId, int maxCount) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "getMessagesCountBeforeId"), k -> getMessagesCountBeforeIdSql(shardPartition));
+    Integer count = jdbcTemplate.queryForObject(sql, Integer.class, messageId, maxCount);
+    return count == null ? 0 : count;
+  }
+
   protected abstract String getHasMessagesBeforeIdSql(TkmsShardPartition shardPartition);
 
+  protected abstract String getMessagesCountBeforeIdSql(TkmsShardPartition shardPartition);
+
+  protected abstract String getHasMessagesSql(TkmsShardPartition shardPartition);
+
   protected abstract boolean doesEarliestVisibleMessagesTableExist();
 
-  protected void deleteMessages0(TkmsShardPartition shardPartition, List<Long> ids) {
+  protected void deleteMessages0(TkmsShardPartition shardPartition, List<Long> ids, boolean priorityLane) {
     int processedCount = 0;
 
     for (int batchSize : properties.getDeleteBatchSizes(shardPartition.getShard())) {
       while (ids.size() - processedCount >= batchSize) {
         Pair<TkmsShardPartition, Integer> p = ImmutablePair.of(shardPartition, batchSize);
-        String sql = deleteSqls.computeIfAbsent(p, k -> getDeleteSql(shardPartition, batchSize));
+        String sql = priorityLane
+            ? priorityDeleteSqls.computeIfAbsent(p, k -> getDeleteSql(getPriorityTableName(shardPartition), batchSize))
+            : deleteSqls.computeIfAbsent(p, k -> getDeleteSql(getTableName(shardPartition), batchSize));
 
         int finalProcessedCount = processedCount;
         jdbcTemplate.update(sql, ps -> {
@@ -370,11 +796,28 @@ public abstract class TkmsDao implements ITkmsDao, InitializingBean {
 
   protected abstract boolean isUsingIndexScan(String explainPlan);
 
-  protected abstract String getInsertSql(TkmsShardPartition shardPartition);
+  protected abstract String getInsertSql(String tableName);
+
+  protected abstract String getSelectSql(String tableName);
+
+  protected abstract String getDeleteSql(String tableName, int batchSize);
+
+  protected abstract String getSelectIdsSql(String tableName);
+
+  /**
+   * Upsert with parameters shard, part, generation and watermark.
+   */
+  protected abstract String getSaveRotationWatermarkSql(String tableName);
 
-  protected abstract String getSelectSql(TkmsShardPartition shardPartition);
+  /**
+   * Upsert with parameters shard, part, watermark and pending_ids.
+   */
+  protected abstract String getSaveDeliveryWatermarkSql(String tableName);
 
-  protected abstract String getDeleteSql(TkmsShardPartition shardPartition, int batchSize);
+  /**
+   * Delete with parameters for the ids range start (inclusive), end (exclusive) and the maximum count of rows.
+   */
+  protected abstract String getDeleteRangeSql(String tableName);
 
   /**
    * String manipulation is one of the most expensive operations, but we don't do caching here.
@@ -385,6 +828,18 @@ public abstract class TkmsDao implements ITkmsDao, InitializingBean {
     return properties.getTableBaseName(shardPartition.getShard()) + "_" + shardPartition.getShard() + "_" + shardPartition.getPartition();
   }
 
+  protected String getDeadLetterTableName(int shard) {
+    return properties.getTableBaseName(shard) + "_" + shard + "_dead_letter";
+  }
+
+  protected String getPriorityTableName(TkmsShardPartition shardPartition) {
+    return getTableName(shardPartition) + "_priority";
+  }
+
+  protected String getGenerationTableName(TkmsShardPartition shardPartition, int generation) {
+    return getTableName(shardPartition) + "_g" + generation;
+  }
+
   protected String getTableNameWithoutSchema(TkmsShardPartition shardPartition) {
     String tableName = getTableName(shardPartition);
 
@@ -8,10 +8,12 @@ import com.transferwise.kafka.tkms.config.TkmsProperties.NotificationLevel;
 import com.transferwise.kafka.tkms.config.TkmsProperties.NotificationType;
 import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
 import java.util.List;
+import java.util.function.LongPredicate;
 import javax.sql.DataSource;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -175,8 +177,8 @@ public class TkmsMariaDao extends TkmsDao {
   }
 
   @Override
-  protected String getInsertSql(TkmsShardPartition shardPartition) {
-    return "insert into " + getTableName(shardPartition) + " (message) values (?)";
+  protected String getInsertSql(String tableName) {
+    return "insert into " + tableName + " (message) values (?)";
   }
 
   @Override
@@ -192,8 +194,8 @@ public class TkmsMariaDao extends TkmsDao {
   }
 
   @Override
-  protected String getSelectSql(TkmsShardPartition shardPartition) {
-    return "select id, message from " + getTableName(shardPartition) + " use index (PRIMARY) where id >= ? order by id limit ?";
+  protected String getSelectSql(String tableName) {
+    return "select id, message from " + tableName + " use index (PRIMARY) where id >= ? order by id limit ?";
   }
 
   @Override
@@ -201,6 +203,16 @@ public class TkmsMariaDao extends TkmsDao {
     return "select 1 from " + getTableName(shardPartition) + " use index(PRIMARY) where id < ? limit 1";
   }
 
+  @Override
+  protected String getMessagesCountBeforeIdSql(TkmsShardPartition shardPartition) {
+    return "select count(*) from (select id from " + getTableName(shardPartition) + " use index(PRIMARY) where id < ? limit ?) c";
+  }
+
+  @Override
+  protected String getHasMessagesSql(TkmsShardPartition shardPartition) {
+    return "select 1 from " + getTableName(shardPartition) + " use index(PRIMARY) where id >= ? limit 1";
+  }
+
   @Override
   protected String getExplainClause() {
     return "EXPLAIN FORMAT=JSON";
@@ -212,10 +224,9 @@ public class TkmsMariaDao extends TkmsDao {
   }
 
   @Override
-  protected String getDeleteSql(TkmsShardPartition shardPartition, int batchSize) {
+  protected String getDeleteSql(String tableName, int batchSize) {
     // MariaDb does not support index hints for delete queries.
     // But MySQL does, so we will still include it in the query.
-    var tableName = getTableName(shardPartition);
     var sb = new StringBuilder("delete /*+ INDEX(" + tableName + ") */ from " + tableName + " where id in (");
     for (int j = 0; j < batchSize; j++) {
       if (j > 0) {
@@ -228,6 +239,58 @@ public class TkmsMariaDao extends TkmsDao {
     return sb.toString();
   }
 
+  @Override
+  protected String getSelectIdsSql(String tableName) {
+    return "select id from " + tableName + " use index(PRIMARY) where id >= ? and id <= ? order by id";
+  }
+
+  @Override
+  protected String getSaveRotationWatermarkSql(String tableName) {
+    return "insert into " + tableName + " (shard, part, generation, watermark) values (?,?,?,?)"
+        + " on duplicate key update watermark=values(watermark)";
+  }
+
+  @Override
+  protected String getSaveEarliestMessageIdsSql(String tableName, int count) {
+    return "insert into " + tableName + " (shard, part, message_id) values " + StringUtils.repeat("(?,?,?)", ",", count)
+        + " on duplicate key update message_id=values(message_id)";
+  }
+
+  @Override
+  protected String getSaveDeliveryWatermarkSql(String tableName) {
+    return "insert into " + tableName + " (shard, part, watermark, pending_ids) values (?,?,?,?)"
+        + " on duplicate key update watermark=values(watermark), pending_ids=values(pending_ids)";
+  }
+
+  @Override
+  protected String getDeleteRangeSql(String tableName) {
+    return "delete from " + tableName + " where id >= ? and id < ? order by id limit ?";
+  }
+
+  /**
+   * Truncate does an implicit commit in MariaDb, so instead of a transaction, the table is locked for the check and the truncation.
+   *
+   * <p>Notice, that the truncation also resets the auto increment counter of the table.
+   */
+  @Override
+  public boolean truncateGeneration(TkmsShardPartition shardPartition, int generation, long fromMessageId, LongPredicate proxied) {
+    var tableName = getGenerationTableName(shardPartition, generation);
+    return jdbcTemplate.execute((ConnectionCallback<Boolean>) con -> {
+      try (var statement = con.createStatement()) {
+        statement.execute("lock tables " + tableName + " write");
+        try {
+          if (!isGenerationProxied(con, tableName, fromMessageId, proxied)) {
+            return false;
+          }
+          statement.execute("truncate table " + tableName);
+          return true;
+        } finally {
+          statement.execute("unlock tables");
+        }
+      }
+    });
+  }
+
   @Override
   protected String getCurrentSchema() {
     return transactionsHelper.withTransaction().withIsolation(Isolation.READ_UNCOMMITTED).call(() ->
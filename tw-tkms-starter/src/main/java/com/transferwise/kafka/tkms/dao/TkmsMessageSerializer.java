@@ -124,6 +124,19 @@ public class TkmsMessageSerializer implements ITkmsMessageSerializer {
     return new UnsynchronizedByteArrayInputStream(serializedBytes);
   }
 
+  /**
+   * Not compressed, as it is only used for the few messages moved between the tables.
+   */
+  @Override
+  public byte[] serialize(TkmsShardPartition shardPartition, Message storedMessage) throws IOException {
+    var os = new UnsynchronizedByteArrayOutputStream(storedMessage.getSerializedSize() + 3);
+    os.write(0);
+    os.write(0);
+    os.write(COMPRESSION_TYPE_NONE);
+    storedMessage.writeTo(os);
+    return os.toByteArray();
+  }
+
   private boolean areSimilar(String s0, String s1) {
     if ((s0 == null || s0.length() == 0) && (s1 == null || s1.length() == 0)) {
       return true;
@@ -4,16 +4,23 @@ import com.transferwise.common.baseutils.transactionsmanagement.ITransactionsHel
 import com.transferwise.kafka.tkms.IProblemNotifier;
 import com.transferwise.kafka.tkms.api.TkmsShardPartition;
 import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.config.TkmsProperties.EarliestMessagesTrackingMode;
 import com.transferwise.kafka.tkms.config.TkmsProperties.NotificationLevel;
 import com.transferwise.kafka.tkms.config.TkmsProperties.NotificationType;
 import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.function.LongPredicate;
 import javax.sql.DataSource;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
 
 @Slf4j
-public class TkmsPostgresDao extends TkmsDao {
+public class TkmsPostgresDao extends TkmsDao implements ITkmsTransactionIdsDao {
 
   public TkmsPostgresDao(
       DataSource dataSource,
@@ -27,13 +34,78 @@ public class TkmsPostgresDao extends TkmsDao {
   }
 
   @Override
-  protected String getInsertSql(TkmsShardPartition shardPartition) {
-    return "insert into " + getTableName(shardPartition) + " (message) values (?) returning id";
+  protected String getInsertSql(String tableName) {
+    return "insert into " + tableName + " (message) values (?) returning id";
   }
 
   @Override
-  protected String getSelectSql(TkmsShardPartition shardPartition) {
-    return "select /*+ IndexScan(om) */ id, message from " + getTableName(shardPartition) + " om where id >= ? order by id limit ?";
+  protected String getSelectSql(String tableName) {
+    return "select /*+ IndexScan(om) */ id, message from " + tableName + " om where id >= ? order by id limit ?";
+  }
+
+  /**
+   * The horizon is taken before the poll, so all the transactions below it are visible for the poll.
+   *
+   * <p>The horizon is cluster-wide, so any long-running transaction, even one not touching tkms tables, delays the messages behind it.
+   */
+  @Override
+  public TransactionIdsPoll getMessagesByTransactionIds(TkmsShardPartition shardPartition, long fromTransactionId, int maxCount) {
+    long[] snapshot = jdbcTemplate.queryForObject(
+        "select pg_snapshot_xmin(s)::text::bigint, pg_snapshot_xmax(s)::text::bigint from pg_current_snapshot() s",
+        (rs, rowNum) -> new long[]{rs.getLong(1), rs.getLong(2)});
+    long horizonTransactionId = snapshot[0];
+
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "getMessagesByTransactionIds"),
+        k -> "select /*+ IndexScan(om) */ id, message, xid::text::bigint from " + getTableName(shardPartition)
+            + " om where xid >= ?::text::xid8 and xid < ?::text::xid8 order by xid, id limit ?");
+    var records = getMessages0(shardPartition, sql, ps -> {
+      ps.setLong(1, fromTransactionId);
+      ps.setLong(2, horizonTransactionId);
+      ps.setLong(3, maxCount);
+    }, true);
+
+    return new TransactionIdsPoll().setRecords(records).setHorizonTransactionId(horizonTransactionId).setNextTransactionId(snapshot[1]);
+  }
+
+  @Override
+  public Long getTransactionIdsCursor(TkmsShardPartition shardPartition) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(shardPartition, "getTransactionIdsCursor"),
+        k -> "select transaction_id from " + properties.getEarliestVisibleMessages(shardPartition.getShard()).getTableName()
+            + " where shard=? and part=?");
+    var cursors = jdbcTemplate.queryForList(sql, Long.class, shardPartition.getShard(), shardPartition.getPartition());
+    return cursors.isEmpty() ? null : cursors.get(0);
+  }
+
+  /**
+   * The rows are created by {@link #validateDatabase(int)}, so an update is enough, and `message_id` is left alone.
+   */
+  @Override
+  public void saveTransactionIdsCursors(int shard, Map<Integer, Long> partitionsCursors) {
+    var sql = sqlCache.computeIfAbsent(Pair.of(TkmsShardPartition.of(shard, 0), "saveTransactionIdsCursors"),
+        k -> "update " + properties.getEarliestVisibleMessages(shard).getTableName() + " set transaction_id=? where shard=? and part=?");
+
+    var args = new ArrayList<Object[]>(partitionsCursors.size());
+    partitionsCursors.forEach((partition, cursor) -> args.add(new Object[]{cursor, shard, partition}));
+    jdbcTemplate.batchUpdate(sql, args);
+  }
+
+  /**
+   * The transaction ids cursor is kept in its own column, so switching between the tracking modes can not mistake a message id for a
+   * transaction id, or the other way around.
+   */
+  @Override
+  public void validateDatabase(int shard) {
+    super.validateDatabase(shard);
+
+    var earliestVisibleMessages = properties.getEarliestVisibleMessages(shard);
+    if (earliestVisibleMessages.isEnabled() && earliestVisibleMessages.getTrackingMode() == EarliestMessagesTrackingMode.TRANSACTION_IDS) {
+      try {
+        getTransactionIdsCursor(TkmsShardPartition.of(shard, 0));
+      } catch (DataAccessException e) {
+        throw new IllegalStateException("Transaction ids tracking is enabled for shard " + shard + ", but the table '"
+            + earliestVisibleMessages.getTableName() + "' does not have the `transaction_id` column.", e);
+      }
+    }
   }
 
   @Override
@@ -41,6 +113,16 @@ public class TkmsPostgresDao extends TkmsDao {
     return "select /*+ IndexOnlyScan(om)  */ 1 from " + getTableName(shardPartition) + " om where id < ? order by id desc limit 1";
   }
 
+  @Override
+  protected String getMessagesCountBeforeIdSql(TkmsShardPartition shardPartition) {
+    return "select count(*) from (select /*+ IndexOnlyScan(om) */ id from " + getTableName(shardPartition) + " om where id < ? limit ?) c";
+  }
+
+  @Override
+  protected String getHasMessagesSql(TkmsShardPartition shardPartition) {
+    return "select /*+ IndexOnlyScan(om) */ 1 from " + getTableName(shardPartition) + " om where id >= ? order by id limit 1";
+  }
+
   @Override
   protected String getExplainClause() {
     return "EXPLAIN";
@@ -53,8 +135,8 @@ public class TkmsPostgresDao extends TkmsDao {
   }
 
   @Override
-  protected String getDeleteSql(TkmsShardPartition shardPartition, int batchSize) {
-    var sb = new StringBuilder("delete /*+ IndexScan(om) */ from " + getTableName(shardPartition) + " om where id in (");
+  protected String getDeleteSql(String tableName, int batchSize) {
+    var sb = new StringBuilder("delete /*+ IndexScan(om) */ from " + tableName + " om where id in (");
     for (int j = 0; j < batchSize; j++) {
       if (j > 0) {
         sb.append(",");
@@ -66,6 +148,54 @@ public class TkmsPostgresDao extends TkmsDao {
     return sb.toString();
   }
 
+  @Override
+  protected String getSelectIdsSql(String tableName) {
+    return "select /*+ IndexOnlyScan(om) */ id from " + tableName + " om where id >= ? and id <= ? order by id";
+  }
+
+  @Override
+  protected String getSaveRotationWatermarkSql(String tableName) {
+    return "insert into " + tableName + " (shard, part, generation, watermark) values (?,?,?,?)"
+        + " on conflict (shard, part, generation) do update set watermark=excluded.watermark";
+  }
+
+  @Override
+  protected String getSaveEarliestMessageIdsSql(String tableName, int count) {
+    return "insert into " + tableName + " (shard, part, message_id) values " + StringUtils.repeat("(?,?,?)", ",", count)
+        + " on conflict (shard, part) do update set message_id=excluded.message_id";
+  }
+
+  @Override
+  protected String getSaveDeliveryWatermarkSql(String tableName) {
+    return "insert into " + tableName + " (shard, part, watermark, pending_ids) values (?,?,?,?)"
+        + " on conflict (shard, part) do update set watermark=excluded.watermark, pending_ids=excluded.pending_ids";
+  }
+
+  @Override
+  protected String getDeleteRangeSql(String tableName) {
+    return "delete from " + tableName + " where id in (select id from " + tableName + " where id >= ? and id < ? order by id limit ?)";
+  }
+
+  /**
+   * Truncate is transactional in Postgres, so the check and the truncation are done under one access exclusive lock.
+   *
+   * <p>The lock waits for any transaction still inserting into the table.
+   */
+  @Override
+  public boolean truncateGeneration(TkmsShardPartition shardPartition, int generation, long fromMessageId, LongPredicate proxied) {
+    var tableName = getGenerationTableName(shardPartition, generation);
+    return transactionsHelper.withTransaction().call(() -> jdbcTemplate.execute((ConnectionCallback<Boolean>) con -> {
+      try (var statement = con.createStatement()) {
+        statement.execute("lock table " + tableName + " in access exclusive mode");
+        if (!isGenerationProxied(con, tableName, fromMessageId, proxied)) {
+          return false;
+        }
+        statement.execute("truncate table " + tableName);
+        return true;
+      }
+    }));
+  }
+
   @Override
   protected boolean doesEarliestVisibleMessagesTableExist() {
     var defaultTable = properties.getEarliestVisibleMessages().getTableName();
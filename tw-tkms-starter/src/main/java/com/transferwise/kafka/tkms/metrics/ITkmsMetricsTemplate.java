@@ -19,6 +19,8 @@ public interface ITkmsMetricsTemplate {
 
   void recordProxyPoll(TkmsShardPartition shardPartition, int recordsCount, long startNanotTime);
 
+  void recordProxyPriorityPoll(TkmsShardPartition shardPartition, int recordsCount, long startNanoTime);
+
   void recordDaoPollFirstResult(TkmsShardPartition shardPartition, long startNanoTime);
 
   void recordDaoPollAllResults(TkmsShardPartition shardPartition, int recordsCount, long startNanoTime);
@@ -50,11 +52,57 @@ public interface ITkmsMetricsTemplate {
 
   Object registerApproximateMessagesCount(TkmsShardPartition sp, Supplier<Number> supplier);
 
+  Object registerForgottenMessagesCount(TkmsShardPartition sp, Supplier<Number> supplier);
+
+  void recordProxyForgottenMessagesRecovery(TkmsShardPartition sp, int recoveredCount);
+
   void registerEarliestMessageIdCommit(TkmsShardPartition shardPartition);
 
+  void recordDaoEarliestMessageIdsCommit(int shard, boolean success, long startNanoTime);
+
+  void recordSpoolMessageAppend(TkmsShardPartition sp, String topic);
+
+  void recordSpoolMessageAppendFailure(TkmsShardPartition sp, String topic);
+
+  void recordSpoolMessageReplay(TkmsShardPartition sp, String topic);
+
+  void recordProxyMessageDeadLettered(TkmsShardPartition sp, String topic);
+
+  void recordProxyKafkaPartitionHoldBack(TkmsShardPartition sp, String topic);
+
+  void recordProxyDuplicatesSuppressed(TkmsShardPartition sp, int messagesCount);
+
+  Object registerSpoolPendingMessages(int shard, Supplier<Number> supplier);
+
+  void recordSpoolFsync(int shard, long startNanoTime);
+
+  Object registerPartitionerSkew(int shard, Supplier<Number> supplier);
+
+  void recordGroupCommit(TkmsShardPartition shardPartition, int messagesCount, boolean success);
+
   void recordProxyCyclePause(TkmsShardPartition shardPartition, long durationMs);
 
+  void recordProxyIdleProbe(TkmsShardPartition shardPartition, boolean messagesFound);
+
+  void recordLeadershipBalancingYield(TkmsShardPartition shardPartition);
+
+  void recordProxyStateHandover(TkmsShardPartition shardPartition, boolean restored);
+
+  void recordProxyGenerationTruncate(TkmsShardPartition shardPartition, boolean truncated);
+
+  void recordJanitorMessagesDeletion(TkmsShardPartition shardPartition, int deletedCount);
+
+  void recordProxyFailover(TkmsShardPartition shardPartition, long durationMs, boolean warmProducer);
+
+  Object registerWarmProducerGauge(TkmsShardPartition shardPartition);
+
+  Object registerTransactionIdsHorizonLag(TkmsShardPartition shardPartition, Supplier<Number> supplier);
+
   Object registerPollingInProgressGauge(TkmsShardPartition shardPartition);
 
   void registerMessagesInTransactionCount(long registeredMessagesCount, boolean success);
+
+  void recordDeferredMessagesPeakBytes(long peakBytes, boolean success);
+
+  void recordEventsDropped(String listener, int eventsCount);
 }
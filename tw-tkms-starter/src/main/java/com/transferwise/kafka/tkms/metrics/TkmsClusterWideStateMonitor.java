@@ -12,6 +12,7 @@ import com.transferwise.common.leaderselector.SharedReentrantLockBuilderFactory;
 import com.transferwise.kafka.tkms.api.TkmsShardPartition;
 import com.transferwise.kafka.tkms.config.ITkmsDaoProvider;
 import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.config.TkmsProperties.EarliestMessagesTrackingMode;
 import com.transferwise.kafka.tkms.config.TkmsProperties.EarliestVisibleMessages;
 import java.time.Duration;
 import java.util.ArrayList;
@@ -48,6 +49,7 @@ public class TkmsClusterWideStateMonitor implements GracefulShutdownStrategy, In
   private final Lock stateLock = new ReentrantLock();
 
   private Map<TkmsShardPartition, AtomicLong> approximateMessagesCount;
+  private Map<TkmsShardPartition, AtomicLong> forgottenMessagesCount;
   private List<Object> registeredMetricHandles;
   private boolean initialized;
 
@@ -71,7 +73,10 @@ public class TkmsClusterWideStateMonitor implements GracefulShutdownStrategy, In
 
             for (int s = 0; s < properties.getShardsCount(); s++) {
               EarliestVisibleMessages earliestVisibleMessages = properties.getEarliestVisibleMessages(s);
-              if (!earliestVisibleMessages.isEnabled()) {
+              // Delivered messages are left behind for the janitor.
+              // With transaction ids, nothing can be forgotten and the earliest message id is not stored.
+              if (!earliestVisibleMessages.isEnabled() || properties.getDeliveryWatermarks(s).isEnabled()
+                  || earliestVisibleMessages.getTrackingMode() == EarliestMessagesTrackingMode.TRANSACTION_IDS) {
                 continue;
               }
 
@@ -129,6 +134,7 @@ public class TkmsClusterWideStateMonitor implements GracefulShutdownStrategy, In
 
             registeredMetricHandles = new ArrayList<>();
             approximateMessagesCount = new HashMap<>();
+            forgottenMessagesCount = new HashMap<>();
 
             initialized = forInit;
           } finally {
@@ -170,14 +176,35 @@ public class TkmsClusterWideStateMonitor implements GracefulShutdownStrategy, In
   }
 
   /*
-   * Checks if there are any forgotten messages, when earliest message system is enabled.
+   * Counts forgotten messages, when earliest message system is enabled.
    */
   protected void checkLeftOverMessages(TkmsShardPartition sp) {
     var tkmsDao = tkmsDaoProvider.getTkmsDao(sp.getShard());
     Long earliestMessageId = tkmsDao.getEarliestMessageId(sp);
-    if (tkmsDao.hasMessagesBeforeId(sp, earliestMessageId)) {
-      log.error("Forgotten message detected in " + sp
-          + ". You may want to turn earliest visible message system off temporarily, so it gets picked up.");
+    int count = earliestMessageId == null ? 0
+        : tkmsDao.getMessagesCountBeforeId(sp, earliestMessageId, properties.getMonitoring().getLeftOverMessagesCountLimit());
+
+    stateLock.lock();
+    try {
+      if (!initialized) {
+        return;
+      }
+      forgottenMessagesCount.computeIfAbsent(sp, k -> {
+        AtomicLong counter = new AtomicLong(count);
+        registeredMetricHandles.add(coreMetricsTemplate.registerForgottenMessagesCount(sp, counter::get));
+        return counter;
+      }).set(count);
+    } finally {
+      stateLock.unlock();
+    }
+
+    if (count > 0) {
+      if (properties.getEarliestVisibleMessages(sp.getShard()).getRecoverySweep().isEnabled()) {
+        log.warn(count + " forgotten messages detected in " + sp + ". Those will be picked up by the recovery sweep.");
+      } else {
+        log.error(count + " forgotten messages detected in " + sp
+            + ". You may want to enable the recovery sweep or turn earliest visible message system off temporarily, so those get picked up.");
+      }
     }
   }
 
@@ -36,9 +36,18 @@ public class TkmsMetricsTemplate implements ITkmsMetricsTemplate, InitializingBe
 
   public static final String GAUGE_LIBRARY_INFO = "tw_library_info";
   public static final String TIMER_PROXY_POLL = "tw_tkms_proxy_poll";
+  public static final String TIMER_PROXY_PRIORITY_POLL = "tw_tkms_proxy_priority_poll";
   public static final String GAUGE_PROXY_POLL_IN_PROGRESS = "tw_tkms_proxy_poll_in_progress";
   public static final String TIMER_PROXY_CYCLE = "tw_tkms_proxy_cycle";
   public static final String TIMER_PROXY_CYCLE_PAUSE = "tw_tkms_proxy_cycle_pause";
+  public static final String COUNTER_PROXY_IDLE_PROBE = "tw_tkms_proxy_idle_probe";
+  public static final String COUNTER_PROXY_LEADERSHIP_BALANCING_YIELD = "tw_tkms_proxy_leadership_balancing_yield";
+  public static final String COUNTER_PROXY_STATE_HANDOVER = "tw_tkms_proxy_state_handover";
+  public static final String COUNTER_PROXY_GENERATION_TRUNCATE = "tw_tkms_proxy_generation_truncate";
+  public static final String COUNTER_JANITOR_MESSAGES_DELETION = "tw_tkms_janitor_messages_delete";
+  public static final String TIMER_PROXY_FAILOVER = "tw_tkms_proxy_failover";
+  public static final String GAUGE_PROXY_WARM_PRODUCER = "tw_tkms_proxy_warm_producer";
+  public static final String GAUGE_PROXY_TRANSACTION_IDS_HORIZON_LAG = "tw_tkms_proxy_transaction_ids_horizon_lag";
   public static final String COUNTER_PROXY_MESSAGE_SEND = "tw_tkms_proxy_message_send";
   public static final String TIMER_PROXY_KAFKA_MESSAGES_SEND = "tw_tkms_proxy_kafka_messages_send";
   public static final String TIMER_PROXY_MESSAGES_DELETION = "tw_tkms_proxy_messages_delete";
@@ -58,10 +67,25 @@ public class TkmsMetricsTemplate implements ITkmsMetricsTemplate, InitializingBe
   public static final String TIMER_MESSAGE_INSERT_TO_ACK = "tw_tkms_message_insert_to_ack";
   public static final String SUMMARY_DAO_COMPRESSION_RATIO_ACHIEVED = "tw_tkms_dao_serialization_compression_ratio";
   public static final String SUMMARY_MESSAGES_IN_TRANSACTION = "tw_tkms_messages_in_transaction";
+  public static final String COUNTER_EVENTS_DROPPED = "tw_tkms_events_dropped";
+  public static final String SUMMARY_DEFERRED_MESSAGES_PEAK_BYTES = "tw_tkms_deferred_messages_peak_bytes";
+  public static final String SUMMARY_GROUP_COMMIT_MESSAGES = "tw_tkms_group_commit_messages";
   public static final String COUNTER_DAO_ORIGINAL_SIZE_BYTES = "tw_tkms_dao_serialization_original_size_bytes";
   public static final String COUNTER_DAO_SERIALIZED_SIZE_BYTES = "tw_tkms_dao_serialization_serialized_size_bytes";
   public static final String GAUGE_DAO_EARLIEST_MESSAGE_ID = "tw_tkms_dao_earliest_message_id";
   public static final String COUNTER_DAO_EARLIEST_MESSAGE_ID_COMMIT = "tw_tkms_dao_earliest_message_id_commit";
+  public static final String TIMER_DAO_EARLIEST_MESSAGE_IDS_COMMIT = "tw_tkms_dao_earliest_message_ids_commit";
+  public static final String COUNTER_SPOOL_MESSAGES_APPEND = "tw_tkms_spool_messages_append";
+  public static final String COUNTER_SPOOL_MESSAGES_APPEND_FAILURE = "tw_tkms_spool_messages_append_failure";
+  public static final String COUNTER_SPOOL_MESSAGES_REPLAY = "tw_tkms_spool_messages_replay";
+  public static final String COUNTER_PROXY_MESSAGES_DEAD_LETTERED = "tw_tkms_proxy_messages_dead_lettered";
+  public static final String COUNTER_PROXY_KAFKA_PARTITION_HOLD_BACK = "tw_tkms_proxy_kafka_partition_hold_back";
+  public static final String COUNTER_PROXY_DUPLICATES_SUPPRESSED = "tw_tkms_proxy_duplicates_suppressed";
+  public static final String GAUGE_SPOOL_PENDING_MESSAGES = "tw_tkms_spool_pending_messages";
+  public static final String TIMER_SPOOL_FSYNC = "tw_tkms_spool_fsync";
+  public static final String GAUGE_PARTITIONER_SKEW = "tw_tkms_partitioner_skew";
+  public static final String GAUGE_DAO_FORGOTTEN_MESSAGES_COUNT = "tw_tkms_dao_forgotten_messages_count";
+  public static final String COUNTER_PROXY_FORGOTTEN_MESSAGES_RECOVERY = "tw_tkms_proxy_forgotten_messages_recovery";
 
   public static final Tag NA_SHARD_TAG = Tag.of("shard", "N/A");
   public static final Tag NA_PARTITION_TAG = Tag.of("partition", "N/A");
@@ -71,6 +95,8 @@ public class TkmsMetricsTemplate implements ITkmsMetricsTemplate, InitializingBe
   public static final Tag TAG_POLL_RESULTS_NOT_EMPTY = Tag.of("pollResult", "not_empty");
   public static final Tag TAG_DEFERRED_TRUE = Tag.of("deferred", "true");
   public static final Tag TAG_DEFERRED_FALSE = Tag.of("deferred", "false");
+  public static final Tag TAG_WARM_PRODUCER_TRUE = Tag.of("warmProducer", "true");
+  public static final Tag TAG_WARM_PRODUCER_FALSE = Tag.of("warmProducer", "false");
 
   private final IMeterCache meterCache;
   private final TkmsProperties tkmsProperties;
@@ -80,17 +106,23 @@ public class TkmsMetricsTemplate implements ITkmsMetricsTemplate, InitializingBe
     Map<String, double[]> slos = new HashMap<>();
     double[] defaultSlos = new double[]{1, 5, 25, 125, 625, 3125, 15625};
     slos.put(TIMER_PROXY_POLL, defaultSlos);
+    slos.put(TIMER_PROXY_PRIORITY_POLL, defaultSlos);
     slos.put(TIMER_PROXY_CYCLE, defaultSlos);
     slos.put(TIMER_PROXY_CYCLE_PAUSE, defaultSlos);
+    slos.put(TIMER_PROXY_FAILOVER, new double[]{100, 500, 1000, 5000, 10000, 30000, 60000});
     slos.put(TIMER_DAO_POLL_FIRST_RESULT, defaultSlos);
     slos.put(TIMRE_DAO_POLL_ALL_RESULTS, defaultSlos);
     slos.put(TIMER_DAO_POLL_GET_CONNECTION, defaultSlos);
+    slos.put(TIMER_DAO_EARLIEST_MESSAGE_IDS_COMMIT, defaultSlos);
+    slos.put(TIMER_SPOOL_FSYNC, defaultSlos);
     slos.put(TIMER_PROXY_KAFKA_MESSAGES_SEND, defaultSlos);
     slos.put(TIMER_PROXY_MESSAGES_DELETION, defaultSlos);
     slos.put(SUMMARY_DAO_POLL_ALL_RESULTS_COUNT, defaultSlos);
     slos.put(TIMER_MESSAGE_INSERT_TO_ACK, new double[]{1, 5, 25, 125, 625, 3125, 15625});
     slos.put(SUMMARY_DAO_COMPRESSION_RATIO_ACHIEVED, new double[]{0.05, 0.1, 0.25, 0.5, 0.75, 1, 1.25, 2, 4});
     slos.put(SUMMARY_MESSAGES_IN_TRANSACTION, new double[]{1, 5, 25, 125, 625, 3125, 15625, 5 * 15625});
+    slos.put(SUMMARY_DEFERRED_MESSAGES_PEAK_BYTES, new double[]{1024, 16 * 1024, 256 * 1024, 1024 * 1024, 16 * 1024 * 1024, 64 * 1024 * 1024});
+    slos.put(SUMMARY_GROUP_COMMIT_MESSAGES, new double[]{1, 2, 5, 10, 25, 50, 100, 250, 1000});
 
     meterCache.getMeterRegistry().config().meterFilter(new MeterFilter() {
       @Override
@@ -124,6 +156,16 @@ public class TkmsMetricsTemplate implements ITkmsMetricsTemplate, InitializingBe
         .record(System.nanoTime() - startNanoTime, TimeUnit.NANOSECONDS);
   }
 
+  @Override
+  public void recordProxyPriorityPoll(TkmsShardPartition shardPartition, int recordsCount, long startNanoTime) {
+    meterCache
+        .timer(TIMER_PROXY_PRIORITY_POLL, TagsSet.of(
+            partitionTag(shardPartition),
+            pollResultTag(recordsCount == 0),
+            shardTag(shardPartition)))
+        .record(System.nanoTime() - startNanoTime, TimeUnit.NANOSECONDS);
+  }
+
   @Override
   public void recordProxyMessageSendSuccess(TkmsShardPartition shardPartition, String topic, Instant insertTime) {
     meterCache
@@ -236,6 +278,59 @@ public class TkmsMetricsTemplate implements ITkmsMetricsTemplate, InitializingBe
         .record(durationMs, TimeUnit.MILLISECONDS);
   }
 
+  @Override
+  public void recordProxyIdleProbe(TkmsShardPartition shardPartition, boolean messagesFound) {
+    meterCache
+        .counter(COUNTER_PROXY_IDLE_PROBE, TagsSet.of(
+            partitionTag(shardPartition),
+            pollResultTag(!messagesFound),
+            shardTag(shardPartition)))
+        .increment();
+  }
+
+  @Override
+  public void recordLeadershipBalancingYield(TkmsShardPartition shardPartition) {
+    meterCache.counter(COUNTER_PROXY_LEADERSHIP_BALANCING_YIELD, TagsSet.of(partitionTag(shardPartition), shardTag(shardPartition))).increment();
+  }
+
+  @Override
+  public void recordProxyFailover(TkmsShardPartition shardPartition, long durationMs, boolean warmProducer) {
+    meterCache
+        .timer(TIMER_PROXY_FAILOVER, TagsSet.of(
+            partitionTag(shardPartition),
+            shardTag(shardPartition),
+            warmProducerTag(warmProducer)))
+        .record(durationMs, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public Object registerWarmProducerGauge(TkmsShardPartition shardPartition) {
+    return registerGauge(GAUGE_PROXY_WARM_PRODUCER, () -> 1d, shardTag(shardPartition), partitionTag(shardPartition));
+  }
+
+  @Override
+  public Object registerTransactionIdsHorizonLag(TkmsShardPartition shardPartition, Supplier<Number> supplier) {
+    return registerGauge(GAUGE_PROXY_TRANSACTION_IDS_HORIZON_LAG, supplier, shardTag(shardPartition), partitionTag(shardPartition));
+  }
+
+  @Override
+  public void recordProxyStateHandover(TkmsShardPartition shardPartition, boolean restored) {
+    meterCache.counter(COUNTER_PROXY_STATE_HANDOVER, TagsSet.of(partitionTag(shardPartition), shardTag(shardPartition), successTag(restored)))
+        .increment();
+  }
+
+  @Override
+  public void recordProxyGenerationTruncate(TkmsShardPartition shardPartition, boolean truncated) {
+    meterCache.counter(COUNTER_PROXY_GENERATION_TRUNCATE, TagsSet.of(partitionTag(shardPartition), shardTag(shardPartition), successTag(truncated)))
+        .increment();
+  }
+
+  @Override
+  public void recordJanitorMessagesDeletion(TkmsShardPartition shardPartition, int deletedCount) {
+    meterCache.counter(COUNTER_JANITOR_MESSAGES_DELETION, TagsSet.of(partitionTag(shardPartition), shardTag(shardPartition)))
+        .increment(deletedCount);
+  }
+
   @Override
   public void recordProxyKafkaMessagesSend(TkmsShardPartition shardPartition, long startNanoTime) {
     meterCache
@@ -389,6 +484,10 @@ public class TkmsMetricsTemplate implements ITkmsMetricsTemplate, InitializingBe
     return deferred ? TAG_DEFERRED_TRUE : TAG_DEFERRED_FALSE;
   }
 
+  protected Tag warmProducerTag(boolean warmProducer) {
+    return warmProducer ? TAG_WARM_PRODUCER_TRUE : TAG_WARM_PRODUCER_FALSE;
+  }
+
   protected Tag algorithmTag(CompressionAlgorithm algorithm) {
     return algorithm.getMicrometerTag();
   }
@@ -417,6 +516,16 @@ public class TkmsMetricsTemplate implements ITkmsMetricsTemplate, InitializingBe
     return registerGauge(GAUGE_DAO_APPROXIMATE_MESSAGES_COUNT, supplier, shardTag(sp), partitionTag(sp));
   }
 
+  @Override
+  public Object registerForgottenMessagesCount(TkmsShardPartition sp, Supplier<Number> supplier) {
+    return registerGauge(GAUGE_DAO_FORGOTTEN_MESSAGES_COUNT, supplier, shardTag(sp), partitionTag(sp));
+  }
+
+  @Override
+  public void recordProxyForgottenMessagesRecovery(TkmsShardPartition sp, int recoveredCount) {
+    meterCache.counter(COUNTER_PROXY_FORGOTTEN_MESSAGES_RECOVERY, TagsSet.of(shardTag(sp), partitionTag(sp))).increment(recoveredCount);
+  }
+
   @Override
   public Object registerPollingInProgressGauge(TkmsShardPartition sp) {
     return registerGauge(GAUGE_PROXY_POLL_IN_PROGRESS, () -> 1d, shardTag(sp), partitionTag(sp), databaseDialectTag(sp));
@@ -427,11 +536,83 @@ public class TkmsMetricsTemplate implements ITkmsMetricsTemplate, InitializingBe
     meterCache.counter(COUNTER_DAO_EARLIEST_MESSAGE_ID_COMMIT, TagsSet.of(shardTag(shardPartition), partitionTag(shardPartition))).increment();
   }
 
+  @Override
+  public void recordDaoEarliestMessageIdsCommit(int shard, boolean success, long startNanoTime) {
+    meterCache.timer(TIMER_DAO_EARLIEST_MESSAGE_IDS_COMMIT, TagsSet.of(shardTag(TkmsShardPartition.of(shard, 0)), successTag(success)))
+        .record(System.nanoTime() - startNanoTime, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public void recordSpoolMessageAppend(TkmsShardPartition sp, String topic) {
+    meterCache.counter(COUNTER_SPOOL_MESSAGES_APPEND, TagsSet.of(shardTag(sp), partitionTag(sp), topicTag(topic))).increment();
+  }
+
+  @Override
+  public void recordSpoolMessageAppendFailure(TkmsShardPartition sp, String topic) {
+    meterCache.counter(COUNTER_SPOOL_MESSAGES_APPEND_FAILURE, TagsSet.of(shardTag(sp), partitionTag(sp), topicTag(topic))).increment();
+  }
+
+  @Override
+  public void recordSpoolMessageReplay(TkmsShardPartition sp, String topic) {
+    meterCache.counter(COUNTER_SPOOL_MESSAGES_REPLAY, TagsSet.of(shardTag(sp), partitionTag(sp), topicTag(topic))).increment();
+  }
+
+  @Override
+  public void recordProxyMessageDeadLettered(TkmsShardPartition sp, String topic) {
+    meterCache.counter(COUNTER_PROXY_MESSAGES_DEAD_LETTERED, TagsSet.of(shardTag(sp), partitionTag(sp), topicTag(topic))).increment();
+  }
+
+  @Override
+  public void recordProxyKafkaPartitionHoldBack(TkmsShardPartition sp, String topic) {
+    meterCache.counter(COUNTER_PROXY_KAFKA_PARTITION_HOLD_BACK, TagsSet.of(shardTag(sp), partitionTag(sp), topicTag(topic))).increment();
+  }
+
+  @Override
+  public void recordProxyDuplicatesSuppressed(TkmsShardPartition sp, int messagesCount) {
+    meterCache.counter(COUNTER_PROXY_DUPLICATES_SUPPRESSED, TagsSet.of(shardTag(sp), partitionTag(sp))).increment(messagesCount);
+  }
+
+  @Override
+  public Object registerSpoolPendingMessages(int shard, Supplier<Number> supplier) {
+    return registerGauge(GAUGE_SPOOL_PENDING_MESSAGES, supplier, shardTag(TkmsShardPartition.of(shard, 0)));
+  }
+
+  @Override
+  public Object registerPartitionerSkew(int shard, Supplier<Number> supplier) {
+    return registerGauge(GAUGE_PARTITIONER_SKEW, supplier, shardTag(TkmsShardPartition.of(shard, 0)));
+  }
+
+  @Override
+  public void recordSpoolFsync(int shard, long startNanoTime) {
+    meterCache.timer(TIMER_SPOOL_FSYNC, TagsSet.of(shardTag(TkmsShardPartition.of(shard, 0))))
+        .record(System.nanoTime() - startNanoTime, TimeUnit.NANOSECONDS);
+  }
+
   @Override
   public void registerMessagesInTransactionCount(long registeredMessagesCount, boolean success) {
     meterCache.summary(SUMMARY_MESSAGES_IN_TRANSACTION, TagsSet.of(successTag(success))).record(registeredMessagesCount);
   }
 
+  @Override
+  public void recordEventsDropped(String listener, int eventsCount) {
+    meterCache.counter(COUNTER_EVENTS_DROPPED, TagsSet.of(Tag.of("listener", listener))).increment(eventsCount);
+  }
+
+  @Override
+  public void recordDeferredMessagesPeakBytes(long peakBytes, boolean success) {
+    meterCache.summary(SUMMARY_DEFERRED_MESSAGES_PEAK_BYTES, TagsSet.of(successTag(success))).record(peakBytes);
+  }
+
+  @Override
+  public void recordGroupCommit(TkmsShardPartition shardPartition, int messagesCount, boolean success) {
+    meterCache
+        .summary(SUMMARY_GROUP_COMMIT_MESSAGES, TagsSet.of(
+            partitionTag(shardPartition),
+            shardTag(shardPartition),
+            successTag(success)))
+        .record(messagesCount);
+  }
+
   protected MetricHandle registerGauge(String name, Supplier<Number> supplier, Tag... tags) {
     return new MetricHandle().setMeter(Gauge.builder(name, supplier)
         .tags(Tags.of(tags)).register(meterCache.getMeterRegistry()));
@@ -0,0 +1,156 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+import com.transferwise.common.baseutils.clock.TestClock;
+import com.transferwise.kafka.tkms.api.TkmsMessage;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.ITkmsDaoProvider;
+import com.transferwise.kafka.tkms.config.TkmsProperties.DeadLetters;
+import com.transferwise.kafka.tkms.dao.ITkmsDao;
+import com.transferwise.kafka.tkms.test.BaseIntTest;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import org.springframework.beans.factory.annotation.Autowired;
+
+@TestInstance(Lifecycle.PER_CLASS)
+class DeadLettersIntTest extends BaseIntTest {
+
+  private static final TkmsShardPartition SHARD_PARTITION = TkmsShardPartition.of(0, 0);
+  private static final TkmsShardPartition OTHER_SHARD_PARTITION = TkmsShardPartition.of(0, 1);
+
+  @Autowired
+  private ITkmsDaoProvider tkmsDaoProvider;
+  @Autowired
+  private TkmsStorageToKafkaProxy tkmsStorageToKafkaProxy;
+  @Autowired
+  private TkmsDeadLetters tkmsDeadLetters;
+
+  private ITkmsDao tkmsDao;
+  private TestClock clock;
+
+  @BeforeAll
+  public void setupClass() {
+    tkmsStorageToKafkaProxy.pause();
+    await().until(() -> tkmsStorageToKafkaProxy.isPaused());
+  }
+
+  @AfterAll
+  void tearDownClass() {
+    tkmsStorageToKafkaProxy.resume();
+  }
+
+  @BeforeEach
+  @Override
+  public void setup() {
+    super.setup();
+    tkmsDao = tkmsDaoProvider.getTkmsDao(0);
+    tkmsProperties.getDeadLetters().setEnabled(true).setMaxAttempts(1).setRetryDelay(Duration.ofMinutes(1)).setRetryInterval(Duration.ZERO);
+
+    jdbcTemplate.update("delete from outgoing_message_0_0");
+    jdbcTemplate.update("delete from outgoing_message_0_dead_letter");
+
+    clock = new TestClock(Instant.now());
+    TkmsClockHolder.setClock(clock);
+  }
+
+  @AfterEach
+  @Override
+  public void cleanup() {
+    tkmsDeadLetters.leadershipReleased(SHARD_PARTITION);
+    tkmsProperties.setDeadLetters(new DeadLetters());
+    super.cleanup();
+  }
+
+  @Test
+  void deadLetterIsRetriedUntilSent() {
+    long messageId = insertMessage();
+    long deadLetterId = deadLetter(messageId);
+
+    var deadLetters = tkmsDeadLetters.getDeadLetters(SHARD_PARTITION, 10);
+    assertThat(deadLetters).hasSize(1);
+    var deadLetter = deadLetters.get(0);
+    assertThat(deadLetter.getId()).isEqualTo(deadLetterId);
+    assertThat(deadLetter.getMessageId()).isEqualTo(messageId);
+    assertThat(deadLetter.getTopic()).isEqualTo("ABC");
+    assertThat(deadLetter.getError()).isEqualTo("java.lang.IllegalStateException: Record is too large.");
+    assertThat(deadLetter.getRetries()).isZero();
+    assertThat(deadLetter.getNextRetryAt()).isEqualTo(clock.instant().plus(Duration.ofMinutes(1)));
+    assertThat(meterRegistry.find("tw_tkms_proxy_messages_dead_lettered").counter().count()).isEqualTo(1);
+
+    assertThat(tkmsDeadLetters.pollRetries(SHARD_PARTITION)).isEmpty();
+
+    clock.tick(Duration.ofMinutes(1));
+    var retries = tkmsDeadLetters.pollRetries(SHARD_PARTITION);
+    assertThat(retries).hasSize(1);
+    tkmsDeadLetters.retried(SHARD_PARTITION, List.of(), retries);
+
+    deadLetter = tkmsDeadLetters.getDeadLetters(SHARD_PARTITION, 10).get(0);
+    assertThat(deadLetter.getRetries()).isEqualTo(1);
+    assertThat(deadLetter.getNextRetryAt()).isEqualTo(clock.instant().plus(Duration.ofMinutes(2)));
+
+    clock.tick(Duration.ofMinutes(2));
+    retries = tkmsDeadLetters.pollRetries(SHARD_PARTITION);
+    assertThat(retries).hasSize(1);
+    tkmsDeadLetters.retried(SHARD_PARTITION, retries, List.of());
+
+    assertThat(tkmsDeadLetters.getDeadLetters(SHARD_PARTITION, 10)).isEmpty();
+  }
+
+  @Test
+  void deadLettersOfOtherPartitionsAreNotTouched() {
+    long deadLetterId = deadLetter(insertMessage());
+    var deadLetterRecord = tkmsDao.getDeadLetter(SHARD_PARTITION, deadLetterId);
+
+    assertThat(tkmsDao.getDeadLetter(OTHER_SHARD_PARTITION, deadLetterId)).isNull();
+    assertThat(tkmsDeadLetters.getDeadLetters(OTHER_SHARD_PARTITION, 10)).isEmpty();
+
+    tkmsDao.updateDeadLetter(OTHER_SHARD_PARTITION, deadLetterRecord.setRetries(5));
+    assertThat(tkmsDao.getDeadLetter(SHARD_PARTITION, deadLetterId).getRetries()).isZero();
+
+    assertThat(tkmsDao.deleteDeadLetter(OTHER_SHARD_PARTITION, deadLetterId)).isFalse();
+    assertThat(tkmsDeadLetters.replay(OTHER_SHARD_PARTITION, List.of(deadLetterId))).isZero();
+    assertThat(tkmsDeadLetters.getDeadLetters(SHARD_PARTITION, 10)).hasSize(1);
+  }
+
+  @Test
+  void replayedDeadLetterIsMovedBackToOutgoingMessages() {
+    deadLetter(insertMessage());
+    jdbcTemplate.update("delete from outgoing_message_0_0");
+    var deadLetter = tkmsDeadLetters.getDeadLetters(SHARD_PARTITION, 10).get(0);
+
+    assertThat(tkmsDeadLetters.replay(SHARD_PARTITION, List.of(deadLetter.getId(), deadLetter.getId() + 1))).isEqualTo(1);
+
+    assertThat(tkmsDeadLetters.getDeadLetters(SHARD_PARTITION, 10)).isEmpty();
+    var records = tkmsDao.getMessages(SHARD_PARTITION, 0, 10);
+    assertThat(records).hasSize(1);
+    assertThat(records.get(0).getMessage().getTopic()).isEqualTo("ABC");
+  }
+
+  private long insertMessage() {
+    return tkmsDao.insertMessage(SHARD_PARTITION, new TkmsMessage().setTopic("ABC").setValue("ABC".getBytes(StandardCharsets.UTF_8)))
+        .getStorageId();
+  }
+
+  /**
+   * Fails the only attempt with a non retriable error, so the message is moved right away.
+   */
+  private long deadLetter(long messageId) {
+    var records = tkmsDao.getMessages(SHARD_PARTITION, messageId, 1);
+    var movedIds = tkmsDeadLetters.registerFailedSends(SHARD_PARTITION, TkmsMessageSource.MAIN, records,
+        List.of(new IllegalStateException("Record is too large.")));
+    assertThat(movedIds).containsExactly(messageId);
+
+    return tkmsDao.getDeadLetters(SHARD_PARTITION, 10).get(0).getId();
+  }
+}
@@ -0,0 +1,85 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.transferwise.kafka.tkms.DeliveryProgress.MessagesSource;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.MessageRecord;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+class DeliveryProgressTest {
+
+  private final TreeSet<Long> table = new TreeSet<>();
+
+  private final MessagesSource source = new MessagesSource() {
+    @Override
+    public List<MessageRecord> getMessages(long fromMessageId, int maxCount) {
+      return table.tailSet(fromMessageId).stream().limit(maxCount).map(id -> new MessageRecord().setId(id)).collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Long> getMessageIds(long fromMessageId, long toMessageId) {
+      return List.copyOf(table.subSet(fromMessageId, true, toMessageId, true));
+    }
+  };
+
+  @Test
+  void skippedMessagesAreFoundByRescan() {
+    var progress = new DeliveryProgress(source, 0, List.of(), 0);
+    table.addAll(List.of(1L, 2L, 4L));
+
+    var batch = progress.poll(10);
+    assertThat(ids(batch)).containsExactly(1L, 2L, 4L);
+    progress.proxied(batch, List.of(1L, 2L, 4L));
+
+    assertThat(progress.poll(10).getRecords()).isEmpty();
+    assertThat(progress.isDrained()).isTrue();
+
+    // Committed out of order.
+    table.add(3L);
+    assertThat(progress.rescan(0, 1000)).isFalse();
+
+    batch = progress.poll(10);
+    assertThat(ids(batch)).containsExactly(3L);
+    progress.proxied(batch, List.of(3L));
+
+    assertThat(progress.rescan(1, 1000)).isTrue();
+    assertThat(progress.getWatermark()).isEqualTo(0);
+
+    assertThat(progress.rescan(1001, 1000)).isTrue();
+    assertThat(progress.getWatermark()).isEqualTo(5);
+  }
+
+  @Test
+  void failedMessagesAreKeptPending() {
+    var progress = new DeliveryProgress(source, 0, List.of(), 1);
+    table.addAll(List.of(1L, 2L, 3L, 4L));
+
+    var batch = progress.poll(10);
+    progress.proxied(batch, List.of(1L, 4L));
+
+    // 2 is pending, 3 does not fit, so the cursor is moved back to it.
+    assertThat(progress.getPendingIds()).containsExactly(2L);
+    batch = progress.poll(10);
+    assertThat(ids(batch)).containsExactly(2L, 3L);
+    progress.proxied(batch, List.of(3L));
+
+    assertThat(progress.isProxied(2)).isFalse();
+    assertThat(progress.isProxied(3)).isTrue();
+
+    progress.rescan(0, 0);
+    assertThat(progress.getWatermark()).isEqualTo(5);
+    assertThat(progress.isProxied(2)).isFalse();
+
+    batch = progress.poll(10);
+    assertThat(ids(batch)).containsExactly(2L);
+    progress.proxied(batch, List.of(2L));
+    assertThat(progress.getPendingIds()).isEmpty();
+  }
+
+  private List<Long> ids(IDeliveryTracker.Batch batch) {
+    return batch.getRecords().stream().map(MessageRecord::getId).collect(Collectors.toList());
+  }
+}
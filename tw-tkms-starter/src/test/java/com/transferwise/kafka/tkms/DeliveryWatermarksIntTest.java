@@ -0,0 +1,184 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+import com.transferwise.common.baseutils.clock.TestClock;
+import com.transferwise.kafka.tkms.IDeliveryTracker.Batch;
+import com.transferwise.kafka.tkms.api.TkmsMessage;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.ITkmsDaoProvider;
+import com.transferwise.kafka.tkms.dao.ITkmsDao;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.MessageRecord;
+import com.transferwise.kafka.tkms.test.BaseIntTest;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import org.springframework.beans.factory.annotation.Autowired;
+
+@TestInstance(Lifecycle.PER_CLASS)
+class DeliveryWatermarksIntTest extends BaseIntTest {
+
+  private static final TkmsShardPartition SHARD_PARTITION = TkmsShardPartition.of(0, 0);
+
+  @Autowired
+  private ITkmsDaoProvider tkmsDaoProvider;
+  @Autowired
+  private TkmsStorageToKafkaProxy tkmsStorageToKafkaProxy;
+  @Autowired
+  private TkmsDeliveryJanitor tkmsDeliveryJanitor;
+
+  private ITkmsDao tkmsDao;
+  private TestClock clock;
+  private int deleteBatchSize;
+
+  @BeforeAll
+  public void setupClass() {
+    tkmsStorageToKafkaProxy.pause();
+    await().until(() -> tkmsStorageToKafkaProxy.isPaused());
+  }
+
+  @AfterAll
+  void tearDownClass() {
+    tkmsStorageToKafkaProxy.resume();
+  }
+
+  @BeforeEach
+  @Override
+  public void setup() {
+    super.setup();
+    tkmsDao = tkmsDaoProvider.getTkmsDao(0);
+    var deliveryWatermarks = tkmsProperties.getDeliveryWatermarks().setEnabled(true);
+    deleteBatchSize = deliveryWatermarks.getJanitor().getDeleteBatchSize();
+
+    jdbcTemplate.update("delete from outgoing_message_0_0");
+    jdbcTemplate.update("delete from tw_tkms_delivery_watermarks");
+
+    clock = new TestClock(Instant.now());
+    TkmsClockHolder.setClock(clock);
+  }
+
+  @AfterEach
+  @Override
+  public void cleanup() {
+    tkmsProperties.getDeliveryWatermarks().setEnabled(false).getJanitor().setDeleteBatchSize(deleteBatchSize);
+    super.cleanup();
+  }
+
+  @Test
+  void restartResumesFromCommittedWatermark() {
+    var tracker = createTracker();
+
+    var ids = insertMessages(3);
+    var batch = tracker.poll(10);
+    assertThat(getIds(batch)).containsExactlyElementsOf(ids);
+    tracker.proxied(batch, getIds(batch));
+    commitWatermark(tracker);
+
+    var deliveryWatermark = tkmsDao.getDeliveryWatermark(SHARD_PARTITION);
+    assertThat(deliveryWatermark.getWatermark()).isEqualTo(ids.get(2) + 1);
+    assertThat(deliveryWatermark.getPendingIds()).isEmpty();
+
+    var nextIds = insertMessages(2);
+    batch = tracker.poll(10);
+    tracker.proxied(batch, getIds(batch));
+    tracker.shutdown();
+
+    // Messages proxied during the last look back period are sent again.
+    var restartedTracker = createTracker();
+    assertThat(getIds(restartedTracker.poll(10))).containsExactlyElementsOf(nextIds);
+  }
+
+  @Test
+  void pendingIdsAreSentAfterRestart() {
+    var tracker = createTracker();
+
+    var ids = insertMessages(3);
+    var batch = tracker.poll(10);
+    tracker.proxied(batch, List.of(ids.get(0), ids.get(2)));
+    commitWatermark(tracker);
+
+    var deliveryWatermark = tkmsDao.getDeliveryWatermark(SHARD_PARTITION);
+    assertThat(deliveryWatermark.getWatermark()).isEqualTo(ids.get(2) + 1);
+    assertThat(deliveryWatermark.getPendingIds()).containsExactly(ids.get(1));
+    tracker.shutdown();
+
+    var restartedTracker = createTracker();
+    batch = restartedTracker.poll(10);
+    assertThat(getIds(batch)).containsExactly(ids.get(1));
+
+    restartedTracker.proxied(batch, getIds(batch));
+    restartedTracker.shutdown();
+    assertThat(tkmsDao.getDeliveryWatermark(SHARD_PARTITION).getPendingIds()).isEmpty();
+  }
+
+  @Test
+  void janitorDeletesRangesBelowWatermark() {
+    tkmsProperties.getDeliveryWatermarks().getJanitor().setDeleteBatchSize(2);
+    var tracker = createTracker();
+
+    var ids = insertMessages(6);
+    var batch = tracker.poll(10);
+    tracker.proxied(batch, getIds(batch).stream().filter(id -> !id.equals(ids.get(3))).collect(Collectors.toList()));
+    commitWatermark(tracker);
+    assertThat(tkmsDao.getDeliveryWatermark(SHARD_PARTITION).getPendingIds()).containsExactly(ids.get(3));
+
+    // Not proxied yet, above the watermark.
+    var nextIds = insertMessages(1);
+
+    tkmsDeliveryJanitor.cleanUp(SHARD_PARTITION);
+
+    assertThat(getRemainingIds()).containsExactly(ids.get(3), nextIds.get(0));
+    assertThat(meterRegistry.find("tw_tkms_janitor_messages_delete").counter().count()).isEqualTo(5);
+  }
+
+  @Test
+  void janitorDoesNothingWithoutWatermark() {
+    var ids = insertMessages(2);
+
+    tkmsDeliveryJanitor.cleanUp(SHARD_PARTITION);
+
+    assertThat(getRemainingIds()).containsExactlyElementsOf(ids);
+  }
+
+  /**
+   * Two clean rescans, a look back period apart, move the watermark past the proxied messages.
+   */
+  private void commitWatermark(DeliveryWatermarkTracker tracker) {
+    tracker.maintain();
+    clock.tick(tkmsProperties.getDeliveryWatermarks().getLookBackPeriod().plusSeconds(1));
+    tracker.maintain();
+  }
+
+  private DeliveryWatermarkTracker createTracker() {
+    var tracker = new DeliveryWatermarkTracker(tkmsDao, SHARD_PARTITION, tkmsProperties);
+    tracker.init();
+    return tracker;
+  }
+
+  private List<Long> insertMessages(int count) {
+    var ids = new ArrayList<Long>();
+    for (int i = 0; i < count; i++) {
+      ids.add(tkmsDao.insertMessage(SHARD_PARTITION, new TkmsMessage().setTopic("ABC").setValue("ABC".getBytes(StandardCharsets.UTF_8)))
+          .getStorageId());
+    }
+    return ids;
+  }
+
+  private List<Long> getRemainingIds() {
+    return jdbcTemplate.queryForList("select id from outgoing_message_0_0 order by id", Long.class);
+  }
+
+  private static List<Long> getIds(Batch batch) {
+    return batch.getRecords().stream().map(MessageRecord::getId).collect(Collectors.toList());
+  }
+}
@@ -6,6 +6,8 @@ import com.transferwise.common.baseutils.clock.TestClock;
 import com.transferwise.kafka.tkms.test.BaseIntTest;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.Random;
 import org.junit.jupiter.api.Test;
 
 class EarliestMessageSlidingWindowTest extends BaseIntTest {
@@ -50,4 +52,55 @@ class EarliestMessageSlidingWindowTest extends BaseIntTest {
     slidingWindow.register(13);
     assertThat(slidingWindow.getEarliestMessageId()).isEqualTo(13);
   }
+
+  @Test
+  void slidingWindowCanBeResumedFromExportedState() {
+    TestClock clock = new TestClock(Instant.now());
+    TkmsClockHolder.setClock(clock);
+
+    EarliestMessageSlidingWindow slidingWindow = new EarliestMessageSlidingWindow(Duration.ofSeconds(10));
+    slidingWindow.register(5);
+    clock.tick(Duration.ofSeconds(6));
+    slidingWindow.register(7);
+
+    var state = slidingWindow.exportState();
+
+    clock.tick(Duration.ofSeconds(1));
+    EarliestMessageSlidingWindow resumedSlidingWindow = new EarliestMessageSlidingWindow(Duration.ofSeconds(10));
+    assertThat(resumedSlidingWindow.restoreState(state)).isTrue();
+
+    clock.tick(Duration.ofSeconds(4));
+    assertThat(resumedSlidingWindow.getEarliestMessageId()).isEqualTo(7);
+
+    EarliestMessageSlidingWindow differentlyConfiguredSlidingWindow = new EarliestMessageSlidingWindow(Duration.ofSeconds(20));
+    assertThat(differentlyConfiguredSlidingWindow.restoreState(state)).isFalse();
+  }
+
+  @Test
+  void earliestMessageIdMatchesMinimumOfBuckets() {
+    TestClock clock = new TestClock(Instant.now());
+    TkmsClockHolder.setClock(clock);
+
+    var random = new Random(42);
+    EarliestMessageSlidingWindow slidingWindow = new EarliestMessageSlidingWindow(Duration.ofSeconds(10));
+    slidingWindow.register(1000);
+    clock.tick(Duration.ofSeconds(11));
+
+    for (int i = 0; i < 10000; i++) {
+      clock.tick(Duration.ofMillis(random.nextInt(i % 1000 == 0 ? 12000 : 300)));
+      slidingWindow.register(random.nextInt(1000));
+
+      var state = slidingWindow.exportState();
+      long expected = Arrays.stream(state.getBuckets()).min().getAsLong();
+      assertThat(slidingWindow.getEarliestMessageId()).isEqualTo(expected == Long.MAX_VALUE ? -1 : expected);
+      assertThat(slidingWindow.getPublishedEarliestMessageId()).isEqualTo(slidingWindow.getEarliestMessageId());
+
+      if (i % 100 == 0) {
+        EarliestMessageSlidingWindow resumedSlidingWindow = new EarliestMessageSlidingWindow(Duration.ofSeconds(10));
+        assertThat(resumedSlidingWindow.restoreState(state)).isTrue();
+        clock.tick(Duration.ofMillis(random.nextInt(5000)));
+        assertThat(resumedSlidingWindow.getEarliestMessageId()).isEqualTo(slidingWindow.getEarliestMessageId());
+      }
+    }
+  }
 }
@@ -9,6 +9,7 @@ import com.transferwise.kafka.tkms.api.TkmsMessage;
 import com.transferwise.kafka.tkms.api.TkmsShardPartition;
 import com.transferwise.kafka.tkms.config.ITkmsDaoProvider;
 import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.config.TkmsProperties.EarliestMessagesTrackingMode;
 import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
 import com.transferwise.kafka.tkms.test.BaseIntTest;
 import com.transferwise.kafka.tkms.test.TestLogAppender;
@@ -28,6 +29,8 @@ import org.springframework.test.context.ActiveProfiles;
 @Slf4j
 class EarliestMessageTrackingIntTest extends BaseIntTest {
 
+  private static final long FORGOTTEN_MESSAGE_ID = 1;
+
   @Autowired
   private TransactionalKafkaMessageSender tkms;
   @Autowired
@@ -38,6 +41,10 @@ class EarliestMessageTrackingIntTest extends BaseIntTest {
   private ITkmsMetricsTemplate metricsTemplate;
   @Autowired
   private ITransactionsHelper transactionsHelper;
+  @Autowired
+  private ITkmsEarliestMessageIdsCommitter earliestMessageIdsCommitter;
+  @Autowired
+  private TkmsStorageToKafkaProxy tkmsStorageToKafkaProxy;
 
   @Value("${tw-tkms-test.test-topic}")
   private String testTopic;
@@ -90,13 +97,13 @@ class EarliestMessageTrackingIntTest extends BaseIntTest {
     sendMessageAndWaitForArrival();
     assertThat(earliestMessageIdGauge.value()).isGreaterThan(previousValue);
 
-    var committedValue =
-        jdbcTemplate.queryForObject("select message_id from earliestmessage.tw_tkms_earliest_visible_messages where shard=? and part=?", Long.class,
-            0, 0);
-    assertThat(committedValue).isGreaterThanOrEqualTo((long) previousValue);
+    var committedValue = await().until(
+        () -> jdbcTemplate.queryForObject("select message_id from earliestmessage.tw_tkms_earliest_visible_messages where shard=? and part=?",
+            Long.class, 0, 0), v -> v >= (long) previousValue);
 
     var tkmsDao = tkmsDaoProvider.getTkmsDao(0);
-    var earliestMessageTracker = new EarliestMessageTracker(tkmsDao, TkmsShardPartition.of(0, 0), properties, metricsTemplate);
+    var earliestMessageTracker = new EarliestMessageTracker(tkmsDao, TkmsShardPartition.of(0, 0), properties, metricsTemplate,
+        earliestMessageIdsCommitter);
     earliestMessageTracker.init();
 
     assertThat(earliestMessageTracker.getEarliestMessageId()).isEqualTo(committedValue);
@@ -104,6 +111,86 @@ class EarliestMessageTrackingIntTest extends BaseIntTest {
     assertThat(pollingAllRecordsHappened);
   }
 
+  @Test
+  void testIfTransactionIdsTrackerBehavesAsExpected() {
+    properties.getEarliestVisibleMessages().setTrackingMode(EarliestMessagesTrackingMode.TRANSACTION_IDS);
+    try {
+      restartProxy();
+      await().until(() -> meterRegistry.find("tw_tkms_proxy_transaction_ids_horizon_lag").tags("shard", "0", "partition", "0").gauge() != null);
+
+      sendMessageAndWaitForArrival();
+      long transactionId = transactionsHelper.withTransaction().call(() -> {
+        tkms.sendMessage(new TkmsMessage().setTopic(testTopic).setValue("Hello Kristo!".getBytes(StandardCharsets.UTF_8)));
+        return jdbcTemplate.queryForObject("select pg_current_xact_id()::text::bigint", Long.class);
+      });
+      sentMessagesCount++;
+      await().until(() -> tkmsSentMessagesCollector.getSentMessages(testTopic).size() == sentMessagesCount);
+      sendMessageAndWaitForArrival();
+
+      var committedValue = await().until(
+          () -> jdbcTemplate.queryForObject("select transaction_id from earliestmessage.tw_tkms_earliest_visible_messages where shard=? and part=?",
+              Long.class, 0, 0), v -> v != null && v > transactionId);
+
+      var tkmsDao = tkmsDaoProvider.getTkmsDao(0);
+      var transactionIdsTracker = new TransactionIdsTracker(TransactionIdsTracker.asTransactionIdsDao(tkmsDao, 0), TkmsShardPartition.of(0, 0),
+          earliestMessageIdsCommitter, metricsTemplate);
+      transactionIdsTracker.init();
+
+      assertThat(transactionIdsTracker.getCursor()).isGreaterThanOrEqualTo(committedValue);
+      assertThat(transactionIdsTracker.poll(10).getRecords()).isEmpty();
+    } finally {
+      properties.getEarliestVisibleMessages().setTrackingMode(EarliestMessagesTrackingMode.LOOK_BACK);
+      restartProxy();
+    }
+  }
+
+  @Test
+  void forgottenMessagesAreSweptAndSent() {
+    var clock = new TestClock(Instant.now());
+    TkmsClockHolder.setClock(clock);
+    properties.getEarliestVisibleMessages().getRecoverySweep().setEnabled(true);
+    try {
+      restartProxy();
+
+      for (int i = 0; i < 10 && getEarliestMessageId() <= FORGOTTEN_MESSAGE_ID; i++) {
+        sendMessageAndWaitForArrival();
+        clock.tick(Duration.ofSeconds(6));
+      }
+      assertThat(getEarliestMessageId()).isGreaterThan(FORGOTTEN_MESSAGE_ID);
+
+      // Committed below the earliest visible message id, as a transaction longer than the look back period would do.
+      transactionsHelper.withTransaction().run(() -> {
+        var result = tkmsDaoProvider.getTkmsDao(0).insertMessage(TkmsShardPartition.of(0, 0),
+            new TkmsMessage().setTopic(testTopic).setValue("Forgotten".getBytes(StandardCharsets.UTF_8)));
+        jdbcTemplate.update("update earliestmessage.outgoing_message_0_0 set id=? where id=?", FORGOTTEN_MESSAGE_ID, result.getStorageId());
+      });
+      clock.tick(properties.getEarliestVisibleMessages().getRecoverySweep().getInterval());
+
+      await().until(() -> tkmsSentMessagesCollector.getSentMessages(testTopic).size() == sentMessagesCount + 1);
+      assertThat(meterRegistry.find("tw_tkms_proxy_forgotten_messages_recovery").tags("shard", "0", "partition", "0").counter().count())
+          .isEqualTo(1);
+      assertThat(jdbcTemplate.queryForObject("select count(*) from earliestmessage.outgoing_message_0_0 where id=?", Integer.class,
+          FORGOTTEN_MESSAGE_ID)).isZero();
+    } finally {
+      properties.getEarliestVisibleMessages().getRecoverySweep().setEnabled(false);
+      restartProxy();
+    }
+  }
+
+  private double getEarliestMessageId() {
+    var gauge = meterRegistry.find("tw_tkms_dao_earliest_message_id").tags("shard", "0", "partition", "0").gauge();
+    return gauge == null ? -1 : gauge.value();
+  }
+
+  /**
+   * The tracking mode and the recovery sweep are picked up, when the pollers start again.
+   */
+  private void restartProxy() {
+    tkmsStorageToKafkaProxy.pause();
+    await().until(() -> tkmsStorageToKafkaProxy.isPaused());
+    tkmsStorageToKafkaProxy.resume();
+  }
+
   protected void sendMessageAndWaitForArrival() {
     transactionsHelper.withTransaction().run(() -> {
           var result = tkms.sendMessage(new TkmsMessage().setTopic(testTopic).setValue("Hello Kristo!".getBytes(StandardCharsets.UTF_8)));
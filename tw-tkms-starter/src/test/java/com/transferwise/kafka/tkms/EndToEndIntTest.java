@@ -27,9 +27,11 @@ import io.micrometer.core.instrument.Counter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
@@ -39,6 +41,7 @@ import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.mutable.MutableObject;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.params.ParameterizedTest;
@@ -836,6 +839,89 @@ abstract class EndToEndIntTest extends BaseIntTest {
     return arguments.stream();
   }
 
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  @SneakyThrows
+  void sendMessageAsyncCompletesWhenKafkaAcknowledgesTheMessage(boolean deferUntilCommit) {
+    setupConfig(deferUntilCommit);
+
+    var testEvent = new TestEvent().setId(1L).setMessage("Hello Async!");
+    var stage = transactionsHelper.withTransaction().call(() -> transactionalKafkaMessageSender
+        .sendMessageAsync(new TkmsMessage().setTopic(testProperties.getTestTopic()).setValue(toJsonBytes(testEvent))));
+
+    var recordMetadata = stage.toCompletableFuture().get(30, TimeUnit.SECONDS);
+    assertThat(recordMetadata.topic()).isEqualTo(testProperties.getTestTopic());
+    assertThat(recordMetadata.hasOffset()).isTrue();
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void sendMessageAsyncFailsWhenTransactionIsRolledBack(boolean deferUntilCommit) {
+    setupConfig(deferUntilCommit);
+
+    var stage = new MutableObject<CompletionStage<RecordMetadata>>();
+    assertThatThrownBy(() -> transactionsHelper.withTransaction().run(() -> {
+      stage.setValue(transactionalKafkaMessageSender
+          .sendMessageAsync(new TkmsMessage().setTopic(testProperties.getTestTopic()).setValue(toJsonBytes(new TestEvent().setId(1L)))));
+      throw new IllegalStateException("Rolling back.");
+    })).hasMessage("Rolling back.");
+
+    assertThatThrownBy(() -> stage.getValue().toCompletableFuture().get(30, TimeUnit.SECONDS))
+        .hasCauseInstanceOf(IllegalStateException.class)
+        .hasRootCauseMessage("Transaction was rolled back.");
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void priorityLaneIsDrainedBeforeMainTable(boolean deferUntilCommit) {
+    setupConfig(deferUntilCommit);
+    tkmsStorageToKafkaProxy.pause();
+
+    var shardPartition = TkmsShardPartition.of(0, 0);
+    var mainTopic = testProperties.getTestTopic();
+    var priorityTopic = testProperties.getPriorityTestTopic();
+    int n = 10;
+
+    var receivedTimestamps = new ConcurrentHashMap<String, List<Long>>();
+    Consumer<ConsumerRecord<String, String>> messageCounter =
+        cr -> receivedTimestamps.computeIfAbsent(cr.topic(), k -> new CopyOnWriteArrayList<>()).add(cr.timestamp());
+
+    testMessagesListener.registerConsumer(messageCounter);
+    try {
+      await().until(() -> tkmsStorageToKafkaProxy.isPaused());
+
+      transactionsHelper.withTransaction().run(() -> {
+        for (long i = 0; i < n; i++) {
+          transactionalKafkaMessageSender.sendMessage(new TkmsMessage().setTopic(mainTopic).setShard(0)
+              .setValue(toJsonBytes(new TestEvent().setId(i).setMessage("Bulk"))));
+          transactionalKafkaMessageSender.sendMessage(new TkmsMessage().setTopic(priorityTopic).setShard(0)
+              .setValue(toJsonBytes(new TestEvent().setId(i).setMessage("Urgent"))));
+        }
+      });
+
+      // Messages are split between the tables by topic.
+      assertThat(tkmsTestDao.getMessagesCount(shardPartition)).isEqualTo(n);
+      assertThat(tkmsDaoProvider.getTkmsDao(0).getPriorityMessages(shardPartition, 2 * n)).hasSize(n);
+
+      tkmsStorageToKafkaProxy.resume();
+
+      await().until(() -> receivedTimestamps.getOrDefault(mainTopic, List.of()).size() == n
+          && receivedTimestamps.getOrDefault(priorityTopic, List.of()).size() == n);
+
+      // Priority lane is sent out first, even when the main table's messages were written before.
+      long lastPriorityTimestamp = receivedTimestamps.get(priorityTopic).stream().mapToLong(Long::longValue).max().orElseThrow();
+      long firstMainTimestamp = receivedTimestamps.get(mainTopic).stream().mapToLong(Long::longValue).min().orElseThrow();
+      assertThat(lastPriorityTimestamp).isLessThanOrEqualTo(firstMainTimestamp);
+
+      assertThat(meterRegistry.find(TkmsMetricsTemplate.TIMER_PROXY_PRIORITY_POLL).tag("pollResult", "not_empty").timer()).isNotNull();
+    } finally {
+      testMessagesListener.unregisterConsumer(messageCounter);
+    }
+
+    waitUntilTablesAreEmpty();
+    assertThat(tkmsDaoProvider.getTkmsDao(0).getPriorityMessages(shardPartition, 1)).isEmpty();
+  }
+
   private void checkIfTransactionContextsHaveBeenCleared() {
     // We are not clearing the thread local for performance reasons
     assertThat(TransactionContext.storage.get()).isNotNull();
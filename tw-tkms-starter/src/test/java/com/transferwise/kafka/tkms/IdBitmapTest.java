@@ -0,0 +1,88 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class IdBitmapTest {
+
+  @Test
+  void idsAreTrackedAboveTheBase() {
+    IdBitmap bitmap = new IdBitmap(10);
+
+    assertThat(bitmap.contains(5)).isTrue();
+    assertThat(bitmap.contains(10)).isFalse();
+
+    bitmap.add(12);
+    bitmap.add(10);
+    bitmap.add(3);
+
+    assertThat(bitmap.contains(10)).isTrue();
+    assertThat(bitmap.contains(11)).isFalse();
+    assertThat(bitmap.contains(12)).isTrue();
+    assertThat(bitmap.contains(13)).isFalse();
+  }
+
+  @Test
+  void pruningKeepsIdsAboveTheNewBase() {
+    IdBitmap bitmap = new IdBitmap(0);
+    bitmap.add(1_000_000_000L);
+    bitmap.add(1_000_000_002L);
+
+    assertThat(bitmap.contains(999_999_999L)).isFalse();
+
+    bitmap.pruneBelow(1_000_000_001L);
+    assertThat(bitmap.getBase()).isEqualTo(1_000_000_001L);
+    assertThat(bitmap.contains(1_000_000_000L)).isTrue();
+    assertThat(bitmap.contains(1_000_000_001L)).isFalse();
+    assertThat(bitmap.contains(1_000_000_002L)).isTrue();
+
+    bitmap.pruneBelow(5);
+    assertThat(bitmap.getBase()).isEqualTo(1_000_000_001L);
+
+    bitmap.pruneBelow(2_000_000_000L);
+    assertThat(bitmap.contains(2_000_000_000L)).isFalse();
+  }
+
+  @Test
+  void removedIdsAreNotTrackedAnymore() {
+    IdBitmap bitmap = new IdBitmap(0);
+    assertThat(bitmap.isEmpty()).isTrue();
+
+    bitmap.add(1_000_000_000L);
+    bitmap.add(1_000_000_005L);
+    bitmap.remove(1_000_000_000L);
+    bitmap.remove(7);
+
+    assertThat(bitmap.isEmpty()).isFalse();
+    assertThat(bitmap.contains(1_000_000_000L)).isFalse();
+    assertThat(bitmap.contains(1_000_000_005L)).isTrue();
+
+    bitmap.remove(1_000_000_005L);
+    assertThat(bitmap.isEmpty()).isTrue();
+
+    bitmap.add(3);
+    assertThat(bitmap.contains(3)).isTrue();
+    assertThat(bitmap.contains(1_000_000_005L)).isFalse();
+  }
+
+  @Test
+  void removingRangeForgetsTheIdsBelow() {
+    IdBitmap bitmap = new IdBitmap(0);
+    bitmap.add(5);
+    bitmap.add(10);
+    bitmap.add(20);
+
+    bitmap.removeRange(-1, 15);
+    assertThat(bitmap.contains(5)).isFalse();
+    assertThat(bitmap.contains(10)).isFalse();
+    assertThat(bitmap.contains(20)).isTrue();
+
+    // The span starts from the lowest id left, so it does not grow over the removed ones.
+    bitmap.add(Integer.MAX_VALUE + 10L);
+    assertThat(bitmap.contains(Integer.MAX_VALUE + 10L)).isTrue();
+
+    bitmap.removeRange(-1, Long.MAX_VALUE);
+    assertThat(bitmap.isEmpty()).isTrue();
+  }
+}
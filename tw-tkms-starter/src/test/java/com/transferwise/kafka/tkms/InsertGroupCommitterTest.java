@@ -0,0 +1,86 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.transferwise.kafka.tkms.api.ITransactionalKafkaMessageSender.SendMessageResult;
+import com.transferwise.kafka.tkms.api.TkmsMessage;
+import com.transferwise.kafka.tkms.config.TkmsProperties.GroupCommit;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class InsertGroupCommitterTest {
+
+  @Test
+  void concurrentSendsAreGroupedAndGetTheirOwnIds() throws Exception {
+    var idSequence = new AtomicLong();
+    var groupSizes = new CopyOnWriteArrayList<Integer>();
+    var storedMessages = new ConcurrentHashMap<Long, TkmsMessage>();
+
+    var committer = new InsertGroupCommitter(new GroupCommit().setMaxWait(Duration.ofMillis(20)).setMaxBatchSize(10), messages -> {
+      groupSizes.add(messages.size());
+      var results = new ArrayList<SendMessageResult>();
+      for (var message : messages) {
+        long id = idSequence.incrementAndGet();
+        storedMessages.put(id, message);
+        results.add(new SendMessageResult().setStorageId(id));
+      }
+      return results;
+    });
+
+    int threadsCount = 8;
+    int messagesPerThread = 50;
+    var startLatch = new CountDownLatch(1);
+    var errors = new CopyOnWriteArrayList<Throwable>();
+    var threads = new ArrayList<Thread>();
+    for (int t = 0; t < threadsCount; t++) {
+      var key = "key" + t;
+      var thread = new Thread(() -> {
+        try {
+          startLatch.await();
+          long previousId = -1;
+          for (int i = 0; i < messagesPerThread; i++) {
+            var message = new TkmsMessage().setTopic("topic").setKey(key).setValue(String.valueOf(i).getBytes());
+            var result = committer.send(message);
+            assertThat(storedMessages.get(result.getStorageId())).isSameAs(message);
+            // Order per key is preserved.
+            assertThat(result.getStorageId()).isGreaterThan(previousId);
+            previousId = result.getStorageId();
+          }
+        } catch (Throwable e) {
+          errors.add(e);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    startLatch.countDown();
+    for (var thread : threads) {
+      thread.join();
+    }
+
+    assertThat(errors).isEmpty();
+    assertThat(storedMessages).hasSize(threadsCount * messagesPerThread);
+    assertThat(groupSizes).allMatch(size -> size <= 10);
+    assertThat(groupSizes.size()).isLessThan(threadsCount * messagesPerThread);
+  }
+
+  @Test
+  void failureIsReportedToTheCaller() {
+    var committer = new InsertGroupCommitter(new GroupCommit(), messages -> {
+      throw new IllegalStateException("Database is down.");
+    });
+
+    assertThatThrownBy(() -> committer.send(new TkmsMessage().setTopic("topic")))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessage("Database is down.");
+
+    // Next group gets a new leader.
+    assertThatThrownBy(() -> committer.send(new TkmsMessage().setTopic("topic"))).isInstanceOf(IllegalStateException.class);
+  }
+}
@@ -0,0 +1,62 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.utils.Utils;
+import org.junit.jupiter.api.Test;
+
+class KafkaPartitionHoldBackTest {
+
+  @Test
+  void partitionIsResolvedAsByKafkaProducer() {
+    var holdBack = new KafkaPartitionHoldBack(topic -> 12);
+
+    assertThat(holdBack.getTopicPartition(new ProducerRecord<>("TestTopic", 3, "key", new byte[0]))).isEqualTo(new TopicPartition("TestTopic", 3));
+    assertThat(holdBack.getTopicPartition(new ProducerRecord<>("TestTopic", null, new byte[0]))).isNull();
+
+    int expectedPartition = Utils.toPositive(Utils.murmur2("key".getBytes(StandardCharsets.UTF_8))) % 12;
+    assertThat(holdBack.getTopicPartition(new ProducerRecord<>("TestTopic", "key", new byte[0])))
+        .isEqualTo(new TopicPartition("TestTopic", expectedPartition));
+  }
+
+  @Test
+  void unknownPartitionsCountIsNotResolved() {
+    var holdBack = new KafkaPartitionHoldBack(topic -> -1);
+
+    assertThat(holdBack.getTopicPartition(new ProducerRecord<>("TestTopic", "key", new byte[0]))).isNull();
+  }
+
+  @Test
+  void holdBackExpires() {
+    var holdBack = new KafkaPartitionHoldBack(topic -> 1);
+    var topicPartition = new TopicPartition("TestTopic", 0);
+
+    holdBack.holdBack(topicPartition, 100);
+    holdBack.holdBack(topicPartition, 50);
+
+    holdBack.startCycle(99);
+    assertThat(holdBack.isHeldBack(topicPartition)).isTrue();
+    assertThat(holdBack.isHeldBack(new TopicPartition("TestTopic", 1))).isFalse();
+    assertThat(holdBack.isHeldBack(null)).isFalse();
+    holdBack.startCycle(100);
+    assertThat(holdBack.isHeldBack(topicPartition)).isFalse();
+    holdBack.startCycle(0);
+    assertThat(holdBack.isHeldBack(topicPartition)).isFalse();
+  }
+
+  @Test
+  void heldBackRecordsAreCountedPerBatch() {
+    var holdBack = new KafkaPartitionHoldBack(topic -> 1);
+
+    holdBack.startBatch();
+    holdBack.registerHeldBackRecord();
+    holdBack.registerHeldBackRecord();
+    assertThat(holdBack.getHeldBackRecordsCount()).isEqualTo(2);
+
+    holdBack.startBatch();
+    assertThat(holdBack.getHeldBackRecordsCount()).isZero();
+  }
+}
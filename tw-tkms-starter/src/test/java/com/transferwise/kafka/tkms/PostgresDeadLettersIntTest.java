@@ -0,0 +1,11 @@
+package com.transferwise.kafka.tkms;
+
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import org.springframework.test.context.ActiveProfiles;
+
+@TestInstance(Lifecycle.PER_CLASS)
+@ActiveProfiles(profiles = {"test", "postgres"})
+class PostgresDeadLettersIntTest extends DeadLettersIntTest {
+
+}
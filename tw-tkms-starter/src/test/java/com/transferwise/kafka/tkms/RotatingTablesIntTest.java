@@ -0,0 +1,224 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+import com.transferwise.common.baseutils.clock.TestClock;
+import com.transferwise.kafka.tkms.IDeliveryTracker.Batch;
+import com.transferwise.kafka.tkms.api.TkmsMessage;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.ITkmsDaoProvider;
+import com.transferwise.kafka.tkms.dao.ITkmsDao;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.MessageRecord;
+import com.transferwise.kafka.tkms.metrics.ITkmsMetricsTemplate;
+import com.transferwise.kafka.tkms.test.BaseIntTest;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import org.springframework.beans.factory.annotation.Autowired;
+
+@TestInstance(Lifecycle.PER_CLASS)
+class RotatingTablesIntTest extends BaseIntTest {
+
+  private static final TkmsShardPartition SHARD_PARTITION = TkmsShardPartition.of(0, 0);
+
+  @Autowired
+  private ITkmsDaoProvider tkmsDaoProvider;
+  @Autowired
+  private TkmsStorageToKafkaProxy tkmsStorageToKafkaProxy;
+  @Autowired
+  private ITkmsMetricsTemplate metricsTemplate;
+
+  private ITkmsDao tkmsDao;
+  private TestClock clock;
+  private Duration generationDuration;
+
+  @BeforeAll
+  public void setupClass() {
+    tkmsStorageToKafkaProxy.pause();
+    await().until(() -> tkmsStorageToKafkaProxy.isPaused());
+  }
+
+  @AfterAll
+  void tearDownClass() {
+    tkmsStorageToKafkaProxy.resume();
+  }
+
+  @BeforeEach
+  @Override
+  public void setup() {
+    super.setup();
+    tkmsDao = tkmsDaoProvider.getTkmsDao(0);
+    var tableRotation = tkmsProperties.getTableRotation().setEnabled(true);
+    generationDuration = tableRotation.getGenerationDuration();
+
+    for (int g = 0; g < tableRotation.getGenerationsCount(); g++) {
+      jdbcTemplate.update("delete from outgoing_message_0_0_g" + g);
+    }
+    jdbcTemplate.update("delete from tw_tkms_rotation_watermarks");
+
+    // Period 400 is served by the generation 0.
+    clock = new TestClock(Instant.ofEpochMilli(400 * generationDuration.toMillis()));
+    TkmsClockHolder.setClock(clock);
+  }
+
+  @AfterEach
+  @Override
+  public void cleanup() {
+    tkmsProperties.getTableRotation().setEnabled(false);
+    super.cleanup();
+  }
+
+  @Test
+  void drainedGenerationIsTruncatedAfterAFullPeriod() {
+    var tracker = createTracker();
+
+    var ids = insertMessages(3);
+    var batch = tracker.poll(10);
+    assertThat(batch.getGeneration()).isZero();
+    assertThat(getIds(batch)).containsExactlyElementsOf(ids);
+    tracker.proxied(batch, getIds(batch));
+    assertThat(tracker.poll(10).getRecords()).isEmpty();
+
+    clock.tick(generationDuration);
+    var nextIds = insertMessages(2);
+    batch = tracker.poll(10);
+    assertThat(batch.getGeneration()).isEqualTo(1);
+    assertThat(getIds(batch)).containsExactlyElementsOf(nextIds);
+    tracker.proxied(batch, getIds(batch));
+    assertThat(tracker.poll(10).getRecords()).isEmpty();
+
+    // The generation 1 is still too recent.
+    clock.tick(generationDuration);
+    tracker.maintain();
+
+    assertThat(getGenerationRowsCount(0)).isZero();
+    assertThat(getGenerationRowsCount(1)).isEqualTo(2);
+    assertThat(meterRegistry.find("tw_tkms_proxy_generation_truncate").tag("success", "true").counter().count()).isPositive();
+  }
+
+  @Test
+  void generationWithNotProxiedMessagesIsNotTruncated() {
+    var tracker = createTracker();
+
+    insertMessages(3);
+    var batch = tracker.poll(10);
+    tracker.proxied(batch, getIds(batch).subList(0, 2));
+
+    clock.tick(generationDuration.multipliedBy(2));
+    tracker.maintain();
+
+    assertThat(getGenerationRowsCount(0)).isEqualTo(3);
+  }
+
+  @Test
+  void restartResumesFromCommittedWatermarks() {
+    var tracker = createTracker();
+
+    var ids = insertMessages(3);
+    var batch = tracker.poll(10);
+    tracker.proxied(batch, getIds(batch));
+    commitWatermarks(tracker);
+
+    assertThat(tkmsDao.getRotationWatermark(SHARD_PARTITION, 0)).isEqualTo(ids.get(2) + 1);
+
+    var nextIds = insertMessages(2);
+    batch = tracker.poll(10);
+    tracker.proxied(batch, getIds(batch));
+    tracker.shutdown();
+
+    // Messages proxied during the last look back period are sent again.
+    var restartedTracker = createTracker();
+    assertThat(getIds(restartedTracker.poll(10))).containsExactlyElementsOf(nextIds);
+  }
+
+  @Test
+  void crashBeforeTruncationSendsGenerationAgain() {
+    var tracker = createTracker();
+
+    var ids = insertMessages(3);
+    var batch = tracker.poll(10);
+    tracker.proxied(batch, getIds(batch));
+    commitWatermarks(tracker);
+    assertThat(tkmsDao.getRotationWatermark(SHARD_PARTITION, 0)).isEqualTo(ids.get(2) + 1);
+
+    // The truncation resets the watermark first, and we crash right after.
+    tkmsDao.saveRotationWatermark(SHARD_PARTITION, 0, 0);
+
+    var restartedTracker = createTracker();
+    assertThat(getIds(restartedTracker.poll(10))).containsExactlyElementsOf(ids);
+  }
+
+  @Test
+  void messagesWrittenAfterTruncationAreProxied() {
+    var tracker = createTracker();
+
+    var ids = insertMessages(3);
+    var batch = tracker.poll(10);
+    tracker.proxied(batch, getIds(batch));
+    commitWatermarks(tracker);
+    assertThat(tracker.poll(10).getRecords()).isEmpty();
+
+    clock.tick(generationDuration.multipliedBy(2));
+    tracker.maintain();
+    assertThat(getGenerationRowsCount(0)).isZero();
+    assertThat(tkmsDao.getRotationWatermark(SHARD_PARTITION, 0)).isZero();
+
+    // Generation 0 is written into again.
+    clock.tick(generationDuration.multipliedBy(2));
+    var newIds = insertMessages(1);
+    assertIdAfterTruncation(newIds.get(0), ids.get(2));
+
+    assertThat(getIds(tracker.poll(10))).containsExactlyElementsOf(newIds);
+    assertThat(getIds(createTracker().poll(10))).containsExactlyElementsOf(newIds);
+  }
+
+  /**
+   * MariaDb restarts the auto increment from the beginning after truncation.
+   */
+  protected void assertIdAfterTruncation(long id, long lastIdBeforeTruncation) {
+    assertThat(id).isEqualTo(1);
+  }
+
+  /**
+   * Two clean rescans, a look back period apart, move the watermarks past the proxied messages.
+   */
+  private void commitWatermarks(RotatingTablesTracker tracker) {
+    tracker.maintain();
+    clock.tick(tkmsProperties.getTableRotation().getLookBackPeriod().plusSeconds(1));
+    tracker.maintain();
+  }
+
+  private RotatingTablesTracker createTracker() {
+    var tracker = new RotatingTablesTracker(tkmsDao, SHARD_PARTITION, tkmsProperties, metricsTemplate);
+    tracker.init();
+    return tracker;
+  }
+
+  private List<Long> insertMessages(int count) {
+    var ids = new ArrayList<Long>();
+    for (int i = 0; i < count; i++) {
+      ids.add(tkmsDao.insertMessage(SHARD_PARTITION, new TkmsMessage().setTopic("ABC").setValue("ABC".getBytes(StandardCharsets.UTF_8)))
+          .getStorageId());
+    }
+    return ids;
+  }
+
+  private int getGenerationRowsCount(int generation) {
+    return jdbcTemplate.queryForObject("select count(*) from outgoing_message_0_0_g" + generation, Integer.class);
+  }
+
+  private static List<Long> getIds(Batch batch) {
+    return batch.getRecords().stream().map(MessageRecord::getId).collect(Collectors.toList());
+  }
+}
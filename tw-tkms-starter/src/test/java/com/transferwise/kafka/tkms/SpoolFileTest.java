@@ -0,0 +1,109 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SpoolFileTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void recordsAreReadBackInOrder() throws IOException {
+    var path = directory.resolve("test.spool");
+    try (var spoolFile = SpoolFile.create(path, 1024)) {
+      assertThat(spoolFile.isEmpty()).isTrue();
+      spoolFile.append(bytes("a"));
+      spoolFile.append(bytes("bb"));
+      spoolFile.append(bytes("ccc"));
+      assertThat(spoolFile.isEmpty()).isFalse();
+    }
+
+    assertThat(read(path, 0)).containsExactly("a", "bb", "ccc");
+  }
+
+  @Test
+  void readIsResumedFromOffset() throws IOException {
+    var path = directory.resolve("test.spool");
+    try (var spoolFile = SpoolFile.create(path, 1024)) {
+      spoolFile.append(bytes("a"));
+      spoolFile.append(bytes("bb"));
+      spoolFile.append(bytes("ccc"));
+    }
+
+    var offsets = new ArrayList<Long>();
+    SpoolFile.read(path, 0, (record, nextOffset) -> offsets.add(nextOffset));
+
+    assertThat(offsets).containsExactly(9L, 19L, 30L);
+    assertThat(read(path, offsets.get(0))).containsExactly("bb", "ccc");
+    assertThat(read(path, offsets.get(2))).isEmpty();
+  }
+
+  @Test
+  void recordNotFittingIsRejected() throws IOException {
+    var path = directory.resolve("test.spool");
+    try (var spoolFile = SpoolFile.create(path, 32)) {
+      assertThat(spoolFile.append(new byte[10])).isTrue();
+      // Room for the end marker is kept.
+      assertThat(spoolFile.append(new byte[3])).isFalse();
+      assertThat(spoolFile.append(new byte[2])).isTrue();
+    }
+
+    assertThat(read(path, 0)).hasSize(2);
+  }
+
+  @Test
+  void tornRecordEndsTheFile() throws IOException {
+    var path = directory.resolve("test.spool");
+    try (var spoolFile = SpoolFile.create(path, 1024)) {
+      spoolFile.append(bytes("a"));
+      spoolFile.append(bytes("bb"));
+      spoolFile.append(bytes("ccc"));
+    }
+
+    // Second record's payload is only partially written.
+    overwrite(path, 9 + 8, bytes("x"));
+
+    assertThat(read(path, 0)).containsExactly("a");
+  }
+
+  @Test
+  void truncatedRecordEndsTheFile() throws IOException {
+    var path = directory.resolve("test.spool");
+    try (var spoolFile = SpoolFile.create(path, 1024)) {
+      spoolFile.append(bytes("a"));
+      spoolFile.append(bytes("bb"));
+    }
+
+    // The length of the second record points past the end of the file.
+    overwrite(path, 9, ByteBuffer.allocate(4).putInt(2048).array());
+
+    assertThat(read(path, 0)).containsExactly("a");
+  }
+
+  private static List<String> read(Path path, long fromOffset) throws IOException {
+    var records = new ArrayList<String>();
+    SpoolFile.read(path, fromOffset, (record, nextOffset) -> records.add(new String(record, StandardCharsets.UTF_8)));
+    return records;
+  }
+
+  private static void overwrite(Path path, long position, byte[] bytes) throws IOException {
+    try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(bytes), position);
+    }
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+}
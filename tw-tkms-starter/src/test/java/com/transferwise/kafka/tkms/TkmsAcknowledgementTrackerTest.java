@@ -0,0 +1,185 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.transferwise.common.baseutils.clock.TestClock;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TkmsAcknowledgementTrackerTest {
+
+  private TestClock clock;
+  private TkmsProperties properties;
+  private TkmsShardPartition shardPartition;
+  private TkmsAcknowledgementTracker tracker;
+
+  @BeforeEach
+  void setup() {
+    clock = new TestClock(Instant.now());
+    TkmsClockHolder.setClock(clock);
+
+    properties = new TkmsProperties();
+    properties.getAcknowledgementTracking().setMaxPending(2).setTimeout(Duration.ofMinutes(1))
+        .setLeadershipGracePeriod(Duration.ofSeconds(10));
+    TkmsShardPartition.init(properties);
+    shardPartition = TkmsShardPartition.of(0, 0);
+
+    tracker = new TkmsAcknowledgementTracker();
+    tracker.properties = properties;
+    tracker.afterPropertiesSet();
+    tracker.leadershipAcquired(shardPartition);
+  }
+
+  @AfterEach
+  void cleanup() {
+    TkmsClockHolder.reset();
+  }
+
+  @Test
+  void sameIdInDifferentTablesIsTrackedSeparately() {
+    properties.getAcknowledgementTracking().setMaxPending(3);
+    var mainFuture = track(TkmsMessageSource.MAIN, 1);
+    var priorityFuture = track(TkmsMessageSource.PRIORITY, 1);
+    var generationFuture = track(TkmsMessageSource.generation(1), 1);
+
+    tracker.acknowledged(shardPartition, TkmsMessageSource.PRIORITY, 1, metadata(5));
+
+    assertThat(priorityFuture.join().offset()).isEqualTo(5);
+    assertThat(mainFuture).isNotDone();
+    assertThat(generationFuture).isNotDone();
+
+    tracker.acknowledged(shardPartition, TkmsMessageSource.generation(1), 1, metadata(6));
+    assertThat(generationFuture.join().offset()).isEqualTo(6);
+    assertThat(mainFuture).isNotDone();
+  }
+
+  @Test
+  void replacedFutureFailsAndIsNotCountedAsPending() {
+    var replacedFuture = track(TkmsMessageSource.MAIN, 1);
+    var future = track(TkmsMessageSource.MAIN, 1);
+
+    assertThat(replacedFuture).isCompletedExceptionally();
+    assertThat(future).isNotDone();
+
+    // One slot is still free.
+    assertThat(track(TkmsMessageSource.MAIN, 2)).isNotDone();
+    assertThat(track(TkmsMessageSource.MAIN, 3)).isCompletedExceptionally();
+
+    tracker.acknowledged(shardPartition, TkmsMessageSource.MAIN, 1, metadata(5));
+    assertThat(future.join().offset()).isEqualTo(5);
+    assertThat(track(TkmsMessageSource.MAIN, 4)).isNotDone();
+  }
+
+  @Test
+  void shardPartitionNotLedByThisNodeFailsRightAway() {
+    tracker.leadershipReleased(shardPartition);
+    clock.tick(Duration.ofSeconds(11));
+
+    var future = track(TkmsMessageSource.MAIN, 1);
+
+    assertThat(future).isCompletedExceptionally();
+    assertThat(failure(future)).isInstanceOf(IllegalStateException.class).hasMessageContaining("is not proxied by this node");
+  }
+
+  @Test
+  void onlyLedPartitionsAreReturnedAsLocallyProxied() {
+    properties.setPartitionsCount(4);
+    TkmsShardPartition.init(properties);
+    tracker.leadershipAcquired(TkmsShardPartition.of(0, 3));
+    tracker.leadershipReleased(shardPartition);
+
+    for (int i = 0; i < 10; i++) {
+      assertThat(tracker.getLocallyProxiedPartition(0)).isEqualTo(3);
+    }
+    assertThat(tracker.getLocallyProxiedPartition(1)).isEqualTo(-1);
+
+    tracker.leadershipReleased(TkmsShardPartition.of(0, 3));
+    assertThat(tracker.getLocallyProxiedPartition(0)).isEqualTo(-1);
+  }
+
+  @Test
+  void pendingFuturesSurviveLeadershipRegainedWithinGracePeriod() {
+    var future = track(TkmsMessageSource.MAIN, 1);
+
+    tracker.leadershipReleased(shardPartition);
+    clock.tick(Duration.ofSeconds(5));
+    tracker.evictExpired();
+    // Sends are still tracked, as the leadership is usually acquired again right away.
+    var futureDuringRelease = track(TkmsMessageSource.MAIN, 2);
+    tracker.leadershipAcquired(shardPartition);
+    clock.tick(Duration.ofSeconds(10));
+    tracker.evictExpired();
+
+    assertThat(future).isNotDone();
+    assertThat(futureDuringRelease).isNotDone();
+    tracker.acknowledged(shardPartition, TkmsMessageSource.MAIN, 1, metadata(5));
+    assertThat(future.join().offset()).isEqualTo(5);
+  }
+
+  @Test
+  void pendingFuturesFailAfterGracePeriod() {
+    var future = track(TkmsMessageSource.MAIN, 1);
+
+    tracker.leadershipReleased(shardPartition);
+    clock.tick(Duration.ofSeconds(10));
+    tracker.evictExpired();
+
+    assertThat(failure(future)).isInstanceOf(IllegalStateException.class).hasMessageContaining("stopped proxying");
+  }
+
+  @Test
+  void pendingFuturesTimeOut() {
+    var future = track(TkmsMessageSource.MAIN, 1);
+
+    clock.tick(Duration.ofSeconds(59));
+    tracker.evictExpired();
+    assertThat(future).isNotDone();
+
+    clock.tick(Duration.ofSeconds(1));
+    tracker.evictExpired();
+    assertThat(failure(future)).isInstanceOf(TimeoutException.class);
+    assertThat(track(TkmsMessageSource.MAIN, 2)).isNotDone();
+    assertThat(track(TkmsMessageSource.MAIN, 3)).isNotDone();
+  }
+
+  @Test
+  void failedMessageCompletesExceptionally() {
+    var future = track(TkmsMessageSource.MAIN, 1);
+
+    tracker.failed(shardPartition, TkmsMessageSource.MAIN, 1, new IllegalStateException("Dead lettered."));
+
+    assertThat(failure(future)).hasMessage("Dead lettered.");
+    // Freed the slot.
+    assertThat(track(TkmsMessageSource.MAIN, 2)).isNotDone();
+    assertThat(track(TkmsMessageSource.MAIN, 3)).isNotDone();
+  }
+
+  private CompletableFuture<RecordMetadata> track(TkmsMessageSource source, long storageId) {
+    var future = new CompletableFuture<RecordMetadata>();
+    tracker.track(shardPartition, source, storageId, future);
+    return future;
+  }
+
+  private static Throwable failure(CompletableFuture<RecordMetadata> future) {
+    try {
+      future.join();
+      throw new AssertionError("Future was completed normally.");
+    } catch (CompletionException e) {
+      return e.getCause();
+    }
+  }
+
+  private static RecordMetadata metadata(long offset) {
+    return new RecordMetadata(new TopicPartition("topic", 0), offset, 0, 0, 0, 0);
+  }
+}
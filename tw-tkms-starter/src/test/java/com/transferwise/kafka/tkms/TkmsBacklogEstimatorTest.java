@@ -0,0 +1,115 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.transferwise.common.baseutils.clock.TestClock;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.dao.ITkmsDao;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TkmsBacklogEstimatorTest {
+
+  private TestClock clock;
+  private Map<Integer, Long> approximateCounts;
+  private TkmsBacklogEstimator estimator;
+
+  @BeforeEach
+  void setup() {
+    clock = new TestClock(Instant.now());
+    TkmsClockHolder.setClock(clock);
+
+    var properties = new TkmsProperties();
+    properties.setPartitionsCount(2);
+    properties.getPartitioning(0).setRefreshInterval(Duration.ofSeconds(5));
+    TkmsShardPartition.init(properties);
+
+    approximateCounts = new HashMap<>();
+    estimator = new TkmsBacklogEstimator();
+    estimator.properties = properties;
+    estimator.tkmsDaoProvider = shard -> createDao();
+  }
+
+  @AfterEach
+  void cleanup() {
+    TkmsClockHolder.reset();
+  }
+
+  @Test
+  void statisticsAreUsedWithoutPolls() {
+    approximateCounts.put(0, 500L);
+    approximateCounts.put(1, -1L);
+    estimator.refresh(0);
+
+    assertThat(estimator.getBacklog(TkmsShardPartition.of(0, 0))).isEqualTo(500);
+    // Tables never analyzed.
+    assertThat(estimator.getBacklog(TkmsShardPartition.of(0, 1))).isZero();
+  }
+
+  @Test
+  void notSaturatedPollHasSeenWholeBacklog() {
+    approximateCounts.put(0, 500L);
+    estimator.refresh(0);
+
+    estimator.registerPoll(TkmsShardPartition.of(0, 0), 20, 1000);
+
+    assertThat(estimator.getBacklog(TkmsShardPartition.of(0, 0))).isEqualTo(20);
+  }
+
+  @Test
+  void saturatedPollIsLowerBound() {
+    approximateCounts.put(0, 500L);
+    approximateCounts.put(1, 5000L);
+    estimator.refresh(0);
+
+    estimator.registerPoll(TkmsShardPartition.of(0, 0), 1000, 1000);
+    estimator.registerPoll(TkmsShardPartition.of(0, 1), 1000, 1000);
+
+    assertThat(estimator.getBacklog(TkmsShardPartition.of(0, 0))).isEqualTo(1000);
+    assertThat(estimator.getBacklog(TkmsShardPartition.of(0, 1))).isEqualTo(5000);
+  }
+
+  @Test
+  void stalePollFallsBackToStatistics() {
+    approximateCounts.put(0, 500L);
+    estimator.refresh(0);
+    estimator.registerPoll(TkmsShardPartition.of(0, 0), 20, 1000);
+
+    clock.tick(Duration.ofSeconds(10));
+    assertThat(estimator.getBacklog(TkmsShardPartition.of(0, 0))).isEqualTo(20);
+
+    clock.tick(Duration.ofMillis(1));
+    assertThat(estimator.getBacklog(TkmsShardPartition.of(0, 0))).isEqualTo(500);
+  }
+
+  @Test
+  void failedRefreshKeepsPreviousStatistics() {
+    approximateCounts.put(0, 500L);
+    estimator.refresh(0);
+
+    approximateCounts.remove(0);
+    estimator.refresh(0);
+
+    assertThat(estimator.getBacklog(TkmsShardPartition.of(0, 0))).isEqualTo(500);
+  }
+
+  private ITkmsDao createDao() {
+    return (ITkmsDao) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ITkmsDao.class}, (proxy, method, args) -> {
+      if (!method.getName().equals("getApproximateMessagesCount")) {
+        throw new UnsupportedOperationException(method.getName());
+      }
+      var count = approximateCounts.get(((TkmsShardPartition) args[0]).getPartition());
+      if (count == null) {
+        throw new IllegalStateException("Statistics are not available.");
+      }
+      return count;
+    });
+  }
+}
@@ -0,0 +1,141 @@
+package com.transferwise.kafka.tkms;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.transferwise.common.baseutils.clock.TestClock;
+import com.transferwise.common.baseutils.meters.cache.MeterCache;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.config.TkmsProperties.DeadLetters;
+import com.transferwise.kafka.tkms.dao.ITkmsDao;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.DeadLetterRecord;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.MessageRecord;
+import com.transferwise.kafka.tkms.metrics.TkmsMetricsTemplate;
+import com.transferwise.kafka.tkms.stored_message.StoredMessage.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import org.apache.kafka.common.errors.RecordTooLargeException;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class TkmsDeadLettersTest {
+
+  private final List<Long> deadLetteredIds = new ArrayList<>();
+
+  @AfterEach
+  void cleanup() {
+    TkmsClockHolder.reset();
+  }
+
+  @Test
+  void retriesAreBackedOffExponentially() {
+    var deadLetters = new DeadLetters().setRetryDelay(Duration.ofSeconds(1)).setMaxRetryDelay(Duration.ofSeconds(10)).setMaxRetries(100);
+
+    assertEquals(1_000, TkmsDeadLetters.getNextRetryAtMs(deadLetters, 0, 0));
+    assertEquals(2_000, TkmsDeadLetters.getNextRetryAtMs(deadLetters, 1, 0));
+    assertEquals(8_000, TkmsDeadLetters.getNextRetryAtMs(deadLetters, 3, 0));
+    assertEquals(10_000, TkmsDeadLetters.getNextRetryAtMs(deadLetters, 4, 0));
+    assertEquals(10_000, TkmsDeadLetters.getNextRetryAtMs(deadLetters, 99, 0));
+    assertEquals(11_000, TkmsDeadLetters.getNextRetryAtMs(deadLetters, 0, 10_000));
+  }
+
+  @Test
+  void noRetryIsScheduledAfterMaxRetries() {
+    var deadLetters = new DeadLetters().setMaxRetries(2);
+
+    assertEquals(120_000, TkmsDeadLetters.getNextRetryAtMs(deadLetters, 1, 0));
+    assertNull(TkmsDeadLetters.getNextRetryAtMs(deadLetters, 2, 0));
+    assertNull(TkmsDeadLetters.getNextRetryAtMs(new DeadLetters().setMaxRetries(0), 0, 0));
+  }
+
+  @Test
+  void messageFailingWithNonRetriableErrorIsMovedAfterMaxAttempts() {
+    var deadLetters = createDeadLetters();
+
+    assertEquals(List.of(), fail(deadLetters, TkmsMessageSource.MAIN, 1, new RecordTooLargeException()));
+    assertEquals(List.of(), fail(deadLetters, TkmsMessageSource.MAIN, 1, new RecordTooLargeException()));
+    assertEquals(List.of(1L), fail(deadLetters, TkmsMessageSource.MAIN, 1, new RecordTooLargeException()));
+    assertEquals(List.of(1L), deadLetteredIds);
+  }
+
+  @Test
+  void messageFailingWithRetriableErrorIsMovedOnlyAfterMinDuration() {
+    var clock = new TestClock(Instant.now());
+    TkmsClockHolder.setClock(clock);
+    var deadLetters = createDeadLetters();
+    // Wrapped, as coming from the send future.
+    var error = new ExecutionException(new TimeoutException("Kafka is down."));
+
+    for (int i = 0; i < 10; i++) {
+      assertEquals(List.of(), fail(deadLetters, TkmsMessageSource.MAIN, 1, error));
+      clock.tick(Duration.ofMinutes(1));
+    }
+    assertTrue(deadLetteredIds.isEmpty());
+
+    clock.tick(Duration.ofMinutes(5));
+    assertEquals(List.of(1L), fail(deadLetters, TkmsMessageSource.MAIN, 1, error));
+  }
+
+  @Test
+  void attemptsAreCountedPerSourceTable() {
+    var deadLetters = createDeadLetters();
+
+    for (int i = 0; i < 2; i++) {
+      fail(deadLetters, TkmsMessageSource.MAIN, 1, new RecordTooLargeException());
+      fail(deadLetters, TkmsMessageSource.PRIORITY, 1, new RecordTooLargeException());
+      fail(deadLetters, TkmsMessageSource.generation(0), 1, new RecordTooLargeException());
+    }
+    assertTrue(deadLetteredIds.isEmpty());
+
+    deadLetters.registerSentMessages(TkmsShardPartition.of(0, 0), TkmsMessageSource.PRIORITY, List.of(1L));
+    assertEquals(List.of(), fail(deadLetters, TkmsMessageSource.PRIORITY, 1, new RecordTooLargeException()));
+    assertEquals(List.of(1L), fail(deadLetters, TkmsMessageSource.MAIN, 1, new RecordTooLargeException()));
+  }
+
+  @Test
+  void retriableErrorsAreRecognizedThroughCauses() {
+    assertTrue(TkmsDeadLetters.isRetriable(new TimeoutException()));
+    assertTrue(TkmsDeadLetters.isRetriable(new ExecutionException(new TimeoutException())));
+    assertFalse(TkmsDeadLetters.isRetriable(new ExecutionException(new RecordTooLargeException())));
+    assertFalse(TkmsDeadLetters.isRetriable(null));
+  }
+
+  private TkmsDeadLetters createDeadLetters() {
+    var properties = new TkmsProperties();
+    properties.getDeadLetters(0).setEnabled(true).setMaxAttempts(3).setRetriableErrorsMinDuration(Duration.ofMinutes(15));
+    TkmsShardPartition.init(properties);
+
+    var deadLetters = new TkmsDeadLetters();
+    deadLetters.properties = properties;
+    deadLetters.metricsTemplate = new TkmsMetricsTemplate(new MeterCache(new SimpleMeterRegistry()), properties);
+    deadLetters.tkmsDaoProvider = shard -> createDao();
+    return deadLetters;
+  }
+
+  private List<Long> fail(TkmsDeadLetters deadLetters, TkmsMessageSource source, long id, Throwable error) {
+    var record = new MessageRecord().setId(id).setMessage(Message.newBuilder().setTopic("topic").build());
+    return deadLetters.registerFailedSends(TkmsShardPartition.of(0, 0), source, List.of(record), List.of(error));
+  }
+
+  @SuppressWarnings("unchecked")
+  private ITkmsDao createDao() {
+    return (ITkmsDao) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ITkmsDao.class}, (proxy, method, args) -> {
+      if (!method.getName().equals("insertDeadLetters")) {
+        throw new UnsupportedOperationException(method.getName());
+      }
+      for (var deadLetterRecord : (List<DeadLetterRecord>) args[1]) {
+        deadLetteredIds.add(deadLetterRecord.getMessageId());
+      }
+      return null;
+    });
+  }
+}
@@ -0,0 +1,200 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+import com.transferwise.common.baseutils.meters.cache.MeterCache;
+import com.transferwise.kafka.tkms.api.ITkmsEventsListener;
+import com.transferwise.kafka.tkms.api.ITkmsEventsListener.EventsDispatch;
+import com.transferwise.kafka.tkms.api.ITkmsEventsListener.MessageRegisteredEvent;
+import com.transferwise.kafka.tkms.api.ITkmsEventsListener.OverflowPolicy;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.metrics.TkmsMetricsTemplate;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TkmsEventsDispatcherTest {
+
+  private SimpleMeterRegistry meterRegistry;
+  private ExecutorService executorService;
+  private TkmsEventsDispatcher dispatcher;
+  private RecordingListener listener;
+
+  @BeforeEach
+  void setup() {
+    meterRegistry = new SimpleMeterRegistry();
+    executorService = Executors.newCachedThreadPool();
+    dispatcher = new TkmsEventsDispatcher();
+    dispatcher.metricsTemplate = new TkmsMetricsTemplate(new MeterCache(meterRegistry), new TkmsProperties());
+  }
+
+  @AfterEach
+  void cleanup() {
+    listener.unblock();
+    executorService.shutdownNow();
+  }
+
+  @Test
+  void eventsAreDeliveredSynchronouslyWithoutEventsDispatch() {
+    createListener(null);
+
+    dispatcher.messagesRegistered(events(1));
+
+    assertThat(listener.storageIds).containsExactly(1L);
+    assertThat(listener.threads).containsExactly(Thread.currentThread().getName());
+    assertThat(dispatcher.canShutdown()).isTrue();
+  }
+
+  @Test
+  void queuedEventsAreDeliveredInOrder() {
+    createListener(new EventsDispatch().setQueueCapacity(1000));
+
+    for (long i = 0; i < 500; i++) {
+      dispatcher.messagesRegistered(events(i));
+    }
+
+    await().until(() -> dispatcher.canShutdown());
+    assertThat(listener.storageIds).hasSize(500).isSorted();
+    assertThat(listener.threads).doesNotContain(Thread.currentThread().getName());
+  }
+
+  @Test
+  void failingListenerDoesNotStopTheDrain() {
+    createListener(new EventsDispatch());
+    listener.failOn = 1L;
+
+    for (long i = 0; i < 3; i++) {
+      dispatcher.messagesRegistered(events(i));
+    }
+
+    await().until(() -> dispatcher.canShutdown());
+    assertThat(listener.storageIds).containsExactly(0L, 2L);
+  }
+
+  @Test
+  void overflowingEventsAreDroppedWithDropPolicy() throws Exception {
+    createListener(new EventsDispatch().setQueueCapacity(2).setOverflowPolicy(OverflowPolicy.DROP));
+    listener.block();
+
+    dispatcher.messagesRegistered(events(0));
+    listener.awaitBlocked();
+    // The first batch is taken off the queue already, so two more fit.
+    dispatcher.messagesRegistered(events(1));
+    dispatcher.messagesRegistered(events(2));
+    dispatcher.messagesRegistered(events(3, 4));
+
+    assertThat(meterRegistry.get("tw_tkms_events_dropped").tag("listener", "RecordingListener").counter().count()).isEqualTo(2);
+    assertThat(dispatcher.canShutdown()).isFalse();
+
+    listener.unblock();
+    await().until(() -> dispatcher.canShutdown());
+    assertThat(listener.storageIds).containsExactly(0L, 1L, 2L);
+  }
+
+  @Test
+  void registeringWaitsForRoomWithBlockPolicy() throws Exception {
+    createListener(new EventsDispatch().setQueueCapacity(1).setOverflowPolicy(OverflowPolicy.BLOCK));
+    listener.block();
+
+    dispatcher.messagesRegistered(events(0));
+    listener.awaitBlocked();
+    dispatcher.messagesRegistered(events(1));
+
+    var registering = new Thread(() -> dispatcher.messagesRegistered(events(2)));
+    registering.start();
+    registering.join(200);
+    assertThat(registering.isAlive()).isTrue();
+
+    listener.unblock();
+    registering.join(TimeUnit.SECONDS.toMillis(10));
+    assertThat(registering.isAlive()).isFalse();
+
+    await().until(() -> dispatcher.canShutdown());
+    assertThat(listener.storageIds).containsExactly(0L, 1L, 2L);
+    assertThat(meterRegistry.find("tw_tkms_events_dropped").counter()).isNull();
+  }
+
+  @Test
+  void shutdownWaitsForQueuedEvents() throws Exception {
+    createListener(new EventsDispatch());
+    listener.block();
+
+    dispatcher.messagesRegistered(events(0));
+    listener.awaitBlocked();
+    assertThat(dispatcher.canShutdown()).isFalse();
+
+    dispatcher.messagesRegistered(events(1));
+    listener.unblock();
+
+    await().until(() -> dispatcher.canShutdown());
+    assertThat(listener.storageIds).containsExactly(0L, 1L);
+  }
+
+  private void createListener(EventsDispatch eventsDispatch) {
+    listener = new RecordingListener(eventsDispatch);
+    dispatcher.listenerDispatchers = List.of(dispatcher.new ListenerDispatcher(listener, eventsDispatch, executorService));
+  }
+
+  private static List<MessageRegisteredEvent> events(long... storageIds) {
+    var events = new ArrayList<MessageRegisteredEvent>();
+    for (long storageId : storageIds) {
+      events.add(new MessageRegisteredEvent().setStorageId(storageId));
+    }
+    return events;
+  }
+
+  private static class RecordingListener implements ITkmsEventsListener {
+
+    private final EventsDispatch eventsDispatch;
+    private final List<Long> storageIds = new CopyOnWriteArrayList<>();
+    private final List<String> threads = new CopyOnWriteArrayList<>();
+    private final CountDownLatch blocked = new CountDownLatch(1);
+    private volatile CountDownLatch unblocked = new CountDownLatch(0);
+    private volatile Long failOn;
+
+    RecordingListener(EventsDispatch eventsDispatch) {
+      this.eventsDispatch = eventsDispatch;
+    }
+
+    @Override
+    public EventsDispatch getEventsDispatch() {
+      return eventsDispatch;
+    }
+
+    @Override
+    public void messageRegistered(MessageRegisteredEvent event) {
+      blocked.countDown();
+      try {
+        unblocked.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (event.getStorageId().equals(failOn)) {
+        throw new IllegalStateException("Listener failed.");
+      }
+      storageIds.add(event.getStorageId());
+      threads.add(Thread.currentThread().getName());
+    }
+
+    void block() {
+      unblocked = new CountDownLatch(1);
+    }
+
+    void awaitBlocked() throws InterruptedException {
+      assertThat(blocked.await(10, TimeUnit.SECONDS)).isTrue();
+    }
+
+    void unblock() {
+      unblocked.countDown();
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.transferwise.common.baseutils.clock.TestClock;
+import com.transferwise.common.baseutils.meters.cache.MeterCache;
+import com.transferwise.kafka.tkms.TkmsLeadershipBalancer.NodeState;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.metrics.TkmsMetricsTemplate;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TkmsLeadershipBalancerTest {
+
+  private TestClock clock;
+  private TkmsLeadershipBalancer balancer;
+
+  @BeforeEach
+  void setup() {
+    clock = new TestClock(Instant.now());
+    TkmsClockHolder.setClock(clock);
+
+    var properties = new TkmsProperties();
+    properties.setPartitionsCount(4);
+    properties.getLeadershipBalancing().setMinLeadershipDuration(Duration.ofSeconds(30));
+    TkmsShardPartition.init(properties);
+
+    balancer = new TkmsLeadershipBalancer();
+    balancer.properties = properties;
+    balancer.metricsTemplate = new TkmsMetricsTemplate(new MeterCache(new SimpleMeterRegistry()), properties);
+    balancer.shardPartitionsCount = 4;
+  }
+
+  @AfterEach
+  void cleanup() {
+    TkmsClockHolder.reset();
+  }
+
+  @Test
+  void excessOverFairShareIsYielded() {
+    for (int p = 0; p < 4; p++) {
+      balancer.leadershipAcquired(TkmsShardPartition.of(0, p));
+    }
+    clock.tick(Duration.ofMinutes(1));
+
+    rebalance(1);
+    assertThat(yieldingCount()).isZero();
+
+    rebalance(2);
+    // Pending yield requests are accounted for.
+    rebalance(2);
+    assertThat(yieldingCount()).isEqualTo(2);
+  }
+
+  @Test
+  void busiestShardPartitionsAreYieldedFirst() {
+    for (int p = 0; p < 4; p++) {
+      balancer.leadershipAcquired(TkmsShardPartition.of(0, p));
+    }
+    balancer.registerProxiedMessages(TkmsShardPartition.of(0, 1), 100);
+    balancer.registerProxiedMessages(TkmsShardPartition.of(0, 3), 50);
+    balancer.registerProxiedMessages(TkmsShardPartition.of(0, 0), 10);
+    clock.tick(Duration.ofMinutes(1));
+
+    rebalance(2);
+
+    assertThat(balancer.shouldYield(TkmsShardPartition.of(0, 0))).isFalse();
+    assertThat(balancer.shouldYield(TkmsShardPartition.of(0, 1))).isTrue();
+    assertThat(balancer.shouldYield(TkmsShardPartition.of(0, 2))).isFalse();
+    assertThat(balancer.shouldYield(TkmsShardPartition.of(0, 3))).isTrue();
+    // A yield request is consumed.
+    assertThat(balancer.shouldYield(TkmsShardPartition.of(0, 1))).isFalse();
+  }
+
+  @Test
+  void youngLeadershipsAreNotYielded() {
+    for (int p = 0; p < 3; p++) {
+      balancer.leadershipAcquired(TkmsShardPartition.of(0, p));
+    }
+    clock.tick(Duration.ofSeconds(29));
+    balancer.leadershipAcquired(TkmsShardPartition.of(0, 3));
+    balancer.registerProxiedMessages(TkmsShardPartition.of(0, 3), 1000);
+
+    rebalance(4);
+    assertThat(yieldingCount()).isZero();
+
+    clock.tick(Duration.ofSeconds(1));
+    rebalance(4);
+    assertThat(yieldingCount()).isEqualTo(3);
+    assertThat(balancer.shouldYield(TkmsShardPartition.of(0, 3))).isFalse();
+  }
+
+  @Test
+  void releasedLeadershipIsNotYielded() {
+    for (int p = 0; p < 4; p++) {
+      balancer.leadershipAcquired(TkmsShardPartition.of(0, p));
+    }
+    clock.tick(Duration.ofMinutes(1));
+    rebalance(4);
+
+    for (int p = 0; p < 4; p++) {
+      balancer.leadershipReleased(TkmsShardPartition.of(0, p));
+    }
+    assertThat(yieldingCount()).isZero();
+  }
+
+  @Test
+  void overloadedNodeYieldsBusyShardPartition() {
+    for (int p = 0; p < 2; p++) {
+      balancer.leadershipAcquired(TkmsShardPartition.of(0, p));
+    }
+    balancer.registerProxiedMessages(TkmsShardPartition.of(0, 0), 1000);
+    balancer.registerProxiedMessages(TkmsShardPartition.of(0, 1), 400);
+    clock.tick(Duration.ofMinutes(1));
+
+    var nodeState = balancer.collectNodeState();
+    assertThat(nodeState.getLedShardPartitionsCount()).isEqualTo(2);
+    assertThat(nodeState.getProxiedMessagesCount()).isEqualTo(1400);
+
+    // Average is 700, so 1400 is over the tolerance. Giving away 1000 would overload the other node instead.
+    balancer.rebalance(nodeState, List.of(nodeState, nodeState(2, 0)));
+    assertThat(balancer.shouldYield(TkmsShardPartition.of(0, 0))).isFalse();
+    assertThat(balancer.shouldYield(TkmsShardPartition.of(0, 1))).isTrue();
+  }
+
+  @Test
+  void loadWithinToleranceIsNotBalanced() {
+    for (int p = 0; p < 2; p++) {
+      balancer.leadershipAcquired(TkmsShardPartition.of(0, p));
+    }
+    balancer.registerProxiedMessages(TkmsShardPartition.of(0, 0), 500);
+    balancer.registerProxiedMessages(TkmsShardPartition.of(0, 1), 500);
+    clock.tick(Duration.ofMinutes(1));
+
+    var nodeState = balancer.collectNodeState();
+    balancer.rebalance(nodeState, List.of(nodeState, nodeState(2, 600)));
+    assertThat(yieldingCount()).isZero();
+
+    // A single shard-partition is never given away for its load.
+    balancer.leadershipReleased(TkmsShardPartition.of(0, 1));
+    balancer.registerProxiedMessages(TkmsShardPartition.of(0, 0), 5000);
+    nodeState = balancer.collectNodeState();
+    balancer.rebalance(nodeState, List.of(nodeState, nodeState(3, 0)));
+    assertThat(yieldingCount()).isZero();
+  }
+
+  private void rebalance(int nodesCount) {
+    var nodeState = balancer.collectNodeState();
+    var nodeStates = new ArrayList<NodeState>();
+    nodeStates.add(nodeState);
+    for (int i = 1; i < nodesCount; i++) {
+      nodeStates.add(nodeState(0, 0));
+    }
+    balancer.rebalance(nodeState, nodeStates);
+  }
+
+  private static NodeState nodeState(int ledShardPartitionsCount, long proxiedMessagesCount) {
+    return new NodeState().setLedShardPartitionsCount(ledShardPartitionsCount).setProxiedMessagesCount(proxiedMessagesCount);
+  }
+
+  private int yieldingCount() {
+    int count = 0;
+    for (int p = 0; p < 4; p++) {
+      if (balancer.shouldYield(TkmsShardPartition.of(0, p))) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
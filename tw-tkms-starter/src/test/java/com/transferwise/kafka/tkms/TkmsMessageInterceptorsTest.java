@@ -0,0 +1,98 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.transferwise.kafka.tkms.TkmsMessageInterceptors.MessageInterceptorAdapter;
+import com.transferwise.kafka.tkms.api.ITkmsMessageBatchInterceptor;
+import com.transferwise.kafka.tkms.api.ITkmsMessageInterceptor;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.MessageRecord;
+import com.transferwise.kafka.tkms.stored_message.StoredMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nonnull;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.junit.jupiter.api.Test;
+
+class TkmsMessageInterceptorsTest {
+
+  private final TkmsShardPartition shardPartition = TkmsShardPartition.of(0, 0);
+  private final AtomicInteger createdProducerRecordsCount = new AtomicInteger();
+
+  @Test
+  void batchesWithoutInterestingTopicsAreNotIntercepted() {
+    var intercepted = new AtomicInteger();
+    var interceptors = interceptors(List.of(topicInterceptor("B", intercepted, ITkmsMessageBatchInterceptor.DISCARD)));
+
+    var decisions = interceptors.beforeSendingToKafka(shardPartition, producerRecords("A", "A"));
+
+    assertThat(decisions).isNull();
+    assertThat(intercepted.get()).isEqualTo(0);
+    assertThat(createdProducerRecordsCount.get()).isEqualTo(0);
+  }
+
+  @Test
+  void firstInterceptorWithAnOpinionWins() {
+    var intercepted = new AtomicInteger();
+    ITkmsMessageInterceptor legacyInterceptor = new ITkmsMessageInterceptor() {
+      @Override
+      public Map<Integer, MessageInterceptionDecision> beforeSendingToKafka(@Nonnull TkmsShardPartition shardPartition,
+          @Nonnull Map<Integer, ProducerRecord<String, byte[]>> producerRecords) {
+        return Map.of(0, MessageInterceptionDecision.RETRY, 1, MessageInterceptionDecision.NEUTRAL, 2, MessageInterceptionDecision.NEUTRAL);
+      }
+    };
+    var interceptors = interceptors(List.of(new MessageInterceptorAdapter(legacyInterceptor),
+        topicInterceptor("B", intercepted, ITkmsMessageBatchInterceptor.DISCARD)));
+
+    var decisions = interceptors.beforeSendingToKafka(shardPartition, producerRecords("B", "B", "C"));
+
+    assertThat(decisions).containsExactly(ITkmsMessageBatchInterceptor.RETRY, ITkmsMessageBatchInterceptor.DISCARD,
+        ITkmsMessageBatchInterceptor.NEUTRAL);
+    assertThat(intercepted.get()).isEqualTo(1);
+    // The legacy interceptor needs all of those.
+    assertThat(createdProducerRecordsCount.get()).isEqualTo(3);
+  }
+
+  private TkmsMessageInterceptors interceptors(List<ITkmsMessageBatchInterceptor> batchInterceptors) {
+    return new TkmsMessageInterceptors() {
+      @Override
+      protected List<ITkmsMessageBatchInterceptor> getBatchInterceptors() {
+        return batchInterceptors;
+      }
+    };
+  }
+
+  private ITkmsMessageBatchInterceptor topicInterceptor(String topic, AtomicInteger intercepted, byte decision) {
+    return new ITkmsMessageBatchInterceptor() {
+      @Override
+      public Set<String> getTopics() {
+        return Set.of(topic);
+      }
+
+      @Override
+      public void beforeSendingToKafka(@Nonnull TkmsShardPartition shardPartition, @Nonnull ProducerRecords producerRecords,
+          @Nonnull byte[] decisions) {
+        intercepted.incrementAndGet();
+        for (int i = 0; i < producerRecords.size(); i++) {
+          if (topic.equals(producerRecords.getTopic(i))) {
+            decisions[i] = decision;
+          }
+        }
+      }
+    };
+  }
+
+  private TkmsProducerRecords producerRecords(String... topics) {
+    var records = new ArrayList<MessageRecord>();
+    for (int i = 0; i < topics.length; i++) {
+      records.add(new MessageRecord().setId(i).setMessage(StoredMessage.Message.newBuilder().setTopic(topics[i]).build()));
+    }
+    return new TkmsProducerRecords(records, messageRecord -> {
+      createdProducerRecordsCount.incrementAndGet();
+      return new ProducerRecord<>(messageRecord.getMessage().getTopic(), new byte[0]);
+    });
+  }
+}
@@ -4,6 +4,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import com.transferwise.kafka.tkms.api.TkmsShardPartition;
 import com.transferwise.kafka.tkms.config.TkmsProperties;
+import java.time.Duration;
 import org.junit.jupiter.api.Test;
 
 class TkmsPaceMakerTest {
@@ -24,4 +25,21 @@ class TkmsPaceMakerTest {
     pause = paceMaker.getPollingPause(TkmsShardPartition.of(0, 0), 100, 50);
     assertEquals(12, pause.toMillis());
   }
+
+  @Test
+  void idlePollingPauseIsBackedOffExponentially() {
+    var paceMaker = new TkmsPaceMaker();
+    var properties = new TkmsProperties();
+    properties.getIdlePolling().setMaxPollingInterval(Duration.ofMillis(500));
+    paceMaker.properties = properties;
+    TkmsShardPartition.init(properties);
+
+    var shardPartition = TkmsShardPartition.of(0, 0);
+
+    assertEquals(50, paceMaker.getIdlePollingPause(shardPartition, 1).toMillis());
+    assertEquals(100, paceMaker.getIdlePollingPause(shardPartition, 2).toMillis());
+    assertEquals(400, paceMaker.getIdlePollingPause(shardPartition, 4).toMillis());
+    assertEquals(500, paceMaker.getIdlePollingPause(shardPartition, 5).toMillis());
+    assertEquals(500, paceMaker.getIdlePollingPause(shardPartition, 1000).toMillis());
+  }
 }
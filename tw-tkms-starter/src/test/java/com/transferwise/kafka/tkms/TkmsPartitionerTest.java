@@ -0,0 +1,149 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.transferwise.common.baseutils.meters.cache.MeterCache;
+import com.transferwise.kafka.tkms.api.TkmsMessage;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.config.TkmsProperties.PartitioningStrategy;
+import com.transferwise.kafka.tkms.metrics.TkmsMetricsTemplate;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.utils.Utils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TkmsPartitionerTest {
+
+  private TkmsProperties properties;
+  private SimpleMeterRegistry meterRegistry;
+  private Map<Integer, Long> backlogs;
+  private TkmsPartitioner partitioner;
+
+  @BeforeEach
+  void setup() {
+    properties = new TkmsProperties();
+    properties.setPartitionsCount(2);
+    TkmsShardPartition.init(properties);
+
+    meterRegistry = new SimpleMeterRegistry();
+    backlogs = new HashMap<>();
+    partitioner = new TkmsPartitioner();
+    partitioner.properties = properties;
+    partitioner.metricsTemplate = new TkmsMetricsTemplate(new MeterCache(meterRegistry), properties);
+    partitioner.backlogEstimator = new BacklogEstimator(backlogs);
+    partitioner.afterPropertiesSet();
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  void murmur2PicksSamePartitionAsKafka() {
+    properties.getPartitioning(0).setStrategy(PartitioningStrategy.MURMUR2);
+    var kafkaPartitioner = new DefaultPartitioner();
+
+    for (int partitionsCount : new int[]{1, 2, 3, 7, 16, 100}) {
+      var cluster = cluster("topic", partitionsCount);
+      for (int i = 0; i < 1000; i++) {
+        var key = "key-" + i;
+        int expected = kafkaPartitioner.partition("topic", key, key.getBytes(StandardCharsets.UTF_8), null, null, cluster);
+
+        assertThat(partitioner.getPartition(0, new TkmsMessage().setTopic("topic").setKey(key), partitionsCount))
+            .as("key '%s' with %d partitions", key, partitionsCount).isEqualTo(expected);
+      }
+    }
+  }
+
+  @Test
+  void leastBacklogPicksLessLoadedPartition() {
+    properties.getPartitioning(0).setStrategy(PartitioningStrategy.LEAST_BACKLOG);
+    backlogs.put(0, 100L);
+    backlogs.put(1, 0L);
+    partitioner.refreshBacklogs(partitioner.shardStates.get(0));
+
+    var partitions = new ArrayList<Integer>();
+    for (int i = 0; i < 100; i++) {
+      partitions.add(partitioner.getPartition(0, new TkmsMessage().setTopic("topic"), 2));
+    }
+
+    // Own messages are added to the backlog, so partition 0 is picked only after partition 1 has caught up with it.
+    assertThat(partitions).containsOnly(1);
+  }
+
+  @Test
+  void leastBacklogDoesNotAffectKeyedMessages() {
+    properties.getPartitioning(0).setStrategy(PartitioningStrategy.LEAST_BACKLOG);
+    backlogs.put(0, 0L);
+    backlogs.put(1, 100L);
+    partitioner.refreshBacklogs(partitioner.shardStates.get(0));
+
+    var message = new TkmsMessage().setTopic("topic").setKey("key-2");
+    int expected = Utils.toPositive(Utils.murmur2("key-2".getBytes(StandardCharsets.UTF_8))) % 2;
+    for (int i = 0; i < 10; i++) {
+      assertThat(partitioner.getPartition(0, message, 2)).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  void skewIsBusiestPartitionShareComparedToEvenSpread() {
+    properties.getPartitioning(0).setStrategy(PartitioningStrategy.LEAST_BACKLOG);
+    assertThat(skew()).isEqualTo(1d);
+
+    backlogs.put(0, 1000L);
+    backlogs.put(1, 0L);
+    partitioner.refreshBacklogs(partitioner.shardStates.get(0));
+    for (int i = 0; i < 10; i++) {
+      partitioner.getPartition(0, new TkmsMessage().setTopic("topic"), 2);
+    }
+    partitioner.refreshSkew(partitioner.shardStates.get(0));
+    assertThat(skew()).isEqualTo(2d);
+
+    // Only the messages since the last refresh count.
+    partitioner.refreshSkew(partitioner.shardStates.get(0));
+    assertThat(skew()).isEqualTo(1d);
+  }
+
+  private double skew() {
+    return meterRegistry.find("tw_tkms_partitioner_skew").gauge().value();
+  }
+
+  private static Cluster cluster(String topic, int partitionsCount) {
+    var node = new Node(0, "localhost", 9092);
+    var partitions = new ArrayList<PartitionInfo>();
+    for (int p = 0; p < partitionsCount; p++) {
+      partitions.add(new PartitionInfo(topic, p, node, new Node[]{node}, new Node[]{node}));
+    }
+    return new Cluster("cluster", List.of(node), partitions, Collections.emptySet(), Collections.emptySet());
+  }
+
+  private static class BacklogEstimator implements ITkmsBacklogEstimator {
+
+    private final Map<Integer, Long> backlogs;
+
+    BacklogEstimator(Map<Integer, Long> backlogs) {
+      this.backlogs = backlogs;
+    }
+
+    @Override
+    public void registerPoll(TkmsShardPartition shardPartition, int polledRecordsCount, int pollerBatchSize) {
+    }
+
+    @Override
+    public void refresh(int shard) {
+    }
+
+    @Override
+    public long getBacklog(TkmsShardPartition shardPartition) {
+      return backlogs.getOrDefault(shardPartition.getPartition(), 0L);
+    }
+  }
+}
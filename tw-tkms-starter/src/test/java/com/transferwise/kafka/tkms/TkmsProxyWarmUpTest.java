@@ -0,0 +1,105 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.transferwise.common.baseutils.meters.cache.MeterCache;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.ITkmsKafkaProducerProvider;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.metrics.TkmsMetricsTemplate;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TkmsProxyWarmUpTest {
+
+  private TkmsProperties properties;
+  private SimpleMeterRegistry meterRegistry;
+  private TkmsProxyWarmUp proxyWarmUp;
+
+  @BeforeEach
+  void setup() {
+    properties = new TkmsProperties();
+    properties.setPartitionsCount(3);
+    properties.getProducerWarmUp().setEnabled(true);
+    TkmsShardPartition.init(properties);
+
+    meterRegistry = new SimpleMeterRegistry();
+    proxyWarmUp = new TkmsProxyWarmUp();
+    proxyWarmUp.properties = properties;
+    proxyWarmUp.metricsTemplate = new TkmsMetricsTemplate(new MeterCache(meterRegistry), properties);
+  }
+
+  @Test
+  void failoverTimeIsMeasuredFromLastHeartbeat() {
+    assertThat(TkmsProxyWarmUp.getFailoverMs(heartbeat(1_000), 1_500)).isEqualTo(500);
+    assertThat(TkmsProxyWarmUp.getFailoverMs(heartbeat(1_000), 1_000)).isZero();
+    // Clock skew between nodes.
+    assertThat(TkmsProxyWarmUp.getFailoverMs(heartbeat(1_000), 999)).isNull();
+    // Not a failover, but e.g. a full restart of the cluster.
+    assertThat(TkmsProxyWarmUp.getFailoverMs(heartbeat(1_000), 1_000 + 60_001)).isNull();
+  }
+
+  @Test
+  void warmProducerIsReportedForNotLedShardPartitions() {
+    try (var kafkaProducer = createKafkaProducer()) {
+      proxyWarmUp.tkmsKafkaProducerProvider = new ProducerProvider(kafkaProducer);
+      proxyWarmUp.leadershipAcquired(TkmsShardPartition.of(0, 1));
+
+      proxyWarmUp.warmUp(0);
+
+      assertThat(proxyWarmUp.isWarm(0)).isTrue();
+      assertThat(meterRegistry.find("tw_tkms_proxy_warm_producer").gauges()).hasSize(2);
+      assertThat(meterRegistry.find("tw_tkms_proxy_warm_producer").tag("partition", "1").gauge()).isNull();
+    }
+  }
+
+  @Test
+  void failedWarmUpLeavesShardCold() {
+    proxyWarmUp.tkmsKafkaProducerProvider = new ProducerProvider(null);
+
+    proxyWarmUp.warmUp(0);
+
+    assertThat(proxyWarmUp.isWarm(0)).isFalse();
+    assertThat(meterRegistry.find("tw_tkms_proxy_warm_producer").gauges()).isEmpty();
+  }
+
+  private static byte[] heartbeat(long timeMs) {
+    return String.valueOf(timeMs).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Does not connect anywhere, as long as it is not used.
+   */
+  private static KafkaProducer<String, byte[]> createKafkaProducer() {
+    return new KafkaProducer<>(Map.of(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092"), new StringSerializer(),
+        new ByteArraySerializer());
+  }
+
+  private static class ProducerProvider implements ITkmsKafkaProducerProvider {
+
+    private final KafkaProducer<String, byte[]> kafkaProducer;
+
+    ProducerProvider(KafkaProducer<String, byte[]> kafkaProducer) {
+      this.kafkaProducer = kafkaProducer;
+    }
+
+    @Override
+    public KafkaProducer<String, byte[]> getKafkaProducer(int shard) {
+      if (kafkaProducer == null) {
+        throw new IllegalStateException("No producer.");
+      }
+      return kafkaProducer;
+    }
+
+    @Override
+    public void closeKafkaProducer(int shard) {
+    }
+  }
+}
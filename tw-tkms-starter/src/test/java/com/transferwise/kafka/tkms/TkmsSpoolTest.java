@@ -0,0 +1,197 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.transferwise.common.baseutils.meters.cache.MeterCache;
+import com.transferwise.kafka.tkms.api.TkmsMessage;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.dao.ITkmsDao;
+import com.transferwise.kafka.tkms.dao.ITkmsMessageSerializer;
+import com.transferwise.kafka.tkms.metrics.TkmsMetricsTemplate;
+import com.transferwise.kafka.tkms.stored_message.StoredMessage.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TkmsSpoolTest {
+
+  @TempDir
+  Path directory;
+
+  private TkmsProperties properties;
+  private List<String> insertedMessages;
+  private int failInsertAfter;
+
+  @BeforeEach
+  void setup() {
+    properties = new TkmsProperties();
+    properties.setPartitionsCount(2);
+    properties.getSpool(0).setEnabled(true).setDirectory(directory.toString()).setFileSizeBytes(64 * 1024);
+    TkmsShardPartition.init(properties);
+
+    insertedMessages = new ArrayList<>();
+    failInsertAfter = Integer.MAX_VALUE;
+  }
+
+  @Test
+  void appendedMessagesAreReplayedInOrder() throws IOException {
+    var spool = createSpool();
+    spool.append(TkmsShardPartition.of(0, 0), message("a"));
+    spool.append(TkmsShardPartition.of(0, 1), message("b"));
+    assertThat(pendingMessages(spool)).isEqualTo(2);
+
+    spool.replaySealedFiles(shardSpool(spool));
+
+    assertThat(insertedMessages).containsExactly("0:topic:a", "1:topic:b");
+    assertThat(pendingMessages(spool)).isZero();
+    assertThat(listFiles()).isEmpty();
+  }
+
+  @Test
+  void activeFileIsNeverReplayed() throws IOException {
+    var spool = createSpool();
+    spool.append(TkmsShardPartition.of(0, 0), message("a"));
+
+    assertThat(spool.listSealedFiles(shardSpool(spool))).isEmpty();
+    assertThat(listFiles()).singleElement().asString().endsWith(".active");
+
+    spool.replaySealedFiles(shardSpool(spool));
+    spool.append(TkmsShardPartition.of(0, 0), message("b"));
+
+    assertThat(spool.listSealedFiles(shardSpool(spool))).isEmpty();
+    assertThat(insertedMessages).containsExactly("0:topic:a");
+
+    spool.replaySealedFiles(shardSpool(spool));
+    assertThat(insertedMessages).containsExactly("0:topic:a", "0:topic:b");
+  }
+
+  @Test
+  void failedReplayIsResumedFromOffsetAfterRestart() throws IOException {
+    var spool = createSpool();
+    for (int i = 0; i < 150; i++) {
+      spool.append(TkmsShardPartition.of(0, 0), message(String.valueOf(i)));
+    }
+
+    failInsertAfter = 120;
+    assertThatThrownBy(() -> spool.replaySealedFiles(shardSpool(spool))).isInstanceOf(IllegalStateException.class);
+    assertThat(insertedMessages).hasSize(120);
+    assertThat(listFiles()).singleElement().asString().endsWith(".spool");
+    spool.prepareForShutdown();
+
+    insertedMessages.clear();
+    failInsertAfter = Integer.MAX_VALUE;
+    var restartedSpool = createSpool();
+    // Progress is committed every 100 records, so the last 20 replayed ones are pending again.
+    assertThat(pendingMessages(restartedSpool)).isEqualTo(50);
+
+    restartedSpool.replaySealedFiles(shardSpool(restartedSpool));
+
+    assertThat(insertedMessages).hasSize(50);
+    assertThat(insertedMessages.get(0)).isEqualTo("0:topic:100");
+    assertThat(listFiles()).isEmpty();
+  }
+
+  @Test
+  void activeFileLeftByCrashIsSealedOnRestart() throws IOException {
+    var spool = createSpool();
+    spool.append(TkmsShardPartition.of(0, 0), message("a"));
+    spool.append(TkmsShardPartition.of(0, 0), message("b"));
+    // No shutdown, the file is left active.
+    shardSpool(spool).activeFile.force();
+
+    var restartedSpool = createSpool();
+    assertThat(listFiles()).singleElement().asString().endsWith(".spool");
+    assertThat(pendingMessages(restartedSpool)).isEqualTo(2);
+
+    restartedSpool.replaySealedFiles(shardSpool(restartedSpool));
+    assertThat(insertedMessages).containsExactly("0:topic:a", "0:topic:b");
+  }
+
+  @Test
+  void messagesNotFittingIntoFileAreRejectedBeforeCommit() throws IOException {
+    var spool = createSpool();
+
+    assertThatThrownBy(() -> spool.checkAppendable(TkmsShardPartition.of(0, 0), message("a".repeat(64 * 1024))))
+        .isInstanceOf(IllegalStateException.class).hasMessageContaining("does not fit into a spool file");
+    assertThat(listFiles()).isEmpty();
+
+    spool.checkAppendable(TkmsShardPartition.of(0, 0), message("a"));
+    // The active file is created before the commit.
+    assertThat(listFiles()).singleElement().asString().endsWith(".active");
+    assertThat(pendingMessages(spool)).isZero();
+  }
+
+  private TkmsSpool createSpool() {
+    var spool = new TkmsSpool();
+    spool.properties = properties;
+    spool.metricsTemplate = new TkmsMetricsTemplate(new MeterCache(new SimpleMeterRegistry()), properties);
+    spool.messageSerializer = new ValueSerializer();
+    spool.tkmsDaoProvider = shard -> createDao();
+    spool.afterPropertiesSet();
+    return spool;
+  }
+
+  private ITkmsDao createDao() {
+    return (ITkmsDao) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ITkmsDao.class}, (proxy, method, args) -> {
+      if (!method.getName().equals("insertSerializedMessage")) {
+        throw new UnsupportedOperationException(method.getName());
+      }
+      if (insertedMessages.size() >= failInsertAfter) {
+        throw new IllegalStateException("Database is down.");
+      }
+      var shardPartition = (TkmsShardPartition) args[0];
+      insertedMessages.add(shardPartition.getPartition() + ":" + args[1] + ":" + new String((byte[]) args[2], StandardCharsets.UTF_8));
+      return null;
+    });
+  }
+
+  private static TkmsSpool.ShardSpool shardSpool(TkmsSpool spool) {
+    return spool.shardSpools.get(0);
+  }
+
+  private static long pendingMessages(TkmsSpool spool) {
+    return shardSpool(spool).pendingMessagesCount.get();
+  }
+
+  private List<Path> listFiles() throws IOException {
+    try (Stream<Path> files = Files.list(directory.resolve("shard_0"))) {
+      return files.filter(f -> !f.getFileName().toString().endsWith(".offset")).collect(Collectors.toList());
+    }
+  }
+
+  private static TkmsMessage message(String value) {
+    return new TkmsMessage().setTopic("topic").setValue(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static class ValueSerializer implements ITkmsMessageSerializer {
+
+    @Override
+    public InputStream serialize(TkmsShardPartition shardPartition, TkmsMessage tkmsMessage) {
+      return new ByteArrayInputStream(tkmsMessage.getValue());
+    }
+
+    @Override
+    public byte[] serialize(TkmsShardPartition shardPartition, Message storedMessage) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Message deserialize(TkmsShardPartition shardPartition, InputStream is) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
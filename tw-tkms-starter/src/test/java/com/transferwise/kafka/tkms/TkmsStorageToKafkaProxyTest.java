@@ -0,0 +1,285 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UInt32Value;
+import com.google.protobuf.UInt64Value;
+import com.transferwise.common.baseutils.clock.TestClock;
+import com.transferwise.common.baseutils.meters.cache.MeterCache;
+import com.transferwise.kafka.tkms.api.ITkmsMessageInterceptors;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.ITkmsDaoProvider;
+import com.transferwise.kafka.tkms.config.ITkmsKafkaProducerProvider;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.dao.ITkmsDao;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.MessageRecord;
+import com.transferwise.kafka.tkms.metrics.TkmsMetricsTemplate;
+import com.transferwise.kafka.tkms.stored_message.StoredMessage.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TkmsStorageToKafkaProxyTest {
+
+  private static final String TOPIC = "TestTopic";
+
+  private TkmsProperties properties;
+  private TkmsShardPartition shardPartition;
+  private TestKafkaProducer kafkaProducer;
+  private SimpleMeterRegistry meterRegistry;
+  private final TreeMap<Long, MessageRecord> table = new TreeMap<>();
+  private final List<String> daoCalls = new ArrayList<>();
+  private Runnable beforeGetMessages = () -> {
+  };
+
+  @BeforeEach
+  void setup() {
+    properties = new TkmsProperties();
+    properties.setPollingInterval(Duration.ofMillis(10));
+    properties.setPollerBatchSize(4);
+    TkmsShardPartition.init(properties);
+    shardPartition = TkmsShardPartition.of(0, 0);
+    kafkaProducer = new TestKafkaProducer();
+    meterRegistry = new SimpleMeterRegistry();
+  }
+
+  @AfterEach
+  void cleanup() {
+    kafkaProducer.close(Duration.ZERO);
+    TkmsClockHolder.reset();
+  }
+
+  @Test
+  void idlePollingSwitchesToProbesAfterThresholdOfEmptyPolls() {
+    properties.getIdlePolling().setEnabled(true).setEmptyPollsThreshold(3).setMaxPollingInterval(Duration.ofMillis(80));
+    var poller = createProxy().new ShardPartitionPoller(shardPartition);
+
+    for (int i = 0; i < 3; i++) {
+      poller.pollCycle();
+      assertThat(poller.takePauseRequest()).isEqualTo(Duration.ofMillis(10));
+    }
+    assertThat(daoCalls).containsExactly("getMessages", "getMessages", "getMessages");
+
+    daoCalls.clear();
+    poller.pollCycle();
+    assertThat(poller.takePauseRequest()).isEqualTo(Duration.ofMillis(20));
+    poller.pollCycle();
+    assertThat(poller.takePauseRequest()).isEqualTo(Duration.ofMillis(40));
+    assertThat(daoCalls).containsExactly("hasMessages", "hasMessages");
+    assertThat(meterRegistry.get("tw_tkms_proxy_idle_probe").counter().count()).isEqualTo(2);
+
+    insert(1, 0);
+    daoCalls.clear();
+    poller.pollCycle();
+    assertThat(daoCalls).containsExactly("hasMessages", "getMessages", "deleteMessages");
+    assertThat(kafkaProducer.sent).hasSize(1);
+
+    // Back to full polls, until the threshold is reached again.
+    daoCalls.clear();
+    poller.pollCycle();
+    assertThat(poller.takePauseRequest()).isEqualTo(Duration.ofMillis(10));
+    assertThat(daoCalls).containsExactly("getMessages");
+  }
+
+  @Test
+  void holdExpiringDuringCycleDoesNotReorderPartition() {
+    properties.setIsolateKafkaPartitionErrors(true);
+    var clock = new TestClock(Instant.ofEpochMilli(1000));
+    TkmsClockHolder.setClock(clock);
+    var poller = createProxy().new ShardPartitionPoller(shardPartition);
+
+    insert(1, 0);
+    kafkaProducer.failing = record -> record.partition() == 0;
+    poller.pollCycle();
+    assertThat(kafkaProducer.sent).isEmpty();
+    assertThat(meterRegistry.get("tw_tkms_proxy_kafka_partition_hold_back").counter().count()).isEqualTo(1);
+
+    kafkaProducer.failing = record -> false;
+    insert(2, 1);
+    insert(3, 0);
+    insert(4, 1);
+    insert(5, 0);
+    insert(6, 1);
+    // The hold expires, after the first batch was polled.
+    var getMessagesCount = new AtomicInteger();
+    beforeGetMessages = () -> {
+      if (getMessagesCount.incrementAndGet() == 2) {
+        clock.tick(properties.getPauseTimeOnErrors().plusMillis(1));
+      }
+    };
+    poller.pollCycle();
+
+    assertThat(getSentValues()).containsExactly("2", "4", "6");
+    assertThat(table.keySet()).containsExactly(1L, 3L, 5L);
+
+    poller.pollCycle();
+    assertThat(getSentValues()).containsExactly("2", "4", "6", "1", "3", "5");
+    assertThat(table).isEmpty();
+  }
+
+  @Test
+  void customPartitionerCanNotBeUsedWithIsolatedKafkaPartitionErrors() {
+    var proxy = createProxy();
+    properties.getKafka().put("partitioner.class", "com.example.CustomPartitioner");
+    proxy.validateKafkaPartitionErrorsIsolation(0);
+
+    properties.setIsolateKafkaPartitionErrors(true);
+    assertThatThrownBy(() -> proxy.validateKafkaPartitionErrorsIsolation(0)).isInstanceOf(IllegalStateException.class)
+        .hasMessageContaining("com.example.CustomPartitioner");
+
+    properties.getKafka().put("partitioner.class", DefaultPartitioner.class.getName());
+    proxy.validateKafkaPartitionErrorsIsolation(0);
+  }
+
+  @Test
+  void idempotencyKeyIsUniqueBetweenTables() {
+    var record = new MessageRecord().setId(5).setMessage(Message.newBuilder().setInsertTimestamp(UInt64Value.of(1000)).build());
+
+    assertThat(TkmsStorageToKafkaProxy.getIdempotencyKey(shardPartition, TkmsMessageSource.MAIN, record)).isEqualTo("0_0_5_1000");
+    assertThat(TkmsStorageToKafkaProxy.getIdempotencyKey(shardPartition, TkmsMessageSource.PRIORITY, record)).isEqualTo("0_0_priority_5_1000");
+    assertThat(TkmsStorageToKafkaProxy.getIdempotencyKey(shardPartition, TkmsMessageSource.generation(2), record)).isEqualTo("0_0_g2_5_1000");
+    // Dead letter retries.
+    assertThat(TkmsStorageToKafkaProxy.getIdempotencyKey(shardPartition, null, record)).isEqualTo("0_0_5_1000");
+  }
+
+  private TkmsStorageToKafkaProxy createProxy() {
+    var proxy = new TkmsStorageToKafkaProxy();
+    proxy.properties = properties;
+    var metricsTemplate = new TkmsMetricsTemplate(new MeterCache(meterRegistry), properties);
+    proxy.metricsTemplate = metricsTemplate;
+    var paceMaker = new TkmsPaceMaker();
+    paceMaker.properties = properties;
+    proxy.tkmsPaceMaker = paceMaker;
+    var tkmsDao = createDao();
+    proxy.tkmsDaoProvider = (ITkmsDaoProvider) shard -> tkmsDao;
+    proxy.tkmsKafkaProducerProvider = noOp(ITkmsKafkaProducerProvider.class, kafkaProducer);
+    proxy.messageIntereceptors = noOp(ITkmsMessageInterceptors.class, null);
+    proxy.leadershipBalancer = noOp(ITkmsLeadershipBalancer.class, null);
+    proxy.proxyStateHandover = noOp(ITkmsProxyStateHandover.class, null);
+    proxy.earliestMessageIdsCommitter = noOp(ITkmsEarliestMessageIdsCommitter.class, null);
+    proxy.backlogEstimator = noOp(ITkmsBacklogEstimator.class, null);
+    proxy.acknowledgementTracker = noOp(ITkmsAcknowledgementTracker.class, null);
+    proxy.eventsDispatcher = noOp(ITkmsEventsDispatcher.class, null);
+    proxy.deadLetterTracker = noOp(ITkmsDeadLetterTracker.class, null);
+    return proxy;
+  }
+
+  private List<String> getSentValues() {
+    return kafkaProducer.sent.stream().map(record -> new String(record.value(), StandardCharsets.UTF_8)).collect(Collectors.toList());
+  }
+
+  private void insert(long id, int kafkaPartition) {
+    table.put(id, new MessageRecord().setId(id).setMessage(Message.newBuilder().setTopic(TOPIC).setPartition(UInt32Value.of(kafkaPartition))
+        .setValue(ByteString.copyFrom(String.valueOf(id), StandardCharsets.UTF_8)).build()));
+  }
+
+  @SuppressWarnings("unchecked")
+  private ITkmsDao createDao() {
+    return (ITkmsDao) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ITkmsDao.class}, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "getMessages":
+          daoCalls.add(method.getName());
+          beforeGetMessages.run();
+          var records = new ArrayList<MessageRecord>();
+          for (var record : table.tailMap((Long) args[1], true).values()) {
+            if (records.size() == (Integer) args[2]) {
+              break;
+            }
+            records.add(record);
+          }
+          return records;
+        case "hasMessages":
+          daoCalls.add(method.getName());
+          return !table.tailMap((Long) args[1], true).isEmpty();
+        case "deleteMessages":
+          daoCalls.add(method.getName());
+          ((List<Long>) args[1]).forEach(table::remove);
+          return null;
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+
+  /**
+   * Returns the given value from every method returning an object, and the default value from the others.
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> T noOp(Class<T> clazz, Object value) {
+    return (T) Proxy.newProxyInstance(TkmsStorageToKafkaProxyTest.class.getClassLoader(), new Class<?>[]{clazz}, (proxy, method, args) -> {
+      var returnType = method.getReturnType();
+      if (returnType == boolean.class) {
+        return false;
+      } else if (returnType == int.class) {
+        return 0;
+      } else if (returnType == long.class) {
+        return 0L;
+      } else if (returnType == void.class || !returnType.isInstance(value)) {
+        return null;
+      }
+      return value;
+    });
+  }
+
+  /**
+   * Completes the sends right away, without connecting anywhere.
+   */
+  protected static class TestKafkaProducer extends KafkaProducer<String, byte[]> {
+
+    private final List<ProducerRecord<String, byte[]>> sent = new ArrayList<>();
+    private Predicate<ProducerRecord<String, byte[]>> failing = record -> false;
+
+    TestKafkaProducer() {
+      super(Map.of("bootstrap.servers", "localhost:9092"), new StringSerializer(), new ByteArraySerializer());
+    }
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<String, byte[]> record, Callback callback) {
+      if (failing.test(record)) {
+        var error = new TimeoutException("Partition " + record.partition() + " has no leader.");
+        callback.onCompletion(null, error);
+        return CompletableFuture.failedFuture(error);
+      }
+      sent.add(record);
+      var metadata = new RecordMetadata(new TopicPartition(record.topic(), record.partition()), sent.size(), 0, 0, 0, 0);
+      callback.onCompletion(metadata, null);
+      return CompletableFuture.completedFuture(metadata);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public List<PartitionInfo> partitionsFor(String topic) {
+      return List.of(new PartitionInfo(topic, 0, Node.noNode(), null, null), new PartitionInfo(topic, 1, Node.noNode(), null, null));
+    }
+  }
+}
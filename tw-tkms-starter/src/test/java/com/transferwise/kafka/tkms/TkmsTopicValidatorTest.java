@@ -0,0 +1,154 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatCode;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.transferwise.common.baseutils.clock.TestClock;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.ITkmsKafkaProducerProvider;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.config.TkmsProperties.ShardProperties;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TkmsTopicValidatorTest {
+
+  private TestClock clock;
+  private ExecutorService executorService;
+  private MetadataProducer kafkaProducer;
+  private TkmsTopicValidator validator;
+
+  @BeforeEach
+  void setup() {
+    clock = new TestClock(Instant.now());
+    TkmsClockHolder.setClock(clock);
+
+    var properties = new TkmsProperties();
+    properties.getTopicValidation().setNegativeCacheTtl(Duration.ofSeconds(10)).setLookupTimeout(Duration.ofSeconds(5));
+    TkmsShardPartition.init(properties);
+
+    executorService = Executors.newSingleThreadExecutor();
+    kafkaProducer = new MetadataProducer();
+    validator = new TkmsTopicValidator();
+    validator.properties = properties;
+    validator.kafkaProducerProvider = new ITkmsKafkaProducerProvider() {
+      @Override
+      public KafkaProducer<String, byte[]> getKafkaProducer(int shard) {
+        return kafkaProducer;
+      }
+
+      @Override
+      public void closeKafkaProducer(int shard) {
+      }
+    };
+    validator.init(executorService);
+  }
+
+  @AfterEach
+  void cleanup() {
+    executorService.shutdownNow();
+    kafkaProducer.close(Duration.ZERO);
+    TkmsClockHolder.reset();
+  }
+
+  @Test
+  void lookupTimeoutDefaultsToMaxBlockMs() {
+    var properties = new TkmsProperties();
+    validator.properties = properties;
+    assertThat(validator.getLookupTimeoutMs(0)).isEqualTo(6000);
+
+    properties.getKafka().put(ProducerConfig.MAX_BLOCK_MS_CONFIG, "60000");
+    var shardProperties = new ShardProperties();
+    shardProperties.getKafka().put(ProducerConfig.MAX_BLOCK_MS_CONFIG, "2000");
+    properties.getShards().put(1, shardProperties);
+    assertThat(validator.getLookupTimeoutMs(0)).isEqualTo(61000);
+    assertThat(validator.getLookupTimeoutMs(1)).isEqualTo(3000);
+
+    properties.getTopicValidation().setLookupTimeout(Duration.ofSeconds(1));
+    assertThat(validator.getLookupTimeoutMs(1)).isEqualTo(1000);
+  }
+
+  @Test
+  void knownTopicIsAnsweredFromCache() {
+    validator.validate(0, "topic");
+
+    assertThatCode(() -> validator.validate(0, "topic")).doesNotThrowAnyException();
+    assertThat(kafkaProducer.lookupsCount).hasValue(1);
+  }
+
+  @Test
+  void missingTopicIsRejectedUntilNegativeTtlPasses() {
+    kafkaProducer.available = false;
+    assertThatThrownBy(() -> validator.validate(0, "topic")).isInstanceOf(IllegalStateException.class);
+
+    kafkaProducer.available = true;
+    clock.tick(Duration.ofSeconds(10));
+    assertThatThrownBy(() -> validator.validate(0, "topic")).isInstanceOf(IllegalStateException.class);
+    assertThat(kafkaProducer.lookupsCount).hasValue(1);
+
+    clock.tick(Duration.ofMillis(1));
+    assertThatCode(() -> validator.validate(0, "topic")).doesNotThrowAnyException();
+    assertThat(kafkaProducer.lookupsCount).hasValue(2);
+  }
+
+  @Test
+  void failedRefreshKeepsLastGoodState() {
+    validator.validate(0, "topic");
+
+    kafkaProducer.available = false;
+    validator.refresh();
+
+    assertThatCode(() -> validator.validate(0, "topic")).doesNotThrowAnyException();
+    assertThat(kafkaProducer.lookupsCount).hasValue(2);
+  }
+
+  @Test
+  void refreshDoesNotLookUpMissingTopics() {
+    kafkaProducer.available = false;
+    assertThatThrownBy(() -> validator.validate(0, "topic")).isInstanceOf(IllegalStateException.class);
+
+    kafkaProducer.available = true;
+    validator.refresh();
+
+    // Missing topics are only looked up again on demand, after the negative TTL.
+    assertThatThrownBy(() -> validator.validate(0, "topic")).isInstanceOf(IllegalStateException.class);
+    assertThat(kafkaProducer.lookupsCount).hasValue(1);
+  }
+
+  /**
+   * Does not connect anywhere, as only the metadata lookups are used.
+   */
+  private static class MetadataProducer extends KafkaProducer<String, byte[]> {
+
+    private final AtomicInteger lookupsCount = new AtomicInteger();
+    private volatile boolean available = true;
+
+    MetadataProducer() {
+      super(Map.of(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092"), new StringSerializer(), new ByteArraySerializer());
+    }
+
+    @Override
+    public List<PartitionInfo> partitionsFor(String topic) {
+      lookupsCount.incrementAndGet();
+      if (!available) {
+        throw new TimeoutException("Topic " + topic + " not present in metadata.");
+      }
+      return List.of();
+    }
+  }
+}
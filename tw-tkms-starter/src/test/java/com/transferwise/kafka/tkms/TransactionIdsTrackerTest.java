@@ -0,0 +1,182 @@
+package com.transferwise.kafka.tkms;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.transferwise.common.baseutils.clock.TestClock;
+import com.transferwise.common.baseutils.meters.cache.MeterCache;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.MessageRecord;
+import com.transferwise.kafka.tkms.dao.ITkmsTransactionIdsDao;
+import com.transferwise.kafka.tkms.metrics.TkmsMetricsTemplate;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TransactionIdsTrackerTest {
+
+  private TestClock clock;
+  private SimpleMeterRegistry meterRegistry;
+  private List<Long> submittedCursors;
+  private TransactionIdsTracker tracker;
+
+  @BeforeEach
+  void setup() {
+    clock = new TestClock(Instant.now());
+    TkmsClockHolder.setClock(clock);
+
+    var properties = new TkmsProperties();
+    TkmsShardPartition.init(properties);
+
+    meterRegistry = new SimpleMeterRegistry();
+    submittedCursors = new ArrayList<>();
+    tracker = new TransactionIdsTracker(new CursorDao(10L), TkmsShardPartition.of(0, 0), new Committer(submittedCursors),
+        new TkmsMetricsTemplate(new MeterCache(meterRegistry), properties));
+    tracker.init();
+  }
+
+  @AfterEach
+  void cleanup() {
+    TkmsClockHolder.reset();
+  }
+
+  @Test
+  void cursorIsResumedFromCommittedOne() {
+    assertThat(tracker.getCursor()).isEqualTo(10);
+    assertThat(meterRegistry.find("tw_tkms_proxy_transaction_ids_horizon_lag").gauge()).isNotNull();
+  }
+
+  @Test
+  void cursorMovesToHorizonWhenPollWasNotFull() {
+    var poll = poll(20, 25, record(1, 11), record(2, 12));
+
+    tracker.proxied(poll, 3, List.of(1L, 2L));
+
+    assertThat(tracker.getCursor()).isEqualTo(20);
+    assertThat(submittedCursors).containsExactly(20L);
+  }
+
+  @Test
+  void cursorMovesOnlyToLastTransactionWhenPollWasFull() {
+    // The last transaction can have more messages, not fitting into the batch.
+    var poll = poll(20, 25, record(1, 11), record(2, 12), record(3, 12));
+
+    tracker.proxied(poll, 3, List.of(1L, 2L, 3L));
+
+    assertThat(tracker.getCursor()).isEqualTo(12);
+    assertThat(submittedCursors).containsExactly(12L);
+  }
+
+  @Test
+  void failedMessageHoldsCursorBack() {
+    var poll = poll(20, 25, record(1, 11), record(2, 13), record(3, 14));
+
+    tracker.proxied(poll, 5, List.of(1L, 3L));
+    assertThat(tracker.getCursor()).isEqualTo(13);
+
+    // Nothing from below the cursor is proxied yet, so it does not move.
+    tracker.proxied(poll(20, 25, record(2, 13)), 5, Collections.emptyList());
+    assertThat(tracker.getCursor()).isEqualTo(13);
+    assertThat(submittedCursors).containsExactly(13L);
+
+    tracker.proxied(poll(20, 25, record(2, 13)), 5, List.of(2L));
+    assertThat(tracker.getCursor()).isEqualTo(20);
+  }
+
+  @Test
+  void cursorDoesNotMoveBackwards() {
+    tracker.proxied(poll(5, 25), 5, Collections.emptyList());
+
+    assertThat(tracker.getCursor()).isEqualTo(10);
+    assertThat(submittedCursors).isEmpty();
+  }
+
+  @Test
+  void horizonLagIsMeasuredWhileHorizonIsStuck() {
+    tracker.proxied(poll(20, 25), 5, Collections.emptyList());
+    assertThat(tracker.getHorizonLagMs()).isZero();
+
+    clock.tick(Duration.ofSeconds(3));
+    tracker.proxied(poll(20, 30), 5, Collections.emptyList());
+    assertThat(tracker.getHorizonLagMs()).isEqualTo(3000);
+    assertThat(meterRegistry.find("tw_tkms_proxy_transaction_ids_horizon_lag").gauge().value()).isEqualTo(3000);
+
+    clock.tick(Duration.ofSeconds(1));
+    tracker.proxied(poll(21, 30), 5, Collections.emptyList());
+    assertThat(tracker.getHorizonLagMs()).isZero();
+  }
+
+  @Test
+  void horizonIsNotLaggingWithoutRunningTransactions() {
+    tracker.proxied(poll(20, 20), 5, Collections.emptyList());
+    clock.tick(Duration.ofSeconds(3));
+    tracker.proxied(poll(20, 20), 5, Collections.emptyList());
+
+    assertThat(tracker.getHorizonLagMs()).isZero();
+  }
+
+  @Test
+  void gaugeIsUnregisteredOnShutdown() {
+    tracker.shutdown();
+
+    assertThat(meterRegistry.find("tw_tkms_proxy_transaction_ids_horizon_lag").gauge()).isNull();
+  }
+
+  private static ITkmsTransactionIdsDao.TransactionIdsPoll poll(long horizon, long next, MessageRecord... records) {
+    return new ITkmsTransactionIdsDao.TransactionIdsPoll().setRecords(List.of(records)).setHorizonTransactionId(horizon)
+        .setNextTransactionId(next);
+  }
+
+  private static MessageRecord record(long id, long transactionId) {
+    return new MessageRecord().setId(id).setTransactionId(transactionId);
+  }
+
+  private static class CursorDao implements ITkmsTransactionIdsDao {
+
+    private final Long cursor;
+
+    CursorDao(Long cursor) {
+      this.cursor = cursor;
+    }
+
+    @Override
+    public TransactionIdsPoll getMessagesByTransactionIds(TkmsShardPartition shardPartition, long fromTransactionId, int maxCount) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Long getTransactionIdsCursor(TkmsShardPartition shardPartition) {
+      return cursor;
+    }
+
+    @Override
+    public void saveTransactionIdsCursors(int shard, Map<Integer, Long> partitionsCursors) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static class Committer implements ITkmsEarliestMessageIdsCommitter {
+
+    private final List<Long> submittedCursors;
+
+    Committer(List<Long> submittedCursors) {
+      this.submittedCursors = submittedCursors;
+    }
+
+    @Override
+    public void submit(TkmsShardPartition shardPartition, long earliestMessageId) {
+      submittedCursors.add(earliestMessageId);
+    }
+
+    @Override
+    public void commitNow(TkmsShardPartition shardPartition, long earliestMessageId) {
+    }
+  }
+}
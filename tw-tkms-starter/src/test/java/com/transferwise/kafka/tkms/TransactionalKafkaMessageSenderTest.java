@@ -3,11 +3,46 @@ package com.transferwise.kafka.tkms;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import com.transferwise.common.baseutils.meters.cache.MeterCache;
+import com.transferwise.kafka.tkms.api.ITkmsEventsListener.MessageAcknowledgedEvent;
+import com.transferwise.kafka.tkms.api.ITkmsEventsListener.MessageRegisteredEvent;
+import com.transferwise.kafka.tkms.api.TkmsMessage;
+import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import com.transferwise.kafka.tkms.config.TkmsProperties;
+import com.transferwise.kafka.tkms.dao.ITkmsDao;
+import com.transferwise.kafka.tkms.dao.ITkmsDao.InsertMessageResult;
+import com.transferwise.kafka.tkms.dao.ITkmsMessageSerializer;
+import com.transferwise.kafka.tkms.metrics.TkmsMetricsTemplate;
+import com.transferwise.kafka.tkms.stored_message.StoredMessage.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
 
 class TransactionalKafkaMessageSenderTest {
 
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final Map<TkmsShardPartition, List<String>> insertedMessages = new HashMap<>();
+  private final List<Integer> insertBatchSizes = new ArrayList<>();
+  private final List<String> insertedSerializedMessages = new ArrayList<>();
+
+  @AfterEach
+  void cleanup() {
+    TransactionContext.unbind();
+  }
+
   @Test
   void deleteBatchSizesAreCorrectlyValidated() {
     var sender = new TransactionalKafkaMessageSender();
@@ -23,4 +58,264 @@ class TransactionalKafkaMessageSenderTest {
     e = assertThrows(IllegalStateException.class, () -> sender.validateDeleteBatchSize(1, List.of(4, 2), "test"));
     assertEquals("Invalid delete batch sizes provided for 'test', last element has to be 1.", e.getMessage());
   }
+
+  @Test
+  void earlyFlushByCountKeepsShardPartitionOrder() {
+    var properties = new TkmsProperties();
+    properties.setPartitionsCount(2);
+    properties.setDeferredMessagesFlushCount(3);
+    var sender = createSender(properties);
+    var transactionContext = TransactionContext.createAndBind();
+
+    for (int i = 0; i < 8; i++) {
+      defer(sender, transactionContext, TkmsShardPartition.of(0, i % 2), String.valueOf(i));
+    }
+    // Before the commit.
+    sender.flushDeferredMessages(transactionContext);
+
+    assertEquals(List.of("0", "2", "4", "6"), insertedMessages.get(TkmsShardPartition.of(0, 0)));
+    assertEquals(List.of("1", "3", "5", "7"), insertedMessages.get(TkmsShardPartition.of(0, 1)));
+    // Flushed after 3 and 6 messages, and the rest before the commit, one insert per shard-partition each time.
+    assertEquals(6, insertBatchSizes.size());
+    assertEquals(0, transactionContext.getDeferredMessagesCount());
+  }
+
+  @Test
+  void earlyFlushByBytesIsTrackedAsPeak() {
+    var properties = new TkmsProperties();
+    properties.setDeferredMessagesFlushBytes(1000);
+    var sender = createSender(properties);
+    var transactionContext = TransactionContext.createAndBind();
+
+    // Same length values, so every message has the same estimated size.
+    var messageBytes = sender.estimateMessageSize(message("000"), false);
+    int messagesPerFlush = (int) Math.ceil(1000d / messageBytes);
+    for (int i = 0; i < messagesPerFlush * 2 + 1; i++) {
+      defer(sender, transactionContext, TkmsShardPartition.of(0, 0), String.format("%03d", i));
+    }
+
+    assertEquals(List.of(messagesPerFlush, messagesPerFlush), insertBatchSizes);
+    assertEquals(messageBytes, transactionContext.getDeferredBytes());
+    assertEquals((long) messageBytes * messagesPerFlush, transactionContext.getPeakDeferredBytes());
+
+    sender.flushDeferredMessages(transactionContext);
+    sender.new BeforeCommitSender().afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+
+    var summary = meterRegistry.get("tw_tkms_deferred_messages_peak_bytes").summary();
+    assertEquals(1, summary.count());
+    assertEquals((double) messageBytes * messagesPerFlush, summary.max());
+    assertEquals(messagesPerFlush * 2 + 1, insertedMessages.get(TkmsShardPartition.of(0, 0)).size());
+  }
+
+  @Test
+  void eagerlySerializedMessagesAreInsertedAsSerialized() {
+    var properties = new TkmsProperties();
+    properties.getEagerSerialization().setEnabled(true);
+    var sender = createSender(properties);
+    var transactionContext = TransactionContext.createAndBind();
+
+    defer(sender, transactionContext, TkmsShardPartition.of(0, 0), "a");
+    defer(sender, transactionContext, TkmsShardPartition.of(0, 0), "b");
+    sender.flushDeferredMessages(transactionContext);
+
+    assertEquals(List.of("a", "b"), insertedMessages.get(TkmsShardPartition.of(0, 0)));
+    assertEquals(List.of("serialized-a", "serialized-b"), insertedSerializedMessages);
+  }
+
+  @Test
+  void serializationPermitsAreReleasedOnFailure() throws Exception {
+    var properties = new TkmsProperties();
+    properties.getEagerSerialization().setEnabled(true).setConcurrency(2);
+    var sender = createSender(properties);
+    var executor = Executors.newSingleThreadExecutor();
+    sender.serializationExecutorService = executor;
+    sender.serializationPermits = new Semaphore(2);
+    var transactionContext = TransactionContext.createAndBind();
+
+    try {
+      for (int i = 0; i < 5; i++) {
+        defer(sender, transactionContext, TkmsShardPartition.of(0, 0), "fail");
+      }
+      var e = assertThrows(IllegalStateException.class, () -> sender.flushDeferredMessages(transactionContext));
+      assertEquals("Serialization failed.", e.getMessage());
+      // Serializations of the other messages can still be running.
+      executor.submit(() -> { }).get();
+      assertEquals(2, sender.serializationPermits.availablePermits());
+
+      executor.shutdown();
+      assertThrows(RejectedExecutionException.class, () -> sender.serializeEagerly(TkmsShardPartition.of(0, 0), message("a")));
+      assertEquals(2, sender.serializationPermits.availablePermits());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void spooledMessageNotAppendableFailsTheCommit() {
+    var sender = createSender(new TkmsProperties());
+    sender.spool = new TestSpool();
+    var transactionContext = TransactionContext.createAndBind();
+
+    transactionContext.spoolMessage(TkmsShardPartition.of(0, 0), message("a"));
+    transactionContext.spoolMessage(TkmsShardPartition.of(0, 0), message("broken"));
+
+    var e = assertThrows(IllegalStateException.class, () -> sender.new BeforeCommitSender().beforeCommit(false));
+    assertEquals("Spool is full.", e.getMessage());
+  }
+
+  @Test
+  void failedSpoolAppendDoesNotLoseOtherMessages() {
+    var sender = createSender(new TkmsProperties());
+    var spool = new TestSpool();
+    sender.spool = spool;
+    var transactionContext = TransactionContext.createAndBind();
+
+    transactionContext.spoolMessage(TkmsShardPartition.of(0, 0), message("a"));
+    transactionContext.spoolMessage(TkmsShardPartition.of(0, 0), message("broken"));
+    transactionContext.spoolMessage(TkmsShardPartition.of(0, 0), message("c"));
+    sender.new BeforeCommitSender().afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+
+    assertEquals(List.of("a", "c"), spool.appendedMessages);
+    assertEquals(1, meterRegistry.get("tw_tkms_spool_messages_append_failure").counter().count());
+  }
+
+  @Test
+  void asyncSendsWithoutKeyAreRoutedToLocallyProxiedPartitions() {
+    var properties = new TkmsProperties();
+    properties.setPartitionsCount(4);
+    var sender = createSender(properties);
+    var tracker = new TkmsAcknowledgementTracker();
+    tracker.properties = properties;
+    tracker.afterPropertiesSet();
+    tracker.leadershipAcquired(TkmsShardPartition.of(0, 2));
+    sender.acknowledgementTracker = tracker;
+    sender.partitioner = (shard, message, partitionsCount) -> 1;
+
+    assertEquals(1, sender.getPartition(0, message("a")));
+
+    sender.acknowledgementFuture.set(new CompletableFuture<>());
+    try {
+      assertEquals(2, sender.getPartition(0, message("a")));
+      assertEquals(1, sender.getPartition(0, message("a").setKey("key")));
+      assertEquals(3, sender.getPartition(0, message("a").setPartition(3)));
+    } finally {
+      sender.acknowledgementFuture.remove();
+    }
+  }
+
+  private TransactionalKafkaMessageSender createSender(TkmsProperties properties) {
+    TkmsShardPartition.init(properties);
+
+    var sender = new TransactionalKafkaMessageSender();
+    sender.properties = properties;
+    sender.metricsTemplate = new TkmsMetricsTemplate(new MeterCache(meterRegistry), properties);
+    sender.eventsDispatcher = new NoListenersEventsDispatcher();
+    sender.messageSerializer = new ValueSerializer();
+    sender.setTkmsDaoProvider(shard -> createDao());
+    return sender;
+  }
+
+  private void defer(TransactionalKafkaMessageSender sender, TransactionContext transactionContext, TkmsShardPartition shardPartition,
+      String value) {
+    sender.deferMessage(transactionContext, shardPartition, transactionContext.getShardPartitionMessages(shardPartition), message(value));
+    sender.flushDeferredMessagesIfNeeded(transactionContext);
+  }
+
+  @SuppressWarnings("unchecked")
+  private ITkmsDao createDao() {
+    return (ITkmsDao) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ITkmsDao.class}, (proxy, method, args) -> {
+      if (!method.getName().equals("insertMessages")) {
+        throw new UnsupportedOperationException(method.getName());
+      }
+      var shardPartition = (TkmsShardPartition) args[0];
+      var messages = (List<TkmsMessageWithSequence>) args[1];
+      insertBatchSizes.add(messages.size());
+
+      var shardPartitionMessages = insertedMessages.computeIfAbsent(shardPartition, k -> new ArrayList<>());
+      var results = new ArrayList<InsertMessageResult>();
+      for (var message : messages) {
+        shardPartitionMessages.add(new String(message.getTkmsMessage().getValue(), StandardCharsets.UTF_8));
+        if (message.getSerializedMessage() != null) {
+          insertedSerializedMessages.add(new String(message.getSerializedMessage(), StandardCharsets.UTF_8));
+        }
+        results.add(new InsertMessageResult().setShardPartition(shardPartition).setSequence(message.getSequence())
+            .setStorageId((long) shardPartitionMessages.size()));
+      }
+      return results;
+    });
+  }
+
+  private static TkmsMessage message(String value) {
+    return new TkmsMessage().setTopic("topic").setValue(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Fails on the messages with the "broken" value.
+   */
+  private static class TestSpool implements ITkmsSpool {
+
+    private final List<String> appendedMessages = new ArrayList<>();
+
+    @Override
+    public boolean isSpoolable(int shard, Throwable t) {
+      return true;
+    }
+
+    @Override
+    public void checkAppendable(TkmsShardPartition shardPartition, TkmsMessage message) {
+      if (isBroken(message)) {
+        throw new IllegalStateException("Spool is full.");
+      }
+    }
+
+    @Override
+    public void append(TkmsShardPartition shardPartition, TkmsMessage message) {
+      if (isBroken(message)) {
+        throw new IllegalStateException("Disk failure.");
+      }
+      appendedMessages.add(new String(message.getValue(), StandardCharsets.UTF_8));
+    }
+
+    private static boolean isBroken(TkmsMessage message) {
+      return new String(message.getValue(), StandardCharsets.UTF_8).equals("broken");
+    }
+  }
+
+  private static class NoListenersEventsDispatcher implements ITkmsEventsDispatcher {
+
+    @Override
+    public boolean hasListeners() {
+      return false;
+    }
+
+    @Override
+    public void messagesRegistered(List<MessageRegisteredEvent> events) {
+    }
+
+    @Override
+    public void messagesAcknowledged(List<MessageAcknowledgedEvent> events) {
+    }
+  }
+
+  private static class ValueSerializer implements ITkmsMessageSerializer {
+
+    @Override
+    public InputStream serialize(TkmsShardPartition shardPartition, TkmsMessage tkmsMessage) {
+      var value = new String(tkmsMessage.getValue(), StandardCharsets.UTF_8);
+      if (value.equals("fail")) {
+        throw new IllegalStateException("Serialization failed.");
+      }
+      return new ByteArrayInputStream(("serialized-" + value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public byte[] serialize(TkmsShardPartition shardPartition, Message storedMessage) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Message deserialize(TkmsShardPartition shardPartition, InputStream is) {
+      throw new UnsupportedOperationException();
+    }
+  }
 }
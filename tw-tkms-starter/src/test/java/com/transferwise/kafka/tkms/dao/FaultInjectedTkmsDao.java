@@ -3,7 +3,10 @@ package com.transferwise.kafka.tkms.dao;
 import com.transferwise.kafka.tkms.TkmsMessageWithSequence;
 import com.transferwise.kafka.tkms.api.TkmsMessage;
 import com.transferwise.kafka.tkms.api.TkmsShardPartition;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.function.LongPredicate;
 import lombok.Setter;
 
 public class FaultInjectedTkmsDao implements ITkmsDao {
@@ -51,11 +54,21 @@ public class FaultInjectedTkmsDao implements ITkmsDao {
     return delegate.hasMessagesBeforeId(sp, messageId);
   }
 
+  @Override
+  public int getMessagesCountBeforeId(TkmsShardPartition sp, long messageId, int maxCount) {
+    return delegate.getMessagesCountBeforeId(sp, messageId, maxCount);
+  }
+
   @Override
   public List<MessageRecord> getMessages(TkmsShardPartition shardPartition, long earliestMessageId, int maxCount) {
     return delegate.getMessages(shardPartition, earliestMessageId, maxCount);
   }
 
+  @Override
+  public boolean hasMessages(TkmsShardPartition shardPartition, long earliestMessageId) {
+    return delegate.hasMessages(shardPartition, earliestMessageId);
+  }
+
   @Override
   public void deleteMessages(TkmsShardPartition shardPartition, List<Long> records) {
     if (deleteMessagesFails) {
@@ -65,6 +78,98 @@ public class FaultInjectedTkmsDao implements ITkmsDao {
     }
   }
 
+  @Override
+  public List<MessageRecord> getPriorityMessages(TkmsShardPartition shardPartition, int maxCount) {
+    return delegate.getPriorityMessages(shardPartition, maxCount);
+  }
+
+  @Override
+  public void deletePriorityMessages(TkmsShardPartition shardPartition, List<Long> records) {
+    if (deleteMessagesFails) {
+      throw new IllegalStateException("Delete messages has a bad day.");
+    } else {
+      delegate.deletePriorityMessages(shardPartition, records);
+    }
+  }
+
+  @Override
+  public List<MessageRecord> getGenerationMessages(TkmsShardPartition shardPartition, int generation, long fromMessageId, int maxCount) {
+    return delegate.getGenerationMessages(shardPartition, generation, fromMessageId, maxCount);
+  }
+
+  @Override
+  public List<Long> getGenerationMessageIds(TkmsShardPartition shardPartition, int generation, long fromMessageId, long toMessageId) {
+    return delegate.getGenerationMessageIds(shardPartition, generation, fromMessageId, toMessageId);
+  }
+
+  @Override
+  public boolean truncateGeneration(TkmsShardPartition shardPartition, int generation, long fromMessageId, LongPredicate proxied) {
+    return delegate.truncateGeneration(shardPartition, generation, fromMessageId, proxied);
+  }
+
+  @Override
+  public List<Long> getMessageIds(TkmsShardPartition shardPartition, long fromMessageId, long toMessageId) {
+    return delegate.getMessageIds(shardPartition, fromMessageId, toMessageId);
+  }
+
+  @Override
+  public int deleteMessagesRange(TkmsShardPartition shardPartition, long fromMessageId, long toMessageId, int maxCount) {
+    if (deleteMessagesFails) {
+      throw new IllegalStateException("Delete messages has a bad day.");
+    }
+    return delegate.deleteMessagesRange(shardPartition, fromMessageId, toMessageId, maxCount);
+  }
+
+  @Override
+  public DeliveryWatermark getDeliveryWatermark(TkmsShardPartition shardPartition) {
+    return delegate.getDeliveryWatermark(shardPartition);
+  }
+
+  @Override
+  public void saveDeliveryWatermark(TkmsShardPartition shardPartition, long watermark, Collection<Long> pendingIds) {
+    delegate.saveDeliveryWatermark(shardPartition, watermark, pendingIds);
+  }
+
+  @Override
+  public void insertDeadLetters(TkmsShardPartition shardPartition, List<DeadLetterRecord> deadLetterRecords) {
+    delegate.insertDeadLetters(shardPartition, deadLetterRecords);
+  }
+
+  @Override
+  public List<DeadLetterRecord> getDeadLetters(TkmsShardPartition shardPartition, int maxCount) {
+    return delegate.getDeadLetters(shardPartition, maxCount);
+  }
+
+  @Override
+  public DeadLetterRecord getDeadLetter(TkmsShardPartition shardPartition, long id) {
+    return delegate.getDeadLetter(shardPartition, id);
+  }
+
+  @Override
+  public List<DeadLetterRecord> getDeadLettersDueForRetry(TkmsShardPartition shardPartition, long timeMs, int maxCount) {
+    return delegate.getDeadLettersDueForRetry(shardPartition, timeMs, maxCount);
+  }
+
+  @Override
+  public void updateDeadLetter(TkmsShardPartition shardPartition, DeadLetterRecord deadLetterRecord) {
+    delegate.updateDeadLetter(shardPartition, deadLetterRecord);
+  }
+
+  @Override
+  public boolean deleteDeadLetter(TkmsShardPartition shardPartition, long id) {
+    return delegate.deleteDeadLetter(shardPartition, id);
+  }
+
+  @Override
+  public Long getRotationWatermark(TkmsShardPartition shardPartition, int generation) {
+    return delegate.getRotationWatermark(shardPartition, generation);
+  }
+
+  @Override
+  public void saveRotationWatermark(TkmsShardPartition shardPartition, int generation, long watermark) {
+    delegate.saveRotationWatermark(shardPartition, generation, watermark);
+  }
+
   @Override
   public Long getEarliestMessageId(TkmsShardPartition shardPartition) {
     return delegate.getEarliestMessageId(shardPartition);
@@ -75,6 +180,16 @@ public class FaultInjectedTkmsDao implements ITkmsDao {
     delegate.saveEarliestMessageId(shardPartition, messageId);
   }
 
+  @Override
+  public void saveEarliestMessageIds(int shard, Map<Integer, Long> partitionsMessageIds) {
+    delegate.saveEarliestMessageIds(shard, partitionsMessageIds);
+  }
+
+  @Override
+  public void insertSerializedMessage(TkmsShardPartition shardPartition, String topic, byte[] serializedMessage) {
+    delegate.insertSerializedMessage(shardPartition, topic, serializedMessage);
+  }
+
   @Override
   public boolean insertEarliestMessageId(TkmsShardPartition shardPartition) {
     return delegate.insertEarliestMessageId(shardPartition);
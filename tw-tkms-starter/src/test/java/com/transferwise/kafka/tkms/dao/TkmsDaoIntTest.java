@@ -3,6 +3,7 @@ package com.transferwise.kafka.tkms.dao;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.awaitility.Awaitility.await;
 
+import com.transferwise.kafka.tkms.TkmsMessageWithSequence;
 import com.transferwise.kafka.tkms.TkmsStorageToKafkaProxy;
 import com.transferwise.kafka.tkms.api.TkmsMessage;
 import com.transferwise.kafka.tkms.api.TkmsShardPartition;
@@ -12,6 +13,7 @@ import com.transferwise.kafka.tkms.test.ProductionBug;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
 import javax.sql.DataSource;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
@@ -33,6 +35,9 @@ class TkmsDaoIntTest extends BaseIntTest {
   @Autowired
   private DataSource dataSource;
 
+  @Autowired
+  private ITkmsMessageSerializer messageSerializer;
+
   @BeforeAll
   public void setupClass() {
     tkmsStorageToKafkaProxy.pause();
@@ -71,6 +76,39 @@ class TkmsDaoIntTest extends BaseIntTest {
     assertThat(new JdbcTemplate(dataSource).queryForObject("select count(*) from outgoing_message_0_0", Integer.class)).isZero();
   }
 
+  @Test
+  void eagerlySerializedMessagesAreInsertedAsIs() throws Exception {
+    var tkmsDao = tkmsDaoProvider.getTkmsDao(0);
+    var shardPartition = TkmsShardPartition.of(0, 0);
+
+    var messages = new ArrayList<TkmsMessageWithSequence>();
+    for (int i = 0; i < 3; i++) {
+      var message = new TkmsMessage().setTopic("ABC").setKey(String.valueOf(i)).setValue("ABC".getBytes(StandardCharsets.UTF_8));
+      var messageWithSequence = new TkmsMessageWithSequence().setSequence(i).setTkmsMessage(message);
+      // The second message is left to be serialized by the dao.
+      if (i != 1) {
+        var serializedMessage = new TkmsMessage().setTopic("ABC").setKey(String.valueOf(i)).setValue(("DEF" + i).getBytes(StandardCharsets.UTF_8));
+        try (var is = messageSerializer.serialize(shardPartition, serializedMessage)) {
+          messageWithSequence.setSerializedMessage(is.readAllBytes());
+        }
+      }
+      messages.add(messageWithSequence);
+    }
+
+    var results = tkmsDao.insertMessages(shardPartition, messages);
+    var storageIds = results.stream().map(ITkmsDao.InsertMessageResult::getStorageId).collect(Collectors.toList());
+    assertThat(results.stream().map(ITkmsDao.InsertMessageResult::getSequence)).containsExactly(0, 1, 2);
+
+    var records = tkmsDao.getMessages(shardPartition, storageIds.get(0), 10).stream().filter(r -> storageIds.contains(r.getId()))
+        .collect(Collectors.toList());
+
+    // The serialized bytes are stored, not the message they were created for.
+    assertThat(records).extracting(r -> r.getMessage().getValue().toStringUtf8()).containsExactly("DEF0", "ABC", "DEF2");
+    assertThat(records).extracting(r -> r.getMessage().getKey()).containsExactly("0", "1", "2");
+
+    tkmsDao.deleteMessages(shardPartition, storageIds);
+  }
+
   protected void assertDeleteBucketsCounts() {
     assertThat(meterRegistry.get("tw_tkms_dao_messages_delete_batches").tags("batchSize", "256").counter().count()).isEqualTo(3);
     assertThat(meterRegistry.get("tw_tkms_dao_messages_delete_batches").tags("batchSize", "64").counter().count()).isEqualTo(3);
@@ -30,9 +30,11 @@ public class KafkaConfiguration implements InitializingBean {
   public void afterPropertiesSet() {
     try (AdminClient adminClient = AdminClient.create(kafkaAdmin.getConfigurationProperties())) {
       deleteTopic(adminClient, tkmsProperties.getTestTopic());
+      deleteTopic(adminClient, tkmsProperties.getPriorityTestTopic());
     }
     try (AdminClient adminClient = AdminClient.create(kafkaAdmin.getConfigurationProperties())) {
       createTopic(adminClient, tkmsProperties.getTestTopic(), 10);
+      createTopic(adminClient, tkmsProperties.getPriorityTestTopic(), 10);
     }
   }
 
@@ -49,7 +51,6 @@ public class KafkaConfiguration implements InitializingBean {
     }
   }
 
-  @SuppressWarnings("SameParameterValue")
   protected void createTopic(final AdminClient adminClient, final String topicName, final int partitions) {
     // It sometimes takes time for delete to actually apply and finalize.
     for (int i = 0; i < 50; i++) {
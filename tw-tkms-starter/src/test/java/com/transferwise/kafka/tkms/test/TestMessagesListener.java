@@ -14,7 +14,7 @@ public class TestMessagesListener {
 
   private final List<Consumer<ConsumerRecord<String, String>>> consumers = new CopyOnWriteArrayList<>();
 
-  @KafkaListener(topics = "${tw-tkms-test.test-topic}")
+  @KafkaListener(topics = {"${tw-tkms-test.test-topic}", "${tw-tkms-test.priority-test-topic}"})
   public void retrieveMessage(ConsumerRecord<String, String> cr) {
     for (Consumer<ConsumerRecord<String, String>> consumer : consumers) {
       consumer.accept(cr);
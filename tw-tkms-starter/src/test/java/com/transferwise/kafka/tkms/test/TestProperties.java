@@ -12,4 +12,5 @@ import org.springframework.stereotype.Component;
 public class TestProperties {
 
   private String testTopic = "MyTestTopic";
+  private String priorityTestTopic = "MyPriorityTestTopic";
 }
@@ -0,0 +1,24 @@
+package db.migration.earliestmessage;
+
+import java.sql.Statement;
+import lombok.extern.slf4j.Slf4j;
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+
+@Slf4j
+public class V5__TransactionIds extends BaseJavaMigration {
+
+  @Override
+  public void migrate(Context context) throws Exception {
+    for (int s = 0; s < 5; s++) {
+      for (int p = 0; p < 10; p++) {
+        try (Statement stmt = context.getConnection().createStatement()) {
+          String tableName = "outgoing_message_" + s + "_" + p;
+          stmt.executeUpdate("ALTER TABLE earliestmessage." + tableName + " ADD COLUMN xid xid8 NOT NULL DEFAULT pg_current_xact_id()");
+          stmt.executeUpdate("CREATE INDEX " + tableName + "_xid ON earliestmessage." + tableName + " (xid, id)");
+          log.info("Added transaction ids to table `" + tableName + "'.");
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package db.migration.mysql;
+
+import java.sql.Statement;
+import lombok.extern.slf4j.Slf4j;
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+
+@Slf4j
+public class V4__RotationTables extends BaseJavaMigration {
+
+  @Override
+  public void migrate(Context context) throws Exception {
+    for (int s = 0; s < 2; s++) {
+      for (int p = 0; p < 10; p++) {
+        for (int g = 0; g < 4; g++) {
+          try (Statement stmt = context.getConnection().createStatement()) {
+            String tableName = "outgoing_message_" + s + "_" + p + "_g" + g;
+            stmt.execute("CREATE TABLE " + tableName + " (\n"
+                + "  id BIGINT AUTO_INCREMENT PRIMARY KEY,\n"
+                + "  message MEDIUMBLOB NOT NULL\n"
+                + ")  stats_persistent=1, stats_auto_recalc=0 ENGINE=InnoDB");
+            log.info("Created table `" + tableName + "'.");
+          }
+        }
+      }
+    }
+
+    try (Statement stmt = context.getConnection().createStatement()) {
+      stmt.execute("CREATE TABLE tw_tkms_rotation_watermarks (\n"
+          + "  shard BIGINT NOT NULL,\n"
+          + "  part BIGINT NOT NULL,\n"
+          + "  generation INT NOT NULL,\n"
+          + "  watermark BIGINT NOT NULL,\n"
+          + "  PRIMARY KEY (shard, part, generation)\n"
+          + ")");
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package db.migration.mysql;
+
+import java.sql.Statement;
+import lombok.extern.slf4j.Slf4j;
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+
+@Slf4j
+public class V6__DeadLetters extends BaseJavaMigration {
+
+  @Override
+  public void migrate(Context context) throws Exception {
+    for (int s = 0; s < 5; s++) {
+      try (Statement stmt = context.getConnection().createStatement()) {
+        String tableName = "outgoing_message_" + s + "_dead_letter";
+        stmt.execute("CREATE TABLE " + tableName + " (\n"
+            + "  id BIGINT AUTO_INCREMENT PRIMARY KEY,\n"
+            + "  part INT NOT NULL,\n"
+            + "  message_id BIGINT NOT NULL,\n"
+            + "  message MEDIUMBLOB NOT NULL,\n"
+            + "  error VARCHAR(1024) NOT NULL,\n"
+            + "  retries INT NOT NULL,\n"
+            + "  dead_lettered_at BIGINT NOT NULL,\n"
+            + "  next_retry_at BIGINT,\n"
+            + "  KEY " + tableName + "_retry (part, next_retry_at)\n"
+            + ")");
+        log.info("Created table `" + tableName + "'.");
+      }
+    }
+  }
+}
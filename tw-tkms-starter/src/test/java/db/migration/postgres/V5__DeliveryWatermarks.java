@@ -0,0 +1,21 @@
+package db.migration.postgres;
+
+import java.sql.Statement;
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+
+public class V5__DeliveryWatermarks extends BaseJavaMigration {
+
+  @Override
+  public void migrate(Context context) throws Exception {
+    try (Statement stmt = context.getConnection().createStatement()) {
+      stmt.execute("CREATE TABLE tw_tkms_delivery_watermarks (\n"
+          + "  shard BIGINT NOT NULL,\n"
+          + "  part BIGINT NOT NULL,\n"
+          + "  watermark BIGINT NOT NULL,\n"
+          + "  pending_ids TEXT NOT NULL,\n"
+          + "  PRIMARY KEY (shard, part)\n"
+          + ")");
+    }
+  }
+}
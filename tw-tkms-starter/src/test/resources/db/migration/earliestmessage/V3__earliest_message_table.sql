@@ -3,5 +3,6 @@ CREATE TABLE earliestmessage.tw_tkms_earliest_visible_messages
     shard      BIGINT NOT NULL,
     part       BIGINT NOT NULL,
     message_id BIGINT NOT NULL,
+    transaction_id BIGINT,
     PRIMARY KEY (shard, part)
 ) 
\ No newline at end of file